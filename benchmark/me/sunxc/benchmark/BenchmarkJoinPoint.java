@@ -0,0 +1,159 @@
+package me.sunxc.benchmark;
+
+import java.lang.reflect.Method;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.Signature;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.aspectj.lang.reflect.SourceLocation;
+import org.aspectj.runtime.internal.AroundClosure;
+
+/**
+ * <pre>
+ * 基准测试用的ProceedingJoinPoint，proceed直接调用BenchmarkService，不经过反射，
+ * 使测量结果只包含DynamicDataSourceProcessor本身的开销
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class BenchmarkJoinPoint implements ProceedingJoinPoint {
+
+    private final BenchmarkService target;
+    private final boolean read;
+    private final Object[] args = new Object[] {Integer.valueOf(1)};
+    private final Signature signature;
+
+    public BenchmarkJoinPoint(BenchmarkService target, String methodName) throws NoSuchMethodException {
+        this.target = target;
+        this.read = "findById".equals(methodName);
+        this.signature = new BenchmarkMethodSignature(BenchmarkService.class.getMethod(methodName, Integer.class));
+    }
+
+    @Override
+    public Object proceed() throws Throwable {
+        return proceed(args);
+    }
+
+    @Override
+    public Object proceed(Object[] args) throws Throwable {
+        Integer id = (Integer)args[0];
+        return read ? target.findById(id) : target.save(id);
+    }
+
+    @Override
+    public void set$AroundClosure(AroundClosure arc) {
+    }
+
+    @Override
+    public Object getThis() {
+        return target;
+    }
+
+    @Override
+    public Object getTarget() {
+        return target;
+    }
+
+    @Override
+    public Object[] getArgs() {
+        return args;
+    }
+
+    @Override
+    public Signature getSignature() {
+        return signature;
+    }
+
+    @Override
+    public SourceLocation getSourceLocation() {
+        return null;
+    }
+
+    @Override
+    public String getKind() {
+        return METHOD_EXECUTION;
+    }
+
+    @Override
+    public StaticPart getStaticPart() {
+        return null;
+    }
+
+    @Override
+    public String toShortString() {
+        return signature.toShortString();
+    }
+
+    @Override
+    public String toLongString() {
+        return signature.toLongString();
+    }
+
+    private static class BenchmarkMethodSignature implements MethodSignature {
+
+        private final Method method;
+
+        BenchmarkMethodSignature(Method method) {
+            this.method = method;
+        }
+
+        @Override
+        public Method getMethod() {
+            return method;
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public Class getReturnType() {
+            return method.getReturnType();
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public Class[] getParameterTypes() {
+            return method.getParameterTypes();
+        }
+
+        @Override
+        public String[] getParameterNames() {
+            return null;
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public Class[] getExceptionTypes() {
+            return method.getExceptionTypes();
+        }
+
+        @Override
+        public String getName() {
+            return method.getName();
+        }
+
+        @Override
+        public int getModifiers() {
+            return method.getModifiers();
+        }
+
+        @SuppressWarnings("rawtypes")
+        @Override
+        public Class getDeclaringType() {
+            return method.getDeclaringClass();
+        }
+
+        @Override
+        public String getDeclaringTypeName() {
+            return method.getDeclaringClass().getName();
+        }
+
+        @Override
+        public String toShortString() {
+            return method.getName();
+        }
+
+        @Override
+        public String toLongString() {
+            return method.toString();
+        }
+    }
+}
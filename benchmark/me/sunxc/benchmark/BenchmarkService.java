@@ -0,0 +1,17 @@
+package me.sunxc.benchmark;
+
+/**
+ * 基准测试用的service，方法体为空，只测量路由的开销
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class BenchmarkService {
+
+    public Object findById(Integer id) {
+        return id;
+    }
+
+    public Object save(Integer id) {
+        return id;
+    }
+}
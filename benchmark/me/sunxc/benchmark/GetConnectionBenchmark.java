@@ -0,0 +1,104 @@
+package me.sunxc.benchmark;
+
+import java.sql.Connection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.RoutingScope;
+import me.sunxc.common.datasource.loadbalance.LeastActiveLoadBalance;
+import me.sunxc.common.datasource.loadbalance.PowerOfTwoChoicesLoadBalance;
+import me.sunxc.common.datasource.loadbalance.RoundRobinLoadBalance;
+import me.sunxc.common.datasource.loadbalance.WeightedRoundRobinLoadBalance;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * <pre>
+ * DynamicDataSource.getConnection（读/写选择 + 负载均衡 + 获取/归还连接）的开销，读库是内存中的NoopDataSource
+ * replicas：读库个数
+ * loadBalance：负载均衡策略
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GetConnectionBenchmark {
+
+    @Param({"1", "2", "4", "8"})
+    public int replicas;
+
+    @Param({"roundRobin", "weightedRoundRobin", "leastActive", "powerOfTwoChoices"})
+    public String loadBalance;
+
+    private DynamicDataSource dataSource;
+
+    @Setup
+    public void setUp() throws Exception {
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        for(int i = 0; i < replicas; i++) {
+            readDataSourceMap.put("read" + i, new NoopDataSource());
+        }
+        dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(new NoopDataSource());
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        if("roundRobin".equals(loadBalance)) {
+            dataSource.setLoadBalance(new RoundRobinLoadBalance());
+        } else if("weightedRoundRobin".equals(loadBalance)) {
+            dataSource.setLoadBalance(new WeightedRoundRobinLoadBalance());
+        } else if("leastActive".equals(loadBalance)) {
+            dataSource.setLoadBalance(new LeastActiveLoadBalance());
+        } else {
+            dataSource.setLoadBalance(new PowerOfTwoChoicesLoadBalance());
+        }
+        dataSource.afterPropertiesSet();
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        dataSource.destroy();
+    }
+
+    @Benchmark
+    public Connection readConnection() throws Exception {
+        RoutingScope scope = RoutingScope.read();
+        try {
+            Connection con = dataSource.getConnection();
+            con.close();
+            return con;
+        } finally {
+            scope.close();
+        }
+    }
+
+    @Benchmark
+    public Connection writeConnection() throws Exception {
+        RoutingScope scope = RoutingScope.write();
+        try {
+            Connection con = dataSource.getConnection();
+            con.close();
+            return con;
+        } finally {
+            scope.close();
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package me.sunxc.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+/**
+ * 基准测试用的内存DataSource，所有连接共用一个什么都不做的Connection
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class NoopDataSource extends AbstractDataSource {
+
+    private static final Connection CONNECTION = (Connection)Proxy.newProxyInstance(
+        NoopDataSource.class.getClassLoader(), new Class<?>[] {Connection.class}, new InvocationHandler() {
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) {
+                Class<?> returnType = method.getReturnType();
+                if(returnType == boolean.class) {
+                    return Boolean.FALSE;
+                }
+                if(returnType == int.class) {
+                    return Integer.valueOf(0);
+                }
+                return null;
+            }
+        });
+
+    @Override
+    public Connection getConnection() {
+        return CONNECTION;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) {
+        return CONNECTION;
+    }
+}
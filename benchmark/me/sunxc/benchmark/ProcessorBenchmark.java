@@ -0,0 +1,89 @@
+package me.sunxc.benchmark;
+
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import me.sunxc.common.datasource.DynamicDataSourceProcessor;
+import me.sunxc.common.datasource.RoutingScope;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.transaction.interceptor.NameMatchTransactionAttributeSource;
+
+/**
+ * <pre>
+ * DynamicDataSourceProcessor.doChoiceReadOrWriteDB（含isChoiceReadDB和方法匹配）的开销
+ * patterns：tx:method的个数，前一半是读方法模式，后一半是写方法模式，最后是"*"
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProcessorBenchmark {
+
+    @Param({"4", "16", "64", "256"})
+    public int patterns;
+
+    private DynamicDataSourceProcessor processor;
+    private BenchmarkJoinPoint readJoinPoint;
+    private BenchmarkJoinPoint writeJoinPoint;
+
+    @Setup
+    public void setUp() throws Exception {
+        Properties attributes = new Properties();
+        for(int i = 0; i < patterns / 2; i++) {
+            attributes.setProperty("query" + i + "*", "PROPAGATION_REQUIRED,readOnly");
+        }
+        for(int i = patterns / 2; i < patterns - 2; i++) {
+            attributes.setProperty("update" + i + "*", "PROPAGATION_REQUIRED");
+        }
+        attributes.setProperty("find*", "PROPAGATION_REQUIRED,readOnly");
+        attributes.setProperty("*", "PROPAGATION_REQUIRED");
+        NameMatchTransactionAttributeSource attributeSource = new NameMatchTransactionAttributeSource();
+        attributeSource.setProperties(attributes);
+
+        processor = new DynamicDataSourceProcessor();
+        processor.postProcessAfterInitialization(attributeSource, "txAdvice");
+
+        BenchmarkService service = new BenchmarkService();
+        readJoinPoint = new BenchmarkJoinPoint(service, "findById");
+        writeJoinPoint = new BenchmarkJoinPoint(service, "save");
+    }
+
+    @Benchmark
+    public Object readMethod() throws Throwable {
+        return processor.doChoiceReadOrWriteDB(readJoinPoint);
+    }
+
+    @Benchmark
+    public Object writeMethod() throws Throwable {
+        return processor.doChoiceReadOrWriteDB(writeJoinPoint);
+    }
+
+    /**
+     * 写事务中嵌套读方法
+     */
+    @Benchmark
+    public Object readInWriteScope() throws Throwable {
+        RoutingScope scope = RoutingScope.write();
+        try {
+            return processor.doChoiceReadOrWriteDB(readJoinPoint);
+        } finally {
+            scope.close();
+        }
+    }
+}
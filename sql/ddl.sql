@@ -16,4 +16,26 @@ create table address(
    constraint pk_address primary key(id),
    constraint fk_address_user foreign key(userId) references user(id) on delete cascade
    
-)charset=utf8 ENGINE=InnoDB;
\ No newline at end of file
+)charset=utf8 ENGINE=InnoDB;
+
+
+--可选：分片时的全局id序列表，配合 me.sunxc.common.datasource.shard.TableIdGenerator 使用
+--只建在一个固定的库上（如分片0的写库）；分片后user.id由序列分配，不再使用各分片的auto_increment
+create table id_sequence(
+   name                varchar(64) not null,
+   next_value          bigint not null,
+   constraint pk_id_sequence primary key(name)
+)charset=utf8 ENGINE=InnoDB;
+
+insert into id_sequence(name, next_value) values('user', 1);
+
+
+--可选：复制延迟心跳表，配合 me.sunxc.common.datasource.lag.HeartbeatTableLagProbe 使用
+--写库上定时执行 update heartbeat set ts=now(3) where id=1
+create table heartbeat(
+   id                  int not null,
+   ts                  timestamp(3) not null,
+   constraint pk_heartbeat primary key(id)
+)charset=utf8 ENGINE=InnoDB;
+
+insert into heartbeat(id, ts) values(1, now(3));
\ No newline at end of file
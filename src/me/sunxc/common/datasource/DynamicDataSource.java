@@ -1,17 +1,57 @@
 package me.sunxc.common.datasource;
 
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
 import java.sql.Connection;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import javax.sql.DataSource;
 
+import me.sunxc.common.datasource.bulkhead.BulkheadRejectedException;
+import me.sunxc.common.datasource.bulkhead.ReadBulkhead;
+import me.sunxc.common.datasource.deadline.DeadlineConnection;
+import me.sunxc.common.datasource.deadline.DeadlineExceededException;
+import me.sunxc.common.datasource.failover.ReadDataSourceHealthChecker;
+import me.sunxc.common.datasource.lag.ReplicationLagMonitor;
+import me.sunxc.common.datasource.loadbalance.ConnectionAwareLoadBalance;
+import me.sunxc.common.datasource.loadbalance.LoadBalance;
+import me.sunxc.common.datasource.loadbalance.ReadDataSourceFilter;
+import me.sunxc.common.datasource.loadbalance.RoundRobinLoadBalance;
+import me.sunxc.common.datasource.loadbalance.WeightedRoundRobinLoadBalance;
+import me.sunxc.common.datasource.metrics.DynamicDataSourceMetrics;
+import me.sunxc.common.datasource.pool.DataSourceWarmUp;
+import me.sunxc.common.datasource.pool.PoolExhaustedException;
+import me.sunxc.common.datasource.pool.PooledDataSource;
+import me.sunxc.common.datasource.sql.RoutedConnectionFactory;
+import me.sunxc.common.datasource.sql.SqlRoutingConnection;
+import me.sunxc.common.datasource.sql.SqlStatementClassifier;
+import me.sunxc.common.datasource.trace.RoutingTrace;
+import me.sunxc.common.datasource.trace.RoutingTrace.Reason;
+
 import org.apache.log4j.Logger;
+import org.springframework.beans.BeanWrapperImpl;
+import org.springframework.beans.factory.BeanNameAware;
+import org.springframework.beans.factory.DisposableBean;
 import org.springframework.beans.factory.InitializingBean;
 import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy;
+import org.springframework.util.ClassUtils;
 import org.springframework.util.CollectionUtils;
+import org.springframework.util.ReflectionUtils;
 
 /**
  * 
@@ -22,27 +62,115 @@ import org.springframework.util.CollectionUtils;
  *      @see me.sunxc.common.datasource.ReadWriteDataSourceChoice
         @see me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType
  *   
- *   默认按顺序轮询使用读库
+ *   默认按顺序轮询使用读库，可通过loadBalance配置其他负载均衡策略
+ *      @see me.sunxc.common.datasource.loadbalance.LoadBalance
  *   默认选择写库
  *   
- *   已实现：一写多读、当写时默认读操作到写库、当写时强制读操作到读库
- *   TODO 读库负载均衡、读库故障转移
+ *   配置healthChecker后启用读库故障转移
+ *      @see me.sunxc.common.datasource.failover.ReadDataSourceHealthChecker
+ *   故障的读库立即摘除，从读库获取连接失败时换一个读库重试一次，
+ *   没有可用读库或重试仍失败时（fallbackToWriteDataSource=true）从写库读
+ *   
+ *   配置lagMonitor后跳过复制延迟过大的读库，没有满足延迟要求的读库时从写库读；
+ *   没有配置lagMonitor时，指定了最大延迟的读（@MaxStaleness、catchUpAware的读己之写）无法保证，从写库读
+ *      @see me.sunxc.common.datasource.lag.ReplicationLagMonitor
+ *   
+ *   lazyConnection=true时getConnection返回延迟连接，到第一次创建Statement时才选择读/写库并真正获取连接，
+ *   之前设置的autoCommit、事务隔离级别、readOnly会在获取到真实连接后重放，
+ *   不访问数据库的方法（如命中缓存、参数校验失败提前返回）不占用连接池的连接
+ *      @see org.springframework.jdbc.datasource.LazyConnectionDataSourceProxy
+ *   
+ *   sqlRouting=true时在延迟连接的基础上再按SQL语句选择：非写事务中的普通SELECT走读库，DML/DDL/加锁读走写库，
+ *   可以纠正方法名匹配不准的情况（如query*方法中有写操作），同时包含lazyConnection的效果
+ *      @see me.sunxc.common.datasource.sql.SqlRoutingConnection
+ *   
+ *   配置metrics后统计各数据源的路由次数、获取连接耗时、回退写库次数，并注册为JMX MBean
+ *      @see me.sunxc.common.datasource.metrics.DynamicDataSourceMetrics
+ *   
+ *   路由路径上不分配对象（DEBUG日志关闭时）；配置routingTrace后按采样记录路由决策到环形缓冲区，可随时导出
+ *      @see me.sunxc.common.datasource.trace.RoutingTrace
+ *   
+ *   写库和每个读库可以使用项目自带的低竞争连接池代替commons-dbcp
+ *      @see me.sunxc.common.datasource.pool.PooledDataSource
+ *   配置warmUp后启动时并行预热写库和所有读库的连接
+ *      @see me.sunxc.common.datasource.pool.DataSourceWarmUp
+ *   
+ *   运行时增删读库、调整权重（API或JMX），不需要重启：
+ *   读库列表是写时复制的快照，变更时整体替换，读路径不加锁；
+ *   摘除的读库等借出的连接都归还后（或超过drainTimeoutMillis）再关闭，
+ *   新增读库需要预留容量 @see #setMaxReadDataSources
+ *      @see me.sunxc.common.datasource.DynamicDataSourceMBean
+ *   
+ *   并行扫描时同时使用所有可用的读库
+ *      @see me.sunxc.common.datasource.scan.ParallelRangeScanner
+ *   
+ *   配置bulkhead后限制每个读库的并发连接数，已满的读库不参与选择，读请求溢出到其他读库，
+ *   读库都已满时只在写库余量内溢出到写库，否则排队或拒绝
+ *      @see me.sunxc.common.datasource.bulkhead.ReadBulkhead
+ *   
+ *   请求带有截止时间（@Deadline或ReadWriteDataSourceChoice.setTimeout）时，获取连接的等待不超过剩余时间，
+ *   剩余时间不够等待连接池时直接失败，连接上的每个Statement设置剩余时间为查询超时
+ *      @see me.sunxc.common.datasource.deadline.Deadline
+ *   
+ *   对冲读：读库超过其近期延迟的某个百分位仍未返回时，在另一个读库上再执行一次，先返回的结果生效
+ *      @see me.sunxc.common.datasource.hedge.HedgedReadExecutor
+ *   
+ *   单个写库容量不够时，多个DynamicDataSource作为分片按分片键路由，分片内照常读写分离
+ *      @see me.sunxc.common.datasource.shard.ShardingDataSource
+ *   
+ *   已实现：一写多读、当写时默认读操作到写库、当写时强制读操作到读库、读库负载均衡、读库故障转移
  * </pre>  
  * @author xianchao.sun@yunyoyo.cn
  *
  */
-public class DynamicDataSource extends AbstractDataSource implements InitializingBean {
+public class DynamicDataSource extends AbstractDataSource implements InitializingBean, DisposableBean, BeanNameAware,
+    DynamicDataSourceMBean {
     private static final Logger log = Logger.getLogger(DynamicDataSource.class);
     
+    private static final long DRAIN_CHECK_INTERVAL_MILLIS = 100;
+    
     private DataSource writeDataSource;
+    private PoolWaitCheck writePoolWaitCheck;
     private Map<String, DataSource> readDataSourceMap;
     
     
-    private String[] readDataSourceNames;
-    private DataSource[] readDataSources;
+    private volatile ReadDataSources readReplicas;
     private int readDataSourceCount;
+    private int maxReadDataSources = 0;
+    
+    private long drainTimeoutMillis = 60000;
+    private final Object reconfigureLock = new Object();
+    private boolean[] draining;
+    private ExecutorService drainer;
+
+    private LoadBalance loadBalance = new RoundRobinLoadBalance();
+    private ConnectionAwareLoadBalance connectionAwareLoadBalance;
 
-    private AtomicInteger counter = new AtomicInteger(1);
+    private ReadDataSourceHealthChecker healthChecker;
+    private ReplicationLagMonitor lagMonitor;
+    private boolean fallbackToWriteDataSource = true;
+    
+    private boolean lazyConnection = false;
+    private Boolean defaultAutoCommit;
+    private Integer defaultTransactionIsolation;
+    private DataSource lazyConnectionDataSource;
+    
+    private boolean sqlRouting = false;
+    private SqlStatementClassifier sqlStatementClassifier;
+    private RoutedConnectionFactory routedConnectionFactory;
+    private final ReadDataSourceFilter availableFilter = new AvailableFilter();
+    private ReadDataSourceFilter readFilter = availableFilter;
+    
+    private ReadBulkhead bulkhead;
+    
+    private DynamicDataSourceMetrics metrics;
+    private String beanName;
+    
+    private DataSourceWarmUp warmUp;
+    
+    private RoutingTrace routingTrace;
+    
+    private long deadlineReserveMillis = 10;
 
     
     /**
@@ -53,6 +181,22 @@ public class DynamicDataSource extends AbstractDataSource implements Initializin
         this.readDataSourceMap = readDataSourceMap;
     }
     
+    /**
+     * 读库容量，即运行时最多同时有多少个读库，默认与readDataSourceMap的数量相同（只能在摘除后再新增）
+     * @param maxReadDataSources
+     */
+    public void setMaxReadDataSources(int maxReadDataSources) {
+        this.maxReadDataSources = maxReadDataSources;
+    }
+    
+    /**
+     * 摘除的读库等待借出的连接归还的最长时间（毫秒），超时后直接关闭，默认60000
+     * @param drainTimeoutMillis
+     */
+    public void setDrainTimeoutMillis(long drainTimeoutMillis) {
+        this.drainTimeoutMillis = drainTimeoutMillis;
+    }
+    
     /**
      * 设置写库
      * @param writeDataSource
@@ -61,6 +205,137 @@ public class DynamicDataSource extends AbstractDataSource implements Initializin
         this.writeDataSource = writeDataSource;
     }
     
+    /**
+     * 设置读库负载均衡策略，默认轮询
+     * @param loadBalance
+     */
+    public void setLoadBalance(LoadBalance loadBalance) {
+        this.loadBalance = loadBalance;
+    }
+    
+    /**
+     * 设置读库健康检查，不设置则不进行故障转移
+     * @param healthChecker
+     */
+    public void setHealthChecker(ReadDataSourceHealthChecker healthChecker) {
+        this.healthChecker = healthChecker;
+    }
+    
+    /**
+     * 设置读库复制延迟监控，不设置则认为所有读库的数据都是最新的
+     * @param lagMonitor
+     */
+    public void setLagMonitor(ReplicationLagMonitor lagMonitor) {
+        this.lagMonitor = lagMonitor;
+    }
+    
+    /**
+     * 没有可用读库时是否从写库读，默认true；false则抛出异常
+     * @param fallbackToWriteDataSource
+     */
+    public void setFallbackToWriteDataSource(boolean fallbackToWriteDataSource) {
+        this.fallbackToWriteDataSource = fallbackToWriteDataSource;
+    }
+    
+    /**
+     * 是否延迟到第一次执行语句时才选择读/写库并获取连接，默认false
+     * @param lazyConnection
+     */
+    public void setLazyConnection(boolean lazyConnection) {
+        this.lazyConnection = lazyConnection;
+    }
+    
+    /**
+     * 延迟连接在获取真实连接前getAutoCommit返回的默认值，应与连接池的设置一致；
+     * 不设置则启动时从写库取一个连接确定
+     * @param defaultAutoCommit
+     */
+    public void setDefaultAutoCommit(boolean defaultAutoCommit) {
+        this.defaultAutoCommit = defaultAutoCommit;
+    }
+    
+    /**
+     * 延迟连接在获取真实连接前getTransactionIsolation返回的默认值；
+     * 不设置则启动时从写库取一个连接确定
+     * @param defaultTransactionIsolation
+     */
+    public void setDefaultTransactionIsolation(int defaultTransactionIsolation) {
+        this.defaultTransactionIsolation = defaultTransactionIsolation;
+    }
+    
+    /**
+     * 是否按SQL语句选择读/写库，默认false
+     * @param sqlRouting
+     */
+    public void setSqlRouting(boolean sqlRouting) {
+        this.sqlRouting = sqlRouting;
+    }
+    
+    /**
+     * SQL语句读/写判断，sqlRouting=true时使用，不设置使用默认配置
+     * @param sqlStatementClassifier
+     */
+    public void setSqlStatementClassifier(SqlStatementClassifier sqlStatementClassifier) {
+        this.sqlStatementClassifier = sqlStatementClassifier;
+    }
+    
+    /**
+     * 设置路由和获取连接统计，不设置则不统计
+     * @param metrics
+     */
+    public void setMetrics(DynamicDataSourceMetrics metrics) {
+        this.metrics = metrics;
+    }
+    
+    /**
+     * 设置启动预热，不设置则不预热
+     * @param warmUp
+     */
+    public void setWarmUp(DataSourceWarmUp warmUp) {
+        this.warmUp = warmUp;
+    }
+    
+    /**
+     * 设置路由决策采样记录，不设置则不记录
+     * @param routingTrace
+     */
+    public void setRoutingTrace(RoutingTrace routingTrace) {
+        this.routingTrace = routingTrace;
+    }
+    
+    /**
+     * 读库舱壁，不设置则不限制读库的并发连接数
+     * @param bulkhead
+     */
+    public void setBulkhead(ReadBulkhead bulkhead) {
+        this.bulkhead = bulkhead;
+    }
+    
+    public ReadBulkhead getBulkhead() {
+        return bulkhead;
+    }
+    
+    /**
+     * 请求有截止时间时，获取连接后至少要留给查询的毫秒数，剩余时间不足时不再获取连接，默认10
+     * @param deadlineReserveMillis
+     */
+    public void setDeadlineReserveMillis(long deadlineReserveMillis) {
+        this.deadlineReserveMillis = deadlineReserveMillis;
+    }
+    
+    public RoutingTrace getRoutingTrace() {
+        return routingTrace;
+    }
+    
+    public DynamicDataSourceMetrics getMetrics() {
+        return metrics;
+    }
+    
+    @Override
+    public void setBeanName(String beanName) {
+        this.beanName = beanName;
+    }
+    
     /**
      * 是InitializingBean的方法，如果属性类的属性都被设置后则调用
      * 可以在这个方法中检查属性设置
@@ -73,10 +348,13 @@ public class DynamicDataSource extends AbstractDataSource implements Initializin
         if(CollectionUtils.isEmpty(readDataSourceMap)) {
             throw new IllegalArgumentException("property 'readDataSourceMap' is required");
         }
-        readDataSourceCount = readDataSourceMap.size();
+        if(maxReadDataSources != 0 && maxReadDataSources < readDataSourceMap.size()) {
+            throw new IllegalArgumentException("property 'maxReadDataSources' must not be less than the number of read datasources");
+        }
+        readDataSourceCount = Math.max(readDataSourceMap.size(), maxReadDataSources);
         
-        readDataSources = new DataSource[readDataSourceCount];
-        readDataSourceNames = new String[readDataSourceCount];
+        DataSource[] readDataSources = new DataSource[readDataSourceCount];
+        String[] readDataSourceNames = new String[readDataSourceCount];
         
         int i = 0;
         for(Entry<String, DataSource> e : readDataSourceMap.entrySet()) {
@@ -84,51 +362,1094 @@ public class DynamicDataSource extends AbstractDataSource implements Initializin
             readDataSourceNames[i] = e.getKey();
             i++;
         }
+        readReplicas = new ReadDataSources(readDataSourceNames, readDataSources);
+        writePoolWaitCheck = PoolWaitCheck.of(writeDataSource);
+        draining = new boolean[readDataSourceCount];
+        
+        if(loadBalance == null) {
+            throw new IllegalArgumentException("property 'loadBalance' must not be null");
+        }
+        loadBalance.init(readDataSourceNames);
+        if(loadBalance instanceof ConnectionAwareLoadBalance) {
+            connectionAwareLoadBalance = (ConnectionAwareLoadBalance)loadBalance;
+        }
+        
+        if(healthChecker != null) {
+            healthChecker.init(readDataSourceNames, readDataSources);
+        }
+        if(lagMonitor != null) {
+            lagMonitor.init(readDataSourceNames, readDataSources);
+        }
+        if(bulkhead != null) {
+            bulkhead.init(readDataSourceNames);
+            readFilter = new BulkheadFilter();
+        }
+        if(metrics != null) {
+            metrics.init(beanName != null ? beanName : "dynamicDataSource@" + Integer.toHexString(hashCode()),
+                readDataSourceNames);
+        }
         
+        if(sqlRouting) {
+            if(sqlStatementClassifier == null) {
+                sqlStatementClassifier = new SqlStatementClassifier();
+            }
+            routedConnectionFactory = new DynamicRoutedConnectionFactory(null, null, false);
+            checkDefaultConnectionProperties();
+        } else if(lazyConnection) {
+            // 不能用带参数的构造方法，它会立即调用afterPropertiesSet，此时默认值还没设置
+            LazyConnectionDataSourceProxy proxy = new LazyConnectionDataSourceProxy();
+            proxy.setTargetDataSource(new RoutingDataSource());
+            if(defaultAutoCommit != null) {
+                proxy.setDefaultAutoCommit(defaultAutoCommit.booleanValue());
+            }
+            if(defaultTransactionIsolation != null) {
+                proxy.setDefaultTransactionIsolation(defaultTransactionIsolation.intValue());
+            }
+            proxy.afterPropertiesSet();
+            lazyConnectionDataSource = proxy;
+        }
         
+        if(warmUp != null) {
+            warmUp.warmUp(getDistinctDataSources());
+        }
+    }
+    
+    /**
+     * 写库和所有读库，同一个数据源配置在多个名称下时只出现一次
+     */
+    private Map<String, DataSource> getDistinctDataSources() {
+        Map<String, DataSource> dataSources = new LinkedHashMap<String, DataSource>();
+        Set<DataSource> seen = Collections.newSetFromMap(new IdentityHashMap<DataSource, Boolean>());
+        seen.add(writeDataSource);
+        dataSources.put("write", writeDataSource);
+        ReadDataSources replicas = readReplicas;
+        for(int i = 0; i < readDataSourceCount; i++) {
+            if(replicas.dataSources[i] != null && seen.add(replicas.dataSources[i])) {
+                dataSources.put(replicas.names[i], replicas.dataSources[i]);
+            }
+        }
+        return dataSources;
+    }
+    
+    /**
+     * 未配置默认autoCommit、事务隔离级别时，从写库取一个连接确定
+     */
+    private void checkDefaultConnectionProperties() {
+        if(defaultAutoCommit != null && defaultTransactionIsolation != null) {
+            return;
+        }
+        try {
+            Connection con = writeDataSource.getConnection();
+            try {
+                if(defaultAutoCommit == null) {
+                    defaultAutoCommit = con.getAutoCommit();
+                }
+                if(defaultTransactionIsolation == null) {
+                    defaultTransactionIsolation = con.getTransactionIsolation();
+                }
+            } finally {
+                con.close();
+            }
+        } catch(SQLException e) {
+            log.warn("could not retrieve default auto-commit and transaction isolation settings", e);
+            if(defaultAutoCommit == null) {
+                defaultAutoCommit = Boolean.TRUE;
+            }
+            if(defaultTransactionIsolation == null) {
+                defaultTransactionIsolation = Connection.TRANSACTION_REPEATABLE_READ;
+            }
+        }
+    }
+    
+    @Override
+    public void destroy() throws Exception {
+        if(healthChecker != null) {
+            healthChecker.close();
+        }
+        if(lagMonitor != null) {
+            lagMonitor.close();
+        }
+        if(metrics != null) {
+            metrics.close();
+        }
+        synchronized(reconfigureLock) {
+            if(drainer != null) {
+                // 正在摘除的读库立即关闭
+                drainer.shutdownNow();
+            }
+        }
+    }
+    
+    /**
+     * 运行时新增读库，配置了warmUp时先预热再加入
+     * @param name 读库名称
+     * @param dataSource
+     * @throws SQLException 预热失败（warmUp.failOnError=true）
+     */
+    public void addReadDataSource(String name, DataSource dataSource) throws SQLException {
+        if(name == null || dataSource == null) {
+            throw new IllegalArgumentException("read datasource name and datasource must not be null");
+        }
+        synchronized(reconfigureLock) {
+            ReadDataSources replicas = readReplicas;
+            if(replicas.indexOf(name) >= 0) {
+                throw new IllegalArgumentException("read datasource '" + name + "' already exists");
+            }
+            int index = -1;
+            for(int i = 0; i < readDataSourceCount && index < 0; i++) {
+                if(replicas.names[i] == null && !draining[i]) {
+                    index = i;
+                }
+            }
+            if(index < 0) {
+                throw new IllegalStateException("no free read datasource slot, increase property 'maxReadDataSources'");
+            }
+            if(warmUp != null) {
+                warmUp.warmUp(Collections.singletonMap(name, dataSource));
+            }
+            String[] names = replicas.names.clone();
+            DataSource[] dataSources = replicas.dataSources.clone();
+            names[index] = name;
+            dataSources[index] = dataSource;
+            // 先更新负载均衡等，再发布快照，发布前新读库不会被选中
+            updateCollaborators(names, dataSources);
+            readReplicas = new ReadDataSources(names, dataSources);
+            log.info(String.format("read datasource %s added", name));
+        }
+    }
+    
+    /**
+     * 运行时摘除读库，之后不再选择该读库；借出的连接都归还后（最多等待drainTimeoutMillis）关闭该数据源，
+     * 同一个数据源还被写库或其他读库使用时不关闭
+     * @param name 读库名称
+     */
+    @Override
+    public void removeReadDataSource(String name) {
+        synchronized(reconfigureLock) {
+            ReadDataSources replicas = readReplicas;
+            int index = replicas.indexOf(name);
+            if(index < 0) {
+                throw new IllegalArgumentException("unknown read datasource: " + name);
+            }
+            if(replicas.size() == 1) {
+                throw new IllegalStateException("cannot remove the last read datasource");
+            }
+            DataSource removed = replicas.dataSources[index];
+            String[] names = replicas.names.clone();
+            DataSource[] dataSources = replicas.dataSources.clone();
+            names[index] = null;
+            dataSources[index] = null;
+            // 负载均衡可能拒绝新的读库集合（如剩下的读库权重都是0），在发布之前检查，失败时什么都没有改变
+            loadBalance.init(names);
+            // 先发布快照，立即停止选择该读库
+            readReplicas = new ReadDataSources(names, dataSources);
+            try {
+                updateCollaborators(names, dataSources);
+            } finally {
+                // 快照已发布，其他组件更新失败也要摘除并关闭该读库
+                drain(index, name, removed);
+            }
+        }
+    }
+    
+    private void drain(int index, String name, DataSource removed) {
+        draining[index] = true;
+        if(drainer == null) {
+            drainer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "read-datasource-drainer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        drainer.execute(new DrainTask(index, name, removed));
+        log.info(String.format("read datasource %s removed, draining", name));
+    }
+    
+    /**
+     * 运行时调整读库权重，loadBalance需要是WeightedRoundRobinLoadBalance
+     * @param name 读库名称
+     * @param weight 权重，0表示不参与读
+     */
+    @Override
+    public void setReadDataSourceWeight(String name, int weight) {
+        if(!(loadBalance instanceof WeightedRoundRobinLoadBalance)) {
+            throw new IllegalStateException("property 'loadBalance' does not support weights");
+        }
+        WeightedRoundRobinLoadBalance weighted = (WeightedRoundRobinLoadBalance)loadBalance;
+        synchronized(reconfigureLock) {
+            ReadDataSources replicas = readReplicas;
+            if(replicas.indexOf(name) < 0) {
+                throw new IllegalArgumentException("unknown read datasource: " + name);
+            }
+            int oldWeight = weighted.getWeight(name);
+            weighted.setWeight(name, weight);
+            try {
+                weighted.init(replicas.names);
+            } catch(IllegalArgumentException e) {
+                weighted.setWeight(name, oldWeight);
+                throw e;
+            }
+        }
+    }
+    
+    /**
+     * @return 当前的读库名称
+     */
+    @Override
+    public String[] getReadDataSourceNames() {
+        ReadDataSources replicas = readReplicas;
+        String[] names = new String[replicas.size()];
+        int n = 0;
+        for(String name: replicas.names) {
+            if(name != null) {
+                names[n++] = name;
+            }
+        }
+        return names;
+    }
+    
+    /**
+     * @return 读库舱壁状态，未配置bulkhead返回空数组
+     */
+    @Override
+    public String[] getBulkheadStatus() {
+        if(bulkhead == null) {
+            return new String[0];
+        }
+        return bulkhead.getStatus();
+    }
+    
+    /**
+     * @return 路由决策记录，未配置routingTrace返回空数组
+     */
+    @Override
+    public String[] dumpRoutingTrace() {
+        if(routingTrace == null) {
+            return new String[0];
+        }
+        List<String> lines = routingTrace.dump();
+        return lines.toArray(new String[lines.size()]);
+    }
+    
+    /**
+     * 负载均衡最先更新，它是唯一会拒绝读库集合的组件，拒绝时其他组件还没有改变
+     */
+    private void updateCollaborators(String[] names, DataSource[] dataSources) {
+        loadBalance.init(names);
+        if(healthChecker != null) {
+            healthChecker.update(names, dataSources);
+        }
+        if(lagMonitor != null) {
+            lagMonitor.update(names, dataSources);
+        }
+        if(metrics != null) {
+            metrics.update(names);
+        }
+        if(bulkhead != null) {
+            bulkhead.update(names);
+        }
     }
     
     /**
      * 这里进行判断是读还是写库，默认是写库
-     * @return DataSource
+     * @return true 选择读库
      */
-    private DataSource choiceDataSource() {
+    private boolean isChoiceReadDataSource() {
         if(ReadWriteDataSourceChoice.isChoiceWrite()) {
-            log.debug("current determine write datasource");
-            return writeDataSource;
+            if(log.isDebugEnabled()) {
+                log.debug("current determine write datasource");
+            }
+            return false;
         }
         
         if(ReadWriteDataSourceChoice.isChoiceNone()) {
-            log.debug("no choice read/write, default determine write datasource");
-            return writeDataSource;
+            if(log.isDebugEnabled()) {
+                log.debug("no choice read/write, default determine write datasource");
+            }
+            return false;
         } 
-        return choiceReadDataSource();
+        return true;
     }
     
     /**
-     * 对读库进行负载均衡，算法就是轮询,可以在这里扩展其他的算法
-     * @return DataSource
+     * 对读库进行负载均衡，具体算法由loadBalance决定
+     * @param filter 可选的读库
+     * @return 读库下标，没有可用的读库返回-1
      */
-    private DataSource choiceReadDataSource() {
-        //按照顺序选择读库 
-        //TODO 算法改进 
-        int index = counter.incrementAndGet() % readDataSourceCount;
-        index = Math.abs(index);
-            
-        String dataSourceName = readDataSourceNames[index];
+    private int choiceReadDataSource(ReadDataSourceFilter filter) {
+        int index = loadBalance.select(filter);
         
-        log.debug(String.format("current choice read datasource : %s", dataSourceName));
-        return readDataSources[index];
+        if(index >= 0 && log.isDebugEnabled()) {
+            log.debug(String.format("current choice read datasource : %s", readReplicas.names[index]));
+        }
+        return index;
+    }
+    
+    /**
+     * 按负载均衡在可用的读库中选择一个，用于需要自己决定在哪个读库上执行的场景（如对冲读）
+     * @param excludeIndex 排除的读库下标，不排除传-1
+     * @return 读库下标，没有可用的读库返回-1
+     */
+    public int selectReadDataSource(int excludeIndex) {
+        return choiceReadDataSource(excludeIndex < 0 ? availableFilter : new ExcludeFilter(excludeIndex, availableFilter));
+    }
+    
+    /**
+     * @return 读库容量（下标范围），包括运行时摘除后留下的空位
+     */
+    public int getReadDataSourceCount() {
+        return readDataSourceCount;
+    }
+    
+    /**
+     * @param index 读库下标
+     * @return 读库名称，空位返回null
+     */
+    public String getReadDataSourceName(int index) {
+        return readReplicas.names[index];
+    }
+    
+    /**
+     * 当前可用（未熔断、复制延迟在当前读操作允许的范围内）的读库下标，用于需要同时使用多个读库的场景（如并行扫描）
+     * @return
+     */
+    public List<Integer> getAvailableReadDataSources() {
+        List<Integer> indexes = new ArrayList<Integer>(readDataSourceCount);
+        for(int i = 0; i < readDataSourceCount; i++) {
+            if(availableFilter.accept(i)) {
+                indexes.add(i);
+            }
+        }
+        return indexes;
+    }
+    
+    /**
+     * 固定使用某个读库的DataSource，不经过读/写选择和负载均衡，但同样记录健康状态和连接数
+     * @param index 读库下标
+     * @return
+     */
+    public DataSource getReadDataSource(int index) {
+        if(index < 0 || index >= readDataSourceCount) {
+            throw new IllegalArgumentException("read datasource index out of range: " + index);
+        }
+        return new FixedReadDataSource(index);
     }
     
     @Override
     public Connection getConnection() throws SQLException {
-        return choiceDataSource().getConnection();
+        if(routedConnectionFactory != null) {
+            return SqlRoutingConnection.newConnection(routedConnectionFactory, sqlStatementClassifier,
+                defaultAutoCommit.booleanValue(), defaultTransactionIsolation.intValue());
+        }
+        if(lazyConnectionDataSource != null) {
+            return lazyConnectionDataSource.getConnection();
+        }
+        return getRoutedConnection(null, null, false);
     }
     
     @Override
     public Connection getConnection(String username, String password) throws SQLException {
-        return choiceDataSource().getConnection(username, password);
+        if(routedConnectionFactory != null) {
+            // 与不带用户名的连接一样按SQL选择读/写库，读/写库都用指定的用户名获取
+            return SqlRoutingConnection.newConnection(new DynamicRoutedConnectionFactory(username, password, true),
+                sqlStatementClassifier, defaultAutoCommit.booleanValue(), defaultTransactionIsolation.intValue());
+        }
+        if(lazyConnectionDataSource != null) {
+            return lazyConnectionDataSource.getConnection(username, password);
+        }
+        return getRoutedConnection(username, password, true);
+    }
+    
+    /**
+     * 按当前读/写选择获取真实连接
+     */
+    private Connection getRoutedConnection(String username, String password, boolean withCredentials) throws SQLException {
+        return getRoutedConnection(isChoiceReadDataSource(), username, password, withCredentials);
+    }
+    
+    /**
+     * 获取指定读/写库的真实连接
+     */
+    private Connection getRoutedConnection(boolean read, String username, String password, boolean withCredentials)
+        throws SQLException {
+        if(!read) {
+            if(routingTrace != null) {
+                trace(-1, ReadWriteDataSourceChoice.isChoiceNone() ? Reason.no_choice : Reason.write);
+            }
+            return acquire(DynamicDataSourceMetrics.WRITE_INDEX, writeDataSource, writePoolWaitCheck, username, password,
+                withCredentials);
+        }
+        
+        if(bulkhead != null) {
+            countSkipped();
+        }
+        // 选中后该读库刚好被摘除或达到并发上限时重新选择，最多选读库个数次
+        for(int attempt = 0; attempt < readDataSourceCount; attempt++) {
+            int index = choiceReadDataSource(readFilter);
+            if(index < 0) {
+                break;
+            }
+            if(routingTrace != null) {
+                trace(index, Reason.load_balance);
+            }
+            Connection con;
+            if(healthChecker == null) {
+                con = getLimitedReadConnection(index, username, password, withCredentials);
+            } else {
+                try {
+                    con = getLimitedReadConnection(index, username, password, withCredentials);
+                } catch(SQLException e) {
+                    if(!(e instanceof DeadlineExceededException)) {
+                        healthChecker.onFailure(index, e);
+                    }
+                    // 换一个读库重试一次
+                    int retryIndex = choiceReadDataSource(new ExcludeFilter(index, readFilter));
+                    if(retryIndex < 0) {
+                        return noReadDataSource(username, password, withCredentials, e);
+                    }
+                    ReadDataSources replicas = readReplicas;
+                    log.warn(String.format("get connection from read datasource %s failed, retry on %s",
+                        replicas.names[index], replicas.names[retryIndex]));
+                    if(routingTrace != null) {
+                        trace(retryIndex, Reason.retry);
+                    }
+                    try {
+                        con = getLimitedReadConnection(retryIndex, username, password, withCredentials);
+                    } catch(SQLException retryException) {
+                        if(!(retryException instanceof DeadlineExceededException)) {
+                            healthChecker.onFailure(retryIndex, retryException);
+                        }
+                        return fallbackToWriteDataSource(username, password, withCredentials, retryException);
+                    }
+                    if(con == null) {
+                        return noReadDataSource(username, password, withCredentials, e);
+                    }
+                }
+            }
+            if(con != null) {
+                return con;
+            }
+        }
+        return noReadDataSource(username, password, withCredentials, null);
+    }
+    
+    /**
+     * 每次路由统计一次因达到并发上限被跳过的可用读库，负载均衡策略扫描时不计数
+     */
+    private void countSkipped() {
+        for(int i = 0; i < readDataSourceCount; i++) {
+            if(availableFilter.accept(i) && !bulkhead.hasCapacity(i)) {
+                bulkhead.onSkipped(i);
+            }
+        }
+    }
+    
+    /**
+     * 没有选出读库：可用的读库都已达到并发上限时溢出，否则（都不可用）回退到写库
+     */
+    private Connection noReadDataSource(String username, String password, boolean withCredentials,
+        SQLException cause) throws SQLException {
+        if(bulkhead != null && hasAvailableReadDataSource()) {
+            return overflow(username, password, withCredentials);
+        }
+        return fallbackToWriteDataSource(username, password, withCredentials, cause);
+    }
+    
+    private boolean hasAvailableReadDataSource() {
+        for(int i = 0; i < readDataSourceCount; i++) {
+            if(availableFilter.accept(i)) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * 可用的读库都已达到并发上限：在写库余量内溢出到写库，否则排队等待读库释放，超时拒绝
+     */
+    private Connection overflow(String username, String password, boolean withCredentials) throws SQLException {
+        if(bulkhead.tryAcquireWrite()) {
+            if(routingTrace != null) {
+                trace(-1, Reason.spill);
+            }
+            Connection con;
+            try {
+                con = acquire(DynamicDataSourceMetrics.WRITE_INDEX, writeDataSource, writePoolWaitCheck, username,
+                    password, withCredentials);
+            } catch(SQLException e) {
+                bulkhead.releaseWrite();
+                throw e;
+            } catch(RuntimeException e) {
+                bulkhead.releaseWrite();
+                throw e;
+            }
+            return bulkhead.wrapWrite(con);
+        }
+        
+        long waitNanos = TimeUnit.MILLISECONDS.toNanos(bulkhead.getMaxQueueWaitMillis());
+        long remaining = ReadWriteDataSourceChoice.getRemainingMillis();
+        if(remaining != Long.MAX_VALUE) {
+            waitNanos = Math.min(waitNanos, TimeUnit.MILLISECONDS.toNanos(remaining - deadlineReserveMillis));
+        }
+        long waitUntil = System.nanoTime() + waitNanos;
+        try {
+            while(true) {
+                long seen = bulkhead.getReleaseSequence();
+                int index = choiceReadDataSource(readFilter);
+                if(index >= 0) {
+                    Connection con = getLimitedReadConnection(index, username, password, withCredentials);
+                    if(con != null) {
+                        if(routingTrace != null) {
+                            trace(index, Reason.load_balance);
+                        }
+                        return con;
+                    }
+                    continue;
+                }
+                waitNanos = waitUntil - System.nanoTime();
+                if(waitNanos <= 0 || !bulkhead.awaitRelease(seen, waitNanos)) {
+                    break;
+                }
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("interrupted while waiting for a read datasource");
+        }
+        bulkhead.onRejected();
+        throw new BulkheadRejectedException("all available read datasources are at their concurrency limit"
+            + " and the write headroom is used up");
+    }
+    
+    private Connection fallbackToWriteDataSource(String username, String password, boolean withCredentials,
+        SQLException cause) throws SQLException {
+        if(!fallbackToWriteDataSource) {
+            if(cause != null) {
+                throw cause;
+            }
+            throw new SQLException("no available read datasource");
+        }
+        if(cause == null) {
+            // 没有满足条件（未熔断、延迟在允许范围内）的读库
+            if(log.isDebugEnabled()) {
+                log.debug("no available read datasource, fallback to write datasource");
+            }
+        } else {
+            log.warn("no available read datasource, fallback to write datasource");
+        }
+        if(routingTrace != null) {
+            trace(-1, cause == null ? Reason.fallback_no_available : Reason.fallback_failure);
+        }
+        if(metrics != null) {
+            metrics.onFallback();
+        }
+        return acquire(DynamicDataSourceMetrics.WRITE_INDEX, writeDataSource, writePoolWaitCheck, username, password,
+                withCredentials);
+    }
+    
+    /**
+     * 按读/写选择路由到读库时获取连接，配置了bulkhead时占用该读库的并发名额，连接close时归还
+     * @return 该下标已被摘除或已达到并发上限时返回null
+     */
+    private Connection getLimitedReadConnection(int index, String username, String password, boolean withCredentials)
+        throws SQLException {
+        if(bulkhead == null) {
+            return getReadConnection(index, username, password, withCredentials);
+        }
+        if(!bulkhead.tryAcquire(index)) {
+            return null;
+        }
+        long start = System.nanoTime();
+        Connection con;
+        try {
+            con = getReadConnection(index, username, password, withCredentials);
+        } catch(SQLException e) {
+            bulkhead.release(index, System.nanoTime() - start, PoolExhaustedException.isPoolExhausted(e));
+            throw e;
+        } catch(RuntimeException e) {
+            bulkhead.release(index, System.nanoTime() - start, false);
+            throw e;
+        }
+        if(con == null) {
+            // 读库刚被摘除，与负载无关
+            bulkhead.release(index, System.nanoTime() - start, false);
+            return null;
+        }
+        return bulkhead.wrap(con, index, start);
+    }
+    
+    /**
+     * @return 该下标已被摘除时返回null
+     */
+    private Connection getReadConnection(int index, String username, String password, boolean withCredentials)
+        throws SQLException {
+        ReadDataSources replicas = readReplicas;
+        DataSource dataSource = replicas.dataSources[index];
+        if(dataSource == null) {
+            return null;
+        }
+        PoolWaitCheck poolWaitCheck = replicas.poolWaitChecks[index];
+        if(connectionAwareLoadBalance == null) {
+            Connection con = acquire(index + 1, dataSource, poolWaitCheck, username, password, withCredentials);
+            if(healthChecker != null) {
+                healthChecker.onSuccess(index);
+            }
+            return con;
+        }
+        
+        long start = System.nanoTime();
+        connectionAwareLoadBalance.onAcquire(index);
+        Connection con;
+        try {
+            con = acquire(index + 1, dataSource, poolWaitCheck, username, password, withCredentials);
+        } catch(SQLException e) {
+            connectionAwareLoadBalance.onRelease(index, System.nanoTime() - start);
+            throw e;
+        } catch(RuntimeException e) {
+            connectionAwareLoadBalance.onRelease(index, System.nanoTime() - start);
+            throw e;
+        }
+        if(healthChecker != null) {
+            healthChecker.onSuccess(index);
+        }
+        return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+            new ReleaseNotifyingInvocationHandler(con, index, start));
+    }
+    
+    /**
+     * 记录路由决策
+     * @param index 读库下标，写库为-1
+     */
+    private void trace(int index, Reason reason) {
+        routingTrace.record(ReadWriteDataSourceChoice.context().method(), index < 0 ? "write" : readReplicas.names[index],
+            reason);
+    }
+    
+    /**
+     * 获取连接并记录统计
+     * @param metricsIndex 统计下标，写库0，读库i为i+1
+     */
+    private Connection acquire(int metricsIndex, DataSource dataSource, PoolWaitCheck poolWaitCheck, String username,
+        String password, boolean withCredentials) throws SQLException {
+        long deadline = ReadWriteDataSourceChoice.getDeadline();
+        if(metrics == null) {
+            return doGetConnection(dataSource, poolWaitCheck, username, password, withCredentials, deadline);
+        }
+        long start = System.nanoTime();
+        Connection con;
+        try {
+            con = doGetConnection(dataSource, poolWaitCheck, username, password, withCredentials, deadline);
+        } catch(SQLException e) {
+            metrics.onAcquireFailure(metricsIndex, System.nanoTime() - start);
+            throw e;
+        }
+        metrics.onAcquire(metricsIndex, System.nanoTime() - start);
+        return con;
+    }
+    
+    /**
+     * @param poolWaitCheck 不能指定等待时间的连接池的状态，没有为null
+     * @param deadline 请求的截止时间，没有为0
+     */
+    private Connection doGetConnection(DataSource dataSource, PoolWaitCheck poolWaitCheck, String username,
+        String password, boolean withCredentials, long deadline) throws SQLException {
+        if(deadline == 0) {
+            return doGetConnection(dataSource, username, password, withCredentials);
+        }
+        long budget = deadline - System.currentTimeMillis() - deadlineReserveMillis;
+        if(budget <= 0) {
+            throw new DeadlineExceededException(String.format("no time left to get a connection from %s", dataSource));
+        }
+        Connection con;
+        if(dataSource instanceof PooledDataSource && !withCredentials) {
+            PooledDataSource pool = (PooledDataSource)dataSource;
+            long maxWait = pool.getMaxWait();
+            con = pool.getConnection(maxWait >= 0 && maxWait < budget ? maxWait : budget);
+            if(con == null) {
+                String reason = String.format("cannot get a connection from %s within the remaining %dms (active %d, max %d)",
+                    dataSource, budget, pool.getNumActive(), pool.getMaxActive());
+                throw new DeadlineExceededException(reason, new PoolExhaustedException(reason));
+            }
+        } else {
+            if(poolWaitCheck != null) {
+                poolWaitCheck.check(dataSource, budget);
+            }
+            con = doGetConnection(dataSource, username, password, withCredentials);
+        }
+        return DeadlineConnection.wrap(con, deadline);
+    }
+    
+    private static Connection doGetConnection(DataSource dataSource, String username, String password,
+        boolean withCredentials) throws SQLException {
+        if(withCredentials) {
+            return dataSource.getConnection(username, password);
+        }
+        return dataSource.getConnection();
+    }
+    
+    /**
+     * 延迟连接的目标，延迟连接第一次需要真实连接时才调用，此时才进行读/写选择
+     */
+    private class RoutingDataSource extends AbstractDataSource {
+        
+        @Override
+        public Connection getConnection() throws SQLException {
+            return getRoutedConnection(null, null, false);
+        }
+        
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return getRoutedConnection(username, password, true);
+        }
+    }
+    
+    /**
+     * 固定读库
+     */
+    private class FixedReadDataSource extends AbstractDataSource {
+        
+        private final int index;
+        
+        FixedReadDataSource(int index) {
+            this.index = index;
+        }
+        
+        @Override
+        public Connection getConnection() throws SQLException {
+            return getConnection(null, null, false);
+        }
+        
+        @Override
+        public Connection getConnection(String username, String password) throws SQLException {
+            return getConnection(username, password, true);
+        }
+        
+        private Connection getConnection(String username, String password, boolean withCredentials) throws SQLException {
+            Connection con;
+            try {
+                con = getReadConnection(index, username, password, withCredentials);
+            } catch(SQLException e) {
+                if(healthChecker != null && !(e instanceof DeadlineExceededException)) {
+                    healthChecker.onFailure(index, e);
+                }
+                throw e;
+            }
+            if(con == null) {
+                throw new SQLException("read datasource at index " + index + " has been removed");
+            }
+            return con;
+        }
+        
+        @Override
+        public String toString() {
+            return String.valueOf(readReplicas.names[index]);
+        }
+    }
+    
+    /**
+     * 按SQL选择读/写库时获取真实连接
+     */
+    private class DynamicRoutedConnectionFactory implements RoutedConnectionFactory {
+        
+        private final String username;
+        private final String password;
+        private final boolean withCredentials;
+        
+        DynamicRoutedConnectionFactory(String username, String password, boolean withCredentials) {
+            this.username = username;
+            this.password = password;
+            this.withCredentials = withCredentials;
+        }
+        
+        @Override
+        public Connection getConnection(boolean read) throws SQLException {
+            return getRoutedConnection(read, username, password, withCredentials);
+        }
+        
+        @Override
+        public boolean isChoiceWrite() {
+            return ReadWriteDataSourceChoice.isChoiceWrite();
+        }
+    }
+    
+    /**
+     * 可用的读库：未摘除、未熔断且复制延迟在当前读操作允许的范围内
+     */
+    private class AvailableFilter implements ReadDataSourceFilter {
+        
+        @Override
+        public boolean accept(int index) {
+            if(readReplicas.dataSources[index] == null) {
+                return false;
+            }
+            if(healthChecker != null && !healthChecker.isAvailable(index)) {
+                return false;
+            }
+            if(lagMonitor == null) {
+                // 不知道复制延迟，指定了最大延迟（@MaxStaleness、读己之写的会话）的读无法保证，只能从写库读
+                return ReadWriteDataSourceChoice.getMaxStaleness() < 0;
+            }
+            return lagMonitor.isFresh(index, ReadWriteDataSourceChoice.getMaxStaleness());
+        }
+    }
+    
+    /**
+     * 可用且未达到并发上限的读库，配置了bulkhead时按读/写选择路由使用
+     */
+    private class BulkheadFilter implements ReadDataSourceFilter {
+        
+        @Override
+        public boolean accept(int index) {
+            return availableFilter.accept(index) && bulkhead.hasCapacity(index);
+        }
+    }
+    
+    /**
+     * 排除获取连接失败的读库，重试时使用
+     */
+    private static class ExcludeFilter implements ReadDataSourceFilter {
+        
+        private final int excludeIndex;
+        private final ReadDataSourceFilter filter;
+        
+        ExcludeFilter(int excludeIndex, ReadDataSourceFilter filter) {
+            this.excludeIndex = excludeIndex;
+            this.filter = filter;
+        }
+        
+        @Override
+        public boolean accept(int index) {
+            return index != excludeIndex && filter.accept(index);
+        }
+    }
+    
+    /**
+     * 读库列表快照，创建后不再修改，变更时整体替换；数组长度为读库容量，null为空位
+     */
+    private static final class ReadDataSources {
+        
+        final String[] names;
+        final DataSource[] dataSources;
+        final PoolWaitCheck[] poolWaitChecks;
+        
+        ReadDataSources(String[] names, DataSource[] dataSources) {
+            this.names = names;
+            this.dataSources = dataSources;
+            this.poolWaitChecks = new PoolWaitCheck[dataSources.length];
+            for(int i = 0; i < dataSources.length; i++) {
+                poolWaitChecks[i] = PoolWaitCheck.of(dataSources[i]);
+            }
+        }
+        
+        int indexOf(String name) {
+            for(int i = 0; i < names.length; i++) {
+                if(names[i] != null && names[i].equals(name)) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        
+        int size() {
+            int size = 0;
+            for(DataSource dataSource: dataSources) {
+                if(dataSource != null) {
+                    size++;
+                }
+            }
+            return size;
+        }
+    }
+    
+    /**
+     * 等待时间不能指定的连接池（如commons-dbcp）：池已满且maxWait超过剩余时间时直接失败
+     * 读取连接池状态的方法在数据源加入时解析一次，获取连接时只做反射调用
+     */
+    private static final class PoolWaitCheck {
+        
+        private final Method numActive;
+        private final Method numIdle;
+        private final Method maxActive;
+        private final Method maxWait;
+        
+        private PoolWaitCheck(Method numActive, Method numIdle, Method maxActive, Method maxWait) {
+            this.numActive = numActive;
+            this.numIdle = numIdle;
+            this.maxActive = maxActive;
+            this.maxWait = maxWait;
+        }
+        
+        /**
+         * @return 没有numActive/numIdle/maxActive/maxWait属性（或是PooledDataSource）返回null
+         */
+        static PoolWaitCheck of(DataSource dataSource) {
+            if(dataSource == null || dataSource instanceof PooledDataSource) {
+                return null;
+            }
+            Class<?> type = dataSource.getClass();
+            Method numActive = ClassUtils.getMethodIfAvailable(type, "getNumActive");
+            Method numIdle = ClassUtils.getMethodIfAvailable(type, "getNumIdle");
+            Method maxActive = ClassUtils.getMethodIfAvailable(type, "getMaxActive");
+            Method maxWait = ClassUtils.getMethodIfAvailable(type, "getMaxWait");
+            if(numActive == null || numIdle == null || maxActive == null || maxWait == null) {
+                return null;
+            }
+            return new PoolWaitCheck(numActive, numIdle, maxActive, maxWait);
+        }
+        
+        void check(DataSource dataSource, long budget) throws DeadlineExceededException {
+            int active;
+            int idle;
+            int max;
+            long wait;
+            try {
+                active = ((Number)numActive.invoke(dataSource, (Object[])null)).intValue();
+                idle = ((Number)numIdle.invoke(dataSource, (Object[])null)).intValue();
+                max = ((Number)maxActive.invoke(dataSource, (Object[])null)).intValue();
+                wait = ((Number)maxWait.invoke(dataSource, (Object[])null)).longValue();
+            } catch(Exception e) {
+                // 读不到状态时照常获取连接
+                return;
+            }
+            if(idle == 0 && max > 0 && active >= max && (wait < 0 || wait > budget)) {
+                String reason = String.format(
+                    "pool of %s is exhausted (active %d, max %d) and maxWait %dms exceeds the remaining %dms",
+                    dataSource, active, max, wait, budget);
+                throw new DeadlineExceededException(reason, new PoolExhaustedException(reason));
+            }
+        }
+    }
+    
+    /**
+     * 等待摘除的读库借出的连接归还后关闭，完成后释放该下标
+     */
+    private class DrainTask implements Runnable {
+        
+        private final int index;
+        private final String name;
+        private final DataSource dataSource;
+        
+        DrainTask(int index, String name, DataSource dataSource) {
+            this.index = index;
+            this.name = name;
+            this.dataSource = dataSource;
+        }
+        
+        @Override
+        public void run() {
+            try {
+                if(isInUse(dataSource)) {
+                    return;
+                }
+                try {
+                    awaitIdle();
+                } catch(InterruptedException e) {
+                    // 关闭时不再等待
+                    Thread.currentThread().interrupt();
+                }
+                closeDataSource();
+            } finally {
+                synchronized(reconfigureLock) {
+                    draining[index] = false;
+                }
+            }
+        }
+        
+        private void awaitIdle() throws InterruptedException {
+            BeanWrapperImpl wrapper = new BeanWrapperImpl(dataSource);
+            boolean known = wrapper.isReadableProperty("numActive");
+            long deadline = System.currentTimeMillis() + drainTimeoutMillis;
+            int active = -1;
+            while(System.currentTimeMillis() < deadline) {
+                // 不知道借出连接数的数据源等满drainTimeoutMillis
+                if(known && (active = ((Number)wrapper.getPropertyValue("numActive")).intValue()) == 0) {
+                    return;
+                }
+                TimeUnit.MILLISECONDS.sleep(DRAIN_CHECK_INTERVAL_MILLIS);
+            }
+            if(active > 0) {
+                log.warn(String.format("read datasource %s still has %s connections in use after %sms, closing",
+                    name, active, drainTimeoutMillis));
+            }
+        }
+        
+        private void closeDataSource() {
+            try {
+                if(dataSource instanceof DisposableBean) {
+                    ((DisposableBean)dataSource).destroy();
+                } else {
+                    Method close = ReflectionUtils.findMethod(dataSource.getClass(), "close");
+                    if(close == null) {
+                        return;
+                    }
+                    ReflectionUtils.makeAccessible(close);
+                    close.invoke(dataSource);
+                }
+                log.info(String.format("read datasource %s drained and closed", name));
+            } catch(Exception e) {
+                log.warn(String.format("close read datasource %s failed", name), e);
+            }
+        }
+    }
+    
+    /**
+     * 是否还被写库或其他读库使用
+     */
+    private boolean isInUse(DataSource dataSource) {
+        if(dataSource == writeDataSource) {
+            return true;
+        }
+        for(DataSource read: readReplicas.dataSources) {
+            if(read == dataSource) {
+                return true;
+            }
+        }
+        return false;
+    }
+    
+    /**
+     * 连接close时通知负载均衡策略，只通知一次
+     */
+    private class ReleaseNotifyingInvocationHandler implements InvocationHandler {
+        
+        private final Connection target;
+        private final int index;
+        private final long start;
+        private boolean released;
+        
+        ReleaseNotifyingInvocationHandler(Connection target, int index, long start) {
+            this.target = target;
+            this.index = index;
+            this.start = start;
+        }
+        
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            if("equals".equals(methodName)) {
+                return proxy == args[0];
+            }
+            if("hashCode".equals(methodName)) {
+                return System.identityHashCode(proxy);
+            }
+            if("close".equals(methodName) && !released) {
+                released = true;
+                try {
+                    target.close();
+                } finally {
+                    connectionAwareLoadBalance.onRelease(index, System.nanoTime() - start);
+                }
+                return null;
+            }
+            try {
+                return method.invoke(target, args);
+            } catch(InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
     }
 
 }
@@ -0,0 +1,42 @@
+package me.sunxc.common.datasource;
+
+/**
+ * <pre>
+ * DynamicDataSource的JMX管理接口，运行时摘除读库、调整权重，导出路由决策记录，查看读库舱壁状态
+ * 新增读库需要传入DataSource对象，只能通过API调用 @see DynamicDataSource#addReadDataSource
+ * 
+ * 通过spring导出
+ *  <context:mbean-export />
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public interface DynamicDataSourceMBean {
+
+    String[] getReadDataSourceNames();
+
+    /**
+     * 摘除读库，借出的连接归还后关闭
+     * @param name 读库名称
+     */
+    void removeReadDataSource(String name);
+
+    /**
+     * 调整读库权重，需要使用加权轮询
+     * @param name 读库名称
+     * @param weight
+     */
+    void setReadDataSourceWeight(String name, int weight);
+
+    /**
+     * 读库舱壁状态：各读库的并发数、上限、被跳过次数，写库溢出及排队、拒绝次数
+     * @return 未配置bulkhead时为空
+     */
+    String[] getBulkheadStatus();
+
+    /**
+     * 导出路由决策采样记录
+     * @return 每条记录一行，按时间从早到晚
+     */
+    String[] dumpRoutingTrace();
+}
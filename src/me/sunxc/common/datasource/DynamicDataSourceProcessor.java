@@ -1,19 +1,43 @@
 package me.sunxc.common.datasource;
 
 import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+import me.sunxc.common.datasource.cluster.Cluster;
+import me.sunxc.common.datasource.cluster.ClusterRoutingDataSource;
+import me.sunxc.common.datasource.consistency.ReadYourWritesConsistency;
+import me.sunxc.common.datasource.deadline.Deadline;
+import me.sunxc.common.datasource.lag.MaxStaleness;
 
 import org.apache.log4j.Logger;
 import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.aop.support.AopUtils;
 import org.springframework.beans.BeansException;
 import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.context.ApplicationListener;
+import org.springframework.context.event.ContextRefreshedEvent;
 import org.springframework.core.NestedRuntimeException;
+import org.springframework.core.annotation.AnnotationUtils;
 import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.interceptor.NameMatchTransactionAttributeSource;
 import org.springframework.transaction.interceptor.RuleBasedTransactionAttribute;
 import org.springframework.transaction.interceptor.TransactionAttribute;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.ClassUtils;
 import org.springframework.util.PatternMatchUtils;
 import org.springframework.util.ReflectionUtils;
 
@@ -51,13 +75,16 @@ import org.springframework.util.ReflectionUtils;
  *      <property name="forceChoiceReadWhenWrite" value="false"/>
  *  </bean>
  * 
- * 5、目前只适用于<tx:advice>情况 TODO 支持@Transactional注解事务
+ * 5、同时支持@Transactional(readOnly=true)及@RouteTo注解，详见第二部分第5点
  *  
  *  
  *  
  * 二、通过AOP切面实现读/写库选择
  * 
- * 1、首先将当前方法 与 根据之前【读/写动态数据库选择处理器】  提取的读库方法 进行匹配
+ * 1、首先将当前方法 与 根据之前【读/写动态数据库选择处理器】  提取的方法名模式 进行匹配
+ *    与NameMatchTransactionAttributeSource的规则一致：先精确匹配，否则取匹配的最长（最具体）的模式，
+ *    这样选择的读/写库与实际使用的事务属性一致
+ *    匹配结果按Method缓存，每次调用只需一次查表，与<tx:method>的数量无关
  * 
  * 2、如果匹配，说明是读取数据：
  *  2.1、如果forceChoiceReadOnWrite:true，即强制走读库
@@ -66,20 +93,43 @@ import org.springframework.util.ReflectionUtils;
  * 
  * 3、如果不匹配，说明默认将使用写库进行操作
  * 
- * 4、配置方式
+ * 4、读方法（或其所在类）上标注了@MaxStaleness时，将允许的最大数据延迟一并标记，
+ *    DynamicDataSource只会选择延迟满足要求的读库，解析结果按Method缓存
+ *       @see me.sunxc.common.datasource.lag.MaxStaleness
+ *       
+ * 5、方法或类上有@RouteTo或@Transactional注解时以注解为准，不再按方法名匹配
+ *    所有bean的注解在容器refresh完成时按方法预先解析，调用时只查缓存
+ *    注意：@Transactional(readOnly=true)的事务传播行为由注解决定，不会像<tx:method>那样被改写，
+ *          forceChoiceReadWhenWrite=true时如需在写事务中仍从读库读，请自行声明propagation=NOT_SUPPORTED
+ *       @see me.sunxc.common.datasource.RouteTo
+ *       
+ * 6、配置了sessionConsistency时，写方法执行完后记录当前会话的写时间，
+ *    该会话之后的读在一致性窗口内走写库（或只走已追上的读库）
+ *       @see me.sunxc.common.datasource.consistency.ReadYourWritesConsistency
+ * 
+ * 7、配置了clusterRoutingDataSource时，方法或类上的@Cluster指定使用的集群，
+ *    集群名称在解析时转换为下标，与读/写选择一起压栈，没有标注的方法沿用外层的集群
+ *    多个集群共用这一个切面和一个事务管理器，事务中切换到另一个集群会抛出IllegalStateException
+ *       @see me.sunxc.common.datasource.cluster.ClusterRoutingDataSource
+ * 
+ * 8、方法或类上的@Deadline声明时间预算，进入方法时在路由栈上记录截止时间（嵌套调用只能提前），
+ *    DynamicDataSource按剩余时间限制获取连接的等待并设置查询超时
+ *       @see me.sunxc.common.datasource.deadline.Deadline
+ * 
+ * 9、配置方式
  *      <aop:aspect order="-2147483648" ref="dynamicDataSourceTransactionProcessor">
  *          <aop:around pointcut-ref="txPointcut" method="doChoiceReadOrWriteDB"/>
  *      </aop:aspect>
- *  4.1、此处order = Integer.MIN_VALUE 即最高的优先级
- *  4.2、切入点：txPointcut 和 实施事务的切入点一样
- *  4.3、doChoiceReadOrWriteDB方法用于决策是走读/写库的，请参考
+ *  9.1、此处order = Integer.MIN_VALUE 即最高的优先级
+ *  9.2、切入点：txPointcut 和 实施事务的切入点一样
+ *  9.3、doChoiceReadOrWriteDB方法用于决策是走读/写库的，请参考
  *       @see me.sunxc.common.datasource.ReadWriteDataSourceChoice
  *       @see me.sunxc.common.datasource.DynamicDataSource
  * </pre>
  * @author xianchao.sun@yunyoyo.cn
  */
 
-public class DynamicDataSourceProcessor implements BeanPostProcessor {
+public class DynamicDataSourceProcessor implements BeanPostProcessor, ApplicationListener<ContextRefreshedEvent> {
 
     private static final Logger log=Logger.getLogger(DynamicDataSourceProcessor.class);
 
@@ -87,6 +137,28 @@ public class DynamicDataSourceProcessor implements BeanPostProcessor {
 
     private Map<String, Boolean> readMethodMap=new HashMap<String, Boolean>();
 
+    private Set<String> writeMethodNames=new HashSet<String>();
+
+    /**
+     * 所有方法名模式，按长度降序（越长越具体）
+     */
+    private volatile String[] mappedNames=new String[0];
+
+    /**
+     * 目标类 -> 方法 -> 路由结果
+     */
+    private final Map<Class<?>, Map<Method, MethodRoute>> routeCache=
+        new ConcurrentHashMap<Class<?>, Map<Method, MethodRoute>>();
+
+    /**
+     * 使用了@RouteTo/@Transactional/@Cluster/@Deadline注解的bean类，容器启动完成后预先解析
+     */
+    private final Set<Class<?>> annotatedClasses=new CopyOnWriteArraySet<Class<?>>();
+
+    private ReadYourWritesConsistency sessionConsistency;
+
+    private ClusterRoutingDataSource clusterRoutingDataSource;
+
     /**
      * 当之前操作是写的时候，是否强制从从库读 当之前操作是写，默认（false）强制从写库读
      * @param forceReadOnWrite
@@ -96,6 +168,24 @@ public class DynamicDataSourceProcessor implements BeanPostProcessor {
         this.forceChoiceReadWhenWrite=forceChoiceReadWhenWrite;
     }
 
+    /**
+     * 会话级别的读己之写一致性，不设置则不启用
+     * @param sessionConsistency
+     */
+    public void setSessionConsistency(ReadYourWritesConsistency sessionConsistency) {
+
+        this.sessionConsistency=sessionConsistency;
+    }
+
+    /**
+     * 多集群时设置集群注册表，用于把@Cluster的名称解析为下标
+     * @param clusterRoutingDataSource
+     */
+    public void setClusterRoutingDataSource(ClusterRoutingDataSource clusterRoutingDataSource) {
+
+        this.clusterRoutingDataSource=clusterRoutingDataSource;
+    }
+
     /**
      * bean 初始化完成后的回调方法，可以对bean做预处理操作
      */
@@ -104,6 +194,10 @@ public class DynamicDataSourceProcessor implements BeanPostProcessor {
     public Object postProcessAfterInitialization(Object bean, String beanName) throws BeansException {
 
         if(!(bean instanceof NameMatchTransactionAttributeSource)) {
+            Class<?> targetClass=ClassUtils.getUserClass(AopUtils.getTargetClass(bean));
+            if(hasRouteAnnotation(targetClass)) {
+                annotatedClasses.add(targetClass);
+            }
             return bean;
         }
 
@@ -116,12 +210,13 @@ public class DynamicDataSourceProcessor implements BeanPostProcessor {
             for(Entry<String, TransactionAttribute> entry: nameMap.entrySet()) {
                 RuleBasedTransactionAttribute attr=(RuleBasedTransactionAttribute)entry.getValue();
 
+                String methodName=entry.getKey();
                 // 仅对read-only的处理
                 if(!attr.isReadOnly()) {
+                    writeMethodNames.add(methodName);
                     continue;
                 }
 
-                String methodName=entry.getKey();
                 Boolean isForceChoiceRead=Boolean.FALSE;
                 if(forceChoiceReadWhenWrite) { //不管之前操作是写，默认强制从读库读 （设置为NOT_SUPPORTED即可）
                     // NOT_SUPPORTED会挂起之前的事务,容器不为这个方法开启事务
@@ -134,6 +229,7 @@ public class DynamicDataSourceProcessor implements BeanPostProcessor {
                 log.debug(String.format("read/write transaction process  method:%s force read:%s", methodName, isForceChoiceRead));
                 readMethodMap.put(methodName, isForceChoiceRead);
             }
+            compileMappedNames();
 
         } catch(Exception e) {
             throw new ReadWriteDataSourceTransactionException("process read/write transaction error", e);
@@ -142,6 +238,59 @@ public class DynamicDataSourceProcessor implements BeanPostProcessor {
         return bean;
     }
 
+    /**
+     * 将所有方法名模式按长度降序排列，长度相同按字典序（保证结果确定），并清空路由缓存
+     */
+    private synchronized void compileMappedNames() {
+        List<String> names=new ArrayList<String>(readMethodMap.keySet());
+        names.addAll(writeMethodNames);
+        Collections.sort(names, new Comparator<String>() {
+
+            @Override
+            public int compare(String o1, String o2) {
+                if(o1.length() != o2.length()) {
+                    return o2.length() - o1.length();
+                }
+                return o1.compareTo(o2);
+            }
+        });
+        mappedNames=names.toArray(new String[names.size()]);
+        routeCache.clear();
+    }
+
+    /**
+     * 容器启动完成后，预先解析所有注解bean的公有方法，避免首次调用时解析
+     */
+    @Override
+    public void onApplicationEvent(ContextRefreshedEvent event) {
+        for(Class<?> targetClass: annotatedClasses) {
+            Map<Method, MethodRoute> methodRoutes=getMethodRoutes(targetClass);
+            for(Method method: targetClass.getMethods()) {
+                if(method.getDeclaringClass() != Object.class && !methodRoutes.containsKey(method)) {
+                    methodRoutes.put(method, resolveMethodRoute(method, targetClass));
+                }
+            }
+        }
+    }
+
+    private static boolean hasRouteAnnotation(Class<?> targetClass) {
+        if(AnnotationUtils.findAnnotation(targetClass, RouteTo.class) != null
+            || AnnotationUtils.findAnnotation(targetClass, Transactional.class) != null
+            || AnnotationUtils.findAnnotation(targetClass, Cluster.class) != null
+            || AnnotationUtils.findAnnotation(targetClass, Deadline.class) != null) {
+            return true;
+        }
+        for(Method method: targetClass.getMethods()) {
+            if(AnnotationUtils.findAnnotation(method, RouteTo.class) != null
+                || AnnotationUtils.findAnnotation(method, Transactional.class) != null
+                || AnnotationUtils.findAnnotation(method, Cluster.class) != null
+                || AnnotationUtils.findAnnotation(method, Deadline.class) != null) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     @Override
     public Object postProcessBeforeInitialization(Object bean, String beanName) throws BeansException {
         return bean;
@@ -164,31 +313,62 @@ public class DynamicDataSourceProcessor implements BeanPostProcessor {
      */
     public Object doChoiceReadOrWriteDB(ProceedingJoinPoint pjp) throws Throwable {
 
-        if(isChoiceReadDB(pjp.getSignature().getName())) {// 获取方法签名,可以转换成MethodSignature对象
-            ReadWriteDataSourceChoice.markRead();
+        MethodRoute route=getMethodRoute(pjp);
+        if(route.cluster >= 0) {
+            checkClusterSwitch(route);
+        }
+        boolean write=false;
+        if(isChoiceReadDB(route)) {
+            long maxStaleness=route.maxStaleness;
+            long sessionMaxStaleness=sessionConsistency == null ? -1 : sessionConsistency.getSessionMaxStaleness();
+            if(sessionMaxStaleness >= 0 && !sessionConsistency.isCatchUpAware()) {
+                // 当前会话刚写过，在一致性窗口内从写库读
+                ReadWriteDataSourceChoice.push(DataSourceType.write, -1, route.cluster);
+            } else {
+                ReadWriteDataSourceChoice.push(DataSourceType.read, minStaleness(maxStaleness, sessionMaxStaleness),
+                    route.cluster);
+            }
         } else {
-            ReadWriteDataSourceChoice.markWrite();
+            ReadWriteDataSourceChoice.push(DataSourceType.write, -1, route.cluster);
+            write=true;
+        }
+        ReadWriteDataSourceChoice.context().setMethod(route.method);
+        if(route.timeout >= 0) {
+            ReadWriteDataSourceChoice.setTimeout(route.timeout);
         }
 
+        // 压栈选择，退出时恢复外层的选择（嵌套调用不会清掉外层的决定）
         try {
-            return pjp.proceed();
+            Object result=pjp.proceed();
+            if(write && sessionConsistency != null) {
+                sessionConsistency.recordWrite();
+            }
+            return result;
         } finally {
-            ReadWriteDataSourceChoice.reset();
+            ReadWriteDataSourceChoice.pop();
         }
 
     }
 
-    private boolean isChoiceReadDB(String methodName) {
-
-        String bestNameMatch=null;
-        for(String mappedName: this.readMethodMap.keySet()) {
-            if(isMatch(methodName, mappedName)) {
-                bestNameMatch=mappedName;
-                break;
-            }
+    /**
+     * 事务的连接已经在外层集群上获取，事务中切换集群时内层的读写实际上会落到外层集群上
+     */
+    private void checkClusterSwitch(MethodRoute route) {
+        int current=ReadWriteDataSourceChoice.getCluster();
+        if(current < 0) {
+            // 外层没有选择集群时事务的连接取自默认集群
+            current=clusterRoutingDataSource.getDefaultCluster();
         }
+        if(current >= 0 && current != route.cluster && TransactionSynchronizationManager.isActualTransactionActive()) {
+            throw new IllegalStateException(String.format("cross-cluster call inside a transaction: cluster %s -> %s (%s)",
+                clusterRoutingDataSource.getClusterName(current), clusterRoutingDataSource.getClusterName(route.cluster),
+                route.method));
+        }
+    }
 
-        Boolean isForceChoiceRead=readMethodMap.get(bestNameMatch);
+    private boolean isChoiceReadDB(MethodRoute route) {
+
+        Boolean isForceChoiceRead=route.forceChoiceRead;
         // 表示强制选择 读 库
         if(isForceChoiceRead == Boolean.TRUE) {
             return true;
@@ -207,8 +387,187 @@ public class DynamicDataSourceProcessor implements BeanPostProcessor {
         return false;
     }
 
+    /**
+     * 取两个最大延迟中较小的，-1表示不限制
+     */
+    private static long minStaleness(long a, long b) {
+        if(a < 0) {
+            return b;
+        }
+        if(b < 0) {
+            return a;
+        }
+        return Math.min(a, b);
+    }
+
+    /**
+     * 获取方法的路由结果，首次调用时解析并缓存
+     * @param pjp
+     * @return
+     */
+    private MethodRoute getMethodRoute(ProceedingJoinPoint pjp) {
+        Method method=((MethodSignature)pjp.getSignature()).getMethod();
+        Class<?> targetClass=pjp.getTarget() == null ? method.getDeclaringClass() : pjp.getTarget().getClass();
+
+        Map<Method, MethodRoute> methodRoutes=getMethodRoutes(ClassUtils.getUserClass(targetClass));
+        MethodRoute route=methodRoutes.get(method);
+        if(route == null) {
+            route=resolveMethodRoute(method, ClassUtils.getUserClass(targetClass));
+            methodRoutes.put(method, route);
+        }
+        return route;
+    }
+
+    private Map<Method, MethodRoute> getMethodRoutes(Class<?> targetClass) {
+        Map<Method, MethodRoute> methodRoutes=routeCache.get(targetClass);
+        if(methodRoutes == null) {
+            synchronized(routeCache) {
+                methodRoutes=routeCache.get(targetClass);
+                if(methodRoutes == null) {
+                    methodRoutes=new ConcurrentHashMap<Method, MethodRoute>();
+                    routeCache.put(targetClass, methodRoutes);
+                }
+            }
+        }
+        return methodRoutes;
+    }
+
+    private MethodRoute resolveMethodRoute(Method method, Class<?> targetClass) {
+        Method specificMethod=AopUtils.getMostSpecificMethod(method, targetClass);
+
+        DataSourceType annotatedType=findAnnotatedType(specificMethod, targetClass);
+        Boolean isForceChoiceRead;
+        if(annotatedType == null) {
+            isForceChoiceRead=matchReadMethod(method.getName());
+        } else if(annotatedType == DataSourceType.read) {
+            isForceChoiceRead=Boolean.valueOf(forceChoiceReadWhenWrite);
+        } else {
+            isForceChoiceRead=null;
+        }
+
+        MaxStaleness annotation=AnnotationUtils.findAnnotation(specificMethod, MaxStaleness.class);
+        if(annotation == null) {
+            annotation=AnnotationUtils.findAnnotation(targetClass, MaxStaleness.class);
+        }
+        long maxStaleness=annotation == null ? -1L : annotation.value();
+
+        int cluster=resolveCluster(specificMethod, targetClass);
+
+        Deadline deadline=AnnotationUtils.findAnnotation(specificMethod, Deadline.class);
+        if(deadline == null) {
+            deadline=AnnotationUtils.findAnnotation(targetClass, Deadline.class);
+        }
+        long timeout=deadline == null ? -1L : deadline.value();
+
+        if(log.isDebugEnabled()) {
+            log.debug(String.format(
+                "resolve read/write route  method:%s.%s force read:%s max staleness:%s cluster:%s timeout:%s",
+                targetClass.getName(), method.getName(), isForceChoiceRead, maxStaleness, cluster, timeout));
+        }
+        return new MethodRoute(method, isForceChoiceRead, maxStaleness, cluster, timeout);
+    }
+
+    /**
+     * 方法上的@Cluster优先于类上的
+     * @return 集群下标，未标注返回-1
+     */
+    private int resolveCluster(Method method, Class<?> targetClass) {
+        Cluster cluster=AnnotationUtils.findAnnotation(method, Cluster.class);
+        if(cluster == null) {
+            cluster=AnnotationUtils.findAnnotation(targetClass, Cluster.class);
+        }
+        if(cluster == null) {
+            return -1;
+        }
+        if(clusterRoutingDataSource == null) {
+            throw new IllegalStateException("@Cluster on " + targetClass.getName() + "." + method.getName()
+                + " requires property 'clusterRoutingDataSource'");
+        }
+        return clusterRoutingDataSource.indexOf(cluster.value());
+    }
+
+    /**
+     * 按优先级查找注解指定的读/写：方法上的@RouteTo > 方法上的@Transactional > 类上的@RouteTo > 类上的@Transactional
+     * @return 未标注返回null
+     */
+    private static DataSourceType findAnnotatedType(Method method, Class<?> targetClass) {
+        RouteTo routeTo=AnnotationUtils.findAnnotation(method, RouteTo.class);
+        if(routeTo != null) {
+            return routeTo.value();
+        }
+        Transactional transactional=AnnotationUtils.findAnnotation(method, Transactional.class);
+        if(transactional != null) {
+            return transactional.readOnly() ? DataSourceType.read : DataSourceType.write;
+        }
+        routeTo=AnnotationUtils.findAnnotation(targetClass, RouteTo.class);
+        if(routeTo != null) {
+            return routeTo.value();
+        }
+        transactional=AnnotationUtils.findAnnotation(targetClass, Transactional.class);
+        if(transactional != null) {
+            return transactional.readOnly() ? DataSourceType.read : DataSourceType.write;
+        }
+        return null;
+    }
+
+    /**
+     * 按NameMatchTransactionAttributeSource的规则匹配方法名：先精确匹配，否则取最长的匹配模式
+     * @param methodName
+     * @return 读方法返回是否强制读库，写方法或未匹配返回null
+     */
+    private Boolean matchReadMethod(String methodName) {
+        if(readMethodMap.containsKey(methodName)) {
+            return readMethodMap.get(methodName);
+        }
+        if(writeMethodNames.contains(methodName)) {
+            return null;
+        }
+        for(String mappedName: mappedNames) {
+            if(isMatch(methodName, mappedName)) {
+                return readMethodMap.get(mappedName);
+            }
+        }
+        return null;
+    }
+
     protected boolean isMatch(String methodName, String mappedName) {
         return PatternMatchUtils.simpleMatch(mappedName, methodName);
     }
 
+    /**
+     * 方法的路由结果，与调用时的状态无关的部分
+     */
+    private static final class MethodRoute {
+
+        final Method method;
+
+        /**
+         * 读方法：是否强制读库；写方法：null
+         */
+        final Boolean forceChoiceRead;
+
+        /**
+         * 方法声明的最大数据延迟，未声明为-1
+         */
+        final long maxStaleness;
+
+        /**
+         * 方法声明的集群下标，未声明为-1
+         */
+        final int cluster;
+
+        /**
+         * 方法声明的时间预算（毫秒），未声明为-1
+         */
+        final long timeout;
+
+        MethodRoute(Method method, Boolean forceChoiceRead, long maxStaleness, int cluster, long timeout) {
+            this.method=method;
+            this.forceChoiceRead=forceChoiceRead;
+            this.maxStaleness=maxStaleness;
+            this.cluster=cluster;
+            this.timeout=timeout;
+        }
+    }
+
 }
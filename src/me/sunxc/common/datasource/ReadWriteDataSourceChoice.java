@@ -6,6 +6,21 @@ package me.sunxc.common.datasource;
  * 读/写动态数据库选择，通过本地线程进行标记，如果在一个事务当中先写后读则从写库读取
  * 根据DataSourceType是write/read 来决定是使用读/写数据库
  * 通过ThreadLocal绑定实现选择功能
+ * 
+ * 读操作可以附带能容忍的最大数据延迟（maxStaleness），用于跳过复制延迟过大的读库
+ *      @see me.sunxc.common.datasource.lag.MaxStaleness
+ *      
+ * 选择是一个栈（@see RoutingContext）：push进入新的一层，pop恢复外层的选择，
+ * 嵌套的service调用（如UserService.save(user, address)中调用AddressService.save）退出后不会清掉外层的选择
+ * mark*修改当前层，reset清空整个栈
+ * 编程方式使用 @see RoutingScope
+ * 传递到线程池 @see me.sunxc.common.datasource.concurrent.RoutingContextSnapshot
+ * 
+ * 多个集群时每层还带有集群下标，由ClusterRoutingDataSource按下标直接取集群
+ *      @see me.sunxc.common.datasource.cluster.ClusterRoutingDataSource
+ * 
+ * 每层可以带有请求的截止时间，DynamicDataSource据此限制获取连接的等待时间并设置查询超时
+ *      @see me.sunxc.common.datasource.deadline.Deadline
  * </pre>
  * @author xianchao.sun@yunyoyo.cn
  *
@@ -17,30 +32,127 @@ public class ReadWriteDataSourceChoice {
     }
     
     
-    private static final ThreadLocal<DataSourceType> holder = new ThreadLocal<DataSourceType>();
+    private static final ThreadLocal<RoutingContext> holder = new ThreadLocal<RoutingContext>() {
+        
+        @Override
+        protected RoutingContext initialValue() {
+            return new RoutingContext();
+        }
+    };
+    
+    static RoutingContext context() {
+        return holder.get();
+    }
 
     public static void markWrite() {
-        holder.set(DataSourceType.write);
+        holder.get().set(DataSourceType.write, -1);
     }
     
     public static void markRead() {
-        holder.set(DataSourceType.read);
+        holder.get().set(DataSourceType.read, -1);
+    }
+    
+    /**
+     * 标记读，并指定能容忍的最大数据延迟
+     * @param maxStalenessMillis 最大延迟毫秒数
+     */
+    public static void markRead(long maxStalenessMillis) {
+        holder.get().set(DataSourceType.read, maxStalenessMillis);
+    }
+    
+    /**
+     * 进入新的一层选择
+     * @param type 读/写
+     * @param maxStalenessMillis 读操作能容忍的最大数据延迟，-1表示不限制
+     */
+    public static void push(DataSourceType type, long maxStalenessMillis) {
+        holder.get().push(type, maxStalenessMillis);
+    }
+    
+    /**
+     * 进入新的一层选择，并指定集群
+     * @param type 读/写
+     * @param maxStalenessMillis 读操作能容忍的最大数据延迟，-1表示不限制
+     * @param cluster 集群下标，-1表示沿用外层的集群
+     */
+    public static void push(DataSourceType type, long maxStalenessMillis, int cluster) {
+        holder.get().push(type, maxStalenessMillis, cluster);
+    }
+    
+    /**
+     * 退出当前层，恢复外层的选择；退出最外层时同时清空基础层（markWrite/markRead/setTimeout等设置的状态）
+     */
+    public static void pop() {
+        holder.get().pop();
     }
     
     public static void reset() {
-        holder.set(null);
+        holder.get().clear();
     }
     
     public static boolean isChoiceNone() {
-        return null == holder.get(); 
+        return null == holder.get().type(); 
     }
     
     public static boolean isChoiceWrite() {
-        return DataSourceType.write == holder.get();
+        return DataSourceType.write == holder.get().type();
     }
     
     public static boolean isChoiceRead() {
-        return DataSourceType.read == holder.get();
+        return DataSourceType.read == holder.get().type();
+    }
+    
+    /**
+     * @return 当前的选择，没有选择返回null
+     */
+    public static DataSourceType getDataSourceType() {
+        return holder.get().type();
+    }
+    
+    /**
+     * @return 当前读操作能容忍的最大数据延迟（毫秒），未指定返回-1
+     */
+    public static long getMaxStaleness() {
+        return holder.get().maxStaleness();
+    }
+    
+    /**
+     * @return 当前的集群下标，没有选择返回-1
+     */
+    public static int getCluster() {
+        return holder.get().cluster();
+    }
+    
+    /**
+     * 当前层的请求从现在起timeoutMillis后截止，已有更早的截止时间时不变
+     * 在切面外设置时只对随后的一次service调用有效，最外层调用退出时清除
+     * @param timeoutMillis
+     */
+    public static void setTimeout(long timeoutMillis) {
+        setDeadline(System.currentTimeMillis() + timeoutMillis);
+    }
+    
+    /**
+     * 设置当前层的截止时间，已有更早的截止时间时不变；用于沿用上游传来的截止时间
+     * @param deadlineMillis 截止时间（System.currentTimeMillis）
+     */
+    public static void setDeadline(long deadlineMillis) {
+        holder.get().setDeadline(deadlineMillis);
+    }
+    
+    /**
+     * @return 当前的截止时间（System.currentTimeMillis），没有截止时间返回0
+     */
+    public static long getDeadline() {
+        return holder.get().deadline();
+    }
+    
+    /**
+     * @return 距离截止时间的毫秒数，已过期时小于等于0，没有截止时间返回Long.MAX_VALUE
+     */
+    public static long getRemainingMillis() {
+        long deadline = holder.get().deadline();
+        return deadline == 0 ? Long.MAX_VALUE : deadline - System.currentTimeMillis();
     }
 
 }
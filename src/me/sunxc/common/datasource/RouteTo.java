@@ -0,0 +1,34 @@
+package me.sunxc.common.datasource;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+
+/**
+ * <pre>
+ * 指定service方法走读库还是写库，可以标注在方法或类上
+ *   @RouteTo(DataSourceType.read)
+ *   public User findById(int id)
+ *   
+ * 优先级：方法上的@RouteTo > 方法上的@Transactional > 类上的@RouteTo > 类上的@Transactional > <tx:method>名称匹配
+ * @Transactional(readOnly=true)视为读，其他@Transactional视为写
+ * 
+ * 注解在容器启动完成时按方法解析并缓存，调用时不再反射
+ *      @see me.sunxc.common.datasource.DynamicDataSourceProcessor
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+@Documented
+public @interface RouteTo {
+
+    DataSourceType value();
+}
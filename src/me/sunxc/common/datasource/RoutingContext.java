@@ -0,0 +1,186 @@
+package me.sunxc.common.datasource;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+
+/**
+ * <pre>
+ * 线程的读/写选择栈，每个线程一个（@see ReadWriteDataSourceChoice）
+ * 嵌套调用时压栈，退出时弹栈恢复外层的选择，外层的决定不会被内层调用清掉
+ * 
+ * 栈用预分配的数组实现，压栈/弹栈不分配对象；超过容量时扩容一次，之后不再分配
+ * 第0层为基础层，不在任何调用中时为空（即没有选择）
+ * 最外层弹栈回到基础层时清空基础层：在切面外用markWrite/markRead/setTimeout/setDeadline设置的状态
+ * 只对随后的一次调用有效，不会留在线程上泄漏到线程池中的下一个请求
+ * 每层还记录所在的集群（@see me.sunxc.common.datasource.cluster.ClusterRoutingDataSource），
+ * 压栈时不指定集群则沿用外层的集群
+ * 每层也记录做出选择的service方法（沿用外层的），仅用于路由决策记录 @see me.sunxc.common.datasource.trace.RoutingTrace
+ * 每层还记录请求的截止时间（沿用外层的，内层只能提前不能推后） @see me.sunxc.common.datasource.deadline.Deadline
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+final class RoutingContext {
+
+    private static final int INITIAL_CAPACITY = 8;
+
+    private DataSourceType[] types = new DataSourceType[INITIAL_CAPACITY];
+    private long[] maxStaleness = new long[INITIAL_CAPACITY];
+    private int[] clusters = new int[INITIAL_CAPACITY];
+    private Method[] methods = new Method[INITIAL_CAPACITY];
+    private long[] deadlines = new long[INITIAL_CAPACITY];
+    private RoutingScope[] scopes = new RoutingScope[INITIAL_CAPACITY];
+    private long[] epochs = new long[INITIAL_CAPACITY];
+
+    private int depth;
+
+    /**
+     * 每次压栈加1，区分同一层先后压入的不同作用域
+     */
+    private long epoch;
+
+    RoutingContext() {
+        maxStaleness[0] = -1;
+        clusters[0] = -1;
+    }
+
+    DataSourceType type() {
+        return types[depth];
+    }
+
+    long maxStaleness() {
+        return maxStaleness[depth];
+    }
+
+    int cluster() {
+        return clusters[depth];
+    }
+
+    Method method() {
+        return methods[depth];
+    }
+
+    /**
+     * @return 当前层的截止时间（System.currentTimeMillis），没有截止时间返回0
+     */
+    long deadline() {
+        return deadlines[depth];
+    }
+
+    /**
+     * 设置当前层的截止时间，已有更早的截止时间时不变
+     * @param deadline 截止时间（System.currentTimeMillis）
+     */
+    void setDeadline(long deadline) {
+        long current = deadlines[depth];
+        if(current == 0 || deadline < current) {
+            deadlines[depth] = deadline;
+        }
+    }
+
+    /**
+     * 设置当前层的service方法
+     */
+    void setMethod(Method method) {
+        methods[depth] = method;
+    }
+
+    int depth() {
+        return depth;
+    }
+
+    /**
+     * 修改当前层的选择
+     */
+    void set(DataSourceType type, long maxStalenessMillis) {
+        types[depth] = type;
+        maxStaleness[depth] = maxStalenessMillis;
+    }
+
+    /**
+     * 压入新的一层，沿用外层的集群
+     */
+    void push(DataSourceType type, long maxStalenessMillis) {
+        push(type, maxStalenessMillis, -1);
+    }
+
+    /**
+     * 压入新的一层
+     * @param cluster 集群下标，-1表示沿用外层的集群
+     */
+    void push(DataSourceType type, long maxStalenessMillis, int cluster) {
+        if(depth + 1 == types.length) {
+            int capacity = types.length * 2;
+            types = Arrays.copyOf(types, capacity);
+            maxStaleness = Arrays.copyOf(maxStaleness, capacity);
+            clusters = Arrays.copyOf(clusters, capacity);
+            methods = Arrays.copyOf(methods, capacity);
+            deadlines = Arrays.copyOf(deadlines, capacity);
+            scopes = Arrays.copyOf(scopes, capacity);
+            epochs = Arrays.copyOf(epochs, capacity);
+        }
+        depth++;
+        epochs[depth] = ++epoch;
+        types[depth] = type;
+        maxStaleness[depth] = maxStalenessMillis;
+        clusters[depth] = cluster < 0 ? clusters[depth - 1] : cluster;
+        methods[depth] = methods[depth - 1];
+        deadlines[depth] = deadlines[depth - 1];
+    }
+
+    /**
+     * 弹出当前层，恢复外层的选择；回到（或已在）基础层时清空基础层
+     */
+    void pop() {
+        if(depth > 0) {
+            types[depth] = null;
+            methods[depth] = null;
+            depth--;
+            if(depth > 0) {
+                return;
+            }
+        }
+        clearBase();
+    }
+
+    /**
+     * 清空整个栈
+     */
+    void clear() {
+        while(depth > 0) {
+            methods[depth] = null;
+            types[depth--] = null;
+        }
+        clearBase();
+    }
+
+    private void clearBase() {
+        types[0] = null;
+        maxStaleness[0] = -1;
+        clusters[0] = -1;
+        methods[0] = null;
+        deadlines[0] = 0;
+    }
+
+    /**
+     * @return 第level层压栈时的序号
+     */
+    long epoch(int level) {
+        return epochs[level];
+    }
+
+    /**
+     * 当前层对应的RoutingScope，每层只创建一次，记录当前层的序号
+     */
+    RoutingScope currentScope() {
+        RoutingScope scope = scopes[depth];
+        if(scope == null) {
+            scope = new RoutingScope(this, depth);
+            scopes[depth] = scope;
+        }
+        scope.epoch = epochs[depth];
+        return scope;
+    }
+}
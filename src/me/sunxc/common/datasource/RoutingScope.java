@@ -0,0 +1,91 @@
+package me.sunxc.common.datasource;
+
+import java.io.Closeable;
+
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+
+/**
+ * <pre>
+ * 编程方式指定读/写库的作用域，退出时恢复外层的选择
+ * 
+ * Java 7+ 
+ *   try(RoutingScope scope = RoutingScope.read()) {
+ *       userDao.findById(id);
+ *   }
+ * Java 6
+ *   RoutingScope scope = RoutingScope.read();
+ *   try {
+ *       userDao.findById(id);
+ *   } finally {
+ *       scope.close();
+ *   }
+ *   
+ * 每个线程每层嵌套的RoutingScope对象只创建一次并重复使用，进入/退出作用域不分配对象；
+ * 因此RoutingScope不能跨线程使用，也不要在close之后继续持有
+ * 外层先于内层close时，内层一并退出
+ * close只退出进入时的那一层：该层已退出或已被其他调用（如切面）重新压入时close无影响；
+ * 但通过RoutingScope再次进入同一层时返回的是同一个对象，之前的引用会关闭新的作用域
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public final class RoutingScope implements Closeable {
+
+    private final RoutingContext context;
+    private final int depth;
+
+    /**
+     * 进入时该层的压栈序号，对象重复使用，由RoutingContext.currentScope更新
+     */
+    long epoch;
+
+    RoutingScope(RoutingContext context, int depth) {
+        this.context = context;
+        this.depth = depth;
+    }
+
+    /**
+     * 进入读库作用域
+     * @return
+     */
+    public static RoutingScope read() {
+        return enter(DataSourceType.read, -1);
+    }
+
+    /**
+     * 进入读库作用域，并指定能容忍的最大数据延迟
+     * @param maxStalenessMillis 最大延迟毫秒数
+     * @return
+     */
+    public static RoutingScope read(long maxStalenessMillis) {
+        return enter(DataSourceType.read, maxStalenessMillis);
+    }
+
+    /**
+     * 进入写库作用域
+     * @return
+     */
+    public static RoutingScope write() {
+        return enter(DataSourceType.write, -1);
+    }
+
+    private static RoutingScope enter(DataSourceType type, long maxStalenessMillis) {
+        RoutingContext context = ReadWriteDataSourceChoice.context();
+        context.push(type, maxStalenessMillis);
+        return context.currentScope();
+    }
+
+    /**
+     * 退出作用域，恢复外层的选择
+     */
+    @Override
+    public void close() {
+        if(context.depth() < depth || context.epoch(depth) != epoch) {
+            // 已经退出
+            return;
+        }
+        while(context.depth() >= depth && context.depth() > 0) {
+            context.pop();
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package me.sunxc.common.datasource.bulkhead;
+
+import java.sql.SQLTransientConnectionException;
+
+/**
+ * <pre>
+ * 可用的读库都已达到并发上限，写库没有余量，排队也没等到，拒绝本次读
+ * 与数据库是否正常无关，不计入读库的健康状态
+ *      @see ReadBulkhead
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class BulkheadRejectedException extends SQLTransientConnectionException {
+
+    private static final long serialVersionUID = 1L;
+
+    public BulkheadRejectedException(String reason) {
+        super(reason);
+    }
+}
@@ -0,0 +1,79 @@
+package me.sunxc.common.datasource.bulkhead;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ * 单个数据源的并发上限
+ * 
+ * 固定上限时相当于不阻塞的信号量；自适应时按AIMD调整：
+ * 连接占用时间超过阈值或获取连接失败视为拥塞，上限乘以backoffRatio（不低于最小值），
+ * 否则每个上限大小的窗口加1（不超过最大值）
+ * 
+ * hasCapacity没有副作用，负载均衡策略扫描候选读库时可以随意调用；
+ * 跳过次数只在tryAcquire失败和路由实际跳过（onSkipped）时计数
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+final class ConcurrencyLimit {
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicLong rejected = new AtomicLong();
+    private volatile double limit;
+
+    ConcurrencyLimit(double limit) {
+        this.limit = limit;
+    }
+
+    boolean hasCapacity() {
+        return inFlight.get() < (int)limit;
+    }
+
+    void onSkipped() {
+        rejected.incrementAndGet();
+    }
+
+    boolean tryAcquire() {
+        for(;;) {
+            int n = inFlight.get();
+            if(n >= (int)limit) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if(inFlight.compareAndSet(n, n + 1)) {
+                return true;
+            }
+        }
+    }
+
+    void release() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * 按一次连接占用的结果调整上限
+     * @param congested 是否拥塞
+     */
+    synchronized void adjust(boolean congested, double min, double max, double backoffRatio) {
+        double current = limit;
+        if(congested) {
+            limit = Math.max(min, current * backoffRatio);
+        } else if(current < max) {
+            limit = Math.min(max, current + 1 / current);
+        }
+    }
+
+    int getInFlight() {
+        return inFlight.get();
+    }
+
+    int getLimit() {
+        return (int)limit;
+    }
+
+    long getRejected() {
+        return rejected.get();
+    }
+}
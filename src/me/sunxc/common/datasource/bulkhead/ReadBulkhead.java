@@ -0,0 +1,437 @@
+package me.sunxc.common.datasource.bulkhead;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * <pre>
+ * 读库舱壁：限制每个读库同时借出的连接数，一个变慢的读库不会占满所有请求线程
+ *
+ * 1、每个读库一个并发上限 @see ConcurrencyLimit
+ *    adaptive=false时固定为maxConcurrency（信号量）；
+ *    adaptive=true时按AIMD在minConcurrency~maxConcurrency之间调整，
+ *    连接占用超过latencyThresholdMillis或获取失败时乘以backoffRatio，否则缓慢增加
+ * 2、达到上限的读库不参与负载均衡选择，读请求溢出到其他读库
+ * 3、可用的读库都已满时，在writeHeadroom（写库上同时进行的溢出读的上限，默认0即不溢出）内溢出到写库，
+ *    否则排队等待任意读库释放连接，最多maxQueueWaitMillis（默认0即不等待，请求有截止时间时不超过剩余时间），
+ *    仍没有则抛出BulkheadRejectedException
+ * 4、只限制按读/写选择路由的读；固定读库（并行扫描、对冲读）不受限制
+ * 5、运行时增删读库时DynamicDataSource调用update，名称未变化的读库保留上限
+ *
+ * 配置方式
+ *  <bean id="readWriteDataSource" class="me.sunxc.common.datasource.DynamicDataSource">
+ *      <property name="bulkhead">
+ *          <bean class="me.sunxc.common.datasource.bulkhead.ReadBulkhead">
+ *              <property name="maxConcurrency" value="20"/>
+ *              <property name="adaptive" value="true"/>
+ *              <property name="writeHeadroom" value="5"/>
+ *          </bean>
+ *      </property>
+ *  </bean>
+ * 队列深度、拒绝次数等通过DynamicDataSource.getBulkheadStatus（JMX）或各getter查看
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ReadBulkhead {
+
+    private int maxConcurrency = 20;
+    private int minConcurrency = 1;
+    private boolean adaptive = false;
+    private long latencyThresholdMillis = 1000;
+    private double backoffRatio = 0.9;
+    private int writeHeadroom = 0;
+    private long maxQueueWaitMillis = 0;
+
+    private long latencyThresholdNanos;
+    private volatile String[] readDataSourceNames;
+    private volatile ConcurrencyLimit[] limits;
+
+    private final AtomicInteger writeInFlight = new AtomicInteger();
+    private final AtomicLong spilledToWrite = new AtomicLong();
+
+    private final ReentrantLock queueLock = new ReentrantLock();
+    private final Condition released = queueLock.newCondition();
+    private final AtomicLong releaseSequence = new AtomicLong();
+    private volatile int queueDepth;
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+
+    /**
+     * 每个读库的最大并发连接数，默认20，一般与读库连接池的maxActive相同
+     * @param maxConcurrency
+     */
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * 自适应时的最小并发连接数，默认1
+     * @param minConcurrency
+     */
+    public void setMinConcurrency(int minConcurrency) {
+        this.minConcurrency = minConcurrency;
+    }
+
+    /**
+     * 是否按AIMD自适应调整上限，默认false（固定为maxConcurrency）
+     * @param adaptive
+     */
+    public void setAdaptive(boolean adaptive) {
+        this.adaptive = adaptive;
+    }
+
+    /**
+     * 自适应时连接占用超过该毫秒数视为拥塞，默认1000
+     * @param latencyThresholdMillis
+     */
+    public void setLatencyThresholdMillis(long latencyThresholdMillis) {
+        this.latencyThresholdMillis = latencyThresholdMillis;
+    }
+
+    /**
+     * 自适应时拥塞后上限乘以的系数，0~1，默认0.9
+     * @param backoffRatio
+     */
+    public void setBackoffRatio(double backoffRatio) {
+        this.backoffRatio = backoffRatio;
+    }
+
+    /**
+     * 读库都已满时写库上最多同时进行的溢出读，默认0（不溢出到写库）
+     * @param writeHeadroom
+     */
+    public void setWriteHeadroom(int writeHeadroom) {
+        this.writeHeadroom = writeHeadroom;
+    }
+
+    /**
+     * 读库都已满且写库没有余量时排队等待的毫秒数，默认0（直接拒绝）
+     * @param maxQueueWaitMillis
+     */
+    public void setMaxQueueWaitMillis(long maxQueueWaitMillis) {
+        this.maxQueueWaitMillis = maxQueueWaitMillis;
+    }
+
+    /**
+     * 初始化，由DynamicDataSource调用
+     * @param readDataSourceNames 可能包含null（空位）
+     */
+    public void init(String[] readDataSourceNames) {
+        if(maxConcurrency < 1) {
+            throw new IllegalArgumentException("property 'maxConcurrency' must be positive");
+        }
+        if(minConcurrency < 1 || minConcurrency > maxConcurrency) {
+            throw new IllegalArgumentException("property 'minConcurrency' must be in [1, maxConcurrency]");
+        }
+        if(backoffRatio <= 0 || backoffRatio >= 1) {
+            throw new IllegalArgumentException("property 'backoffRatio' must be in (0, 1)");
+        }
+        if(writeHeadroom < 0) {
+            throw new IllegalArgumentException("property 'writeHeadroom' must not be negative");
+        }
+        latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        update(readDataSourceNames);
+    }
+
+    /**
+     * 读库变更，由DynamicDataSource调用；同一下标上名称未变化的保留上限
+     * @param readDataSourceNames 可能包含null（空位）
+     */
+    public synchronized void update(String[] readDataSourceNames) {
+        String[] oldNames = this.readDataSourceNames;
+        ConcurrencyLimit[] oldLimits = limits;
+        ConcurrencyLimit[] newLimits = new ConcurrencyLimit[readDataSourceNames.length];
+        for(int i = 0; i < newLimits.length; i++) {
+            if(readDataSourceNames[i] == null) {
+                continue;
+            }
+            if(oldLimits != null && i < oldLimits.length && readDataSourceNames[i].equals(oldNames[i])) {
+                newLimits[i] = oldLimits[i];
+            } else {
+                newLimits[i] = new ConcurrencyLimit(maxConcurrency);
+            }
+        }
+        this.readDataSourceNames = readDataSourceNames.clone();
+        limits = newLimits;
+    }
+
+    /**
+     * 只读检查，不计数，负载均衡策略会反复调用
+     * @return 读库未达到并发上限
+     */
+    public boolean hasCapacity(int index) {
+        ConcurrencyLimit limit = limits[index];
+        return limit != null && limit.hasCapacity();
+    }
+
+    /**
+     * 一次路由因达到上限跳过了该读库
+     */
+    public void onSkipped(int index) {
+        ConcurrencyLimit limit = limits[index];
+        if(limit != null) {
+            limit.onSkipped();
+        }
+    }
+
+    /**
+     * 占用读库的一个并发名额，获取连接后用wrap包装，获取失败时调用release
+     * @return 已达到上限返回false
+     */
+    public boolean tryAcquire(int index) {
+        ConcurrencyLimit limit = limits[index];
+        return limit != null && limit.tryAcquire();
+    }
+
+    /**
+     * 获取连接失败，归还名额
+     * @param congested 是否因为拥塞失败（连接池等待超时），只有拥塞才收缩自适应上限；
+     *                  读库被摘除、认证/网络等错误与负载无关
+     */
+    public void release(int index, long elapsedNanos, boolean congested) {
+        release(limits[index], false, elapsedNanos, congested);
+    }
+
+    /**
+     * 包装读库连接，close时归还名额
+     * @param startNanos 开始获取连接的时间
+     */
+    public Connection wrap(Connection con, int index, long startNanos) {
+        return wrap(con, limits[index], false, startNanos);
+    }
+
+    /**
+     * 占用写库的一个溢出名额
+     * @return 写库余量已用完返回false
+     */
+    public boolean tryAcquireWrite() {
+        for(;;) {
+            int n = writeInFlight.get();
+            if(n >= writeHeadroom) {
+                return false;
+            }
+            if(writeInFlight.compareAndSet(n, n + 1)) {
+                spilledToWrite.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 从写库获取连接失败，归还溢出名额
+     */
+    public void releaseWrite() {
+        writeInFlight.decrementAndGet();
+    }
+
+    /**
+     * 包装溢出到写库的连接，close时归还溢出名额
+     */
+    public Connection wrapWrite(Connection con) {
+        return wrap(con, null, true, System.nanoTime());
+    }
+
+    /**
+     * @return 释放名额的序号，用于awaitRelease
+     */
+    public long getReleaseSequence() {
+        return releaseSequence.get();
+    }
+
+    /**
+     * 排队等待任意读库释放名额
+     * @param seenSequence 开始等待前看到的释放序号，之后已有释放则立即返回
+     * @param timeoutNanos
+     * @return 有释放返回true，超时返回false
+     */
+    public boolean awaitRelease(long seenSequence, long timeoutNanos) throws InterruptedException {
+        queued.incrementAndGet();
+        queueLock.lock();
+        try {
+            queueDepth++;
+            long nanos = timeoutNanos;
+            while(releaseSequence.get() == seenSequence) {
+                if(nanos <= 0) {
+                    return false;
+                }
+                nanos = released.awaitNanos(nanos);
+            }
+            return true;
+        } finally {
+            queueDepth--;
+            queueLock.unlock();
+        }
+    }
+
+    /**
+     * 拒绝一次读
+     */
+    public void onRejected() {
+        rejected.incrementAndGet();
+    }
+
+    public long getMaxQueueWaitMillis() {
+        return maxQueueWaitMillis;
+    }
+
+    /**
+     * @return 正在排队的请求数
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    /**
+     * @return 排队过的请求数
+     */
+    public long getQueuedCount() {
+        return queued.get();
+    }
+
+    /**
+     * @return 被拒绝的读
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return 读库因达到上限被跳过的次数
+     */
+    public long getRejectedCount(int index) {
+        ConcurrencyLimit limit = limits[index];
+        return limit == null ? 0 : limit.getRejected();
+    }
+
+    public int getInFlight(int index) {
+        ConcurrencyLimit limit = limits[index];
+        return limit == null ? 0 : limit.getInFlight();
+    }
+
+    /**
+     * @return 读库当前的并发上限
+     */
+    public int getLimit(int index) {
+        ConcurrencyLimit limit = limits[index];
+        return limit == null ? 0 : limit.getLimit();
+    }
+
+    /**
+     * @return 写库上正在进行的溢出读
+     */
+    public int getWriteInFlight() {
+        return writeInFlight.get();
+    }
+
+    /**
+     * @return 溢出到写库的读
+     */
+    public long getSpilledToWriteCount() {
+        return spilledToWrite.get();
+    }
+
+    /**
+     * @return 每个读库一行，最后是写库溢出和排队的统计
+     */
+    public String[] getStatus() {
+        String[] names = readDataSourceNames;
+        ConcurrencyLimit[] limits = this.limits;
+        List<String> lines = new ArrayList<String>(names.length + 2);
+        for(int i = 0; i < names.length; i++) {
+            if(limits[i] != null) {
+                lines.add(String.format("%s inFlight=%d limit=%d rejected=%d", names[i], limits[i].getInFlight(),
+                    limits[i].getLimit(), limits[i].getRejected()));
+            }
+        }
+        lines.add(String.format("write inFlight=%d headroom=%d spilled=%d", writeInFlight.get(), writeHeadroom,
+            spilledToWrite.get()));
+        lines.add(String.format("queue depth=%d queued=%d rejected=%d", queueDepth, queued.get(), rejected.get()));
+        return lines.toArray(new String[lines.size()]);
+    }
+
+    /**
+     * @param limit 读库的上限，写库溢出或读库已被摘除时为null
+     * @param write 是否写库溢出
+     * @param congested 获取连接失败
+     */
+    private void release(ConcurrencyLimit limit, boolean write, long elapsedNanos, boolean congested) {
+        if(write) {
+            writeInFlight.decrementAndGet();
+        } else if(limit != null) {
+            limit.release();
+            if(adaptive) {
+                limit.adjust(congested || elapsedNanos > latencyThresholdNanos, minConcurrency, maxConcurrency,
+                    backoffRatio);
+            }
+        }
+        releaseSequence.incrementAndGet();
+        if(queueDepth > 0) {
+            queueLock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                queueLock.unlock();
+            }
+        }
+    }
+
+    private Connection wrap(Connection con, ConcurrencyLimit limit, boolean write, long startNanos) {
+        return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+            new ReleasingInvocationHandler(con, limit, write, startNanos));
+    }
+
+    /**
+     * 连接close时归还名额，只归还一次
+     */
+    private class ReleasingInvocationHandler implements InvocationHandler {
+
+        private final Connection target;
+        private final ConcurrencyLimit limit;
+        private final boolean write;
+        private final long start;
+        private boolean released;
+
+        ReleasingInvocationHandler(Connection target, ConcurrencyLimit limit, boolean write, long start) {
+            this.target = target;
+            this.limit = limit;
+            this.write = write;
+            this.start = start;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            if("equals".equals(methodName)) {
+                return proxy == args[0];
+            }
+            if("hashCode".equals(methodName)) {
+                return System.identityHashCode(proxy);
+            }
+            if("close".equals(methodName) && !released) {
+                released = true;
+                try {
+                    target.close();
+                } finally {
+                    release(limit, write, System.nanoTime() - start, false);
+                }
+                return null;
+            }
+            try {
+                return method.invoke(target, args);
+            } catch(InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+    }
+}
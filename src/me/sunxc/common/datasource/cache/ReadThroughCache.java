@@ -0,0 +1,259 @@
+package me.sunxc.common.datasource.cache;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.lag.ReplicationLagMonitor;
+
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * <pre>
+ * 读库前的实体缓存（read-through），写操作时失效
+ * 
+ * 1、只缓存读路径上加载的实体：当前选择了写库（写事务中、读己之写窗口内）时不读也不写缓存，直接加载
+ * 2、有界LRU（按hash分段加锁），条目ttlMillis后过期；
+ *    配置lagMonitor时取min(ttlMillis, lagMonitor.maxLagMillis)，即缓存不会比读库更旧；
+ *    没有配置lagMonitor时ttlMillis与复制延迟无关，读库延迟超过ttlMillis时失效标记过期后仍可能缓存旧值，
+ *    此时应把ttlMillis设置为不小于可容忍的最大复制延迟
+ * 3、update/del/save时调用invalidate(key)：删除条目并留下ttlMillis的失效标记，
+ *    标记期间该key不再缓存（读库可能还没复制到这次写），加载期间被失效的结果也不缓存；
+ *    失效标记与缓存条目分开保存，不参与LRU淘汰，只在过期后清理；
+ *    在事务中调用时事务结束后再失效一次
+ *    
+ * 使用方式
+ *   public User findById(final int id) {
+ *       return userCache.get(id, new ReadThroughCache.Loader<Integer, User>() {
+ *           public User load(Integer key) { return userDao.findById(key); }
+ *       });
+ *   }
+ *   public void update(User user) {
+ *       userDao.update(user);
+ *       userCache.invalidate(user.getId());
+ *   }
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ReadThroughCache<K, V> implements InitializingBean {
+
+    private static final int SEGMENTS = 16;
+
+    private int maxSize = 10000;
+    private long ttlMillis = 1000;
+    private ReplicationLagMonitor lagMonitor;
+
+    private LruCache<K, V>[] segments = newSegments(maxSize);
+
+    /**
+     * 从数据库加载实体
+     */
+    public interface Loader<K, V> {
+
+        /**
+         * @param key
+         * @return 实体，不存在返回null（不缓存）
+         */
+        V load(K key);
+    }
+
+    /**
+     * 最多缓存的条目数，默认10000
+     * @param maxSize
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+        segments = newSegments(maxSize);
+    }
+
+    /**
+     * 条目和失效标记的过期时间，默认1000毫秒；没有配置lagMonitor时不会按复制延迟缩短
+     * @param ttlMillis
+     */
+    public void setTtlMillis(long ttlMillis) {
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * 复制延迟监控，ttlMillis不超过其maxLagMillis
+     * @param lagMonitor
+     */
+    public void setLagMonitor(ReplicationLagMonitor lagMonitor) {
+        this.lagMonitor = lagMonitor;
+    }
+
+    public long getTtlMillis() {
+        return ttlMillis;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if(maxSize <= 0) {
+            throw new IllegalArgumentException("property 'maxSize' must be greater than 0");
+        }
+        if(ttlMillis <= 0) {
+            throw new IllegalArgumentException("property 'ttlMillis' must be greater than 0");
+        }
+        if(lagMonitor != null) {
+            ttlMillis = Math.min(ttlMillis, lagMonitor.getMaxLagMillis());
+        }
+    }
+
+    /**
+     * 取缓存，没有则加载并缓存
+     */
+    public V get(K key, Loader<K, V> loader) {
+        if(ReadWriteDataSourceChoice.isChoiceWrite()) {
+            return loader.load(key);
+        }
+        LruCache<K, V> segment = segment(key);
+        long now = System.currentTimeMillis();
+        synchronized(segment) {
+            if(segment.isInvalidated(key, now)) {
+                // 刚写过，读库可能还没有复制到
+                return loader.load(key);
+            }
+            CacheEntry<V> entry = segment.get(key);
+            if(entry != null && entry.expireAt > now) {
+                return entry.value;
+            }
+        }
+
+        V value = loader.load(key);
+        if(value == null) {
+            return null;
+        }
+        synchronized(segment) {
+            now = System.currentTimeMillis();
+            // 加载期间被失效的结果不缓存
+            if(!segment.isInvalidated(key, now)) {
+                segment.put(key, new CacheEntry<V>(value, now + ttlMillis));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * 写操作后失效
+     */
+    public void invalidate(final K key) {
+        doInvalidate(key);
+        if(TransactionSynchronizationManager.isSynchronizationActive()) {
+            // 事务提交前其他线程可能从读库加载到旧值，提交后再失效一次
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronizationAdapter() {
+
+                @Override
+                public void afterCompletion(int status) {
+                    doInvalidate(key);
+                }
+            });
+        }
+    }
+
+    /**
+     * 清空缓存的条目，未过期的失效标记保留
+     */
+    public void clear() {
+        for(LruCache<K, V> segment: segments) {
+            synchronized(segment) {
+                segment.clear();
+            }
+        }
+    }
+
+    private void doInvalidate(K key) {
+        LruCache<K, V> segment = segment(key);
+        long now = System.currentTimeMillis();
+        synchronized(segment) {
+            segment.remove(key);
+            segment.invalidate(key, now + ttlMillis);
+        }
+    }
+
+    private LruCache<K, V> segment(K key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        return segments[h & (SEGMENTS - 1)];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> LruCache<K, V>[] newSegments(int maxSize) {
+        LruCache<K, V>[] segments = (LruCache<K, V>[])new LruCache<?, ?>[SEGMENTS];
+        int capacity = Math.max(1, maxSize / SEGMENTS);
+        for(int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new LruCache<K, V>(capacity);
+        }
+        return segments;
+    }
+
+    private static class CacheEntry<V> {
+
+        final V value;
+        final long expireAt;
+
+        CacheEntry(V value, long expireAt) {
+            this.value = value;
+            this.expireAt = expireAt;
+        }
+    }
+
+    private static class LruCache<K, V> extends LinkedHashMap<K, CacheEntry<V>> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int capacity;
+
+        /**
+         * 失效标记 -> 过期时间，不受capacity限制，数量取决于ttlMillis内写过的key
+         */
+        private final Map<K, Long> invalidations = new HashMap<K, Long>();
+
+        private int purgeThreshold;
+
+        LruCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+            this.purgeThreshold = capacity;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<K, CacheEntry<V>> eldest) {
+            return size() > capacity;
+        }
+
+        boolean isInvalidated(K key, long now) {
+            Long expireAt = invalidations.get(key);
+            if(expireAt == null) {
+                return false;
+            }
+            if(expireAt.longValue() > now) {
+                return true;
+            }
+            invalidations.remove(key);
+            return false;
+        }
+
+        void invalidate(K key, long expireAt) {
+            invalidations.put(key, expireAt);
+            if(invalidations.size() > purgeThreshold) {
+                purgeExpired(System.currentTimeMillis());
+                // 清理后仍然很多（写得很频繁）时放宽阈值，避免每次失效都扫描
+                purgeThreshold = Math.max(capacity, invalidations.size() * 2);
+            }
+        }
+
+        private void purgeExpired(long now) {
+            Iterator<Long> it = invalidations.values().iterator();
+            while(it.hasNext()) {
+                if(it.next().longValue() <= now) {
+                    it.remove();
+                }
+            }
+        }
+    }
+}
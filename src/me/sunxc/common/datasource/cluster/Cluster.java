@@ -0,0 +1,33 @@
+package me.sunxc.common.datasource.cluster;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <pre>
+ * 指定service类或方法使用的集群，名称与ClusterRoutingDataSource的clusters的key对应
+ *   @Cluster("order")
+ *   public class OrderService
+ *
+ * 方法上的优先于类上的；没有标注的沿用外层调用的集群，最外层没有则使用默认集群
+ * 注解在容器启动完成时按方法解析为集群下标并缓存，调用时按下标直接取集群
+ *      @see me.sunxc.common.datasource.DynamicDataSourceProcessor
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+@Documented
+public @interface Cluster {
+
+    /**
+     * 集群名称
+     */
+    String value();
+}
@@ -0,0 +1,164 @@
+package me.sunxc.common.datasource.cluster;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.util.CollectionUtils;
+
+/**
+ * <pre>
+ * 多个集群的注册表，每个集群是一个独立的一写多读DynamicDataSource
+ * 所有集群共用一个事务管理器和一个读/写选择切面，不必为每个数据库单独配置DataSourceTransactionManager、tx:advice和切面
+ *
+ * 集群名称在启动时解析为下标，选择的集群随读/写选择一起记录在路由栈上（@see ReadWriteDataSourceChoice#getCluster），
+ * 获取连接时按下标直接取集群，与集群数量无关
+ *
+ * 配置方式
+ *  <bean id="clusterDataSource" class="me.sunxc.common.datasource.cluster.ClusterRoutingDataSource">
+ *      <property name="clusters">
+ *          <map>
+ *              <entry key="user" value-ref="userReadWriteDataSource" />     <!-- DynamicDataSource -->
+ *              <entry key="order" value-ref="orderReadWriteDataSource" />
+ *          </map>
+ *      </property>
+ *      <property name="defaultCluster" value="user" />
+ *  </bean>
+ *  <bean id="readWriteDataSourceProcessor" class="me.sunxc.common.datasource.DynamicDataSourceProcessor">
+ *      <property name="clusterRoutingDataSource" ref="clusterDataSource" />
+ *  </bean>
+ *  <bean id="txManager" class="org.springframework.jdbc.datasource.DataSourceTransactionManager">
+ *      <property name="dataSource" ref="clusterDataSource" />
+ *  </bean>
+ *
+ * service类或方法上用@Cluster指定集群 @see Cluster
+ * 注意：一个事务只能使用一个集群，事务的连接已经在外层集群上获取，
+ *       事务中调用@Cluster指定其他集群的方法会抛出IllegalStateException，需要在事务外调用
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ClusterRoutingDataSource extends AbstractDataSource implements InitializingBean {
+
+    private static final Logger log = Logger.getLogger(ClusterRoutingDataSource.class);
+
+    private Map<String, DataSource> clusterMap;
+    private String defaultClusterName;
+
+    private String[] clusterNames;
+    private DataSource[] clusters;
+    private int defaultCluster = -1;
+
+    /**
+     * 设置集群
+     * @param clusters
+     */
+    public void setClusters(Map<String, DataSource> clusters) {
+        this.clusterMap = clusters;
+    }
+
+    /**
+     * 没有选择集群时使用的集群，不设置则没有选择集群时抛出异常
+     * @param defaultCluster
+     */
+    public void setDefaultCluster(String defaultCluster) {
+        this.defaultClusterName = defaultCluster;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if(CollectionUtils.isEmpty(clusterMap)) {
+            throw new IllegalArgumentException("property 'clusters' is required");
+        }
+        int count = clusterMap.size();
+        clusterNames = new String[count];
+        clusters = new DataSource[count];
+        int i = 0;
+        for(Entry<String, DataSource> e: clusterMap.entrySet()) {
+            clusterNames[i] = e.getKey();
+            clusters[i] = e.getValue();
+            i++;
+        }
+        if(defaultClusterName != null) {
+            defaultCluster = indexOf(defaultClusterName);
+        }
+    }
+
+    /**
+     * @param name 集群名称
+     * @return 集群下标
+     */
+    public int indexOf(String name) {
+        for(int i = 0; i < clusterNames.length; i++) {
+            if(clusterNames[i].equals(name)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("unknown cluster: " + name);
+    }
+
+    /**
+     * @return 没有选择集群时使用的集群下标，未设置时返回-1
+     */
+    public int getDefaultCluster() {
+        return defaultCluster;
+    }
+
+    /**
+     * @return 集群数量
+     */
+    public int getClusterCount() {
+        return clusters.length;
+    }
+
+    /**
+     * @param index 集群下标
+     * @return 集群名称
+     */
+    public String getClusterName(int index) {
+        return clusterNames[index];
+    }
+
+    /**
+     * @param name 集群名称
+     * @return 集群的数据源
+     */
+    public DataSource getCluster(String name) {
+        return clusters[indexOf(name)];
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return determineCluster().getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return determineCluster().getConnection(username, password);
+    }
+
+    private DataSource determineCluster() throws SQLException {
+        int cluster = ReadWriteDataSourceChoice.getCluster();
+        if(cluster < 0) {
+            cluster = defaultCluster;
+            if(cluster < 0) {
+                throw new SQLException("no cluster chosen and no default cluster configured");
+            }
+        }
+        if(cluster >= clusters.length) {
+            throw new SQLException("cluster index out of range: " + cluster);
+        }
+        if(log.isDebugEnabled()) {
+            log.debug("current choice cluster : " + clusterNames[cluster]);
+        }
+        return clusters[cluster];
+    }
+}
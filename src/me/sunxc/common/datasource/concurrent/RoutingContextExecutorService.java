@@ -0,0 +1,71 @@
+package me.sunxc.common.datasource.concurrent;
+
+import java.util.List;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * <pre>
+ * 传递读/写选择的线程池包装，提交任务时捕获提交线程的选择，在工作线程中恢复
+ * @see RoutingContextSnapshot
+ * 
+ * submit/invokeAll/invokeAny都经过execute，在提交线程中调用，所以只需要包装execute
+ * 
+ * 与spring TaskExecutor一起使用（spring 3.1没有TaskDecorator）
+ *  <bean id="taskExecutor" class="org.springframework.scheduling.concurrent.ConcurrentTaskExecutor">
+ *      <constructor-arg>
+ *          <bean class="me.sunxc.common.datasource.concurrent.RoutingContextExecutorService">
+ *              <constructor-arg>
+ *                  <bean class="java.util.concurrent.Executors" factory-method="newFixedThreadPool">
+ *                      <constructor-arg value="8"/>
+ *                  </bean>
+ *              </constructor-arg>
+ *          </bean>
+ *      </constructor-arg>
+ *  </bean>
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class RoutingContextExecutorService extends AbstractExecutorService {
+
+    private final ExecutorService delegate;
+
+    public RoutingContextExecutorService(ExecutorService delegate) {
+        if(delegate == null) {
+            throw new IllegalArgumentException("property 'delegate' is required");
+        }
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        delegate.execute(RoutingContextSnapshot.wrap(command));
+    }
+
+    @Override
+    public void shutdown() {
+        delegate.shutdown();
+    }
+
+    @Override
+    public List<Runnable> shutdownNow() {
+        return delegate.shutdownNow();
+    }
+
+    @Override
+    public boolean isShutdown() {
+        return delegate.isShutdown();
+    }
+
+    @Override
+    public boolean isTerminated() {
+        return delegate.isTerminated();
+    }
+
+    @Override
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return delegate.awaitTermination(timeout, unit);
+    }
+}
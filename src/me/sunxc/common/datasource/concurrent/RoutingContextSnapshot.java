@@ -0,0 +1,149 @@
+package me.sunxc.common.datasource.concurrent;
+
+import java.util.concurrent.Callable;
+
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+import me.sunxc.common.datasource.consistency.ReadYourWritesConsistency;
+import me.sunxc.common.datasource.shard.ShardChoice;
+
+/**
+ * <pre>
+ * 当前线程读/写选择（及集群、分片选择、截止时间）的快照，用于把选择带到线程池的工作线程中
+ * 
+ * ReadWriteDataSourceChoice绑定在本地线程上，service方法中提交到线程池的任务在工作线程里是"没有选择"，
+ * DynamicDataSource会走写库；用快照包装任务后，任务执行期间恢复提交时的选择（及ReadYourWritesConsistency的会话），
+ * 执行完恢复工作线程原来的状态
+ * 
+ *   executor.submit(RoutingContextSnapshot.wrap(new Callable<List<User>>() { ... }));
+ *   
+ * 或者直接使用包装后的线程池 @see RoutingContextExecutorService
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public final class RoutingContextSnapshot {
+
+    private final DataSourceType type;
+    private final long maxStaleness;
+    private final String sessionId;
+    private final int shard;
+    private final int cluster;
+    private final long deadline;
+
+    private RoutingContextSnapshot(DataSourceType type, long maxStaleness, String sessionId, int shard,
+        int cluster, long deadline) {
+        this.type = type;
+        this.maxStaleness = maxStaleness;
+        this.sessionId = sessionId;
+        this.shard = shard;
+        this.cluster = cluster;
+        this.deadline = deadline;
+    }
+
+    /**
+     * 捕获当前线程的读/写选择
+     * @return
+     */
+    public static RoutingContextSnapshot capture() {
+        return new RoutingContextSnapshot(ReadWriteDataSourceChoice.getDataSourceType(),
+            ReadWriteDataSourceChoice.getMaxStaleness(), ReadYourWritesConsistency.getCurrentSession(),
+            ShardChoice.getShard(), ReadWriteDataSourceChoice.getCluster(), ReadWriteDataSourceChoice.getDeadline());
+    }
+
+    /**
+     * 用当前线程的选择包装任务
+     */
+    public static Runnable wrap(Runnable task) {
+        return capture().decorate(task);
+    }
+
+    /**
+     * 用当前线程的选择包装任务
+     */
+    public static <V> Callable<V> wrap(Callable<V> task) {
+        return capture().decorate(task);
+    }
+
+    public DataSourceType getDataSourceType() {
+        return type;
+    }
+
+    public long getMaxStaleness() {
+        return maxStaleness;
+    }
+
+    public String getSessionId() {
+        return sessionId;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int getCluster() {
+        return cluster;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public Runnable decorate(final Runnable task) {
+        return new Runnable() {
+
+            @Override
+            public void run() {
+                String previousSession = attach();
+                try {
+                    task.run();
+                } finally {
+                    detach(previousSession);
+                }
+            }
+        };
+    }
+
+    public <V> Callable<V> decorate(final Callable<V> task) {
+        return new Callable<V>() {
+
+            @Override
+            public V call() throws Exception {
+                String previousSession = attach();
+                try {
+                    return task.call();
+                } finally {
+                    detach(previousSession);
+                }
+            }
+        };
+    }
+
+    /**
+     * 在当前线程上压入快照的选择，返回当前线程原来的会话
+     */
+    private String attach() {
+        String previousSession = ReadYourWritesConsistency.getCurrentSession();
+        ReadWriteDataSourceChoice.push(type, maxStaleness, cluster);
+        if(deadline != 0) {
+            ReadWriteDataSourceChoice.setDeadline(deadline);
+        }
+        ShardChoice.push(shard);
+        bind(sessionId);
+        return previousSession;
+    }
+
+    private void detach(String previousSession) {
+        ShardChoice.pop();
+        ReadWriteDataSourceChoice.pop();
+        bind(previousSession);
+    }
+
+    private static void bind(String sessionId) {
+        if(sessionId == null) {
+            ReadYourWritesConsistency.unbindSession();
+        } else {
+            ReadYourWritesConsistency.bindSession(sessionId);
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package me.sunxc.common.datasource.consistency;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * <pre>
+ * 本机内存的会话令牌存储
+ * 会话数超过maxSessions时清理超过expireMillis的记录，仍然超过则全部清空（最坏退化为没有会话一致性）
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class LocalSessionTokenStore implements SessionTokenStore {
+
+    private int maxSessions = 100000;
+    private long expireMillis = 60000;
+
+    private final Map<String, Long> lastWriteTimes = new ConcurrentHashMap<String, Long>();
+
+    /**
+     * 最多记录的会话数，默认100000
+     * @param maxSessions
+     */
+    public void setMaxSessions(int maxSessions) {
+        this.maxSessions = maxSessions;
+    }
+
+    /**
+     * 记录过期时间（毫秒），默认60000，应不小于ReadYourWritesConsistency的windowMillis
+     * @param expireMillis
+     */
+    public void setExpireMillis(long expireMillis) {
+        this.expireMillis = expireMillis;
+    }
+
+    @Override
+    public void recordWrite(String sessionId, long writeTimeMillis) {
+        if(lastWriteTimes.size() >= maxSessions && !lastWriteTimes.containsKey(sessionId)) {
+            purge(writeTimeMillis);
+        }
+        lastWriteTimes.put(sessionId, writeTimeMillis);
+    }
+
+    @Override
+    public long getLastWriteTime(String sessionId) {
+        Long lastWriteTime = lastWriteTimes.get(sessionId);
+        return lastWriteTime == null ? -1 : lastWriteTime.longValue();
+    }
+
+    private void purge(long now) {
+        for(Iterator<Long> it = lastWriteTimes.values().iterator(); it.hasNext();) {
+            if(now - it.next().longValue() > expireMillis) {
+                it.remove();
+            }
+        }
+        if(lastWriteTimes.size() >= maxSessions) {
+            lastWriteTimes.clear();
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package me.sunxc.common.datasource.consistency;
+
+/**
+ * <pre>
+ * 会话级别的读己之写（read-your-writes）一致性
+ * 
+ * ReadWriteDataSourceChoice只在一个线程的一次调用内记住"写"，调用结束后同一用户的下一次请求
+ * 可能读到还没复制到自己刚写的数据的读库。这里按会话记录最后一次写的时间，在windowMillis内：
+ * 
+ *   catchUpAware=false：该会话的读都走写库
+ *   catchUpAware=true ：只选择复制延迟小于"距最后一次写的时间"的读库（即已经追上这次写的读库），
+ *                       没有则走写库；DynamicDataSource没有配置lagMonitor时无法判断，窗口内同样走写库
+ *                       
+ * 超过windowMillis后该会话的读恢复正常路由
+ * 
+ * 1、会话绑定，在请求入口（如servlet filter）处
+ *      ReadYourWritesConsistency.bindSession(userId);
+ *      try { ... } finally { ReadYourWritesConsistency.unbindSession(); }
+ *    未绑定会话的线程不受影响
+ *    
+ * 2、配置方式
+ *  <bean id="readWriteDataSourceProcessor" class="me.sunxc.common.datasource.DynamicDataSourceProcessor">
+ *      <property name="sessionConsistency">
+ *          <bean class="me.sunxc.common.datasource.consistency.ReadYourWritesConsistency">
+ *              <property name="windowMillis" value="1000"/>
+ *          </bean>
+ *      </property>
+ *  </bean>
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ReadYourWritesConsistency {
+
+    private static final ThreadLocal<String> sessionHolder = new ThreadLocal<String>();
+
+    private SessionTokenStore tokenStore = new LocalSessionTokenStore();
+    private long windowMillis = 1000;
+    private boolean catchUpAware = false;
+
+    /**
+     * 绑定当前线程的会话
+     * @param sessionId 会话标识，如用户id、sessionId
+     */
+    public static void bindSession(String sessionId) {
+        sessionHolder.set(sessionId);
+    }
+
+    public static void unbindSession() {
+        sessionHolder.remove();
+    }
+
+    public static String getCurrentSession() {
+        return sessionHolder.get();
+    }
+
+    /**
+     * 令牌存储，默认本机内存
+     * @param tokenStore
+     */
+    public void setTokenStore(SessionTokenStore tokenStore) {
+        this.tokenStore = tokenStore;
+    }
+
+    /**
+     * 写之后多长时间内（毫秒）保证读己之写，应不小于读库的最大复制延迟，默认1000
+     * @param windowMillis
+     */
+    public void setWindowMillis(long windowMillis) {
+        this.windowMillis = windowMillis;
+    }
+
+    /**
+     * 是否根据复制延迟判断读库是否已追上，默认false（窗口内全部走写库）
+     * @param catchUpAware
+     */
+    public void setCatchUpAware(boolean catchUpAware) {
+        this.catchUpAware = catchUpAware;
+    }
+
+    public boolean isCatchUpAware() {
+        return catchUpAware;
+    }
+
+    /**
+     * 记录当前会话的一次写，由DynamicDataSourceProcessor在写方法执行完后调用
+     */
+    public void recordWrite() {
+        String sessionId = sessionHolder.get();
+        if(sessionId != null) {
+            tokenStore.recordWrite(sessionId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * 当前会话的读操作能容忍的最大数据延迟
+     * @return 毫秒数，不受限制（未绑定会话、窗口外）返回-1
+     */
+    public long getSessionMaxStaleness() {
+        String sessionId = sessionHolder.get();
+        if(sessionId == null) {
+            return -1;
+        }
+        long lastWriteTime = tokenStore.getLastWriteTime(sessionId);
+        if(lastWriteTime < 0) {
+            return -1;
+        }
+        long elapsed = System.currentTimeMillis() - lastWriteTime;
+        if(elapsed >= windowMillis) {
+            return -1;
+        }
+        return Math.max(0, elapsed);
+    }
+}
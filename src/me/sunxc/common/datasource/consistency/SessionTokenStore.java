@@ -0,0 +1,26 @@
+package me.sunxc.common.datasource.consistency;
+
+/**
+ * <pre>
+ * 会话一致性令牌存储，记录每个会话最后一次写的时间
+ * 默认实现为本机内存 @see LocalSessionTokenStore
+ * 多台应用服务器之间会话不固定时，可以实现为存到cookie、redis等
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public interface SessionTokenStore {
+
+    /**
+     * 记录会话的一次写
+     * @param sessionId 会话标识
+     * @param writeTimeMillis 写完成的时间
+     */
+    void recordWrite(String sessionId, long writeTimeMillis);
+
+    /**
+     * @param sessionId 会话标识
+     * @return 会话最后一次写的时间，没有记录返回-1
+     */
+    long getLastWriteTime(String sessionId);
+}
@@ -0,0 +1,37 @@
+package me.sunxc.common.datasource.deadline;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <pre>
+ * 声明service方法的时间预算（毫秒），进入方法时在路由栈上记录截止时间，嵌套调用只能提前不能推后
+ *   @Deadline(800)
+ *   public User findById(int id)
+ *
+ * DynamicDataSource按剩余时间：
+ * 1、获取连接前剩余时间不足deadlineReserveMillis时直接失败，不再排队等连接
+ * 2、连接池的等待时间不超过剩余时间（PooledDataSource）；其他连接池已满且maxWait超过剩余时间时直接失败
+ * 3、连接上创建的每个Statement设置setQueryTimeout为剩余时间（向上取整到秒）
+ * 超时抛出DeadlineExceededException，不计入读库的健康状态，读库的连接池满时换一个读库
+ *
+ * 可以标注在方法或类上，方法上的优先；也可以编程设置 @see me.sunxc.common.datasource.ReadWriteDataSourceChoice#setTimeout
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+@Documented
+public @interface Deadline {
+
+    /**
+     * 时间预算毫秒数
+     */
+    long value();
+}
@@ -0,0 +1,74 @@
+package me.sunxc.common.datasource.deadline;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * <pre>
+ * 带截止时间的连接：createStatement/prepareStatement/prepareCall创建的Statement设置剩余时间为查询超时，
+ * 已有更短的超时时不变；创建时已过截止时间则关闭Statement并抛出DeadlineExceededException
+ * 截止时间在获取连接时确定，同一连接上的所有语句共用
+ *      @see Deadline
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public final class DeadlineConnection implements InvocationHandler {
+
+    private final Connection target;
+    private final long deadline;
+
+    private DeadlineConnection(Connection target, long deadline) {
+        this.target = target;
+        this.deadline = deadline;
+    }
+
+    /**
+     * @param target 真实连接
+     * @param deadline 截止时间（System.currentTimeMillis）
+     * @return
+     */
+    public static Connection wrap(Connection target, long deadline) {
+        return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+            new DeadlineConnection(target, deadline));
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String methodName = method.getName();
+        if("equals".equals(methodName)) {
+            return proxy == args[0];
+        }
+        if("hashCode".equals(methodName)) {
+            return System.identityHashCode(proxy);
+        }
+        Object result;
+        try {
+            result = method.invoke(target, args);
+        } catch(InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+        if(result instanceof Statement) {
+            applyTimeout((Statement)result);
+        }
+        return result;
+    }
+
+    private void applyTimeout(Statement statement) throws SQLException {
+        long remaining = deadline - System.currentTimeMillis();
+        if(remaining <= 0) {
+            statement.close();
+            throw new DeadlineExceededException(String.format("deadline exceeded %dms ago", -remaining));
+        }
+        int seconds = (int)Math.min(Integer.MAX_VALUE, (remaining + 999) / 1000);
+        int current = statement.getQueryTimeout();
+        if(current == 0 || current > seconds) {
+            statement.setQueryTimeout(seconds);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package me.sunxc.common.datasource.deadline;
+
+import java.sql.SQLTimeoutException;
+
+/**
+ * <pre>
+ * 请求的截止时间已到或剩余时间不够等待连接，与数据库是否正常无关，不计入读库的健康状态
+ *      @see Deadline
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class DeadlineExceededException extends SQLTimeoutException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(String reason) {
+        super(reason);
+    }
+
+    public DeadlineExceededException(String reason, Throwable cause) {
+        super(reason, cause);
+    }
+}
@@ -0,0 +1,82 @@
+package me.sunxc.common.datasource.failover;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ * 单个读库的熔断器
+ * 
+ * 关闭：读库正常，参与选择
+ * 打开：连续失败次数达到failureThreshold，在openMillis内不参与选择
+ * 半开：打开超过openMillis后只放过一个试探：第一个调用isAvailable的得到true，同时把openUntil推后openMillis，
+ *       其他调用仍然得到false；试探成功则关闭，失败或没有使用该读库则等下一个openMillis再试探
+ * 
+ * 关闭和打开状态下isAvailable没有副作用；半开时负载均衡策略扫描到该读库即占用试探机会，
+ * 配置了后台探测时探测成功会立即关闭，不依赖请求试探
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class CircuitBreaker {
+
+    private final int failureThreshold;
+    private final long openMillis;
+
+    private final AtomicInteger failures = new AtomicInteger();
+    private volatile boolean open;
+    private final AtomicLong openUntil = new AtomicLong();
+
+    public CircuitBreaker(int failureThreshold, long openMillis) {
+        this.failureThreshold = failureThreshold;
+        this.openMillis = openMillis;
+    }
+
+    public boolean isAvailable() {
+        if(!open) {
+            return true;
+        }
+        long until = openUntil.get();
+        long now = System.currentTimeMillis();
+        // 半开：只有把openUntil推后的一个调用放过去试探
+        return now >= until && openUntil.compareAndSet(until, now + openMillis);
+    }
+
+    public boolean isOpen() {
+        return open;
+    }
+
+    public void onSuccess() {
+        if(open || failures.get() != 0) {
+            failures.set(0);
+            open = false;
+        }
+    }
+
+    /**
+     * @return true 本次失败导致熔断打开
+     */
+    public boolean onFailure() {
+        int n = failures.incrementAndGet();
+        if(open) {
+            // 试探失败，重新计时
+            openUntil.set(System.currentTimeMillis() + openMillis);
+            return false;
+        }
+        if(n >= failureThreshold) {
+            openUntil.set(System.currentTimeMillis() + openMillis);
+            open = true;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * 立即打开熔断，健康检查失败时使用
+     */
+    public void trip() {
+        failures.incrementAndGet();
+        openUntil.set(System.currentTimeMillis() + openMillis);
+        open = true;
+    }
+}
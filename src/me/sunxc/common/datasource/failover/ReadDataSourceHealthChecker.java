@@ -0,0 +1,346 @@
+package me.sunxc.common.datasource.failover;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.deadline.DeadlineExceededException;
+import me.sunxc.common.datasource.pool.PoolExhaustedException;
+import me.sunxc.common.datasource.pool.PooledDataSource;
+
+import org.apache.log4j.Logger;
+import org.springframework.jdbc.support.JdbcUtils;
+
+/**
+ * <pre>
+ * 读库健康检查及故障转移
+ * 
+ * 1、每个读库一个熔断器 @see CircuitBreaker
+ *    DynamicDataSource从读库获取连接失败时调用onFailure，连续失败failureThreshold次（默认1次，即立即摘除）后熔断，
+ *    熔断的读库不参与负载均衡选择，在openMillis后半开重新试探
+ *    连接池已满/等待超时（PoolExhaustedException、dbcp的等待超时）和请求截止时间到了说明读库忙而不是故障，不计入失败
+ *    
+ * 2、后台线程每隔checkIntervalMillis探测所有读库（获取连接并校验），
+ *    探测失败立即熔断，熔断的读库探测成功后立即恢复，不必等到openMillis
+ *    校验方式：配置了validationQuery则执行该语句，否则使用JDBC4的Connection.isValid
+ *    checkIntervalMillis <= 0 表示不启动后台探测，仅依靠熔断器（仍可手动调用checkAll）
+ *    
+ *    每个读库独立探测：各读库的探测在探测线程池中并行执行，checkAll最多等待validationTimeoutSeconds，
+ *    一个读库卡住（网络不通）不会推迟其他读库的摘除和恢复；上一次探测到下一轮仍未返回的读库视为故障熔断
+ *    读库是PooledDataSource时探测获取连接最多等待validationTimeoutSeconds，
+ *    其他连接池请在连接池/驱动上配置连接超时（如connectTimeout）
+ *    
+ * 3、运行时增删读库时DynamicDataSource调用update，未变化的读库保留熔断器状态，空位（null）不探测、不可用
+ *    
+ * 4、配置方式
+ *  <bean id="readWriteDataSource" class="me.sunxc.common.datasource.DynamicDataSource">
+ *      <property name="healthChecker">
+ *          <bean class="me.sunxc.common.datasource.failover.ReadDataSourceHealthChecker">
+ *              <property name="checkIntervalMillis" value="5000"/>
+ *          </bean>
+ *      </property>
+ *  </bean>
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ReadDataSourceHealthChecker {
+    private static final Logger log = Logger.getLogger(ReadDataSourceHealthChecker.class);
+
+    private int failureThreshold = 1;
+    private long openMillis = 30000;
+    private long checkIntervalMillis = 5000;
+    private int validationTimeoutSeconds = 3;
+    private String validationQuery;
+
+    private volatile String[] readDataSourceNames;
+    private volatile DataSource[] readDataSources;
+    private volatile CircuitBreaker[] breakers;
+    /**
+     * 与breakers一一对应，记录读库是否有探测正在执行，每个读库同时只有一个探测
+     */
+    private volatile AtomicBoolean[] probing;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService probeExecutor;
+
+    /**
+     * 连续失败多少次后熔断，默认1
+     * @param failureThreshold
+     */
+    public void setFailureThreshold(int failureThreshold) {
+        this.failureThreshold = failureThreshold;
+    }
+
+    /**
+     * 熔断后多久进入半开状态（毫秒），默认30000
+     * @param openMillis
+     */
+    public void setOpenMillis(long openMillis) {
+        this.openMillis = openMillis;
+    }
+
+    /**
+     * 后台探测间隔（毫秒），默认5000，<=0不探测
+     * @param checkIntervalMillis
+     */
+    public void setCheckIntervalMillis(long checkIntervalMillis) {
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /**
+     * 校验连接的超时时间（秒），默认3
+     * @param validationTimeoutSeconds
+     */
+    public void setValidationTimeoutSeconds(int validationTimeoutSeconds) {
+        this.validationTimeoutSeconds = validationTimeoutSeconds;
+    }
+
+    /**
+     * 校验语句，如select 1，不设置则使用Connection.isValid
+     * @param validationQuery
+     */
+    public void setValidationQuery(String validationQuery) {
+        this.validationQuery = validationQuery;
+    }
+
+    /**
+     * 由DynamicDataSource在afterPropertiesSet中调用
+     * @param readDataSourceNames
+     * @param readDataSources
+     */
+    public void init(String[] readDataSourceNames, DataSource[] readDataSources) {
+        if(failureThreshold < 1) {
+            throw new IllegalArgumentException("property 'failureThreshold' must be positive");
+        }
+        update(readDataSourceNames, readDataSources);
+
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        probeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "read-datasource-health-probe-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        if(checkIntervalMillis > 0) {
+            scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "read-datasource-health-checker");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            scheduler.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    checkAll();
+                }
+            }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * 读库变更，由DynamicDataSource调用；同一下标上还是同一个数据源的保留熔断器
+     * @param readDataSourceNames 可能包含null（空位）
+     * @param readDataSources
+     */
+    public synchronized void update(String[] readDataSourceNames, DataSource[] readDataSources) {
+        CircuitBreaker[] oldBreakers = breakers;
+        AtomicBoolean[] oldProbing = probing;
+        DataSource[] oldDataSources = this.readDataSources;
+        CircuitBreaker[] newBreakers = new CircuitBreaker[readDataSources.length];
+        AtomicBoolean[] newProbing = new AtomicBoolean[readDataSources.length];
+        for(int i = 0; i < newBreakers.length; i++) {
+            if(readDataSources[i] == null) {
+                continue;
+            }
+            if(oldBreakers != null && i < oldBreakers.length && oldDataSources[i] == readDataSources[i]) {
+                newBreakers[i] = oldBreakers[i];
+                newProbing[i] = oldProbing[i];
+            } else {
+                newBreakers[i] = new CircuitBreaker(failureThreshold, openMillis);
+                newProbing[i] = new AtomicBoolean();
+            }
+        }
+        this.readDataSourceNames = readDataSourceNames.clone();
+        this.readDataSources = readDataSources.clone();
+        probing = newProbing;
+        breakers = newBreakers;
+    }
+
+    public boolean isAvailable(int index) {
+        CircuitBreaker breaker = breakers[index];
+        return breaker != null && breaker.isAvailable();
+    }
+
+    public void onSuccess(int index) {
+        CircuitBreaker breaker = breakers[index];
+        if(breaker != null) {
+            breaker.onSuccess();
+        }
+    }
+
+    public void onFailure(int index, Throwable e) {
+        if(isBusy(e)) {
+            log.debug(String.format("read datasource %s is busy", readDataSourceNames[index]), e);
+            return;
+        }
+        CircuitBreaker breaker = breakers[index];
+        if(breaker != null && breaker.onFailure()) {
+            log.warn(String.format("read datasource %s is down, ejected for %sms", readDataSourceNames[index], openMillis), e);
+        }
+    }
+
+    /**
+     * 并行探测所有读库，最多等待validationTimeoutSeconds
+     */
+    public void checkAll() {
+        String[] names = readDataSourceNames;
+        DataSource[] dataSources = readDataSources;
+        CircuitBreaker[] breakers = this.breakers;
+        AtomicBoolean[] probing = this.probing;
+        List<Future<?>> futures = new ArrayList<Future<?>>(dataSources.length);
+        for(int i = 0; i < dataSources.length; i++) {
+            if(dataSources[i] == null || breakers[i] == null) {
+                continue;
+            }
+            if(!probing[i].compareAndSet(false, true)) {
+                // 上一轮的探测还没有返回，读库不可达
+                if(!breakers[i].isOpen()) {
+                    log.warn(String.format("read datasource %s health check not returned, ejected", names[i]));
+                }
+                breakers[i].trip();
+                continue;
+            }
+            try {
+                futures.add(probeExecutor.submit(new Probe(names[i], dataSources[i], breakers[i], probing[i])));
+            } catch(RuntimeException e) {
+                // 已关闭
+                probing[i].set(false);
+            }
+        }
+        long deadline = System.currentTimeMillis() + validationTimeoutSeconds * 1000L;
+        for(Future<?> future: futures) {
+            try {
+                future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+            } catch(TimeoutException e) {
+                // 卡住的读库在下一轮熔断，其他读库不再等待
+                continue;
+            } catch(ExecutionException e) {
+                log.warn("read datasource health check failed", e.getCause());
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * 探测一个读库，结果记到提交时的熔断器上（运行时被替换的读库不影响新的读库）
+     */
+    private class Probe implements Runnable {
+
+        private final String name;
+        private final DataSource dataSource;
+        private final CircuitBreaker breaker;
+        private final AtomicBoolean probing;
+
+        Probe(String name, DataSource dataSource, CircuitBreaker breaker, AtomicBoolean probing) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.breaker = breaker;
+            this.probing = probing;
+        }
+
+        @Override
+        public void run() {
+            try {
+                validate(dataSource);
+                if(breaker.isOpen()) {
+                    log.info(String.format("read datasource %s is up again", name));
+                }
+                breaker.onSuccess();
+            } catch(Exception e) {
+                if(isBusy(e)) {
+                    // 连接池满，数据库正常，保持原状态
+                    return;
+                }
+                if(!breaker.isOpen()) {
+                    log.warn(String.format("read datasource %s health check failed, ejected", name), e);
+                }
+                breaker.trip();
+            } finally {
+                probing.set(false);
+            }
+        }
+    }
+
+    /**
+     * 读库忙（连接池已满或截止时间已到）而不是故障
+     */
+    private static boolean isBusy(Throwable e) {
+        return e instanceof DeadlineExceededException || PoolExhaustedException.isPoolExhausted(e);
+    }
+
+    private void validate(DataSource dataSource) throws SQLException {
+        Connection con;
+        if(dataSource instanceof PooledDataSource) {
+            long maxWait = validationTimeoutSeconds * 1000L;
+            con = ((PooledDataSource)dataSource).getConnection(maxWait);
+            if(con == null) {
+                throw new PoolExhaustedException(String.format("no connection available in %dms", maxWait));
+            }
+        } else {
+            con = dataSource.getConnection();
+        }
+        try {
+            if(validationQuery == null) {
+                if(!con.isValid(validationTimeoutSeconds)) {
+                    throw new SQLException("connection is not valid");
+                }
+                return;
+            }
+            Statement stmt = con.createStatement();
+            try {
+                stmt.setQueryTimeout(validationTimeoutSeconds);
+                stmt.execute(validationQuery);
+            } finally {
+                JdbcUtils.closeStatement(stmt);
+            }
+        } finally {
+            JdbcUtils.closeConnection(con);
+        }
+    }
+
+    /**
+     * 停止后台探测，由DynamicDataSource在destroy中调用
+     */
+    public void close() {
+        if(scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if(probeExecutor != null) {
+            probeExecutor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,559 @@
+package me.sunxc.common.datasource.hedge;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+import me.sunxc.common.datasource.concurrent.RoutingContextSnapshot;
+import me.sunxc.common.datasource.metrics.LatencyHistogram;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementCreator;
+import org.springframework.jdbc.core.ResultSetExtractor;
+import org.springframework.jdbc.core.RowMapper;
+import org.springframework.jdbc.core.RowMapperResultSetExtractor;
+import org.springframework.jdbc.core.SqlTypeValue;
+import org.springframework.jdbc.core.StatementCreatorUtils;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * <pre>
+ * 对冲读：查询先在负载均衡选中的读库上执行，超过该读库近期延迟的percentile百分位仍未返回时，
+ * 在另一个可用读库上再执行一次，先返回的结果生效，另一个通过Statement.cancel()取消
+ * 用于对尾延迟敏感的幂等只读查询，某个读库卡顿（如purge、同机干扰）时不必等它恢复
+ *
+ * 1、每个读库按最近latencyWindowMillis内成功查询的耗时计算对冲等待时间，样本不足minSamples时使用defaultDelayMillis，
+ *    不低于minDelayMillis
+ * 2、对冲有预算：每次查询积累maxHedgeRatio次对冲额度，最多积累maxHedgeBurst次，额度用完时不对冲，
+ *    对冲产生的额外查询不超过查询数的maxHedgeRatio，读库整体变慢时也不会使负载翻倍
+ * 3、先执行的读库在对冲前就失败时，换一个读库重试（不占用额度）；没有其他可用读库时按普通读路由执行
+ * 4、在事务中或当前选择写库时不对冲，按当前的读/写选择直接执行；没有可用读库时按普通读路由执行
+ * 5、查询在执行线程的独立连接上执行，必须是幂等的只读查询，不要用于加锁读
+ * 6、执行线程上恢复调用线程的路由上下文（@see RoutingContextSnapshot），请求的截止时间同样限制获取连接和查询超时；
+ *    有截止时间时调用线程的等待不超过剩余时间，到期取消所有查询并抛出QueryTimeoutException
+ *
+ * 配置方式
+ *  <bean id="hedgedReadExecutor" class="me.sunxc.common.datasource.hedge.HedgedReadExecutor">
+ *      <property name="dataSource" ref="readWriteDataSource"/>
+ *      <property name="percentile" value="95"/>
+ *      <property name="maxHedgeRatio" value="0.1"/>
+ *  </bean>
+ * 使用
+ *  List&lt;User&gt; users = hedgedReadExecutor.query("select * from user where name = ?", userRowMapper, name);
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class HedgedReadExecutor implements InitializingBean, DisposableBean {
+    private static final Logger log = Logger.getLogger(HedgedReadExecutor.class);
+
+    /**
+     * 一次对冲消耗的额度
+     */
+    private static final long HEDGE_COST = 1000;
+    private static final long DELAY_REFRESH_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private DynamicDataSource dataSource;
+    private double percentile = 95;
+    private long minDelayMillis = 5;
+    private long defaultDelayMillis = 50;
+    private int minSamples = 20;
+    private long latencyWindowMillis = 60000;
+    private double maxHedgeRatio = 0.1;
+    private int maxHedgeBurst = 10;
+    private ExecutorService executor;
+    private boolean ownExecutor;
+
+    private ReplicaLatency[] latencies;
+    private long creditPerQuery;
+    private long maxCredits;
+    private final AtomicLong hedgeCredits = new AtomicLong();
+
+    private final AtomicLong queries = new AtomicLong();
+    private final AtomicLong hedges = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong budgetRejections = new AtomicLong();
+
+    public void setDataSource(DynamicDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * 读库超过近期延迟的该百分位仍未返回时对冲，0~100，默认95
+     * @param percentile
+     */
+    public void setPercentile(double percentile) {
+        this.percentile = percentile;
+    }
+
+    /**
+     * 对冲前最少等待的时间，默认5毫秒
+     * @param minDelayMillis
+     */
+    public void setMinDelayMillis(long minDelayMillis) {
+        this.minDelayMillis = minDelayMillis;
+    }
+
+    /**
+     * 读库的样本不足minSamples时对冲前等待的时间，默认50毫秒
+     * @param defaultDelayMillis
+     */
+    public void setDefaultDelayMillis(long defaultDelayMillis) {
+        this.defaultDelayMillis = defaultDelayMillis;
+    }
+
+    /**
+     * 按百分位计算等待时间需要的最少样本数，默认20
+     * @param minSamples
+     */
+    public void setMinSamples(int minSamples) {
+        this.minSamples = minSamples;
+    }
+
+    /**
+     * 延迟统计的时间窗口，默认60秒
+     * @param latencyWindowMillis
+     */
+    public void setLatencyWindowMillis(long latencyWindowMillis) {
+        this.latencyWindowMillis = latencyWindowMillis;
+    }
+
+    /**
+     * 对冲次数占查询次数的上限，0~1，默认0.1
+     * @param maxHedgeRatio
+     */
+    public void setMaxHedgeRatio(double maxHedgeRatio) {
+        this.maxHedgeRatio = maxHedgeRatio;
+    }
+
+    /**
+     * 最多积累的对冲额度（次），允许短时间的集中对冲，默认10
+     * @param maxHedgeBurst
+     */
+    public void setMaxHedgeBurst(int maxHedgeBurst) {
+        this.maxHedgeBurst = maxHedgeBurst;
+    }
+
+    /**
+     * 执行查询的线程池，不设置时创建按需增长的线程池
+     * @param executor
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if(dataSource == null) {
+            throw new IllegalArgumentException("property 'dataSource' is required");
+        }
+        if(percentile <= 0 || percentile > 100) {
+            throw new IllegalArgumentException("property 'percentile' must be in (0, 100]");
+        }
+        if(minDelayMillis < 0 || defaultDelayMillis < 0) {
+            throw new IllegalArgumentException("property 'minDelayMillis' and 'defaultDelayMillis' must not be negative");
+        }
+        if(latencyWindowMillis <= 0) {
+            throw new IllegalArgumentException("property 'latencyWindowMillis' must be greater than 0");
+        }
+        if(maxHedgeRatio < 0 || maxHedgeRatio > 1) {
+            throw new IllegalArgumentException("property 'maxHedgeRatio' must be in [0, 1]");
+        }
+        if(maxHedgeBurst < 1) {
+            throw new IllegalArgumentException("property 'maxHedgeBurst' must be greater than 0");
+        }
+        creditPerQuery = Math.round(maxHedgeRatio * HEDGE_COST);
+        maxCredits = maxHedgeBurst * HEDGE_COST;
+        // 读库容量在运行时不变，运行时新增的读库使用空位的下标
+        latencies = new ReplicaLatency[dataSource.getReadDataSourceCount()];
+        for(int i = 0; i < latencies.length; i++) {
+            latencies[i] = new ReplicaLatency();
+        }
+        if(executor == null) {
+            final AtomicInteger threadNumber = new AtomicInteger(1);
+            executor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "hedged-read-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            ownExecutor = true;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if(ownExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 对冲执行查询，结果按rowMapper转换
+     */
+    public <T> List<T> query(String sql, RowMapper<T> rowMapper, Object... args) {
+        return query(sql, new RowMapperResultSetExtractor<T>(rowMapper), args);
+    }
+
+    /**
+     * 对冲执行查询，结果由rse提取，rse可能在两个线程上同时执行，不能有副作用
+     */
+    public <T> T query(String sql, ResultSetExtractor<T> rse, Object... args) {
+        if(TransactionSynchronizationManager.isActualTransactionActive() || ReadWriteDataSourceChoice.isChoiceWrite()) {
+            return new JdbcTemplate(dataSource).query(sql, rse, args);
+        }
+        int first = dataSource.selectReadDataSource(-1);
+        if(first < 0) {
+            return routedQuery(sql, rse, args);
+        }
+        queries.incrementAndGet();
+        depositHedgeCredit();
+
+        RoutingContextSnapshot context = RoutingContextSnapshot.capture();
+        long deadline = context.getDeadline();
+        CompletionService<T> completion = new ExecutorCompletionService<T>(executor);
+        Attempt<T> primary = new Attempt<T>(first, sql, rse, args);
+        primary.submit(completion, context);
+        Attempt<T> secondary = null;
+        try {
+            long hedgeDelay = Math.min(latencies[first].getHedgeDelayNanos(), remainingNanos(deadline));
+            Future<T> done = completion.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+            if(done == null) {
+                if(remainingNanos(deadline) <= 0) {
+                    throw deadlineExceeded(sql);
+                }
+                secondary = startSecondary(completion, context, first, sql, rse, args, true);
+                done = take(completion, deadline, sql);
+            }
+            Attempt<T> completed = done == primary.future ? primary : secondary;
+            Attempt<T> other = completed == primary ? secondary : primary;
+            try {
+                T result = done.get();
+                if(completed == secondary) {
+                    hedgeWins.incrementAndGet();
+                }
+                return result;
+            } catch(ExecutionException e) {
+                log.warn(String.format("hedged read failed on %s", dataSource.getReadDataSourceName(completed.index)),
+                    e.getCause());
+                if(other == null) {
+                    // 还没有对冲，换一个读库重试
+                    other = startSecondary(completion, context, first, sql, rse, args, false);
+                    if(other == null) {
+                        return routedQuery(sql, rse, args);
+                    }
+                    secondary = other;
+                }
+                return await(other, deadline, sql);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataRetrievalFailureException("hedged read interrupted", e);
+        } finally {
+            primary.cancel();
+            if(secondary != null) {
+                secondary.cancel();
+            }
+        }
+    }
+
+    /**
+     * 在first以外的读库上执行
+     * @param hedge true为对冲，需要额度；false为失败重试
+     * @return 没有其他可用读库或没有对冲额度时返回null
+     */
+    private <T> Attempt<T> startSecondary(CompletionService<T> completion, RoutingContextSnapshot context, int first,
+        String sql, ResultSetExtractor<T> rse, Object[] args, boolean hedge) {
+        int second = dataSource.selectReadDataSource(first);
+        if(second < 0) {
+            return null;
+        }
+        if(hedge) {
+            if(!acquireHedgeCredit()) {
+                budgetRejections.incrementAndGet();
+                return null;
+            }
+            hedges.incrementAndGet();
+            if(log.isDebugEnabled()) {
+                log.debug(String.format("read datasource %s is slow, hedge on %s", dataSource.getReadDataSourceName(first),
+                    dataSource.getReadDataSourceName(second)));
+            }
+        }
+        Attempt<T> attempt = new Attempt<T>(second, sql, rse, args);
+        attempt.submit(completion, context);
+        return attempt;
+    }
+
+    /**
+     * 没有可对冲的读库时按普通读路由执行
+     */
+    private <T> T routedQuery(String sql, ResultSetExtractor<T> rse, Object[] args) {
+        ReadWriteDataSourceChoice.push(DataSourceType.read, ReadWriteDataSourceChoice.getMaxStaleness());
+        try {
+            return new JdbcTemplate(dataSource).query(sql, rse, args);
+        } finally {
+            ReadWriteDataSourceChoice.pop();
+        }
+    }
+
+    /**
+     * 等待先完成的查询，有截止时间时最多等到截止时间
+     */
+    private <T> Future<T> take(CompletionService<T> completion, long deadline, String sql)
+        throws InterruptedException {
+        if(deadline == 0) {
+            return completion.take();
+        }
+        Future<T> done = completion.poll(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+        if(done == null) {
+            throw deadlineExceeded(sql);
+        }
+        return done;
+    }
+
+    private <T> T await(Attempt<T> attempt, long deadline, String sql) throws InterruptedException {
+        try {
+            if(deadline == 0) {
+                return attempt.future.get();
+            }
+            return attempt.future.get(remainingNanos(deadline), TimeUnit.NANOSECONDS);
+        } catch(TimeoutException e) {
+            throw deadlineExceeded(sql);
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new DataRetrievalFailureException(String.format("hedged read failed on %s",
+                dataSource.getReadDataSourceName(attempt.index)), cause);
+        }
+    }
+
+    /**
+     * @param deadline 截止时间（System.currentTimeMillis），0表示没有截止时间
+     * @return 剩余的纳秒数，没有截止时间返回Long.MAX_VALUE
+     */
+    private static long remainingNanos(long deadline) {
+        if(deadline == 0) {
+            return Long.MAX_VALUE;
+        }
+        return TimeUnit.MILLISECONDS.toNanos(deadline - System.currentTimeMillis());
+    }
+
+    private static QueryTimeoutException deadlineExceeded(String sql) {
+        return new QueryTimeoutException("hedged read not completed before the request deadline: " + sql);
+    }
+
+    private void depositHedgeCredit() {
+        for(;;) {
+            long credits = hedgeCredits.get();
+            if(credits >= maxCredits) {
+                return;
+            }
+            if(hedgeCredits.compareAndSet(credits, Math.min(maxCredits, credits + creditPerQuery))) {
+                return;
+            }
+        }
+    }
+
+    private boolean acquireHedgeCredit() {
+        for(;;) {
+            long credits = hedgeCredits.get();
+            if(credits < HEDGE_COST) {
+                return false;
+            }
+            if(hedgeCredits.compareAndSet(credits, credits - HEDGE_COST)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return 在读库上执行的查询次数（不包括事务中和没有可用读库时的查询）
+     */
+    public long getQueryCount() {
+        return queries.get();
+    }
+
+    /**
+     * @return 对冲次数
+     */
+    public long getHedgeCount() {
+        return hedges.get();
+    }
+
+    /**
+     * @return 对冲的查询先于原查询返回的次数
+     */
+    public long getHedgeWinCount() {
+        return hedgeWins.get();
+    }
+
+    /**
+     * @return 需要对冲但额度用完的次数
+     */
+    public long getBudgetRejectionCount() {
+        return budgetRejections.get();
+    }
+
+    /**
+     * @param index 读库下标
+     * @return 该读库当前的对冲等待时间（毫秒）
+     */
+    public long getHedgeDelayMillis(int index) {
+        return TimeUnit.NANOSECONDS.toMillis(latencies[index].getHedgeDelayNanos());
+    }
+
+    /**
+     * 一个读库的近期延迟，两个直方图轮换，保留当前和上一个窗口
+     */
+    private final class ReplicaLatency {
+
+        private volatile LatencyHistogram current = new LatencyHistogram();
+        private volatile LatencyHistogram previous = new LatencyHistogram();
+        private volatile long rotateAt = System.currentTimeMillis() + latencyWindowMillis;
+
+        private volatile long delayNanos;
+        private volatile long delayRefreshAt = System.nanoTime();
+
+        void record(long nanos) {
+            long now = System.currentTimeMillis();
+            if(now >= rotateAt) {
+                synchronized(this) {
+                    if(now >= rotateAt) {
+                        previous = current;
+                        current = new LatencyHistogram();
+                        rotateAt = now + latencyWindowMillis;
+                    }
+                }
+            }
+            current.record(nanos);
+        }
+
+        long getHedgeDelayNanos() {
+            long now = System.nanoTime();
+            if(now - delayRefreshAt >= 0) {
+                delayNanos = computeDelayNanos();
+                delayRefreshAt = now + DELAY_REFRESH_NANOS;
+            }
+            return delayNanos;
+        }
+
+        /**
+         * 优先用当前窗口，刚轮换样本不足时用上一个窗口
+         */
+        private long computeDelayNanos() {
+            LatencyHistogram histogram = current;
+            if(histogram.getCount() < minSamples) {
+                histogram = previous;
+            }
+            long delay = histogram.getCount() < minSamples ? TimeUnit.MILLISECONDS.toNanos(defaultDelayMillis)
+                : histogram.getPercentile(percentile);
+            return Math.max(delay, TimeUnit.MILLISECONDS.toNanos(minDelayMillis));
+        }
+    }
+
+    /**
+     * 在一个读库上执行一次查询，可以从其他线程取消
+     */
+    private final class Attempt<T> implements Callable<T>, PreparedStatementCreator {
+
+        private final int index;
+        private final String sql;
+        private final ResultSetExtractor<T> rse;
+        private final Object[] args;
+        private Future<T> future;
+
+        private volatile Statement statement;
+        private volatile boolean cancelled;
+
+        Attempt(int index, String sql, ResultSetExtractor<T> rse, Object[] args) {
+            this.index = index;
+            this.sql = sql;
+            this.rse = rse;
+            this.args = args;
+        }
+
+        /**
+         * 提交到线程池，执行期间恢复调用线程的路由上下文
+         */
+        void submit(CompletionService<T> completion, RoutingContextSnapshot context) {
+            future = completion.submit(context.decorate(this));
+        }
+
+        @Override
+        public T call() {
+            long start = System.nanoTime();
+            T result = new JdbcTemplate(dataSource.getReadDataSource(index)).query(this, rse);
+            if(!cancelled) {
+                latencies[index].record(System.nanoTime() - start);
+            }
+            return result;
+        }
+
+        @Override
+        public PreparedStatement createPreparedStatement(Connection con) throws SQLException {
+            PreparedStatement ps = con.prepareStatement(sql);
+            statement = ps;
+            // 与cancel()的先写后读相对，两边至少有一边能看到对方
+            if(cancelled) {
+                throw new SQLException("hedged read cancelled");
+            }
+            if(args != null) {
+                for(int i = 0; i < args.length; i++) {
+                    StatementCreatorUtils.setParameterValue(ps, i + 1, SqlTypeValue.TYPE_UNKNOWN, args[i]);
+                }
+            }
+            return ps;
+        }
+
+        /**
+         * 未完成时取消：还没开始执行的不再执行，正在执行的取消数据库上的查询
+         */
+        void cancel() {
+            if(future.isDone()) {
+                return;
+            }
+            cancelled = true;
+            future.cancel(false);
+            Statement ps = statement;
+            if(ps != null) {
+                try {
+                    ps.cancel();
+                } catch(SQLException e) {
+                    if(log.isDebugEnabled()) {
+                        log.debug("cancel hedged read failed", e);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,51 @@
+package me.sunxc.common.datasource.lag;
+
+import java.sql.SQLException;
+import java.sql.Timestamp;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * <pre>
+ * 通过心跳表探测复制延迟（同pt-heartbeat的做法）
+ * 写库上定时更新心跳表的时间戳，读库上查出复制过来的时间戳，与当前时间的差即为延迟
+ * 
+ * 心跳表示例（写库执行，定时 update heartbeat set ts=now(3) where id=1）
+ *   create table heartbeat(id int primary key, ts timestamp(3));
+ * 
+ * 要求应用服务器与数据库时钟同步，否则延迟会有偏差
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class HeartbeatTableLagProbe implements ReplicationLagProbe {
+
+    private String heartbeatQuery = "select ts from heartbeat where id=1";
+
+    private int queryTimeoutSeconds = 1;
+
+    /**
+     * 查询心跳时间戳的语句，返回单行单列的timestamp
+     * @param heartbeatQuery
+     */
+    public void setHeartbeatQuery(String heartbeatQuery) {
+        this.heartbeatQuery = heartbeatQuery;
+    }
+
+    public void setQueryTimeoutSeconds(int queryTimeoutSeconds) {
+        this.queryTimeoutSeconds = queryTimeoutSeconds;
+    }
+
+    @Override
+    public long probeLagMillis(DataSource dataSource) throws SQLException {
+        JdbcTemplate jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.setQueryTimeout(queryTimeoutSeconds);
+        Timestamp ts = jdbcTemplate.queryForObject(heartbeatQuery, Timestamp.class);
+        if(ts == null) {
+            throw new SQLException("heartbeat timestamp is null");
+        }
+        return Math.max(0, System.currentTimeMillis() - ts.getTime());
+    }
+}
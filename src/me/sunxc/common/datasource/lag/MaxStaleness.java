@@ -0,0 +1,34 @@
+package me.sunxc.common.datasource.lag;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <pre>
+ * 声明读方法能容忍的最大数据延迟（毫秒）
+ * 只有复制延迟不超过该值的读库才会被选择，没有满足条件的读库时从写库读
+ * 未声明的方法使用ReplicationLagMonitor的maxLagMillis
+ * DynamicDataSource没有配置lagMonitor时不知道复制延迟，声明了该注解的读都从写库读
+ * 
+ * 可以标注在service方法或类上，方法上的优先
+ *   @MaxStaleness(500)
+ *   public User findById(int id)
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+@Target({ElementType.METHOD, ElementType.TYPE})
+@Retention(RetentionPolicy.RUNTIME)
+@Inherited
+@Documented
+public @interface MaxStaleness {
+
+    /**
+     * 最大延迟毫秒数
+     */
+    long value();
+}
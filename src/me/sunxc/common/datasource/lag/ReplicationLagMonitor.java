@@ -0,0 +1,314 @@
+package me.sunxc.common.datasource.lag;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.pool.PooledDataSource;
+
+import org.apache.log4j.Logger;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+/**
+ * <pre>
+ * 读库复制延迟监控
+ * 后台线程每隔sampleIntervalMillis通过probe采样每个读库的延迟，
+ * DynamicDataSource选择读库时跳过延迟超过阀值的读库
+ * 
+ * 阀值：方法上声明了@MaxStaleness则使用声明的值，否则使用maxLagMillis
+ * 探测失败或采样过期（该读库超过3个采样周期没有完成探测）的读库视为延迟未知，不参与选择
+ * 
+ * 每个读库独立探测：各读库的探测在探测线程池中并行执行，上一次探测还没返回的读库本轮跳过，
+ * 一个读库卡住（网络不通、连接池满）只会使该读库过期，不影响其他读库的采样；
+ * 读库是PooledDataSource时探测获取连接最多等待probeTimeoutMillis，
+ * 其他连接池请在连接池/驱动上配置连接超时（如connectTimeout），查询超时由probe设置
+ * 启动时并行采样一次，最多等待probeTimeoutMillis；运行时新增的读库在update时立即采样一次
+ * 
+ * 配置方式
+ *  <bean id="readWriteDataSource" class="me.sunxc.common.datasource.DynamicDataSource">
+ *      <property name="lagMonitor">
+ *          <bean class="me.sunxc.common.datasource.lag.ReplicationLagMonitor">
+ *              <property name="probe">
+ *                  <bean class="me.sunxc.common.datasource.lag.HeartbeatTableLagProbe"/>
+ *              </property>
+ *              <property name="maxLagMillis" value="1000"/>
+ *          </bean>
+ *      </property>
+ *  </bean>
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ReplicationLagMonitor {
+    private static final Logger log = Logger.getLogger(ReplicationLagMonitor.class);
+
+    /**
+     * 延迟未知
+     */
+    public static final long UNKNOWN = Long.MAX_VALUE;
+
+    private ReplicationLagProbe probe;
+    private long maxLagMillis = 1000;
+    private long sampleIntervalMillis = 500;
+    private long probeTimeoutMillis = 1000;
+
+    private volatile String[] readDataSourceNames;
+    private volatile DataSource[] readDataSources;
+    private AtomicLongArray lagMillis;
+    private AtomicLongArray sampleTimes;
+    /**
+     * 正在探测的读库，每个读库同时只有一个探测
+     */
+    private AtomicIntegerArray probing;
+
+    private ScheduledExecutorService scheduler;
+    private ExecutorService probeExecutor;
+
+    /**
+     * 延迟探测实现
+     * @param probe
+     */
+    public void setProbe(ReplicationLagProbe probe) {
+        this.probe = probe;
+    }
+
+    /**
+     * 默认允许的最大延迟（毫秒），默认1000
+     * @param maxLagMillis
+     */
+    public void setMaxLagMillis(long maxLagMillis) {
+        this.maxLagMillis = maxLagMillis;
+    }
+
+    /**
+     * 采样间隔（毫秒），默认500，<=0不启动后台采样（需手动调用sampleAll）
+     * @param sampleIntervalMillis
+     */
+    public void setSampleIntervalMillis(long sampleIntervalMillis) {
+        this.sampleIntervalMillis = sampleIntervalMillis;
+    }
+
+    /**
+     * 探测获取连接的最大等待时间（毫秒），默认1000，只对PooledDataSource有效；
+     * 也是启动时等待首次采样的时间
+     * @param probeTimeoutMillis
+     */
+    public void setProbeTimeoutMillis(long probeTimeoutMillis) {
+        this.probeTimeoutMillis = probeTimeoutMillis;
+    }
+
+    public long getMaxLagMillis() {
+        return maxLagMillis;
+    }
+
+    /**
+     * 由DynamicDataSource在afterPropertiesSet中调用
+     * @param readDataSourceNames
+     * @param readDataSources
+     */
+    public void init(String[] readDataSourceNames, DataSource[] readDataSources) {
+        if(probe == null) {
+            throw new IllegalArgumentException("property 'probe' is required");
+        }
+        this.readDataSourceNames = readDataSourceNames;
+        this.readDataSources = readDataSources;
+        lagMillis = new AtomicLongArray(readDataSources.length);
+        sampleTimes = new AtomicLongArray(readDataSources.length);
+        probing = new AtomicIntegerArray(readDataSources.length);
+        for(int i = 0; i < readDataSources.length; i++) {
+            lagMillis.set(i, UNKNOWN);
+        }
+        if(sampleIntervalMillis <= 0) {
+            sampleAll();
+            return;
+        }
+
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        probeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "read-datasource-lag-probe-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        // 启动时先采样一次，避免刚启动时所有读都走写库；卡住的读库不阻塞启动
+        submitAll();
+        long deadline = System.currentTimeMillis() + probeTimeoutMillis;
+        while(isProbing() && System.currentTimeMillis() < deadline) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "read-datasource-lag-monitor");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            @Override
+            public void run() {
+                submitAll();
+            }
+        }, sampleIntervalMillis, sampleIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 读库变更，由DynamicDataSource调用；读库容量不变，换了数据源的下标重新采样
+     * @param readDataSourceNames 可能包含null（空位）
+     * @param readDataSources
+     */
+    public synchronized void update(String[] readDataSourceNames, DataSource[] readDataSources) {
+        DataSource[] oldDataSources = this.readDataSources;
+        this.readDataSourceNames = readDataSourceNames.clone();
+        this.readDataSources = readDataSources.clone();
+        for(int i = 0; i < readDataSources.length; i++) {
+            if(oldDataSources[i] != readDataSources[i]) {
+                lagMillis.set(i, UNKNOWN);
+                if(probeExecutor == null) {
+                    sample(i);
+                } else {
+                    submit(i);
+                }
+            }
+        }
+    }
+
+    /**
+     * 在调用线程中依次采样所有读库，sampleIntervalMillis<=0时手动调用
+     */
+    public void sampleAll() {
+        for(int i = 0; i < readDataSources.length; i++) {
+            sample(i);
+        }
+    }
+
+    /**
+     * 在探测线程池中采样所有读库，上一次探测还没返回的读库跳过
+     */
+    private void submitAll() {
+        for(int i = 0; i < readDataSources.length; i++) {
+            submit(i);
+        }
+    }
+
+    private void submit(final int index) {
+        if(readDataSources[index] == null || !probing.compareAndSet(index, 0, 1)) {
+            return;
+        }
+        try {
+            probeExecutor.execute(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        sample(index);
+                    } finally {
+                        probing.set(index, 0);
+                    }
+                }
+            });
+        } catch(RuntimeException e) {
+            // 已关闭
+            probing.set(index, 0);
+        }
+    }
+
+    private boolean isProbing() {
+        for(int i = 0; i < probing.length(); i++) {
+            if(probing.get(i) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void sample(int index) {
+        DataSource dataSource = readDataSources[index];
+        if(dataSource == null) {
+            return;
+        }
+        long lag;
+        try {
+            lag = probe.probeLagMillis(boundedWait(dataSource));
+        } catch(Exception e) {
+            if(lagMillis.get(index) != UNKNOWN) {
+                log.warn(String.format("probe replication lag of read datasource %s failed", readDataSourceNames[index]), e);
+            }
+            lag = UNKNOWN;
+        }
+        lagMillis.set(index, lag);
+        sampleTimes.set(index, System.currentTimeMillis());
+    }
+
+    /**
+     * PooledDataSource获取连接最多等待probeTimeoutMillis
+     */
+    private DataSource boundedWait(DataSource dataSource) {
+        if(!(dataSource instanceof PooledDataSource) || probeTimeoutMillis <= 0) {
+            return dataSource;
+        }
+        final PooledDataSource pool = (PooledDataSource)dataSource;
+        return new DelegatingDataSource(pool) {
+
+            @Override
+            public Connection getConnection() throws SQLException {
+                Connection con = pool.getConnection(probeTimeoutMillis);
+                if(con == null) {
+                    throw new SQLException(String.format("no connection available in %dms", probeTimeoutMillis));
+                }
+                return con;
+            }
+        };
+    }
+
+    /**
+     * 读库最近一次采样的延迟
+     * @param index 读库下标
+     * @return 延迟毫秒数，未知返回UNKNOWN
+     */
+    public long getLagMillis(int index) {
+        if(sampleIntervalMillis > 0 && System.currentTimeMillis() - sampleTimes.get(index) > sampleIntervalMillis * 3) {
+            return UNKNOWN;
+        }
+        return lagMillis.get(index);
+    }
+
+    /**
+     * 读库延迟是否在允许范围内
+     * @param index 读库下标
+     * @param maxStalenessMillis 方法声明的最大延迟，<0表示未声明，使用maxLagMillis
+     * @return
+     */
+    public boolean isFresh(int index, long maxStalenessMillis) {
+        long bound = maxStalenessMillis < 0 ? maxLagMillis : maxStalenessMillis;
+        return getLagMillis(index) <= bound;
+    }
+
+    /**
+     * 停止后台采样，由DynamicDataSource在destroy中调用
+     */
+    public void close() {
+        if(scheduler != null) {
+            scheduler.shutdownNow();
+        }
+        if(probeExecutor != null) {
+            probeExecutor.shutdownNow();
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package me.sunxc.common.datasource.lag;
+
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+/**
+ * <pre>
+ * 读库复制延迟探测
+ * 由ReplicationLagMonitor在后台线程中定期调用，实现可以是查询心跳表、SHOW SLAVE STATUS等，
+ * 测试时可以用本地实现代替
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public interface ReplicationLagProbe {
+
+    /**
+     * 探测读库当前的复制延迟
+     * @param dataSource 读库
+     * @return 延迟毫秒数
+     * @throws SQLException 探测失败，该读库的延迟视为未知
+     */
+    long probeLagMillis(DataSource dataSource) throws SQLException;
+}
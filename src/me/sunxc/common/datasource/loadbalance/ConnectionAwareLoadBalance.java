@@ -0,0 +1,26 @@
+package me.sunxc.common.datasource.loadbalance;
+
+/**
+ * <pre>
+ * 需要感知连接获取/释放的负载均衡策略（如最少活跃连接、按延迟选择）
+ * DynamicDataSource发现策略实现了此接口时，会对读库连接进行包装，
+ * 获取连接前回调onAcquire，连接close时回调onRelease
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public interface ConnectionAwareLoadBalance extends LoadBalance {
+
+    /**
+     * 开始从读库获取连接
+     * @param index 读库下标
+     */
+    void onAcquire(int index);
+
+    /**
+     * 连接已归还（或获取失败）
+     * @param index 读库下标
+     * @param elapsedNanos 从开始获取连接到归还的耗时（纳秒）
+     */
+    void onRelease(int index, long elapsedNanos);
+}
@@ -0,0 +1,74 @@
+package me.sunxc.common.datasource.loadbalance;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * <pre>
+ * 最少活跃连接
+ * 选择当前借出连接数最少的读库，慢的读库连接归还得慢，自然分到的请求就少
+ * 活跃数相同时从轮询位置开始扫描，避免总是压到第一个读库
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class LeastActiveLoadBalance implements ConnectionAwareLoadBalance {
+
+    private volatile int[] slots;
+
+    private volatile AtomicIntegerArray active;
+
+    private AtomicInteger counter = new AtomicInteger(0);
+
+    @Override
+    public void init(String[] readDataSourceNames) {
+        // 读库变更时保留活跃连接数，已借出的连接归还时才能正确扣减
+        if(active == null || active.length() != readDataSourceNames.length) {
+            active = new AtomicIntegerArray(readDataSourceNames.length);
+        }
+        slots = ReadDataSourceSlots.of(readDataSourceNames);
+    }
+
+    @Override
+    public int select(ReadDataSourceFilter filter) {
+        int[] slots = this.slots;
+        int count = slots.length;
+        if(count == 0) {
+            return -1;
+        }
+        int start = Math.abs(counter.getAndIncrement() % count);
+        int best = -1;
+        int leastActive = Integer.MAX_VALUE;
+        for(int n = 0; n < count && leastActive > 0; n++) {
+            int i = slots[(start + n) % count];
+            if(!filter.accept(i)) {
+                continue;
+            }
+            int a = active.get(i);
+            if(a < leastActive) {
+                leastActive = a;
+                best = i;
+            }
+        }
+        return best;
+    }
+
+    @Override
+    public void onAcquire(int index) {
+        active.incrementAndGet(index);
+    }
+
+    @Override
+    public void onRelease(int index, long elapsedNanos) {
+        active.decrementAndGet(index);
+    }
+
+    /**
+     * 当前借出的连接数
+     * @param index 读库下标
+     * @return
+     */
+    public int getActive(int index) {
+        return active.get(index);
+    }
+}
@@ -0,0 +1,37 @@
+package me.sunxc.common.datasource.loadbalance;
+
+/**
+ * <pre>
+ * 读库负载均衡策略
+ * DynamicDataSource在afterPropertiesSet时调用init传入读库名称（与readDataSourceMap的key一一对应），
+ * 之后每次需要读库时调用select得到读库下标，只能选择filter接受的读库
+ * 
+ * 运行时增删读库、调整权重后会再次调用init，名称数组长度不变（即读库容量），null表示空位；
+ * init可能与select并发执行，按下标记录的状态（如活跃连接数）应保留，只重置名称变化的下标
+ * 
+ * 配置方式
+ *  <bean id="readWriteDataSource" class="me.sunxc.common.datasource.DynamicDataSource">
+ *      <property name="loadBalance">
+ *          <bean class="me.sunxc.common.datasource.loadbalance.WeightedRoundRobinLoadBalance">...</bean>
+ *      </property>
+ *  </bean>
+ * 不配置时默认使用轮询 @see RoundRobinLoadBalance
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public interface LoadBalance {
+
+    /**
+     * 初始化，readDataSourceNames的下标即select返回的下标，读库变更时再次调用
+     * @param readDataSourceNames 可能包含null（空位）
+     */
+    void init(String[] readDataSourceNames);
+
+    /**
+     * 选择读库
+     * @param filter 可选的读库
+     * @return 读库下标，没有可选的读库时返回-1
+     */
+    int select(ReadDataSourceFilter filter);
+}
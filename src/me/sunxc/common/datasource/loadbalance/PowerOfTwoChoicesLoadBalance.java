@@ -0,0 +1,128 @@
+package me.sunxc.common.datasource.loadbalance;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <pre>
+ * 二选一（power of two choices）
+ * 每次随机挑两个读库，选择延迟EWMA（指数加权移动平均）较低的那个，相同时选活跃连接少的
+ * 延迟取的是从获取连接到归还连接的耗时，包含了连接池等待，能反映读库的实际负载
+ * 
+ * 相比全量扫描最小值，随机二选一不会让所有线程同时涌向同一个"最快"的读库
+ * 
+ * decay 新样本的权重（0,1]，越大对延迟变化越敏感，默认0.3
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class PowerOfTwoChoicesLoadBalance implements ConnectionAwareLoadBalance {
+
+    private double decay = 0.3;
+
+    private volatile int[] slots;
+
+    private String[] names;
+
+    private volatile AtomicLongArray ewmaNanos;
+
+    private volatile AtomicIntegerArray active;
+
+    private Random random = new Random();
+
+    public void setDecay(double decay) {
+        if(decay <= 0 || decay > 1) {
+            throw new IllegalArgumentException("decay must be in (0, 1]");
+        }
+        this.decay = decay;
+    }
+
+    @Override
+    public void init(String[] readDataSourceNames) {
+        int count = readDataSourceNames.length;
+        if(active == null || active.length() != count) {
+            ewmaNanos = new AtomicLongArray(count);
+            active = new AtomicIntegerArray(count);
+        } else {
+            // 读库变更时保留活跃连接数，换了读库的下标重新统计延迟
+            for(int i = 0; i < count; i++) {
+                if(readDataSourceNames[i] == null || !readDataSourceNames[i].equals(names[i])) {
+                    ewmaNanos.set(i, 0);
+                }
+            }
+        }
+        names = readDataSourceNames.clone();
+        slots = ReadDataSourceSlots.of(readDataSourceNames);
+    }
+
+    @Override
+    public int select(ReadDataSourceFilter filter) {
+        int[] slots = this.slots;
+        int count = slots.length;
+        if(count <= 1) {
+            return count == 1 && filter.accept(slots[0]) ? slots[0] : -1;
+        }
+        int x = random.nextInt(count);
+        int y = random.nextInt(count - 1);
+        if(y >= x) {
+            y++;
+        }
+        int a = slots[x];
+        int b = slots[y];
+        boolean acceptA = filter.accept(a);
+        boolean acceptB = filter.accept(b);
+        if(!acceptA && !acceptB) {
+            return selectAny(filter, slots, x);
+        }
+        if(!acceptA || !acceptB) {
+            return acceptA ? a : b;
+        }
+        long ewmaA = ewmaNanos.get(a);
+        long ewmaB = ewmaNanos.get(b);
+        if(ewmaA != ewmaB) {
+            return ewmaA < ewmaB ? a : b;
+        }
+        return active.get(a) <= active.get(b) ? a : b;
+    }
+
+    /**
+     * 随机选的两个都不可用时，从start开始找第一个可用的
+     */
+    private static int selectAny(ReadDataSourceFilter filter, int[] slots, int start) {
+        int count = slots.length;
+        for(int n = 1; n < count; n++) {
+            int i = slots[(start + n) % count];
+            if(filter.accept(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    @Override
+    public void onAcquire(int index) {
+        active.incrementAndGet(index);
+    }
+
+    @Override
+    public void onRelease(int index, long elapsedNanos) {
+        active.decrementAndGet(index);
+        for(;;) {
+            long old = ewmaNanos.get(index);
+            long ewma = old == 0 ? elapsedNanos : (long)(old + (elapsedNanos - old) * decay);
+            if(ewmaNanos.compareAndSet(index, old, ewma)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 读库当前的延迟EWMA（纳秒）
+     * @param index 读库下标
+     * @return
+     */
+    public long getEwmaNanos(int index) {
+        return ewmaNanos.get(index);
+    }
+}
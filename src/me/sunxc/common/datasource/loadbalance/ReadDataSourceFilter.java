@@ -0,0 +1,29 @@
+package me.sunxc.common.datasource.loadbalance;
+
+/**
+ * <pre>
+ * 读库过滤条件，负载均衡策略只能在accept返回true的读库中选择
+ * 如故障的读库（熔断打开）不参与选择
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public interface ReadDataSourceFilter {
+
+    /**
+     * 所有读库都可选
+     */
+    ReadDataSourceFilter ALL = new ReadDataSourceFilter() {
+
+        @Override
+        public boolean accept(int index) {
+            return true;
+        }
+    };
+
+    /**
+     * @param index 读库下标
+     * @return true 可以选择该读库
+     */
+    boolean accept(int index);
+}
@@ -0,0 +1,32 @@
+package me.sunxc.common.datasource.loadbalance;
+
+/**
+ * 读库列表中的空位处理，DynamicDataSource运行时增删读库后，init传入的名称中可能有null（空位）
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+final class ReadDataSourceSlots {
+
+    private ReadDataSourceSlots() {
+    }
+
+    /**
+     * @return 非空位的下标
+     */
+    static int[] of(String[] readDataSourceNames) {
+        int count = 0;
+        for(String name: readDataSourceNames) {
+            if(name != null) {
+                count++;
+            }
+        }
+        int[] slots = new int[count];
+        int n = 0;
+        for(int i = 0; i < readDataSourceNames.length; i++) {
+            if(readDataSourceNames[i] != null) {
+                slots[n++] = i;
+            }
+        }
+        return slots;
+    }
+}
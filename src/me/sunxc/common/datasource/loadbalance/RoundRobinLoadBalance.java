@@ -0,0 +1,37 @@
+package me.sunxc.common.datasource.loadbalance;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 按顺序轮询使用读库，默认策略
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class RoundRobinLoadBalance implements LoadBalance {
+
+    private volatile int[] slots;
+
+    private AtomicInteger counter = new AtomicInteger(1);
+
+    @Override
+    public void init(String[] readDataSourceNames) {
+        slots = ReadDataSourceSlots.of(readDataSourceNames);
+    }
+
+    @Override
+    public int select(ReadDataSourceFilter filter) {
+        int[] slots = this.slots;
+        int count = slots.length;
+        if(count == 0) {
+            return -1;
+        }
+        int start = Math.abs(counter.incrementAndGet() % count);
+        for(int n = 0; n < count; n++) {
+            int i = slots[(start + n) % count];
+            if(filter.accept(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,135 @@
+package me.sunxc.common.datasource.loadbalance;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * <pre>
+ * 加权轮询
+ * 初始化时按平滑加权轮询（同nginx）算法预先生成一个选择序列，运行时只需对计数器取模，无锁
+ * 如权重 a:3 b:1 c:1 生成序列 a a b a c（而不是 a a a b c），避免连续打到同一个读库
+ * 
+ * 配置方式（key与readDataSourceMap的key一致，未配置的读库权重为1，权重为0表示不参与读）
+ *  <bean class="me.sunxc.common.datasource.loadbalance.WeightedRoundRobinLoadBalance">
+ *      <property name="weights">
+ *          <map>
+ *              <entry key="readDataSource1" value="3" />
+ *              <entry key="readDataSource2" value="1" />
+ *          </map>
+ *      </property>
+ *  </bean>
+ * 
+ * 运行时可以通过DynamicDataSource.setReadDataSourceWeight调整权重，重新生成序列后整体替换
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class WeightedRoundRobinLoadBalance implements LoadBalance {
+
+    private static final int DEFAULT_WEIGHT = 1;
+
+    private volatile Map<String, Integer> weights = Collections.emptyMap();
+
+    private volatile int[] sequence;
+
+    private AtomicInteger counter = new AtomicInteger(0);
+
+    /**
+     * 设置读库权重
+     * @param weights
+     */
+    public void setWeights(Map<String, Integer> weights) {
+        this.weights = weights;
+    }
+
+    /**
+     * @param name 读库名称
+     * @return 读库当前的权重
+     */
+    public int getWeight(String name) {
+        Integer weight = weights.get(name);
+        return weight == null ? DEFAULT_WEIGHT : weight.intValue();
+    }
+
+    /**
+     * 调整单个读库的权重，之后需要重新init才生效
+     * @param name 读库名称
+     * @param weight
+     */
+    public synchronized void setWeight(String name, int weight) {
+        if(weight < 0) {
+            throw new IllegalArgumentException("weight of read datasource '" + name + "' must not be negative");
+        }
+        Map<String, Integer> newWeights = new HashMap<String, Integer>(weights);
+        newWeights.put(name, weight);
+        weights = newWeights;
+    }
+
+    @Override
+    public void init(String[] readDataSourceNames) {
+        int count = readDataSourceNames.length;
+        int[] weight = new int[count];
+        int total = 0;
+        int gcd = 0;
+        for(int i = 0; i < count; i++) {
+            if(readDataSourceNames[i] == null) {
+                continue;
+            }
+            Integer w = weights.get(readDataSourceNames[i]);
+            weight[i] = w == null ? DEFAULT_WEIGHT : w.intValue();
+            if(weight[i] < 0) {
+                throw new IllegalArgumentException("weight of read datasource '" + readDataSourceNames[i] + "' must not be negative");
+            }
+            total += weight[i];
+            gcd = gcd(gcd, weight[i]);
+        }
+        if(total == 0) {
+            throw new IllegalArgumentException("at least one read datasource must have a positive weight");
+        }
+        for(int i = 0; i < count; i++) {
+            weight[i] /= gcd;
+        }
+        total /= gcd;
+
+        int[] sequence = new int[total];
+        int[] current = new int[count];
+        for(int n = 0; n < total; n++) {
+            int best = -1;
+            for(int i = 0; i < count; i++) {
+                current[i] += weight[i];
+                if(best == -1 || current[i] > current[best]) {
+                    best = i;
+                }
+            }
+            current[best] -= total;
+            sequence[n] = best;
+        }
+        this.sequence = sequence;
+    }
+
+    @Override
+    public int select(ReadDataSourceFilter filter) {
+        int[] sequence = this.sequence;
+        int length = sequence.length;
+        int start = Math.abs(counter.getAndIncrement() % length);
+        // 选中的读库不可用时沿序列往后找，保持剩余读库之间的权重比例
+        for(int n = 0; n < length; n++) {
+            int index = sequence[(start + n) % length];
+            if(filter.accept(index)) {
+                return index;
+            }
+        }
+        return -1;
+    }
+
+    private static int gcd(int a, int b) {
+        while(b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
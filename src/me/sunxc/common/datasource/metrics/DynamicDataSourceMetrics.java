@@ -0,0 +1,212 @@
+package me.sunxc.common.datasource.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <pre>
+ * DynamicDataSource的路由和获取连接统计，并注册为JMX MBean
+ *   各数据源（写库、每个读库）的路由次数、获取连接失败次数、获取连接耗时（p50/p99/p999）
+ *   回退到写库的次数
+ * 计数都是无锁的原子操作
+ * 
+ * MBean名称默认 me.sunxc.common.datasource:type=DynamicDataSource,name=<bean名称>
+ * 
+ * 配置方式
+ *  <bean id="readWriteDataSource" class="me.sunxc.common.datasource.DynamicDataSource">
+ *      ...
+ *      <property name="metrics">
+ *          <bean class="me.sunxc.common.datasource.metrics.DynamicDataSourceMetrics"/>
+ *      </property>
+ *  </bean>
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class DynamicDataSourceMetrics implements DynamicDataSourceMetricsMBean {
+    private static final Logger log = Logger.getLogger(DynamicDataSourceMetrics.class);
+
+    /**
+     * 写库的下标，读库i的下标是i+1
+     */
+    public static final int WRITE_INDEX = 0;
+
+    private static final double NANOS_PER_MILLI = 1000000d;
+
+    private String objectName;
+    private boolean registerMBean = true;
+
+    private volatile String[] dataSourceNames;
+    private AtomicLongArray routedCounts;
+    private AtomicLongArray failureCounts;
+    private LatencyHistogram[] acquireLatencies;
+    private final AtomicLong fallbackCount = new AtomicLong();
+
+    private ObjectName registeredName;
+
+    /**
+     * JMX名称，不设置时按DynamicDataSource的bean名称生成
+     * @param objectName
+     */
+    public void setObjectName(String objectName) {
+        this.objectName = objectName;
+    }
+
+    /**
+     * 是否注册到platform MBeanServer，默认true
+     * @param registerMBean
+     */
+    public void setRegisterMBean(boolean registerMBean) {
+        this.registerMBean = registerMBean;
+    }
+
+    /**
+     * DynamicDataSource初始化时调用
+     * @param name DynamicDataSource的bean名称
+     * @param readDataSourceNames
+     */
+    public void init(String name, String[] readDataSourceNames) {
+        int count = readDataSourceNames.length + 1;
+        dataSourceNames = new String[count];
+        dataSourceNames[WRITE_INDEX] = "write";
+        System.arraycopy(readDataSourceNames, 0, dataSourceNames, 1, readDataSourceNames.length);
+        routedCounts = new AtomicLongArray(count);
+        failureCounts = new AtomicLongArray(count);
+        acquireLatencies = new LatencyHistogram[count];
+        for(int i = 0; i < count; i++) {
+            acquireLatencies[i] = new LatencyHistogram();
+        }
+
+        if(registerMBean) {
+            try {
+                ObjectName mbeanName = new ObjectName(objectName != null ? objectName
+                    : "me.sunxc.common.datasource:type=DynamicDataSource,name=" + ObjectName.quote(name));
+                MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+                server.registerMBean(this, mbeanName);
+                registeredName = mbeanName;
+            } catch(Exception e) {
+                log.warn("register datasource metrics mbean failed", e);
+            }
+        }
+    }
+
+    /**
+     * 读库变更，由DynamicDataSource调用；读库容量不变，换了读库的下标清零重新统计
+     * @param readDataSourceNames 可能包含null（空位）
+     */
+    public synchronized void update(String[] readDataSourceNames) {
+        String[] names = dataSourceNames.clone();
+        for(int i = 0; i < readDataSourceNames.length; i++) {
+            int index = i + 1;
+            String name = readDataSourceNames[i];
+            if(name == null ? names[index] != null : !name.equals(names[index])) {
+                names[index] = name;
+                routedCounts.set(index, 0);
+                failureCounts.set(index, 0);
+                acquireLatencies[index].reset();
+            }
+        }
+        dataSourceNames = names;
+    }
+
+    public void onAcquire(int index, long elapsedNanos) {
+        routedCounts.incrementAndGet(index);
+        acquireLatencies[index].record(elapsedNanos);
+    }
+
+    public void onAcquireFailure(int index, long elapsedNanos) {
+        routedCounts.incrementAndGet(index);
+        failureCounts.incrementAndGet(index);
+        acquireLatencies[index].record(elapsedNanos);
+    }
+
+    public void onFallback() {
+        fallbackCount.incrementAndGet();
+    }
+
+    /**
+     * @param index 数据源下标
+     * @return 获取连接耗时直方图
+     */
+    public LatencyHistogram getAcquireLatency(int index) {
+        return acquireLatencies[index];
+    }
+
+    public void close() {
+        if(registeredName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(registeredName);
+            } catch(Exception e) {
+                log.warn("unregister datasource metrics mbean failed", e);
+            }
+            registeredName = null;
+        }
+    }
+
+    @Override
+    public String[] getDataSourceNames() {
+        return dataSourceNames.clone();
+    }
+
+    @Override
+    public long[] getRoutedCounts() {
+        return toArray(routedCounts);
+    }
+
+    @Override
+    public long[] getAcquireFailureCounts() {
+        return toArray(failureCounts);
+    }
+
+    @Override
+    public long getFallbackCount() {
+        return fallbackCount.get();
+    }
+
+    @Override
+    public double[] getAcquireLatencyP50Millis() {
+        return percentileMillis(50);
+    }
+
+    @Override
+    public double[] getAcquireLatencyP99Millis() {
+        return percentileMillis(99);
+    }
+
+    @Override
+    public double[] getAcquireLatencyP999Millis() {
+        return percentileMillis(99.9);
+    }
+
+    @Override
+    public void reset() {
+        for(int i = 0; i < dataSourceNames.length; i++) {
+            routedCounts.set(i, 0);
+            failureCounts.set(i, 0);
+            acquireLatencies[i].reset();
+        }
+        fallbackCount.set(0);
+    }
+
+    private double[] percentileMillis(double percentile) {
+        double[] result = new double[acquireLatencies.length];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = acquireLatencies[i].getPercentile(percentile) / NANOS_PER_MILLI;
+        }
+        return result;
+    }
+
+    private static long[] toArray(AtomicLongArray array) {
+        long[] result = new long[array.length()];
+        for(int i = 0; i < result.length; i++) {
+            result[i] = array.get(i);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,36 @@
+package me.sunxc.common.datasource.metrics;
+
+/**
+ * <pre>
+ * DynamicDataSource的JMX接口，数组按getDataSourceNames()的顺序，第一个是写库
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public interface DynamicDataSourceMetricsMBean {
+
+    String[] getDataSourceNames();
+
+    /**
+     * @return 路由到各数据源的获取连接次数
+     */
+    long[] getRoutedCounts();
+
+    /**
+     * @return 各数据源获取连接失败次数
+     */
+    long[] getAcquireFailureCounts();
+
+    /**
+     * @return 没有可用读库（或读库获取连接失败）而改从写库读的次数
+     */
+    long getFallbackCount();
+
+    double[] getAcquireLatencyP50Millis();
+
+    double[] getAcquireLatencyP99Millis();
+
+    double[] getAcquireLatencyP999Millis();
+
+    void reset();
+}
@@ -0,0 +1,181 @@
+package me.sunxc.common.datasource.pool;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * <pre>
+ * 连接池的无锁容器
+ * 
+ * 借出：
+ *   1、先从当前线程最近归还的连接中找（线程亲和，通常一次CAS即可借到，没有共享写）
+ *   2、再遍历共享列表（CopyOnWriteArrayList，读不加锁）CAS抢一个空闲的
+ *   3、都没有则在SynchronousQueue上等待其他线程归还时直接交接
+ * 归还：把状态置为空闲；有线程在等待时直接交接给它，否则记入当前线程的列表
+ * 
+ * 共享列表只在创建/移除连接时修改
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+final class ConcurrentBag {
+
+    private static final int MAX_THREAD_LOCAL_ENTRIES = 16;
+
+    private final CopyOnWriteArrayList<PoolEntry> sharedList = new CopyOnWriteArrayList<PoolEntry>();
+    private final SynchronousQueue<PoolEntry> handoffQueue = new SynchronousQueue<PoolEntry>(true);
+    private final AtomicInteger waiters = new AtomicInteger();
+
+    private final ThreadLocal<List<WeakReference<PoolEntry>>> threadList = new ThreadLocal<List<WeakReference<PoolEntry>>>() {
+
+        @Override
+        protected List<WeakReference<PoolEntry>> initialValue() {
+            return new ArrayList<WeakReference<PoolEntry>>(MAX_THREAD_LOCAL_ENTRIES);
+        }
+    };
+
+    /**
+     * @param timeoutNanos 等待时间，<=0不等待
+     * @return 借到的连接（状态为IN_USE），超时返回null
+     */
+    PoolEntry borrow(long timeoutNanos) throws InterruptedException {
+        List<WeakReference<PoolEntry>> list = threadList.get();
+        for(int i = list.size() - 1; i >= 0; i--) {
+            PoolEntry entry = list.remove(i).get();
+            if(entry != null && entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.IN_USE)) {
+                return entry;
+            }
+        }
+
+        if(timeoutNanos <= 0) {
+            return scanShared();
+        }
+
+        waiters.incrementAndGet();
+        try {
+            // 先登记等待再遍历，遍历之后归还的连接会交接过来，不会错过
+            PoolEntry entry = scanShared();
+            if(entry != null) {
+                return entry;
+            }
+            long deadline = System.nanoTime() + timeoutNanos;
+            do {
+                entry = handoffQueue.poll(timeoutNanos, TimeUnit.NANOSECONDS);
+                if(entry == null) {
+                    return null;
+                }
+                if(entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.IN_USE)) {
+                    return entry;
+                }
+                timeoutNanos = deadline - System.nanoTime();
+            } while(timeoutNanos > 0);
+            return null;
+        } finally {
+            waiters.decrementAndGet();
+        }
+    }
+
+    private PoolEntry scanShared() {
+        for(PoolEntry entry: sharedList) {
+            if(entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.IN_USE)) {
+                return entry;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 归还
+     */
+    void requite(PoolEntry entry) {
+        if(!entry.compareAndSet(PoolEntry.IN_USE, PoolEntry.NOT_IN_USE)) {
+            // 借出期间已被移除（如泄漏回收），不再放回
+            return;
+        }
+        handoff(entry);
+
+        List<WeakReference<PoolEntry>> list = threadList.get();
+        if(list.size() < MAX_THREAD_LOCAL_ENTRIES) {
+            list.add(new WeakReference<PoolEntry>(entry));
+        }
+    }
+
+    /**
+     * 加入新连接，状态为IN_USE时直接借给创建它的线程
+     */
+    void add(PoolEntry entry) {
+        sharedList.add(entry);
+        if(entry.getState() == PoolEntry.NOT_IN_USE) {
+            handoff(entry);
+        }
+    }
+
+    /**
+     * 移除，只能移除借出或预留中的连接
+     * @return 是否移除
+     */
+    boolean remove(PoolEntry entry) {
+        if(!entry.compareAndSet(PoolEntry.IN_USE, PoolEntry.REMOVED)
+            && !entry.compareAndSet(PoolEntry.RESERVED, PoolEntry.REMOVED)) {
+            return false;
+        }
+        return sharedList.remove(entry);
+    }
+
+    /**
+     * 预留空闲连接，预留期间不会被借出
+     */
+    boolean reserve(PoolEntry entry) {
+        return entry.compareAndSet(PoolEntry.NOT_IN_USE, PoolEntry.RESERVED);
+    }
+
+    void unreserve(PoolEntry entry) {
+        if(entry.compareAndSet(PoolEntry.RESERVED, PoolEntry.NOT_IN_USE)) {
+            handoff(entry);
+        }
+    }
+
+    /**
+     * 有线程等待时交接给它
+     */
+    private void handoff(PoolEntry entry) {
+        for(int i = 0; waiters.get() > 0; i++) {
+            if(entry.getState() != PoolEntry.NOT_IN_USE || handoffQueue.offer(entry)) {
+                return;
+            }
+            if((i & 0xff) == 0xff) {
+                LockSupport.parkNanos(10000);
+            } else {
+                Thread.yield();
+            }
+        }
+    }
+
+    List<PoolEntry> values() {
+        return new ArrayList<PoolEntry>(sharedList);
+    }
+
+    int size() {
+        return sharedList.size();
+    }
+
+    int count(int state) {
+        int count = 0;
+        for(PoolEntry entry: sharedList) {
+            if(entry.getState() == state) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    int getWaiters() {
+        return waiters.get();
+    }
+}
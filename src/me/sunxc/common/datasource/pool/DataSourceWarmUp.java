@@ -0,0 +1,261 @@
+package me.sunxc.common.datasource.pool;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.BeanWrapperImpl;
+
+/**
+ * <pre>
+ * 启动预热：DynamicDataSource初始化时，对写库和所有读库并行打开连接并预编译热点语句，
+ * 避免发布后的第一批请求依次建立连接造成的延迟尖峰
+ * 
+ * 每个数据源同时持有connections个连接（不设置时取数据源的initialSize属性，没有则为1），
+ * 在每个连接上prepare一遍hotStatements，全部完成后归还；
+ * 在DynamicDataSource.afterPropertiesSet中执行，因此在spring容器启动完成之前
+ * 打开连接的线程数不超过maxThreads，连接都打开后再统一归还，保证每个数据源打开的是不同的连接
+ * 
+ * 注意：prepare后立即关闭的语句只有在驱动或连接池缓存预编译语句时才留下效果，
+ *       如MySQL的url加上cachePrepStmts=true&useServerPrepStmts=true，或DBCP的poolPreparedStatements=true，
+ *       否则hotStatements没有作用，只预热连接本身
+ * 
+ * 预热失败只打印警告，failOnError=true时启动失败
+ * 
+ * 配置方式
+ *  <bean id="readWriteDataSource" class="me.sunxc.common.datasource.DynamicDataSource">
+ *      ...
+ *      <property name="warmUp">
+ *          <bean class="me.sunxc.common.datasource.pool.DataSourceWarmUp">
+ *              <property name="hotStatements">
+ *                  <list>
+ *                      <value>select id, name from user where id=?</value>
+ *                  </list>
+ *              </property>
+ *          </bean>
+ *      </property>
+ *  </bean>
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class DataSourceWarmUp {
+    private static final Logger log = Logger.getLogger(DataSourceWarmUp.class);
+
+    private int connections = 0;
+    private List<String> hotStatements = Collections.emptyList();
+    private long timeoutMillis = 30000;
+    private int maxThreads = 16;
+    private boolean failOnError = false;
+
+    /**
+     * 每个数据源打开的连接数，默认取数据源的initialSize属性
+     * @param connections
+     */
+    public void setConnections(int connections) {
+        this.connections = connections;
+    }
+
+    /**
+     * 需要预编译的语句，只在驱动或连接池缓存预编译语句时有效
+     * @param hotStatements
+     */
+    public void setHotStatements(List<String> hotStatements) {
+        this.hotStatements = hotStatements;
+    }
+
+    /**
+     * 预热的最长时间，默认30000毫秒
+     * @param timeoutMillis
+     */
+    public void setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * 打开连接的最大线程数，默认16
+     * @param maxThreads
+     */
+    public void setMaxThreads(int maxThreads) {
+        if(maxThreads <= 0) {
+            throw new IllegalArgumentException("property 'maxThreads' must be positive");
+        }
+        this.maxThreads = maxThreads;
+    }
+
+    /**
+     * 预热失败时是否启动失败，默认false
+     * @param failOnError
+     */
+    public void setFailOnError(boolean failOnError) {
+        this.failOnError = failOnError;
+    }
+
+    /**
+     * 并行预热
+     * @param dataSources 名称 -> 数据源，同一个数据源只应出现一次
+     */
+    public void warmUp(Map<String, DataSource> dataSources) throws SQLException {
+        List<WarmUpTask> tasks = new ArrayList<WarmUpTask>();
+        OpenedConnections opened = new OpenedConnections();
+        for(Entry<String, DataSource> e: dataSources.entrySet()) {
+            int count = connectionsOf(e.getValue());
+            for(int i = 0; i < count; i++) {
+                tasks.add(new WarmUpTask(e.getKey(), e.getValue(), opened));
+            }
+        }
+        if(tasks.isEmpty()) {
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+        final AtomicInteger threadNumber = new AtomicInteger(1);
+        // 任务打开连接后交给opened持有，不占用线程，线程数可以小于任务数
+        int threads = Math.min(tasks.size(), maxThreads);
+        ExecutorService executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "datasource-warm-up-" + threadNumber.getAndIncrement());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        SQLException failure = null;
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(tasks.size());
+            for(WarmUpTask task: tasks) {
+                futures.add(executor.submit(task));
+            }
+            long deadline = start + timeoutMillis;
+            for(int i = 0; i < futures.size(); i++) {
+                try {
+                    futures.get(i).get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                } catch(ExecutionException e) {
+                    failure = toSQLException(tasks.get(i).name, e.getCause());
+                    log.warn(String.format("warm up datasource %s failed", tasks.get(i).name), e.getCause());
+                } catch(TimeoutException e) {
+                    failure = new SQLException("warm up datasource " + tasks.get(i).name + " timed out");
+                    log.warn(failure.getMessage());
+                    break;
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failure = new SQLException("warm up interrupted");
+                    break;
+                }
+            }
+        } finally {
+            executor.shutdownNow();
+            opened.closeAll();
+        }
+        log.info(String.format("warm up %d connections on %d datasources in %dms", tasks.size(), dataSources.size(),
+            System.currentTimeMillis() - start));
+        if(failure != null && failOnError) {
+            throw failure;
+        }
+    }
+
+    private int connectionsOf(DataSource dataSource) {
+        if(connections > 0) {
+            return connections;
+        }
+        BeanWrapper wrapper = new BeanWrapperImpl(dataSource);
+        if(wrapper.isReadableProperty("initialSize")) {
+            Object initialSize = wrapper.getPropertyValue("initialSize");
+            if(initialSize instanceof Integer && ((Integer)initialSize).intValue() > 0) {
+                return ((Integer)initialSize).intValue();
+            }
+        }
+        return 1;
+    }
+
+    private static SQLException toSQLException(String name, Throwable cause) {
+        if(cause instanceof SQLException) {
+            return (SQLException)cause;
+        }
+        SQLException e = new SQLException("warm up datasource " + name + " failed");
+        e.initCause(cause);
+        return e;
+    }
+
+    private static void close(Connection con) {
+        try {
+            con.close();
+        } catch(SQLException e) {
+            log.debug("close warm up connection failed", e);
+        }
+    }
+
+    /**
+     * 预热中打开的连接，全部任务结束后统一归还；归还之后才完成的任务直接关闭自己的连接
+     */
+    private static class OpenedConnections {
+
+        private final List<Connection> connections = new ArrayList<Connection>();
+        private boolean closed;
+
+        void add(Connection con) {
+            synchronized(this) {
+                if(!closed) {
+                    connections.add(con);
+                    return;
+                }
+            }
+            close(con);
+        }
+
+        void closeAll() {
+            synchronized(this) {
+                closed = true;
+            }
+            for(Connection con: connections) {
+                close(con);
+            }
+        }
+    }
+
+    private class WarmUpTask implements Callable<Void> {
+
+        private final String name;
+        private final DataSource dataSource;
+        private final OpenedConnections opened;
+
+        WarmUpTask(String name, DataSource dataSource, OpenedConnections opened) {
+            this.name = name;
+            this.dataSource = dataSource;
+            this.opened = opened;
+        }
+
+        @Override
+        public Void call() throws SQLException {
+            Connection con = dataSource.getConnection();
+            try {
+                for(String sql: hotStatements) {
+                    con.prepareStatement(sql).close();
+                }
+            } catch(SQLException e) {
+                close(con);
+                throw e;
+            }
+            opened.add(con);
+            return null;
+        }
+    }
+}
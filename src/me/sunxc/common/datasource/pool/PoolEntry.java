@@ -0,0 +1,70 @@
+package me.sunxc.common.datasource.pool;
+
+import java.sql.Connection;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * <pre>
+ * 连接池中的一个物理连接及其状态
+ * 状态只通过CAS修改：NOT_IN_USE -> IN_USE（借出），IN_USE -> NOT_IN_USE（归还），
+ * NOT_IN_USE -> RESERVED（后台检查/回收），IN_USE/RESERVED -> REMOVED（移除），同时修改时只有一方成功
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+final class PoolEntry {
+
+    static final int NOT_IN_USE = 0;
+    static final int IN_USE = 1;
+    static final int REMOVED = -1;
+    static final int RESERVED = -2;
+
+    private static final AtomicIntegerFieldUpdater<PoolEntry> STATE = AtomicIntegerFieldUpdater.newUpdater(
+        PoolEntry.class, "state");
+
+    final Connection connection;
+    final long createdAt;
+
+    /**
+     * 创建时的连接状态，归还时恢复
+     */
+    final boolean autoCommit;
+    final boolean readOnly;
+    final int transactionIsolation;
+    final String catalog;
+
+    private volatile int state;
+
+    /**
+     * 最后一次借出或归还的时间
+     */
+    volatile long lastAccessed;
+    volatile long borrowedAt;
+    volatile Throwable borrowStack;
+    volatile boolean leakReported;
+    volatile boolean broken;
+    volatile boolean abandoned;
+
+    PoolEntry(Connection connection, long now, boolean autoCommit, boolean readOnly, int transactionIsolation,
+        String catalog) {
+        this.connection = connection;
+        this.createdAt = now;
+        this.lastAccessed = now;
+        this.autoCommit = autoCommit;
+        this.readOnly = readOnly;
+        this.transactionIsolation = transactionIsolation;
+        this.catalog = catalog;
+    }
+
+    int getState() {
+        return state;
+    }
+
+    void setState(int state) {
+        this.state = state;
+    }
+
+    boolean compareAndSet(int expect, int update) {
+        return STATE.compareAndSet(this, expect, update);
+    }
+}
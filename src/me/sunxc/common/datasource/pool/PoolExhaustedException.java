@@ -0,0 +1,39 @@
+package me.sunxc.common.datasource.pool;
+
+import java.sql.SQLTransientConnectionException;
+import java.util.NoSuchElementException;
+
+/**
+ * <pre>
+ * 连接池已满，等待maxWait后仍没有可用的连接
+ * 数据库本身是正常的，只是忙，不应计入读库的健康状态（熔断）
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class PoolExhaustedException extends SQLTransientConnectionException {
+
+    private static final long serialVersionUID = 1L;
+
+    public PoolExhaustedException(String reason) {
+        super(reason);
+    }
+
+    /**
+     * 是否是连接池已满/等待超时：PooledDataSource抛出的PoolExhaustedException，
+     * 或commons-dbcp包装的commons-pool NoSuchElementException（Timeout waiting for idle object / Pool exhausted）
+     * @param e
+     * @return
+     */
+    public static boolean isPoolExhausted(Throwable e) {
+        for(Throwable t = e; t != null; t = t.getCause()) {
+            if(t instanceof PoolExhaustedException || t instanceof NoSuchElementException) {
+                return true;
+            }
+            if(t.getCause() == t) {
+                break;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,964 @@
+package me.sunxc.common.datasource.pool;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.util.StringUtils;
+
+/**
+ * <pre>
+ * 低竞争的连接池，可以直接替换commons-dbcp的BasicDataSource（常用属性同名）
+ * 
+ * 1、借出/归还不加锁 @see ConcurrentBag
+ *    线程优先拿回自己刚归还的连接；池满时等待其他线程归还直接交接
+ * 2、借出时只校验一段时间（validationIntervalMillis，默认500毫秒）没有使用过的连接，
+ *    用JDBC4的Connection.isValid，配置validationQuery时改用执行该语句；
+ *    刚用过的连接不校验，避免testOnBorrow每次借出都多一次往返
+ * 3、归还时回滚未提交的事务，恢复autoCommit/readOnly/事务隔离级别/catalog；
+ *    使用中（包括Statement/ResultSet上）出现连接级错误（SQLState 08开头）的连接归还时关闭；
+ *    Statement/ResultSet也是代理，getConnection/getStatement返回代理，不暴露物理连接；
+ *    归还时关闭还没有关闭的Statement，之后再使用抛出SQLException
+ * 4、泄漏跟踪：removeAbandoned或logAbandoned时，借出超过removeAbandonedTimeout秒未归还的连接打印警告
+ *    （logAbandoned=true时附带借出时的调用栈），removeAbandoned=true时关闭并回收
+ * 5、后台线程每timeBetweenEvictionRunsMillis：检查泄漏，关闭超过maxIdle或空闲超过minEvictableIdleTimeMillis的连接
+ *    （保留minIdle个），testWhileIdle=true时校验空闲连接，补足minIdle
+ *    
+ * 配置方式（与BasicDataSource相同）
+ *  <bean id="writeDataSource" class="me.sunxc.common.datasource.pool.PooledDataSource" destroy-method="close">
+ *      <property name="driverClassName" value="${write.connection.driver_class}" />
+ *      <property name="url" value="${write.connection.url}" />
+ *      <property name="username" value="${write.connection.username}" />
+ *      <property name="password" value="${write.connection.password}" />
+ *      <property name="initialSize" value="${write.jdbc.initConnections}" />
+ *      <property name="maxActive" value="${write.jdbc.poolSize}" />
+ *  </bean>
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class PooledDataSource extends AbstractDataSource implements InitializingBean, DisposableBean {
+    private static final Logger log = Logger.getLogger(PooledDataSource.class);
+
+    private String driverClassName;
+    private String url;
+    private String username;
+    private String password;
+    private Properties connectionProperties = new Properties();
+
+    private Boolean defaultAutoCommit;
+    private Boolean defaultReadOnly;
+    private int defaultTransactionIsolation = -1;
+    private String defaultCatalog;
+
+    private int initialSize = 0;
+    private int maxActive = 8;
+    private int maxIdle = 8;
+    private int minIdle = 0;
+    private long maxWait = 30000;
+
+    private boolean testOnBorrow = true;
+    private boolean testWhileIdle = false;
+    private String validationQuery;
+    private int validationQueryTimeout = 3;
+    private long validationIntervalMillis = 500;
+
+    private long timeBetweenEvictionRunsMillis = 30000;
+    private long minEvictableIdleTimeMillis = 1800000;
+
+    private boolean removeAbandoned = false;
+    private int removeAbandonedTimeout = 300;
+    private boolean logAbandoned = false;
+
+    private boolean adaptiveSizing = false;
+    private long adaptiveIntervalMillis = 5000;
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger peakActive = new AtomicInteger();
+    private volatile int targetSize = -1;
+
+    private final ConcurrentBag bag = new ConcurrentBag();
+    private final AtomicInteger totalConnections = new AtomicInteger();
+    private volatile boolean started;
+    private volatile boolean closed;
+    private ScheduledExecutorService housekeeper;
+
+    public void setDriverClassName(String driverClassName) {
+        this.driverClassName = driverClassName;
+    }
+
+    public void setUrl(String url) {
+        this.url = url;
+    }
+
+    public void setUsername(String username) {
+        this.username = username;
+    }
+
+    public void setPassword(String password) {
+        this.password = password;
+    }
+
+    /**
+     * 驱动的连接属性，格式 name1=value1;name2=value2
+     * @param connectionProperties
+     */
+    public void setConnectionProperties(String connectionProperties) {
+        this.connectionProperties = new Properties();
+        for(String property: StringUtils.tokenizeToStringArray(connectionProperties, ";")) {
+            int index = property.indexOf('=');
+            if(index > 0) {
+                this.connectionProperties.setProperty(property.substring(0, index).trim(),
+                    property.substring(index + 1).trim());
+            }
+        }
+    }
+
+    /**
+     * 连接的默认autoCommit，不设置使用驱动的默认值
+     * @param defaultAutoCommit
+     */
+    public void setDefaultAutoCommit(boolean defaultAutoCommit) {
+        this.defaultAutoCommit = defaultAutoCommit;
+    }
+
+    public void setDefaultReadOnly(boolean defaultReadOnly) {
+        this.defaultReadOnly = defaultReadOnly;
+    }
+
+    public void setDefaultTransactionIsolation(int defaultTransactionIsolation) {
+        this.defaultTransactionIsolation = defaultTransactionIsolation;
+    }
+
+    public void setDefaultCatalog(String defaultCatalog) {
+        this.defaultCatalog = defaultCatalog;
+    }
+
+    /**
+     * 启动时创建的连接数，默认0
+     * @param initialSize
+     */
+    public void setInitialSize(int initialSize) {
+        this.initialSize = initialSize;
+    }
+
+    /**
+     * 最大连接数，默认8
+     * @param maxActive
+     */
+    public void setMaxActive(int maxActive) {
+        this.maxActive = maxActive;
+    }
+
+    /**
+     * 最多保留的空闲连接数，超过的由后台线程关闭，默认8
+     * @param maxIdle
+     */
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    /**
+     * 最少保留的空闲连接数，默认0
+     * @param minIdle
+     */
+    public void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    /**
+     * 池满时等待的毫秒数，默认30000，负数表示一直等待
+     * @param maxWait
+     */
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    /**
+     * 借出时是否校验（只校验validationIntervalMillis内未使用过的连接），默认true
+     * @param testOnBorrow
+     */
+    public void setTestOnBorrow(boolean testOnBorrow) {
+        this.testOnBorrow = testOnBorrow;
+    }
+
+    /**
+     * 后台线程是否校验空闲连接，默认false
+     * @param testWhileIdle
+     */
+    public void setTestWhileIdle(boolean testWhileIdle) {
+        this.testWhileIdle = testWhileIdle;
+    }
+
+    /**
+     * 校验语句，不设置使用Connection.isValid
+     * @param validationQuery
+     */
+    public void setValidationQuery(String validationQuery) {
+        this.validationQuery = validationQuery;
+    }
+
+    /**
+     * 校验超时秒数，默认3
+     * @param validationQueryTimeout
+     */
+    public void setValidationQueryTimeout(int validationQueryTimeout) {
+        this.validationQueryTimeout = validationQueryTimeout;
+    }
+
+    /**
+     * 多长时间内使用过的连接借出时不再校验，默认500毫秒
+     * @param validationIntervalMillis
+     */
+    public void setValidationIntervalMillis(long validationIntervalMillis) {
+        this.validationIntervalMillis = validationIntervalMillis;
+    }
+
+    /**
+     * 后台线程执行间隔，默认30000毫秒，<=0不启动后台线程
+     * @param timeBetweenEvictionRunsMillis
+     */
+    public void setTimeBetweenEvictionRunsMillis(long timeBetweenEvictionRunsMillis) {
+        this.timeBetweenEvictionRunsMillis = timeBetweenEvictionRunsMillis;
+    }
+
+    /**
+     * 空闲多久的连接可以被关闭（保留minIdle个），默认30分钟
+     * @param minEvictableIdleTimeMillis
+     */
+    public void setMinEvictableIdleTimeMillis(long minEvictableIdleTimeMillis) {
+        this.minEvictableIdleTimeMillis = minEvictableIdleTimeMillis;
+    }
+
+    /**
+     * 是否回收泄漏的连接，默认false
+     * @param removeAbandoned
+     */
+    public void setRemoveAbandoned(boolean removeAbandoned) {
+        this.removeAbandoned = removeAbandoned;
+    }
+
+    /**
+     * 借出多少秒未归还视为泄漏，默认300
+     * @param removeAbandonedTimeout
+     */
+    public void setRemoveAbandonedTimeout(int removeAbandonedTimeout) {
+        this.removeAbandonedTimeout = removeAbandonedTimeout;
+    }
+
+    /**
+     * 是否记录借出时的调用栈并在泄漏时打印，默认false
+     * @param logAbandoned
+     */
+    public void setLogAbandoned(boolean logAbandoned) {
+        this.logAbandoned = logAbandoned;
+    }
+
+    /**
+     * 是否按实际并发自动调整连接数，默认false
+     * 每adaptiveIntervalMillis取这段时间内同时借出的峰值，目标连接数为峰值的1.2倍（在minIdle和maxActive之间），
+     * 不足时预先创建，多出的空闲连接每次关闭一半，逐步收缩；开启后maxIdle不再生效
+     * @param adaptiveSizing
+     */
+    public void setAdaptiveSizing(boolean adaptiveSizing) {
+        this.adaptiveSizing = adaptiveSizing;
+    }
+
+    /**
+     * 自动调整的间隔，默认5000毫秒
+     * @param adaptiveIntervalMillis
+     */
+    public void setAdaptiveIntervalMillis(long adaptiveIntervalMillis) {
+        this.adaptiveIntervalMillis = adaptiveIntervalMillis;
+    }
+
+    /**
+     * @return 自动调整的目标连接数，未开启或还未调整过返回-1
+     */
+    public int getTargetSize() {
+        return targetSize;
+    }
+
+    public int getInitialSize() {
+        return initialSize;
+    }
+
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    /**
+     * @return 借出中的连接数
+     */
+    public int getNumActive() {
+        return bag.count(PoolEntry.IN_USE);
+    }
+
+    /**
+     * @return 空闲连接数
+     */
+    public int getNumIdle() {
+        return bag.count(PoolEntry.NOT_IN_USE);
+    }
+
+    /**
+     * @return 等待连接的线程数
+     */
+    public int getNumWaiters() {
+        return bag.getWaiters();
+    }
+
+    /**
+     * @return 连接总数
+     */
+    public int getTotalConnections() {
+        return totalConnections.get();
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        start();
+    }
+
+    private synchronized void start() throws SQLException {
+        if(started) {
+            return;
+        }
+        if(url == null) {
+            throw new IllegalArgumentException("property 'url' is required");
+        }
+        if(maxActive <= 0) {
+            throw new IllegalArgumentException("property 'maxActive' must be greater than 0");
+        }
+        if(initialSize > maxActive || minIdle > maxActive) {
+            throw new IllegalArgumentException("property 'initialSize' and 'minIdle' must not be greater than 'maxActive'");
+        }
+        if(driverClassName != null) {
+            try {
+                Class.forName(driverClassName, true, Thread.currentThread().getContextClassLoader());
+            } catch(ClassNotFoundException e) {
+                throw new IllegalArgumentException("cannot load JDBC driver class '" + driverClassName + "'", e);
+            }
+        }
+        if(username != null) {
+            connectionProperties.setProperty("user", username);
+        }
+        if(password != null) {
+            connectionProperties.setProperty("password", password);
+        }
+
+        for(int i = 0; i < initialSize; i++) {
+            addIdleConnection();
+        }
+        if(adaptiveSizing && adaptiveIntervalMillis <= 0) {
+            throw new IllegalArgumentException("property 'adaptiveIntervalMillis' must be greater than 0");
+        }
+        if(timeBetweenEvictionRunsMillis > 0 || adaptiveSizing) {
+            housekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "pooled-datasource-housekeeper");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        if(timeBetweenEvictionRunsMillis > 0) {
+            housekeeper.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        housekeep();
+                    } catch(Throwable e) {
+                        log.warn("pool housekeeping failed", e);
+                    }
+                }
+            }, timeBetweenEvictionRunsMillis, timeBetweenEvictionRunsMillis, TimeUnit.MILLISECONDS);
+        }
+        if(adaptiveSizing) {
+            housekeeper.scheduleWithFixedDelay(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        resize();
+                    } catch(Throwable e) {
+                        log.warn("pool resizing failed", e);
+                    }
+                }
+            }, adaptiveIntervalMillis, adaptiveIntervalMillis, TimeUnit.MILLISECONDS);
+        }
+        started = true;
+    }
+
+    @Override
+    public void destroy() {
+        close();
+    }
+
+    /**
+     * 关闭连接池：关闭所有空闲连接，借出中的连接归还时关闭
+     */
+    public void close() {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        if(housekeeper != null) {
+            housekeeper.shutdownNow();
+        }
+        for(PoolEntry entry: bag.values()) {
+            if(bag.reserve(entry)) {
+                closeEntry(entry);
+            }
+        }
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        Connection con = getConnection(maxWait);
+        if(con == null) {
+            throw new PoolExhaustedException(String.format(
+                "cannot get a connection from pool %s within %dms (active %d, max %d)",
+                url, maxWait, getNumActive(), maxActive));
+        }
+        return con;
+    }
+
+    /**
+     * 按指定的等待时间获取连接，用于调用方有自己的时间预算时（@see me.sunxc.common.datasource.deadline.Deadline）
+     * @param maxWaitMillis 池满时等待的毫秒数，负数表示一直等待
+     * @return 等待超时返回null
+     */
+    public Connection getConnection(long maxWaitMillis) throws SQLException {
+        if(!started) {
+            start();
+        }
+        long start = System.nanoTime();
+        long timeoutNanos = maxWaitMillis < 0 ? Long.MAX_VALUE : TimeUnit.MILLISECONDS.toNanos(maxWaitMillis);
+        while(true) {
+            if(closed) {
+                throw new SQLException("pool is closed");
+            }
+            PoolEntry entry;
+            try {
+                entry = bag.borrow(0);
+                if(entry == null) {
+                    entry = createEntry(PoolEntry.IN_USE);
+                    if(entry != null) {
+                        return wrap(entry);
+                    }
+                    long remaining = timeoutNanos - (System.nanoTime() - start);
+                    entry = remaining > 0 ? bag.borrow(remaining) : null;
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("interrupted while waiting for a connection");
+            }
+            if(entry == null) {
+                return null;
+            }
+            if(testOnBorrow && System.currentTimeMillis() - entry.lastAccessed > validationIntervalMillis
+                && !isValid(entry)) {
+                closeEntry(entry);
+                continue;
+            }
+            return wrap(entry);
+        }
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        throw new UnsupportedOperationException("PooledDataSource does not support getConnection(username, password)");
+    }
+
+    private Connection wrap(PoolEntry entry) {
+        long now = System.currentTimeMillis();
+        entry.lastAccessed = now;
+        entry.borrowedAt = now;
+        entry.leakReported = false;
+        entry.borrowStack = logAbandoned ? new Throwable("connection borrowed here") : null;
+        if(adaptiveSizing) {
+            int current = active.incrementAndGet();
+            int peak;
+            while(current > (peak = peakActive.get()) && !peakActive.compareAndSet(peak, current)) {
+                // 重试
+            }
+        }
+        return (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {Connection.class},
+            new PooledConnectionHandler(entry));
+    }
+
+    /**
+     * 连接数未达到maxActive时创建连接并加入池
+     * @return 新连接，已达到maxActive返回null
+     */
+    private PoolEntry createEntry(int state) throws SQLException {
+        while(true) {
+            int total = totalConnections.get();
+            if(total >= maxActive) {
+                return null;
+            }
+            if(totalConnections.compareAndSet(total, total + 1)) {
+                break;
+            }
+        }
+        Connection con = null;
+        PoolEntry entry;
+        try {
+            con = DriverManager.getConnection(url, connectionProperties);
+            if(defaultAutoCommit != null) {
+                con.setAutoCommit(defaultAutoCommit.booleanValue());
+            }
+            if(defaultReadOnly != null) {
+                con.setReadOnly(defaultReadOnly.booleanValue());
+            }
+            if(defaultTransactionIsolation >= 0) {
+                con.setTransactionIsolation(defaultTransactionIsolation);
+            }
+            if(defaultCatalog != null) {
+                con.setCatalog(defaultCatalog);
+            }
+            // 归还时恢复到这些值
+            entry = new PoolEntry(con, System.currentTimeMillis(), con.getAutoCommit(), con.isReadOnly(),
+                con.getTransactionIsolation(), con.getCatalog());
+        } catch(SQLException e) {
+            closeQuietly(con);
+            totalConnections.decrementAndGet();
+            throw e;
+        } catch(RuntimeException e) {
+            closeQuietly(con);
+            totalConnections.decrementAndGet();
+            throw e;
+        }
+        entry.setState(state);
+        bag.add(entry);
+        return entry;
+    }
+
+    private void addIdleConnection() throws SQLException {
+        createEntry(PoolEntry.NOT_IN_USE);
+    }
+
+    /**
+     * 关闭并移除连接（调用方已借出或预留）；已被其他线程移除时不做任何事
+     */
+    private void closeEntry(PoolEntry entry) {
+        if(bag.remove(entry)) {
+            closeRemoved(entry);
+        }
+    }
+
+    /**
+     * 关闭已经从池中移除的连接
+     */
+    private void closeRemoved(PoolEntry entry) {
+        totalConnections.decrementAndGet();
+        closeQuietly(entry.connection);
+        if(bag.getWaiters() > 0 && !closed) {
+            // 有线程在等待，补一个连接
+            try {
+                addIdleConnection();
+            } catch(SQLException e) {
+                log.warn("create connection for waiting threads failed", e);
+            }
+        }
+    }
+
+    private static void closeQuietly(Connection con) {
+        if(con == null) {
+            return;
+        }
+        try {
+            con.close();
+        } catch(SQLException e) {
+            log.debug("close connection failed", e);
+        }
+    }
+
+    private boolean isValid(PoolEntry entry) {
+        try {
+            if(validationQuery == null) {
+                return entry.connection.isValid(validationQueryTimeout);
+            }
+            Statement stmt = entry.connection.createStatement();
+            try {
+                stmt.setQueryTimeout(validationQueryTimeout);
+                stmt.execute(validationQuery);
+            } finally {
+                stmt.close();
+            }
+            return true;
+        } catch(SQLException e) {
+            log.debug("connection validation failed", e);
+            return false;
+        }
+    }
+
+    /**
+     * 归还连接
+     */
+    private void release(PoolEntry entry, PooledConnectionHandler handler) {
+        if(adaptiveSizing) {
+            active.decrementAndGet();
+        }
+        if(entry.abandoned) {
+            return;
+        }
+        handler.closeStatements();
+        if(closed || entry.broken || !handler.reset()) {
+            closeEntry(entry);
+            return;
+        }
+        entry.lastAccessed = System.currentTimeMillis();
+        entry.borrowStack = null;
+        bag.requite(entry);
+    }
+
+    /**
+     * 后台检查：泄漏、多余的空闲连接、空闲校验、补足minIdle
+     */
+    void housekeep() {
+        long now = System.currentTimeMillis();
+        if(removeAbandoned || logAbandoned) {
+            long timeout = removeAbandonedTimeout * 1000L;
+            for(PoolEntry entry: bag.values()) {
+                if(entry.getState() == PoolEntry.IN_USE && !entry.leakReported && now - entry.borrowedAt > timeout) {
+                    entry.leakReported = true;
+                    log.warn(String.format("connection of pool %s borrowed %dms ago has not been returned%s", url,
+                        now - entry.borrowedAt, removeAbandoned ? ", close it" : ""), entry.borrowStack);
+                    // 先把连接从IN_USE改为REMOVED，借出方同时归还时只有一方成功
+                    if(removeAbandoned && bag.remove(entry)) {
+                        entry.abandoned = true;
+                        closeRemoved(entry);
+                    }
+                }
+            }
+        }
+
+        int idle = getNumIdle();
+        int idleLimit = adaptiveSizing ? Integer.MAX_VALUE : maxIdle;
+        for(PoolEntry entry: bag.values()) {
+            if(idle <= minIdle) {
+                break;
+            }
+            if((idle > idleLimit || now - entry.lastAccessed > minEvictableIdleTimeMillis) && bag.reserve(entry)) {
+                closeEntry(entry);
+                idle--;
+            }
+        }
+
+        if(testWhileIdle) {
+            for(PoolEntry entry: bag.values()) {
+                if(now - entry.lastAccessed > validationIntervalMillis && bag.reserve(entry)) {
+                    if(isValid(entry)) {
+                        entry.lastAccessed = System.currentTimeMillis();
+                        bag.unreserve(entry);
+                    } else {
+                        closeEntry(entry);
+                    }
+                }
+            }
+        }
+
+        try {
+            for(int i = getNumIdle(); i < minIdle && !closed; i++) {
+                addIdleConnection();
+            }
+        } catch(SQLException e) {
+            log.warn("create idle connection failed", e);
+        }
+    }
+
+    /**
+     * 按上一个周期的并发峰值调整连接数
+     */
+    void resize() {
+        int peak = peakActive.getAndSet(active.get());
+        int target = Math.min(maxActive, Math.max(minIdle, peak + (peak + 4) / 5));
+        targetSize = target;
+        int total = totalConnections.get();
+        if(total < target) {
+            try {
+                for(int i = total; i < target && !closed; i++) {
+                    addIdleConnection();
+                }
+            } catch(SQLException e) {
+                log.warn("grow pool failed", e);
+            }
+        } else if(total > target) {
+            int excess = (total - target + 1) / 2;
+            long now = System.currentTimeMillis();
+            for(PoolEntry entry: bag.values()) {
+                if(excess <= 0) {
+                    break;
+                }
+                if(now - entry.lastAccessed > adaptiveIntervalMillis && bag.reserve(entry)) {
+                    closeEntry(entry);
+                    excess--;
+                }
+            }
+        }
+    }
+
+    /**
+     * 借出的连接，close时归还到池
+     */
+    private class PooledConnectionHandler implements InvocationHandler {
+
+        private final PoolEntry entry;
+        private boolean returned;
+
+        private boolean autoCommitChanged;
+        private boolean readOnlyChanged;
+        private boolean isolationChanged;
+        private boolean catalogChanged;
+        private boolean inTransaction;
+
+        /**
+         * 没有关闭的Statement
+         */
+        private final List<StatementHandler> statements = new ArrayList<StatementHandler>();
+
+        PooledConnectionHandler(PoolEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            if("equals".equals(methodName)) {
+                return proxy == args[0];
+            }
+            if("hashCode".equals(methodName)) {
+                return System.identityHashCode(proxy);
+            }
+            if("toString".equals(methodName)) {
+                return "PooledConnection[" + entry.connection + "]";
+            }
+            if("isClosed".equals(methodName)) {
+                return returned;
+            }
+            if("close".equals(methodName)) {
+                if(!returned) {
+                    returned = true;
+                    release(entry, this);
+                }
+                return null;
+            }
+            if(returned) {
+                throw new SQLException("connection is closed");
+            }
+            if(entry.abandoned) {
+                throw new SQLException("connection has been abandoned and closed by the pool");
+            }
+
+            if("setAutoCommit".equals(methodName)) {
+                autoCommitChanged = true;
+                inTransaction = false;
+            } else if("setReadOnly".equals(methodName)) {
+                readOnlyChanged = true;
+            } else if("setTransactionIsolation".equals(methodName)) {
+                isolationChanged = true;
+            } else if("setCatalog".equals(methodName)) {
+                catalogChanged = true;
+            } else if("commit".equals(methodName) || "rollback".equals(methodName)) {
+                inTransaction = false;
+            } else if(methodName.startsWith("create") || methodName.startsWith("prepare")) {
+                inTransaction = true;
+            }
+            Object result;
+            try {
+                result = method.invoke(entry.connection, args);
+            } catch(InvocationTargetException e) {
+                throw checkBroken(e.getTargetException());
+            }
+            if(result instanceof Statement && Statement.class.isAssignableFrom(method.getReturnType())) {
+                StatementHandler handler = new StatementHandler((Statement)result, (Connection)proxy);
+                statements.add(handler);
+                return Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] {method.getReturnType()}, handler);
+            }
+            return result;
+        }
+
+        /**
+         * 连接级错误（SQLState 08开头）时标记连接损坏，归还时关闭
+         */
+        Throwable checkBroken(Throwable target) {
+            if(target instanceof SQLException) {
+                String sqlState = ((SQLException)target).getSQLState();
+                if(sqlState != null && sqlState.startsWith("08")) {
+                    entry.broken = true;
+                }
+            }
+            return target;
+        }
+
+        /**
+         * 归还时关闭调用方没有关闭的Statement
+         */
+        void closeStatements() {
+            for(StatementHandler handler: statements) {
+                handler.closed = true;
+                try {
+                    handler.statement.close();
+                } catch(SQLException e) {
+                    log.debug("close statement failed", e);
+                    checkBroken(e);
+                }
+            }
+            statements.clear();
+        }
+
+        /**
+         * 恢复连接状态
+         * @return 是否成功，失败的连接将被关闭
+         */
+        boolean reset() {
+            Connection con = entry.connection;
+            try {
+                if(inTransaction && !con.getAutoCommit()) {
+                    con.rollback();
+                }
+                if(autoCommitChanged) {
+                    con.setAutoCommit(entry.autoCommit);
+                }
+                if(readOnlyChanged) {
+                    con.setReadOnly(entry.readOnly);
+                }
+                if(isolationChanged) {
+                    con.setTransactionIsolation(entry.transactionIsolation);
+                }
+                if(catalogChanged && entry.catalog != null) {
+                    con.setCatalog(entry.catalog);
+                }
+                return true;
+            } catch(SQLException e) {
+                log.warn("reset pooled connection failed, close it", e);
+                return false;
+            }
+        }
+
+        /**
+         * 借出连接上的Statement，getConnection返回连接代理，返回的ResultSet也是代理
+         */
+        private class StatementHandler implements InvocationHandler {
+
+            private final Statement statement;
+            private final Connection connectionProxy;
+            private boolean closed;
+
+            StatementHandler(Statement statement, Connection connectionProxy) {
+                this.statement = statement;
+                this.connectionProxy = connectionProxy;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String methodName = method.getName();
+                if("equals".equals(methodName)) {
+                    return proxy == args[0];
+                }
+                if("hashCode".equals(methodName)) {
+                    return System.identityHashCode(proxy);
+                }
+                if("toString".equals(methodName)) {
+                    return "PooledStatement[" + statement + "]";
+                }
+                if("isClosed".equals(methodName) && closed) {
+                    return true;
+                }
+                if("close".equals(methodName)) {
+                    if(!closed) {
+                        closed = true;
+                        statements.remove(this);
+                        try {
+                            statement.close();
+                        } catch(SQLException e) {
+                            throw checkBroken(e);
+                        }
+                    }
+                    return null;
+                }
+                if(closed) {
+                    throw new SQLException("statement is closed");
+                }
+                if("getConnection".equals(methodName)) {
+                    return connectionProxy;
+                }
+                Object result;
+                try {
+                    result = method.invoke(statement, args);
+                } catch(InvocationTargetException e) {
+                    throw checkBroken(e.getTargetException());
+                }
+                if(result instanceof ResultSet && method.getReturnType() == ResultSet.class) {
+                    return Proxy.newProxyInstance(Connection.class.getClassLoader(), new Class<?>[] {ResultSet.class},
+                        new ResultSetHandler((ResultSet)result, proxy));
+                }
+                return result;
+            }
+        }
+
+        /**
+         * Statement返回的ResultSet，getStatement返回Statement代理
+         */
+        private class ResultSetHandler implements InvocationHandler {
+
+            private final ResultSet resultSet;
+            private final Object statementProxy;
+
+            ResultSetHandler(ResultSet resultSet, Object statementProxy) {
+                this.resultSet = resultSet;
+                this.statementProxy = statementProxy;
+            }
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String methodName = method.getName();
+                if("equals".equals(methodName)) {
+                    return proxy == args[0];
+                }
+                if("hashCode".equals(methodName)) {
+                    return System.identityHashCode(proxy);
+                }
+                if("getStatement".equals(methodName)) {
+                    return statementProxy;
+                }
+                try {
+                    return method.invoke(resultSet, args);
+                } catch(InvocationTargetException e) {
+                    throw checkBroken(e.getTargetException());
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,238 @@
+package me.sunxc.common.datasource.scan;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * <pre>
+ * 并行按主键范围扫描，把[fromKey, toKey)切成chunkSize大小的块，轮流分配到所有可用的读库上同时执行，
+ * 按key的顺序合并结果；用于导出全表等大的只读查询，扫描速度随读库数量增加
+ * 
+ * sql必须有两个参数，依次是块的起始key（包含）和结束key（不包含），块内按key排序，如
+ *   select u.id, u.name, a.city from user u left join address a on a.user_id=u.id
+ *   where u.id >= ? and u.id < ? order by u.id
+ *   
+ * 1、块直接在某个读库上执行，不经过读/写选择；失败时按普通读路由（负载均衡、故障转移、回退写库）重试一次
+ * 2、没有可用读库时所有块按普通读路由执行
+ * 3、同时执行的块不超过parallelism个（默认等于读库数量），结果按块的顺序交给调用线程，内存中最多parallelism个块的结果
+ * 4、各块在不同连接上执行，不在调用方的事务中，也不是同一时刻的快照
+ * 
+ * 配置方式
+ *  <bean id="rangeScanner" class="me.sunxc.common.datasource.scan.ParallelRangeScanner">
+ *      <property name="dataSource" ref="readWriteDataSource"/>
+ *      <property name="chunkSize" value="10000"/>
+ *  </bean>
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ParallelRangeScanner implements InitializingBean, DisposableBean {
+    private static final Logger log = Logger.getLogger(ParallelRangeScanner.class);
+
+    private DynamicDataSource dataSource;
+    private long chunkSize = 10000;
+    private int parallelism;
+    private ExecutorService executor;
+    private boolean ownExecutor;
+
+    /**
+     * 按块处理扫描结果，在调用线程中按key的顺序调用
+     */
+    public interface ChunkHandler<T> {
+
+        /**
+         * @param fromKey 块的起始key（包含）
+         * @param toKey 块的结束key（不包含）
+         * @param rows 块的结果
+         */
+        void handle(long fromKey, long toKey, List<T> rows);
+    }
+
+    public void setDataSource(DynamicDataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * 每块的key范围大小，默认10000
+     * @param chunkSize
+     */
+    public void setChunkSize(long chunkSize) {
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * 同时执行的块数，默认等于读库数量
+     * @param parallelism
+     */
+    public void setParallelism(int parallelism) {
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * 执行块的线程池，不设置时创建parallelism个线程的线程池
+     * @param executor
+     */
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if(dataSource == null) {
+            throw new IllegalArgumentException("property 'dataSource' is required");
+        }
+        if(chunkSize <= 0) {
+            throw new IllegalArgumentException("property 'chunkSize' must be greater than 0");
+        }
+        if(parallelism <= 0) {
+            parallelism = Math.max(1, dataSource.getReadDataSourceCount());
+        }
+        if(executor == null) {
+            final AtomicInteger threadNumber = new AtomicInteger(1);
+            executor = Executors.newFixedThreadPool(parallelism, new ThreadFactory() {
+
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "parallel-range-scanner-" + threadNumber.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            ownExecutor = true;
+        }
+    }
+
+    @Override
+    public void destroy() {
+        if(ownExecutor) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * 扫描[fromKey, toKey)，返回按key排序的全部结果
+     */
+    public <T> List<T> scan(String sql, RowMapper<T> rowMapper, long fromKey, long toKey) {
+        final List<T> result = new ArrayList<T>();
+        scan(sql, rowMapper, fromKey, toKey, new ChunkHandler<T>() {
+
+            @Override
+            public void handle(long chunkFromKey, long chunkToKey, List<T> rows) {
+                result.addAll(rows);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * 扫描[fromKey, toKey)，按key的顺序逐块交给handler处理
+     */
+    public <T> void scan(String sql, RowMapper<T> rowMapper, long fromKey, long toKey, ChunkHandler<T> handler) {
+        List<Integer> replicas = dataSource.getAvailableReadDataSources();
+        long maxStaleness = ReadWriteDataSourceChoice.getMaxStaleness();
+        LinkedList<Chunk<T>> inFlight = new LinkedList<Chunk<T>>();
+        long next = fromKey;
+        int chunkNumber = 0;
+        try {
+            while(next < toKey || !inFlight.isEmpty()) {
+                while(next < toKey && inFlight.size() < parallelism) {
+                    long end = next > toKey - chunkSize ? toKey : next + chunkSize;
+                    DataSource target = null;
+                    if(!replicas.isEmpty()) {
+                        target = dataSource.getReadDataSource(replicas.get(chunkNumber % replicas.size()));
+                    }
+                    Chunk<T> chunk = new Chunk<T>(target, sql, rowMapper, next, end, maxStaleness);
+                    chunk.future = executor.submit(chunk);
+                    inFlight.add(chunk);
+                    next = end;
+                    chunkNumber++;
+                }
+                Chunk<T> chunk = inFlight.removeFirst();
+                handler.handle(chunk.fromKey, chunk.toKey, await(chunk));
+            }
+        } finally {
+            for(Chunk<T> chunk: inFlight) {
+                chunk.future.cancel(true);
+            }
+        }
+    }
+
+    private static <T> List<T> await(Chunk<T> chunk) {
+        try {
+            return chunk.future.get();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new DataRetrievalFailureException("parallel range scan interrupted", e);
+        } catch(ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RuntimeException) {
+                throw (RuntimeException)cause;
+            }
+            if(cause instanceof Error) {
+                throw (Error)cause;
+            }
+            throw new DataRetrievalFailureException(String.format("scan chunk [%d, %d) failed", chunk.fromKey,
+                chunk.toKey), cause);
+        }
+    }
+
+    private class Chunk<T> implements Callable<List<T>> {
+
+        private final DataSource target;
+        private final String sql;
+        private final RowMapper<T> rowMapper;
+        private final long fromKey;
+        private final long toKey;
+        private final long maxStaleness;
+        private Future<List<T>> future;
+
+        Chunk(DataSource target, String sql, RowMapper<T> rowMapper, long fromKey, long toKey, long maxStaleness) {
+            this.target = target;
+            this.sql = sql;
+            this.rowMapper = rowMapper;
+            this.fromKey = fromKey;
+            this.toKey = toKey;
+            this.maxStaleness = maxStaleness;
+        }
+
+        @Override
+        public List<T> call() {
+            if(target != null) {
+                try {
+                    return new JdbcTemplate(target).query(sql, rowMapper, fromKey, toKey);
+                } catch(DataAccessException e) {
+                    log.warn(String.format("scan chunk [%d, %d) failed on %s, retry with read routing", fromKey, toKey,
+                        target), e);
+                }
+            }
+            ReadWriteDataSourceChoice.push(DataSourceType.read, maxStaleness);
+            try {
+                return new JdbcTemplate(dataSource).query(sql, rowMapper, fromKey, toKey);
+            } finally {
+                ReadWriteDataSourceChoice.pop();
+            }
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package me.sunxc.common.datasource.shard;
+
+/**
+ * <pre>
+ * 分片表的主键生成器，插入前分配全局唯一的id
+ *
+ * 分片键是自增主键时不能依赖各分片的auto_increment：插入前还不知道id，无法选择分片；
+ * 各分片独立自增也会产生重复的id。@ShardKey(value = "id", generated = true)的方法
+ * 由ShardingProcessor在选择分片前调用nextId分配id并写回参数对象，DAO按这个id插入
+ *      @see ShardKey#generated()
+ *      @see TableIdGenerator
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public interface IdGenerator {
+
+    /**
+     * @return 全局唯一的正整数id
+     */
+    long nextId();
+}
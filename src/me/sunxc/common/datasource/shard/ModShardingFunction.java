@@ -0,0 +1,31 @@
+package me.sunxc.common.datasource.shard;
+
+/**
+ * <pre>
+ * 取模分片：整数键按 key mod shardCount，其他键按hashCode取模
+ * 负数取绝对值的模，保证同一个键总是落在同一个分片
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ModShardingFunction implements ShardingFunction {
+
+    private int shardCount;
+
+    @Override
+    public void init(int shardCount) {
+        this.shardCount = shardCount;
+    }
+
+    @Override
+    public int shard(Object shardKey) {
+        long key;
+        if(shardKey instanceof Number) {
+            key = ((Number)shardKey).longValue();
+        } else {
+            key = shardKey.hashCode();
+        }
+        int shard = (int)(key % shardCount);
+        return shard < 0 ? -shard : shard;
+    }
+}
@@ -0,0 +1,80 @@
+package me.sunxc.common.datasource.shard;
+
+import java.util.List;
+
+/**
+ * <pre>
+ * 范围分片：按整数键所在的区间选择分片，适合id递增、按号段扩容的表
+ * upperBounds为每个分片的上界（不含），按升序配置，数量与分片数一致；
+ * 最后一个分片的上界可以省略，即比前面所有上界大的键都落在最后一个分片
+ *
+ *  <bean class="me.sunxc.common.datasource.shard.RangeShardingFunction">
+ *      <property name="upperBounds">
+ *          <list>
+ *              <value>10000000</value>    <!-- [0, 10000000) 在分片0 -->
+ *                                         <!-- 其余在分片1 -->
+ *          </list>
+ *      </property>
+ *  </bean>
+ *
+ * 查找用二分，分片数量多时也不影响路由开销
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class RangeShardingFunction implements ShardingFunction {
+
+    private List<Long> upperBoundList;
+    private long[] upperBounds;
+    private int shardCount;
+
+    /**
+     * 每个分片的上界（不含），升序
+     * @param upperBounds
+     */
+    public void setUpperBounds(List<Long> upperBounds) {
+        this.upperBoundList = upperBounds;
+    }
+
+    @Override
+    public void init(int shardCount) {
+        if(upperBoundList == null || upperBoundList.isEmpty()) {
+            throw new IllegalArgumentException("property 'upperBounds' is required");
+        }
+        if(upperBoundList.size() != shardCount && upperBoundList.size() != shardCount - 1) {
+            throw new IllegalArgumentException("property 'upperBounds' must have " + (shardCount - 1) + " or "
+                + shardCount + " elements");
+        }
+        long[] bounds = new long[upperBoundList.size()];
+        for(int i = 0; i < bounds.length; i++) {
+            bounds[i] = upperBoundList.get(i).longValue();
+            if(i > 0 && bounds[i] <= bounds[i - 1]) {
+                throw new IllegalArgumentException("property 'upperBounds' must be in ascending order");
+            }
+        }
+        this.upperBounds = bounds;
+        this.shardCount = shardCount;
+    }
+
+    @Override
+    public int shard(Object shardKey) {
+        if(!(shardKey instanceof Number)) {
+            throw new IllegalArgumentException("range sharding requires a numeric key: " + shardKey);
+        }
+        long key = ((Number)shardKey).longValue();
+        int low = 0;
+        int high = upperBounds.length - 1;
+        while(low <= high) {
+            int mid = (low + high) >>> 1;
+            if(key < upperBounds[mid]) {
+                high = mid - 1;
+            } else {
+                low = mid + 1;
+            }
+        }
+        if(low == shardCount) {
+            throw new IllegalArgumentException("shard key " + key + " is beyond the last range");
+        }
+        return low;
+    }
+}
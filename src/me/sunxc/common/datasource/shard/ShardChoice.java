@@ -0,0 +1,96 @@
+package me.sunxc.common.datasource.shard;
+
+import java.util.Arrays;
+
+/**
+ * <pre>
+ * 分片选择，通过本地线程绑定，与ReadWriteDataSourceChoice相互独立：
+ * 先按分片选择写库+读库的组，组内再按读/写选择
+ *
+ * 与读/写选择一样是一个栈：push进入新的一层，pop恢复外层的分片，嵌套调用退出后不会清掉外层的选择
+ * 栈用预分配的int数组实现，压栈/弹栈不分配对象
+ *
+ *   ShardChoice.push(shardingDataSource.shardOf(userId));
+ *   try {
+ *       ...
+ *   } finally {
+ *       ShardChoice.pop();
+ *   }
+ *
+ * 传递到线程池 @see me.sunxc.common.datasource.concurrent.RoutingContextSnapshot
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public final class ShardChoice {
+
+    public static final int NONE = -1;
+
+    private static final ThreadLocal<Stack> holder = new ThreadLocal<Stack>() {
+
+        @Override
+        protected Stack initialValue() {
+            return new Stack();
+        }
+    };
+
+    private ShardChoice() {
+    }
+
+    /**
+     * 进入新的一层选择
+     * @param shard 分片下标，NONE表示没有选择
+     */
+    public static void push(int shard) {
+        holder.get().push(shard);
+    }
+
+    /**
+     * 退出当前层，恢复外层的选择
+     */
+    public static void pop() {
+        holder.get().pop();
+    }
+
+    public static void reset() {
+        holder.get().clear();
+    }
+
+    /**
+     * @return 当前的分片下标，没有选择返回NONE
+     */
+    public static int getShard() {
+        return holder.get().shard();
+    }
+
+    private static final class Stack {
+
+        private int[] shards = new int[8];
+        private int depth;
+
+        Stack() {
+            shards[0] = NONE;
+        }
+
+        int shard() {
+            return shards[depth];
+        }
+
+        void push(int shard) {
+            if(depth + 1 == shards.length) {
+                shards = Arrays.copyOf(shards, shards.length * 2);
+            }
+            shards[++depth] = shard;
+        }
+
+        void pop() {
+            if(depth > 0) {
+                depth--;
+            }
+        }
+
+        void clear() {
+            depth = 0;
+        }
+    }
+}
@@ -0,0 +1,40 @@
+package me.sunxc.common.datasource.shard;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <pre>
+ * 标注service方法中作为分片键的参数
+ *   public User findById(@ShardKey int id)
+ *   public void update(@ShardKey("id") User user, Address address)
+ *   public void save(@ShardKey("userId") Address address)
+ *   public void save(@ShardKey(value = "id", generated = true) User user)
+ *
+ * value为参数对象上的属性路径（支持嵌套，如"user.id"），不设置则参数本身就是分片键
+ * 分片键是自增主键时，插入前还没有id，用generated = true由ShardingProcessor的idGenerator分配
+ * 一个方法只能有一个参数标注@ShardKey，没有标注的方法沿用外层调用选择的分片
+ *      @see ShardingProcessor
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+@Target(ElementType.PARAMETER)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface ShardKey {
+
+    /**
+     * 参数对象上的属性路径
+     */
+    String value() default "";
+
+    /**
+     * 属性值为null或0（未分配）时由ShardingProcessor的idGenerator分配id并写回，再按这个id选择分片，
+     * 用于插入方法；必须同时设置value
+     */
+    boolean generated() default false;
+}
@@ -0,0 +1,159 @@
+package me.sunxc.common.datasource.shard;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.List;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.jdbc.datasource.AbstractDataSource;
+import org.springframework.util.CollectionUtils;
+
+/**
+ * <pre>
+ * 按分片键选择数据源，每个分片通常是一个一写多读的DynamicDataSource，
+ * 先按ShardChoice选择分片，分片内再按ReadWriteDataSourceChoice选择写库/读库，
+ * 写操作随分片数量水平扩展，分片内的读写分离、负载均衡、故障转移照常工作
+ *
+ * 配置方式
+ *  <bean id="shardingDataSource" class="me.sunxc.common.datasource.shard.ShardingDataSource">
+ *      <property name="shards">
+ *          <list>
+ *              <ref bean="readWriteDataSource0" />   <!-- DynamicDataSource -->
+ *              <ref bean="readWriteDataSource1" />
+ *          </list>
+ *      </property>
+ *      <property name="shardingFunction">
+ *          <bean class="me.sunxc.common.datasource.shard.ModShardingFunction" />
+ *      </property>
+ *  </bean>
+ *
+ *  事务管理器的dataSource配置为shardingDataSource，分片选择切面配置在事务切面之前：
+ *      <aop:aspect order="-2147483647" ref="shardingProcessor">
+ *          <aop:around pointcut-ref="txPointcut" method="doChoiceShard"/>
+ *      </aop:aspect>
+ *       @see ShardingProcessor
+ *
+ * 注意：一个事务只能使用一个分片，事务开始时已经按当时的分片获取了连接
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ShardingDataSource extends AbstractDataSource implements InitializingBean {
+
+    private static final Logger log = Logger.getLogger(ShardingDataSource.class);
+
+    private List<DataSource> shardList;
+    private DataSource[] shards;
+    private ShardingFunction shardingFunction = new ModShardingFunction();
+    private int defaultShard = ShardChoice.NONE;
+
+    /**
+     * 设置分片，下标即分片号
+     * @param shards
+     */
+    public void setShards(List<DataSource> shards) {
+        this.shardList = shards;
+    }
+
+    /**
+     * 设置分片函数，默认取模
+     * @param shardingFunction
+     */
+    public void setShardingFunction(ShardingFunction shardingFunction) {
+        this.shardingFunction = shardingFunction;
+    }
+
+    /**
+     * 没有选择分片时使用的分片（如未分片的表都放在分片0），默认不设置，没有选择分片时抛出异常
+     * @param defaultShard
+     */
+    public void setDefaultShard(int defaultShard) {
+        this.defaultShard = defaultShard;
+    }
+
+    /**
+     * @return 没有选择分片时使用的分片，未设置时返回ShardChoice.NONE
+     */
+    public int getDefaultShard() {
+        return defaultShard;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if(CollectionUtils.isEmpty(shardList)) {
+            throw new IllegalArgumentException("property 'shards' is required");
+        }
+        if(shardingFunction == null) {
+            throw new IllegalArgumentException("property 'shardingFunction' must not be null");
+        }
+        if(defaultShard < ShardChoice.NONE || defaultShard >= shardList.size()) {
+            throw new IllegalArgumentException("property 'defaultShard' out of range: " + defaultShard);
+        }
+        shards = shardList.toArray(new DataSource[shardList.size()]);
+        shardingFunction.init(shards.length);
+    }
+
+    /**
+     * @return 分片数量
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * 计算分片键所在的分片
+     * @param shardKey
+     * @return 分片下标
+     */
+    public int shardOf(Object shardKey) {
+        if(shardKey == null) {
+            throw new IllegalArgumentException("shard key must not be null");
+        }
+        int shard = shardingFunction.shard(shardKey);
+        if(shard < 0 || shard >= shards.length) {
+            throw new IllegalStateException("sharding function returned " + shard + " for key " + shardKey);
+        }
+        return shard;
+    }
+
+    /**
+     * @param shard 分片下标
+     * @return 分片的数据源，用于需要逐个分片处理的场景（如跨分片汇总）
+     */
+    public DataSource getShard(int shard) {
+        if(shard < 0 || shard >= shards.length) {
+            throw new IllegalArgumentException("shard index out of range: " + shard);
+        }
+        return shards[shard];
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        return determineShard().getConnection();
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return determineShard().getConnection(username, password);
+    }
+
+    private DataSource determineShard() throws SQLException {
+        int shard = ShardChoice.getShard();
+        if(shard == ShardChoice.NONE) {
+            shard = defaultShard;
+            if(shard == ShardChoice.NONE) {
+                throw new SQLException("no shard chosen and no default shard configured");
+            }
+        }
+        if(shard >= shards.length) {
+            throw new SQLException("shard index out of range: " + shard);
+        }
+        if(log.isDebugEnabled()) {
+            log.debug("current choice shard : " + shard);
+        }
+        return shards[shard];
+    }
+}
@@ -0,0 +1,32 @@
+package me.sunxc.common.datasource.shard;
+
+/**
+ * <pre>
+ * 分片函数，把分片键映射到分片下标
+ * ShardingDataSource在afterPropertiesSet时调用init传入分片数量，之后每次路由调用shard
+ *
+ * 配置方式
+ *  <bean id="shardingDataSource" class="me.sunxc.common.datasource.shard.ShardingDataSource">
+ *      <property name="shardingFunction">
+ *          <bean class="me.sunxc.common.datasource.shard.RangeShardingFunction">...</bean>
+ *      </property>
+ *  </bean>
+ * 不配置时默认取模 @see ModShardingFunction
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public interface ShardingFunction {
+
+    /**
+     * 初始化，检查配置与分片数量是否一致
+     * @param shardCount
+     */
+    void init(int shardCount);
+
+    /**
+     * @param shardKey 分片键，不为null
+     * @return 分片下标，0 ~ shardCount-1
+     */
+    int shard(Object shardKey);
+}
@@ -0,0 +1,215 @@
+package me.sunxc.common.datasource.shard;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.log4j.Logger;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.BeanWrapper;
+import org.springframework.beans.PropertyAccessorFactory;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.ClassUtils;
+import org.springframework.util.StringUtils;
+
+/**
+ * <pre>
+ * 通过AOP切面按@ShardKey参数选择分片
+ *
+ * 1、找到方法上标注了@ShardKey的参数，按注解的属性路径取出分片键，
+ *    用ShardingDataSource的分片函数算出分片并压栈，方法退出时弹栈恢复外层的分片
+ *    参数位置和属性路径按Method解析并缓存，调用时只查表
+ *
+ * 2、没有@ShardKey参数的方法沿用外层的分片，如UserService.save(user, address)中调用AddressService.save
+ *
+ * 3、事务中切换到另一个分片会抛出IllegalStateException：事务的连接已经在外层分片上获取，
+ *    内层的写实际上会落到外层分片上；外层没有选择分片时按默认分片（defaultShard）比较
+ *
+ * 4、分片键是自增主键的插入方法用@ShardKey(value = "id", generated = true)：id未分配时
+ *    由idGenerator分配全局唯一的id写回参数对象，再按id选择分片，DAO按这个id插入；
+ *    不能依赖各分片的auto_increment（插入前不知道分片，各分片的自增id也会重复）
+ *
+ * 5、配置方式，order要在事务切面之前（数值更小）
+ *  <bean id="shardingProcessor" class="me.sunxc.common.datasource.shard.ShardingProcessor">
+ *      <property name="shardingDataSource" ref="shardingDataSource" />
+ *      <property name="idGenerator" ref="userIdGenerator" />   <!-- 可选，@see TableIdGenerator -->
+ *  </bean>
+ *  <aop:aspect order="-2147483647" ref="shardingProcessor">
+ *      <aop:around pointcut-ref="txPointcut" method="doChoiceShard"/>
+ *  </aop:aspect>
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ShardingProcessor implements InitializingBean {
+
+    private static final Logger log = Logger.getLogger(ShardingProcessor.class);
+
+    private static final ShardKeyLocation NO_SHARD_KEY = new ShardKeyLocation(-1, null, false);
+
+    private ShardingDataSource shardingDataSource;
+
+    private IdGenerator idGenerator;
+
+    private final Map<Method, ShardKeyLocation> locationCache = new ConcurrentHashMap<Method, ShardKeyLocation>();
+
+    public void setShardingDataSource(ShardingDataSource shardingDataSource) {
+        this.shardingDataSource = shardingDataSource;
+    }
+
+    /**
+     * 参数标注了@ShardKey(generated = true)时分配id，不配置时这类方法的id必须预先设置
+     * @param idGenerator
+     */
+    public void setIdGenerator(IdGenerator idGenerator) {
+        this.idGenerator = idGenerator;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if(shardingDataSource == null) {
+            throw new IllegalArgumentException("property 'shardingDataSource' is required");
+        }
+    }
+
+    /**
+     * 切入点方法处理函数
+     * @param pjp
+     * @return
+     * @throws Throwable
+     */
+    public Object doChoiceShard(ProceedingJoinPoint pjp) throws Throwable {
+        ShardKeyLocation location = getShardKeyLocation(pjp);
+        if(location == NO_SHARD_KEY) {
+            return pjp.proceed();
+        }
+
+        Object shardKey = location.extract(pjp.getArgs(), idGenerator);
+        int shard = shardingDataSource.shardOf(shardKey);
+        int current = ShardChoice.getShard();
+        if(current == ShardChoice.NONE) {
+            // 外层没有选择分片时事务的连接取自默认分片
+            current = shardingDataSource.getDefaultShard();
+        }
+        if(current != ShardChoice.NONE && current != shard
+            && TransactionSynchronizationManager.isActualTransactionActive()) {
+            throw new IllegalStateException(String.format("cross-shard call inside a transaction: shard %s -> %s (key %s)",
+                current, shard, shardKey));
+        }
+
+        ShardChoice.push(shard);
+        try {
+            return pjp.proceed();
+        } finally {
+            ShardChoice.pop();
+        }
+    }
+
+    private ShardKeyLocation getShardKeyLocation(ProceedingJoinPoint pjp) {
+        Method method = ((MethodSignature)pjp.getSignature()).getMethod();
+        ShardKeyLocation location = locationCache.get(method);
+        if(location == null) {
+            Class<?> targetClass = pjp.getTarget() == null ? method.getDeclaringClass() : pjp.getTarget().getClass();
+            location = resolveShardKeyLocation(method, ClassUtils.getUserClass(targetClass));
+            locationCache.put(method, location);
+        }
+        return location;
+    }
+
+    /**
+     * 参数上的注解不会继承，接口方法和实现类方法都要找
+     */
+    private static ShardKeyLocation resolveShardKeyLocation(Method method, Class<?> targetClass) {
+        ShardKeyLocation location = findShardKey(AopUtils.getMostSpecificMethod(method, targetClass));
+        if(location == NO_SHARD_KEY) {
+            location = findShardKey(method);
+        }
+        if(log.isDebugEnabled()) {
+            log.debug(String.format("resolve shard key  method:%s.%s parameter:%s property:%s", targetClass.getName(),
+                method.getName(), location.parameterIndex, location.propertyPath));
+        }
+        return location;
+    }
+
+    private static ShardKeyLocation findShardKey(Method method) {
+        ShardKeyLocation location = NO_SHARD_KEY;
+        Annotation[][] parameterAnnotations = method.getParameterAnnotations();
+        for(int i = 0; i < parameterAnnotations.length; i++) {
+            for(Annotation annotation: parameterAnnotations[i]) {
+                if(annotation instanceof ShardKey) {
+                    if(location != NO_SHARD_KEY) {
+                        throw new IllegalStateException("more than one @ShardKey parameter on " + method);
+                    }
+                    ShardKey shardKey = (ShardKey)annotation;
+                    String path = StringUtils.hasText(shardKey.value()) ? shardKey.value() : null;
+                    if(shardKey.generated() && path == null) {
+                        throw new IllegalStateException("@ShardKey(generated = true) requires a property path on "
+                            + method);
+                    }
+                    location = new ShardKeyLocation(i, path, shardKey.generated());
+                }
+            }
+        }
+        return location;
+    }
+
+    /**
+     * 分片键所在的参数位置和属性路径
+     */
+    private static final class ShardKeyLocation {
+
+        final int parameterIndex;
+
+        /**
+         * 为null时参数本身就是分片键
+         */
+        final String propertyPath;
+
+        /**
+         * 未分配时由IdGenerator分配
+         */
+        final boolean generated;
+
+        ShardKeyLocation(int parameterIndex, String propertyPath, boolean generated) {
+            this.parameterIndex = parameterIndex;
+            this.propertyPath = propertyPath;
+            this.generated = generated;
+        }
+
+        Object extract(Object[] args, IdGenerator idGenerator) {
+            Object arg = args[parameterIndex];
+            if(arg == null) {
+                throw new IllegalArgumentException("shard key parameter " + parameterIndex + " must not be null");
+            }
+            if(propertyPath == null) {
+                return arg;
+            }
+            BeanWrapper bean = PropertyAccessorFactory.forBeanPropertyAccess(arg);
+            Object shardKey = bean.getPropertyValue(propertyPath);
+            if(generated && isUnassigned(shardKey)) {
+                if(idGenerator == null) {
+                    throw new IllegalStateException("@ShardKey(generated = true) requires property 'idGenerator'");
+                }
+                bean.setPropertyValue(propertyPath, Long.valueOf(idGenerator.nextId()));
+                // 按属性的实际类型读回，与之后按id查询时的分片键一致
+                shardKey = bean.getPropertyValue(propertyPath);
+            }
+            if(shardKey == null) {
+                throw new IllegalArgumentException("shard key '" + propertyPath + "' of parameter " + parameterIndex
+                    + " must not be null");
+            }
+            return shardKey;
+        }
+
+        /**
+         * null或0视为未分配（与MySQL auto_increment插入0时自动分配一致）
+         */
+        private static boolean isUnassigned(Object shardKey) {
+            return shardKey == null || (shardKey instanceof Number && ((Number)shardKey).longValue() == 0);
+        }
+    }
+}
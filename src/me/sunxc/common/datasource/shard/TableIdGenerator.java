@@ -0,0 +1,134 @@
+package me.sunxc.common.datasource.shard;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+import javax.sql.DataSource;
+
+import org.apache.log4j.Logger;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.jdbc.support.JdbcUtils;
+
+/**
+ * <pre>
+ * 基于序列表的全局id（号段方式）：每次从序列表取blockSize个id，用完再取，
+ * 取号段是一条自动提交的UPDATE，不参与业务事务，回滚时号段中的id作废（id不连续，但不重复）
+ *
+ * 序列表放在一个固定的库上（如分片0的写库），不随分片变化，见sql/ddl.sql
+ *  create table id_sequence(
+ *     name                varchar(64) not null,
+ *     next_value          bigint not null,
+ *     constraint pk_id_sequence primary key(name)
+ *  );
+ *  insert into id_sequence(name, next_value) values('user', 1);
+ *
+ * 配置方式
+ *  <bean id="userIdGenerator" class="me.sunxc.common.datasource.shard.TableIdGenerator">
+ *      <property name="dataSource" ref="writeDataSource0" />
+ *      <property name="sequenceName" value="user" />
+ *  </bean>
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class TableIdGenerator implements IdGenerator, InitializingBean {
+
+    private static final Logger log = Logger.getLogger(TableIdGenerator.class);
+
+    private static final String ALLOCATE_SQL =
+        "update id_sequence set next_value = last_insert_id(next_value + ?) where name = ?";
+
+    private DataSource dataSource;
+    private String sequenceName;
+    private int blockSize = 100;
+
+    private long next;
+    private long limit;
+
+    /**
+     * 序列表所在的数据源，应直接配置写库，不能经过分片或读/写选择
+     * @param dataSource
+     */
+    public void setDataSource(DataSource dataSource) {
+        this.dataSource = dataSource;
+    }
+
+    /**
+     * 序列名称，即id_sequence.name
+     * @param sequenceName
+     */
+    public void setSequenceName(String sequenceName) {
+        this.sequenceName = sequenceName;
+    }
+
+    /**
+     * 每次取的号段大小，默认100
+     * @param blockSize
+     */
+    public void setBlockSize(int blockSize) {
+        this.blockSize = blockSize;
+    }
+
+    @Override
+    public void afterPropertiesSet() {
+        if(dataSource == null) {
+            throw new IllegalArgumentException("property 'dataSource' is required");
+        }
+        if(sequenceName == null) {
+            throw new IllegalArgumentException("property 'sequenceName' is required");
+        }
+        if(blockSize <= 0) {
+            throw new IllegalArgumentException("property 'blockSize' must be positive");
+        }
+    }
+
+    @Override
+    public synchronized long nextId() {
+        if(next >= limit) {
+            limit = allocate();
+            next = limit - blockSize;
+        }
+        return next++;
+    }
+
+    /**
+     * @return 新号段的上界（不含）
+     */
+    private long allocate() {
+        Connection con = null;
+        PreparedStatement update = null;
+        PreparedStatement select = null;
+        ResultSet rs = null;
+        try {
+            con = dataSource.getConnection();
+            con.setAutoCommit(true);
+            update = con.prepareStatement(ALLOCATE_SQL);
+            update.setInt(1, blockSize);
+            update.setString(2, sequenceName);
+            if(update.executeUpdate() != 1) {
+                throw new IllegalStateException("sequence '" + sequenceName + "' not found in id_sequence");
+            }
+            // last_insert_id(expr)的值只对当前连接可见，必须在同一个连接上读取
+            select = con.prepareStatement("select last_insert_id()");
+            rs = select.executeQuery();
+            rs.next();
+            long upper = rs.getLong(1);
+            if(log.isDebugEnabled()) {
+                log.debug(String.format("allocate id block  sequence:%s [%s, %s)", sequenceName, upper - blockSize,
+                    upper));
+            }
+            return upper;
+        } catch(SQLException e) {
+            throw new DataAccessResourceFailureException("allocate id block of sequence '" + sequenceName
+                + "' failed", e);
+        } finally {
+            JdbcUtils.closeResultSet(rs);
+            JdbcUtils.closeStatement(select);
+            JdbcUtils.closeStatement(update);
+            JdbcUtils.closeConnection(con);
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package me.sunxc.common.datasource.sql;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * 按指定的读/写获取真实连接，由DynamicDataSource实现
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public interface RoutedConnectionFactory {
+
+    /**
+     * @param read true 读库，false 写库
+     * @return 真实连接
+     * @throws SQLException
+     */
+    Connection getConnection(boolean read) throws SQLException;
+
+    /**
+     * 当前调用上下文是否已确定走写库（如写方法、会话一致性窗口内），此时不再按SQL判断
+     * @return
+     */
+    boolean isChoiceWrite();
+}
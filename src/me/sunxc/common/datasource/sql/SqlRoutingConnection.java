@@ -0,0 +1,297 @@
+package me.sunxc.common.datasource.sql;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <pre>
+ * 按SQL语句选择读/写库的连接
+ * 
+ * 获取连接时并不真正获取，到第一次prepareStatement/prepareCall（或createStatement后第一次执行SQL）时
+ * 根据SQL选择读/写库再获取真实连接，并重放之前设置的autoCommit、readOnly、事务隔离级别
+ * 
+ * 选择规则：
+ *   1、调用上下文已确定走写库（ReadWriteDataSourceChoice.isChoiceWrite）-> 写库
+ *   2、处于写事务中（autoCommit=false且readOnly=false）-> 写库
+ *   3、SQL为普通读（@see SqlStatementClassifier）-> 读库
+ *   4、其他 -> 写库
+ * 已经连到读库后遇到写语句：非事务中（autoCommit=true）则另外获取写库连接，之后一直使用写库；
+ * 读库连接上的Statement/ResultSet（如正在遍历的游标）仍然可用，读库连接到本连接close时才归还；
+ * 事务中则不切换（只读事务中的写语句由数据库拒绝）
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class SqlRoutingConnection implements InvocationHandler {
+    private static final Logger log = Logger.getLogger(SqlRoutingConnection.class);
+
+    private final RoutedConnectionFactory connectionFactory;
+    private final SqlStatementClassifier classifier;
+
+    private Connection proxy;
+    private Connection target;
+    private boolean targetRead;
+    /**
+     * 切换到写库前的读库连接，close时归还
+     */
+    private Connection readConnection;
+
+    private boolean autoCommit;
+    private int transactionIsolation;
+    private boolean transactionIsolationChanged;
+    private boolean readOnly;
+    private boolean closed;
+
+    private SqlRoutingConnection(RoutedConnectionFactory connectionFactory, SqlStatementClassifier classifier,
+        boolean defaultAutoCommit, int defaultTransactionIsolation) {
+        this.connectionFactory = connectionFactory;
+        this.classifier = classifier;
+        this.autoCommit = defaultAutoCommit;
+        this.transactionIsolation = defaultTransactionIsolation;
+    }
+
+    /**
+     * 创建按SQL选择读/写库的连接
+     * @param connectionFactory 获取真实连接
+     * @param classifier SQL读/写判断
+     * @param defaultAutoCommit 真实连接的默认autoCommit
+     * @param defaultTransactionIsolation 真实连接的默认事务隔离级别
+     * @return
+     */
+    public static Connection newConnection(RoutedConnectionFactory connectionFactory, SqlStatementClassifier classifier,
+        boolean defaultAutoCommit, int defaultTransactionIsolation) {
+        SqlRoutingConnection handler =
+            new SqlRoutingConnection(connectionFactory, classifier, defaultAutoCommit, defaultTransactionIsolation);
+        handler.proxy = (Connection)Proxy.newProxyInstance(Connection.class.getClassLoader(),
+            new Class<?>[] {Connection.class}, handler);
+        return handler.proxy;
+    }
+
+    @Override
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String methodName = method.getName();
+        if("equals".equals(methodName)) {
+            return proxy == args[0];
+        }
+        if("hashCode".equals(methodName)) {
+            return System.identityHashCode(proxy);
+        }
+        if("toString".equals(methodName)) {
+            return "SqlRoutingConnection[" + (target == null ? "no target" : target.toString()) + "]";
+        }
+        if("isClosed".equals(methodName)) {
+            return closed;
+        }
+        if("close".equals(methodName)) {
+            if(!closed) {
+                closed = true;
+                try {
+                    if(readConnection != null) {
+                        readConnection.close();
+                    }
+                } finally {
+                    if(target != null) {
+                        target.close();
+                    }
+                }
+            }
+            return null;
+        }
+        if(closed) {
+            throw new SQLException("connection is closed");
+        }
+
+        if(target == null) {
+            if("getAutoCommit".equals(methodName)) {
+                return autoCommit;
+            }
+            if("setAutoCommit".equals(methodName)) {
+                autoCommit = (Boolean)args[0];
+                return null;
+            }
+            if("getTransactionIsolation".equals(methodName)) {
+                return transactionIsolation;
+            }
+            if("setTransactionIsolation".equals(methodName)) {
+                transactionIsolation = (Integer)args[0];
+                transactionIsolationChanged = true;
+                return null;
+            }
+            if("isReadOnly".equals(methodName)) {
+                return readOnly;
+            }
+            if("setReadOnly".equals(methodName)) {
+                readOnly = (Boolean)args[0];
+                return null;
+            }
+            if("commit".equals(methodName) || "rollback".equals(methodName)) {
+                // 没有执行过语句，无需提交/回滚
+                return null;
+            }
+            if("getWarnings".equals(methodName) || "clearWarnings".equals(methodName)) {
+                return null;
+            }
+            if("createStatement".equals(methodName)) {
+                return newStatement(method, args);
+            }
+        } else {
+            // 已经获取了真实连接，也要记录状态，切换连接时需要
+            if("setAutoCommit".equals(methodName)) {
+                autoCommit = (Boolean)args[0];
+            } else if("setReadOnly".equals(methodName)) {
+                readOnly = (Boolean)args[0];
+            }
+        }
+
+        Connection con;
+        if(("prepareStatement".equals(methodName) || "prepareCall".equals(methodName)) && args != null
+            && args[0] instanceof String) {
+            con = getTarget((String)args[0]);
+        } else {
+            con = getTarget(null);
+        }
+        try {
+            return method.invoke(con, args);
+        } catch(InvocationTargetException e) {
+            throw e.getTargetException();
+        }
+    }
+
+    /**
+     * 获取真实连接
+     * @param sql 要执行的SQL，null表示不确定，按调用上下文选择
+     */
+    private Connection getTarget(String sql) throws SQLException {
+        if(target != null) {
+            if(targetRead && sql != null && autoCommit && classifier.classify(sql) == DataSourceType.write) {
+                log.debug("write statement on read connection, switch to write datasource");
+                // 读库连接上可能还有打开的游标，不归还
+                Connection con = openTarget(false);
+                readConnection = target;
+                target = con;
+            }
+            return target;
+        }
+        target = openTarget(isRead(sql));
+        return target;
+    }
+
+    private boolean isRead(String sql) {
+        if(sql == null || connectionFactory.isChoiceWrite()) {
+            return false;
+        }
+        if(!autoCommit && !readOnly) {
+            // 写事务
+            return false;
+        }
+        return classifier.classify(sql) == DataSourceType.read;
+    }
+
+    private Connection openTarget(boolean read) throws SQLException {
+        Connection con = connectionFactory.getConnection(read);
+        targetRead = read;
+        try {
+            if(transactionIsolationChanged) {
+                con.setTransactionIsolation(transactionIsolation);
+            }
+            if(readOnly) {
+                con.setReadOnly(true);
+            }
+            if(con.getAutoCommit() != autoCommit) {
+                con.setAutoCommit(autoCommit);
+            }
+        } catch(SQLException e) {
+            con.close();
+            throw e;
+        }
+        return con;
+    }
+
+    /**
+     * createStatement时还不知道SQL，返回一个延迟创建的Statement，第一次执行SQL时再创建真实的Statement
+     */
+    private Statement newStatement(Method createMethod, Object[] createArgs) {
+        return (Statement)Proxy.newProxyInstance(Statement.class.getClassLoader(), new Class<?>[] {Statement.class},
+            new LazyStatement(createMethod, createArgs));
+    }
+
+    private class LazyStatement implements InvocationHandler {
+
+        private final Method createMethod;
+        private final Object[] createArgs;
+
+        private Statement statement;
+        private boolean statementClosed;
+        private final List<Object[]> setterCalls = new ArrayList<Object[]>();
+
+        LazyStatement(Method createMethod, Object[] createArgs) {
+            this.createMethod = createMethod;
+            this.createArgs = createArgs;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            String methodName = method.getName();
+            if("equals".equals(methodName)) {
+                return proxy == args[0];
+            }
+            if("hashCode".equals(methodName)) {
+                return System.identityHashCode(proxy);
+            }
+            if("getConnection".equals(methodName)) {
+                return SqlRoutingConnection.this.proxy;
+            }
+            if(statement == null) {
+                if("close".equals(methodName)) {
+                    statementClosed = true;
+                    return null;
+                }
+                if("isClosed".equals(methodName)) {
+                    return statementClosed;
+                }
+                if(methodName.startsWith("set") && method.getReturnType() == void.class) {
+                    setterCalls.add(new Object[] {method, args});
+                    return null;
+                }
+                String sql = null;
+                if((methodName.startsWith("execute") || "addBatch".equals(methodName)) && args != null
+                    && args.length > 0 && args[0] instanceof String) {
+                    sql = (String)args[0];
+                }
+                statement = openStatement(sql);
+            }
+            try {
+                return method.invoke(statement, args);
+            } catch(InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+
+        private Statement openStatement(String sql) throws Throwable {
+            if(statementClosed) {
+                throw new SQLException("statement is closed");
+            }
+            Statement stmt;
+            try {
+                stmt = (Statement)createMethod.invoke(getTarget(sql), createArgs);
+                for(Object[] call: setterCalls) {
+                    ((Method)call[0]).invoke(stmt, (Object[])call[1]);
+                }
+            } catch(InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+            return stmt;
+        }
+    }
+}
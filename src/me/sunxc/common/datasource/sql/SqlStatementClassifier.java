@@ -0,0 +1,214 @@
+package me.sunxc.common.datasource.sql;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Pattern;
+
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+
+/**
+ * <pre>
+ * 根据SQL语句判断是读还是写
+ * 
+ * 读：SELECT（不含FOR UPDATE、LOCK IN SHARE MODE、FOR SHARE等加锁读）、SHOW、DESC/DESCRIBE、EXPLAIN，
+ *     以及主语句是这类SELECT的WITH（公共表表达式）
+ * 写：其他所有语句（INSERT/UPDATE/DELETE/REPLACE/DDL/CALL/SET...），包括WITH ... UPDATE/DELETE，
+ *     以及依赖或修改当前会话状态、只能在写库执行的SELECT，如LAST_INSERT_ID()、GET_LOCK()、
+ *     SELECT ... INTO @var/OUTFILE/DUMPFILE
+ * 按关键字判断，不是完整的SQL解析：注释或字符串常量中出现FOR UPDATE等也按写处理（偏向写库是安全的）
+ * 
+ * 判断结果按SQL缓存，命中时不加锁；超过缓存条数时随机淘汰约1/4（近似淘汰），热点语句会很快重新缓存
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class SqlStatementClassifier {
+
+    private static final Pattern LOCKING_READ = Pattern.compile(
+        "\\bfor\\s+update\\b|\\block\\s+in\\s+share\\s+mode\\b|\\bfor\\s+share\\b", Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern MASTER_ONLY_FUNCTION = Pattern.compile(
+        "\\b(last_insert_id|get_lock|release_lock|is_free_lock|is_used_lock|master_pos_wait)\\s*\\(",
+        Pattern.CASE_INSENSITIVE);
+
+    private static final Pattern SELECT_INTO = Pattern.compile(
+        "\\binto\\s+(@|outfile\\b|dumpfile\\b)", Pattern.CASE_INSENSITIVE);
+
+    private volatile int cacheSize = 4096;
+
+    private final ConcurrentMap<String, DataSourceType> cache = new ConcurrentHashMap<String, DataSourceType>();
+
+    private final AtomicBoolean evicting = new AtomicBoolean();
+
+    /**
+     * 缓存的SQL条数，默认4096
+     * @param cacheSize
+     */
+    public void setCacheSize(int cacheSize) {
+        if(cacheSize <= 0) {
+            throw new IllegalArgumentException("property 'cacheSize' must be positive");
+        }
+        this.cacheSize = cacheSize;
+        cache.clear();
+    }
+
+    /**
+     * @param sql
+     * @return 读/写
+     */
+    public DataSourceType classify(String sql) {
+        if(sql == null) {
+            return DataSourceType.write;
+        }
+        DataSourceType type = cache.get(sql);
+        if(type == null) {
+            type = parse(sql);
+            cache.put(sql, type);
+            if(cache.size() > cacheSize) {
+                evict();
+            }
+        }
+        return type;
+    }
+
+    /**
+     * 按迭代顺序（与访问无关，近似随机）淘汰约1/4，同一时间只有一个线程淘汰
+     */
+    private void evict() {
+        if(!evicting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            int target = cacheSize - cacheSize / 4;
+            Iterator<String> it = cache.keySet().iterator();
+            while(it.hasNext() && cache.size() > target) {
+                it.next();
+                it.remove();
+            }
+        } finally {
+            evicting.set(false);
+        }
+    }
+
+    /**
+     * @return 当前缓存的SQL条数
+     */
+    public int getCachedCount() {
+        return cache.size();
+    }
+
+    /**
+     * 解析SQL，不使用缓存
+     */
+    protected DataSourceType parse(String sql) {
+        String keyword = firstKeyword(sql);
+        if("with".equalsIgnoreCase(keyword)) {
+            keyword = mainKeywordAfterWith(sql);
+        }
+        if("select".equalsIgnoreCase(keyword)) {
+            if(LOCKING_READ.matcher(sql).find() || MASTER_ONLY_FUNCTION.matcher(sql).find()
+                || SELECT_INTO.matcher(sql).find()) {
+                return DataSourceType.write;
+            }
+            return DataSourceType.read;
+        }
+        if("show".equalsIgnoreCase(keyword) || "desc".equalsIgnoreCase(keyword)
+            || "describe".equalsIgnoreCase(keyword) || "explain".equalsIgnoreCase(keyword)) {
+            return DataSourceType.read;
+        }
+        return DataSourceType.write;
+    }
+
+    /**
+     * WITH name [(columns)] AS (...) [, ...] 之后的主语句关键字：
+     * 括号外、不是逗号（下一个CTE）也不是AS（列名列表之后）的第一个关键字
+     */
+    private static String mainKeywordAfterWith(String sql) {
+        int length = sql.length();
+        int depth = 0;
+        int i = 0;
+        while(i < length) {
+            char c = sql.charAt(i);
+            if(c == '\'' || c == '"' || c == '`') {
+                i = skipQuoted(sql, i);
+            } else if(c == '(') {
+                depth++;
+                i++;
+            } else if(c == ')') {
+                depth--;
+                i++;
+                if(depth == 0) {
+                    int next = skipBlank(sql, i);
+                    if(next < length && sql.charAt(next) != ',') {
+                        String keyword = word(sql, next);
+                        if(!"as".equalsIgnoreCase(keyword)) {
+                            return keyword;
+                        }
+                    }
+                }
+            } else {
+                i++;
+            }
+        }
+        // 无法识别，按写处理
+        return "";
+    }
+
+    private static int skipQuoted(String sql, int start) {
+        char quote = sql.charAt(start);
+        int length = sql.length();
+        int i = start + 1;
+        while(i < length) {
+            char c = sql.charAt(i);
+            if(c == '\\' && quote != '`') {
+                i += 2;
+            } else if(c == quote) {
+                return i + 1;
+            } else {
+                i++;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * 跳过空白、注释和左括号，取第一个关键字
+     */
+    private static String firstKeyword(String sql) {
+        return word(sql, skipBlank(sql, 0));
+    }
+
+    /**
+     * 跳过空白、注释和左括号
+     */
+    private static int skipBlank(String sql, int from) {
+        int length = sql.length();
+        int i = from;
+        while(i < length) {
+            char c = sql.charAt(i);
+            if(Character.isWhitespace(c) || c == '(') {
+                i++;
+            } else if(c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+            } else if((c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') || c == '#') {
+                int end = sql.indexOf('\n', i);
+                i = end < 0 ? length : end + 1;
+            } else {
+                break;
+            }
+        }
+        return i;
+    }
+
+    private static String word(String sql, int start) {
+        int length = sql.length();
+        int i = start;
+        while(i < length && Character.isLetter(sql.charAt(i))) {
+            i++;
+        }
+        return sql.substring(start, i);
+    }
+}
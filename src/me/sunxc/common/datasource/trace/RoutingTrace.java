@@ -0,0 +1,183 @@
+package me.sunxc.common.datasource.trace;
+
+import java.lang.reflect.Method;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <pre>
+ * 路由决策的采样记录，用于线上排查路由问题而不用打开DEBUG日志
+ *
+ * 每sampleRate次决策记录一次（方法、选择的数据源、原因）到固定大小的环形缓冲区，写满后覆盖最早的记录，
+ * 缓冲区的记录对象预先分配，记录时只赋值不分配对象；未配置时路由路径上没有任何额外开销
+ * 通过DynamicDataSource.dumpRoutingTrace（JMX）或dump随时导出
+ *
+ * 配置方式
+ *  <bean id="readWriteDataSource" class="me.sunxc.common.datasource.DynamicDataSource">
+ *      <property name="routingTrace">
+ *          <bean class="me.sunxc.common.datasource.trace.RoutingTrace">
+ *              <property name="capacity" value="1024"/>
+ *              <property name="sampleRate" value="100"/>
+ *          </bean>
+ *      </property>
+ *  </bean>
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class RoutingTrace {
+
+    /**
+     * 选择该数据源的原因
+     */
+    public enum Reason {
+        /**
+         * 当前选择写库
+         */
+        write,
+        /**
+         * 没有读/写选择，默认写库
+         */
+        no_choice,
+        /**
+         * 负载均衡选择的读库
+         */
+        load_balance,
+        /**
+         * 读库获取连接失败，换一个读库重试
+         */
+        retry,
+        /**
+         * 没有可用的读库，回退到写库
+         */
+        fallback_no_available,
+        /**
+         * 读库获取连接失败，回退到写库
+         */
+        fallback_failure,
+        /**
+         * 可用的读库都已达到并发上限，在写库余量内溢出到写库
+         */
+        spill;
+    }
+
+    private volatile int sampleRate = 100;
+
+    private Record[] records;
+    private int mask;
+
+    private final AtomicLong decisions = new AtomicLong();
+    private final AtomicLong sequence = new AtomicLong();
+
+    public RoutingTrace() {
+        setCapacity(1024);
+    }
+
+    /**
+     * 缓冲区大小，向上取2的幂，默认1024
+     * @param capacity
+     */
+    public void setCapacity(int capacity) {
+        if(capacity < 1) {
+            throw new IllegalArgumentException("property 'capacity' must be positive");
+        }
+        int size = Integer.highestOneBit(capacity);
+        if(size < capacity) {
+            size <<= 1;
+        }
+        Record[] records = new Record[size];
+        for(int i = 0; i < size; i++) {
+            records[i] = new Record();
+        }
+        this.records = records;
+        this.mask = size - 1;
+    }
+
+    /**
+     * 每多少次决策记录一次，默认100，1表示全部记录
+     * @param sampleRate
+     */
+    public void setSampleRate(int sampleRate) {
+        if(sampleRate < 1) {
+            throw new IllegalArgumentException("property 'sampleRate' must be positive");
+        }
+        this.sampleRate = sampleRate;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    /**
+     * 记录一次决策，按sampleRate采样
+     * @param method 路由的service方法，编程方式选择时为null
+     * @param dataSource 数据源名称
+     * @param reason
+     */
+    public void record(Method method, String dataSource, Reason reason) {
+        int rate = sampleRate;
+        if(rate > 1 && decisions.incrementAndGet() % rate != 0) {
+            return;
+        }
+        long seq = sequence.getAndIncrement();
+        Record record = records[(int)(seq & mask)];
+        synchronized(record) {
+            record.sequence = seq;
+            record.timeMillis = System.currentTimeMillis();
+            record.thread = Thread.currentThread().getName();
+            record.method = method;
+            record.dataSource = dataSource;
+            record.reason = reason;
+        }
+    }
+
+    /**
+     * 导出缓冲区中的记录，按时间从早到晚
+     * @return 每条记录一行
+     */
+    public List<String> dump() {
+        Record[] records = this.records;
+        long end = sequence.get();
+        long start = Math.max(0, end - records.length);
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        List<String> lines = new ArrayList<String>((int)(end - start));
+        for(long seq = start; seq < end; seq++) {
+            Record record = records[(int)(seq & mask)];
+            synchronized(record) {
+                // 已被更新的记录覆盖
+                if(record.sequence != seq || record.reason == null) {
+                    continue;
+                }
+                lines.add(String.format("%s [%s] %s -> %s (%s)", format.format(new Date(record.timeMillis)),
+                    record.thread, record.method == null ? "-" : record.method.getDeclaringClass().getSimpleName()
+                        + "." + record.method.getName(), record.dataSource, record.reason));
+            }
+        }
+        return lines;
+    }
+
+    /**
+     * 清空记录
+     */
+    public void clear() {
+        for(Record record: records) {
+            synchronized(record) {
+                record.reason = null;
+                record.method = null;
+            }
+        }
+    }
+
+    private static final class Record {
+
+        long sequence = -1;
+        long timeMillis;
+        String thread;
+        Method method;
+        String dataSource;
+        Reason reason;
+    }
+}
@@ -0,0 +1,37 @@
+package me.sunxc.common.datasource.writebehind;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * <pre>
+ * 声明service写方法异步后写（write-behind），调用时只放入队列立即返回，
+ * 后台线程把一段时间内的调用合并到同一个写事务中提交（group commit）
+ *   @WriteBehind(batchMethod = "saveAll")
+ *   public void save(User user)
+ *
+ * 1、方法只能返回void或Future，返回Future时得到提交结果；返回void时可以用
+ *    WriteBehindProcessor.lastFuture()取当前线程最近一次调用的结果
+ * 2、batchMethod指定同一个类上接收List参数的批量方法，同一批里该方法的多次调用合并为一次批量调用
+ *    （如UserDao.saveAll，写库连接url加上rewriteBatchedStatements=true时驱动合并成多行INSERT），
+ *    此时被标注的方法只能有一个参数；不指定时在同一个事务中逐个执行
+ * 3、已经在事务中调用时直接同步执行，不破坏外层事务的原子性
+ *
+ *      @see WriteBehindProcessor
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+@Target(ElementType.METHOD)
+@Retention(RetentionPolicy.RUNTIME)
+@Documented
+public @interface WriteBehind {
+
+    /**
+     * 批量方法名，参数为被标注方法参数的List
+     */
+    String batchMethod() default "";
+}
@@ -0,0 +1,145 @@
+package me.sunxc.common.datasource.writebehind;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.apache.log4j.Logger;
+
+/**
+ * <pre>
+ * 一次后写调用的结果，所在的事务提交后完成；事务失败时以异常完成
+ * 已经入队的调用不能取消，cancel总是返回false
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class WriteBehindFuture implements Future<Object> {
+    private static final Logger log = Logger.getLogger(WriteBehindFuture.class);
+
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    private List<Callback> callbacks = new ArrayList<Callback>(1);
+
+    private Object result;
+    private Throwable failure;
+
+    /**
+     * 提交结果回调，在后写线程中调用（已完成时在注册线程中立即调用），不要在回调中做耗时操作
+     */
+    public interface Callback {
+
+        /**
+         * 所在的事务已提交
+         * @param result 方法的返回值，void方法为null
+         */
+        void onCommit(Object result);
+
+        /**
+         * 执行或提交失败，数据没有写入
+         * @param failure
+         */
+        void onFailure(Throwable failure);
+    }
+
+    static WriteBehindFuture completed(Object result) {
+        WriteBehindFuture future = new WriteBehindFuture();
+        future.complete(result);
+        return future;
+    }
+
+    /**
+     * 注册提交结果回调
+     * @param callback
+     */
+    public void addCallback(Callback callback) {
+        synchronized(this) {
+            if(callbacks != null) {
+                callbacks.add(callback);
+                return;
+            }
+        }
+        invoke(callback);
+    }
+
+    void complete(Object result) {
+        this.result = result;
+        finish();
+    }
+
+    void fail(Throwable failure) {
+        this.failure = failure;
+        finish();
+    }
+
+    private void finish() {
+        List<Callback> pending;
+        synchronized(this) {
+            pending = callbacks;
+            callbacks = null;
+        }
+        done.countDown();
+        for(Callback callback: pending) {
+            invoke(callback);
+        }
+    }
+
+    private void invoke(Callback callback) {
+        try {
+            if(failure == null) {
+                callback.onCommit(result);
+            } else {
+                callback.onFailure(failure);
+            }
+        } catch(RuntimeException e) {
+            log.warn("write-behind callback failed", e);
+        }
+    }
+
+    /**
+     * @return 失败的原因，未完成或成功时返回null
+     */
+    public Throwable getFailure() {
+        return isDone() ? failure : null;
+    }
+
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return false;
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return false;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    @Override
+    public Object get() throws InterruptedException, ExecutionException {
+        done.await();
+        return report();
+    }
+
+    @Override
+    public Object get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if(!done.await(timeout, unit)) {
+            throw new TimeoutException("write-behind not committed in " + unit.toMillis(timeout) + "ms");
+        }
+        return report();
+    }
+
+    private Object report() throws ExecutionException {
+        if(failure != null) {
+            throw new ExecutionException(failure);
+        }
+        return result;
+    }
+}
@@ -0,0 +1,543 @@
+package me.sunxc.common.datasource.writebehind;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+
+import org.apache.log4j.Logger;
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.aop.support.AopUtils;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.InitializingBean;
+import org.springframework.core.annotation.AnnotationUtils;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionStatus;
+import org.springframework.transaction.support.TransactionCallback;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+import org.springframework.util.ClassUtils;
+
+/**
+ * <pre>
+ * 后写（write-behind）切面：标注了@WriteBehind的写方法调用时只放入队列，由一个后台线程合并提交
+ * 适用于高频、单条、允许异步落库的小插入（如事件、日志），每次调用单独一个事务时提交的刷盘是主要开销
+ *
+ * 1、队列是无锁的有界队列，最多capacity个调用；队列满时在调用线程中同步执行（背压），不丢数据
+ * 2、后台线程在攒够maxBatchSize个调用或最早的调用等待了maxDelayMillis后取出一批，
+ *    在写库的同一个事务中执行（group commit），事务提交后完成各调用的WriteBehindFuture
+ * 3、同一批中同一个bean的同一个方法有batchMethod时合并为一次批量调用，如save(User)合并为saveAll(List)，
+ *    批量方法通过代理调用，自身的事务（REQUIRED）参与到这一批的事务中
+ * 4、一批失败（回滚）时逐个在单独的事务中重试，只有自身失败的调用以异常完成，不连累同一批的其他调用
+ * 5、调用时的集群选择随调用一起入队，不同集群的调用不在同一个事务中
+ * 6、已经在事务中、容器关闭后或在后写线程中的调用同步执行，异常直接抛给调用方
+ * 7、入队后调用方不要再修改参数对象；自增id等在提交后才回填
+ * 8、destroy时执行完队列中所有调用再返回
+ *
+ * 配置方式，order在读/写选择切面之后、事务切面之前，这样入队时不会开启事务
+ *  <bean id="writeBehindProcessor" class="me.sunxc.common.datasource.writebehind.WriteBehindProcessor">
+ *      <property name="transactionManager" ref="txManager"/>
+ *      <property name="maxBatchSize" value="100"/>
+ *      <property name="maxDelayMillis" value="10"/>
+ *  </bean>
+ *  <aop:aspect order="0" ref="writeBehindProcessor">
+ *      <aop:around pointcut="@annotation(me.sunxc.common.datasource.writebehind.WriteBehind)" method="doWriteBehind"/>
+ *  </aop:aspect>
+ * </pre>
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class WriteBehindProcessor implements InitializingBean, DisposableBean {
+    private static final Logger log = Logger.getLogger(WriteBehindProcessor.class);
+
+    private static final ThreadLocal<WriteBehindFuture> lastFuture = new ThreadLocal<WriteBehindFuture>();
+
+    /**
+     * 没有@WriteBehind注解的方法
+     */
+    private static final Plan NONE = new Plan(null, false);
+
+    private PlatformTransactionManager transactionManager;
+    private int maxBatchSize = 100;
+    private long maxDelayMillis = 10;
+    private int capacity = 10000;
+
+    private TransactionTemplate transactionTemplate;
+    private long maxDelayNanos;
+
+    private final ConcurrentLinkedQueue<Entry> queue = new ConcurrentLinkedQueue<Entry>();
+    /**
+     * 已占用的队列位置，先占位再入队，出队后释放
+     */
+    private final AtomicInteger size = new AtomicInteger();
+
+    private final Map<Method, Plan> plans = new ConcurrentHashMap<Method, Plan>();
+
+    private volatile Thread flusher;
+    private volatile boolean running;
+    private volatile boolean flushRequested;
+
+    private final AtomicLong submittedCount = new AtomicLong();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong commitCount = new AtomicLong();
+    private final AtomicLong failedCount = new AtomicLong();
+    private final AtomicLong callerRunsCount = new AtomicLong();
+
+    /**
+     * 写库的事务管理器
+     * @param transactionManager
+     */
+    public void setTransactionManager(PlatformTransactionManager transactionManager) {
+        this.transactionManager = transactionManager;
+    }
+
+    /**
+     * 每个事务最多合并的调用数，默认100
+     * @param maxBatchSize
+     */
+    public void setMaxBatchSize(int maxBatchSize) {
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    /**
+     * 调用在队列中最多等待的毫秒数，默认10；0表示后台线程空闲时立即提交
+     * @param maxDelayMillis
+     */
+    public void setMaxDelayMillis(long maxDelayMillis) {
+        this.maxDelayMillis = maxDelayMillis;
+    }
+
+    /**
+     * 队列容量，默认10000，满时在调用线程中同步执行
+     * @param capacity
+     */
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    @Override
+    public void afterPropertiesSet() throws Exception {
+        if(transactionManager == null) {
+            throw new IllegalArgumentException("property 'transactionManager' is required");
+        }
+        if(maxBatchSize <= 0) {
+            throw new IllegalArgumentException("property 'maxBatchSize' must be greater than 0");
+        }
+        if(maxDelayMillis < 0) {
+            throw new IllegalArgumentException("property 'maxDelayMillis' must not be negative");
+        }
+        if(capacity < maxBatchSize) {
+            throw new IllegalArgumentException("property 'capacity' must not be less than maxBatchSize");
+        }
+        transactionTemplate = new TransactionTemplate(transactionManager);
+        maxDelayNanos = TimeUnit.MILLISECONDS.toNanos(maxDelayMillis);
+        running = true;
+        Thread thread = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                flushLoop();
+            }
+        }, "write-behind-flusher");
+        thread.setDaemon(true);
+        flusher = thread;
+        thread.start();
+    }
+
+    @Override
+    public void destroy() throws Exception {
+        running = false;
+        Thread thread = flusher;
+        if(thread == null) {
+            return;
+        }
+        LockSupport.unpark(thread);
+        thread.join();
+        // 关闭时正在入队的调用
+        while(size.get() > 0) {
+            List<Entry> batch = drain();
+            if(batch.isEmpty()) {
+                Thread.yield();
+            } else {
+                write(batch);
+            }
+        }
+    }
+
+    /**
+     * @return 当前线程最近一次@WriteBehind调用的结果，没有调用过返回null
+     */
+    public static WriteBehindFuture lastFuture() {
+        return lastFuture.get();
+    }
+
+    /**
+     * 切面方法，没有@WriteBehind注解的方法直接执行
+     * @param pjp
+     * @return 方法返回Future时返回WriteBehindFuture，否则返回null
+     * @throws Throwable
+     */
+    public Object doWriteBehind(ProceedingJoinPoint pjp) throws Throwable {
+        Method method = ((MethodSignature)pjp.getSignature()).getMethod();
+        Plan plan = getPlan(method, pjp.getTarget());
+        if(plan == NONE) {
+            return pjp.proceed();
+        }
+
+        WriteBehindFuture future;
+        if(!running || Thread.currentThread() == flusher || TransactionSynchronizationManager.isActualTransactionActive()) {
+            future = WriteBehindFuture.completed(pjp.proceed());
+        } else if(!reserve()) {
+            callerRunsCount.incrementAndGet();
+            future = WriteBehindFuture.completed(pjp.proceed());
+        } else {
+            Entry entry = new Entry(pjp, plan, ReadWriteDataSourceChoice.getCluster());
+            future = entry.future;
+            submittedCount.incrementAndGet();
+            queue.offer(entry);
+        }
+        lastFuture.set(future);
+        return plan.returnsFuture ? future : null;
+    }
+
+    /**
+     * 占一个队列位置，队列从空变为非空或攒够一批时唤醒后台线程
+     */
+    private boolean reserve() {
+        for(;;) {
+            int current = size.get();
+            if(current >= capacity) {
+                return false;
+            }
+            if(size.compareAndSet(current, current + 1)) {
+                if(current == 0 || current + 1 == maxBatchSize) {
+                    // 在入队之前唤醒，后台线程看到占位但还没有入队时会短暂等待
+                    LockSupport.unpark(flusher);
+                }
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 等待调用本方法之前入队的调用全部完成（提交或失败）
+     */
+    public void flush() {
+        Thread thread = flusher;
+        if(thread == null || Thread.currentThread() == thread) {
+            return;
+        }
+        long target = submittedCount.get();
+        flushRequested = true;
+        LockSupport.unpark(thread);
+        while(completedCount.get() < target && thread.isAlive()) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+    }
+
+    private void flushLoop() {
+        while(running) {
+            Entry head = queue.peek();
+            if(head == null) {
+                flushRequested = false;
+                if(size.get() == 0) {
+                    // 之后的第一个调用会唤醒
+                    LockSupport.park(this);
+                } else {
+                    LockSupport.parkNanos(this, Math.max(maxDelayNanos, TimeUnit.MILLISECONDS.toNanos(1)));
+                }
+                continue;
+            }
+            long wait = head.enqueuedNanos + maxDelayNanos - System.nanoTime();
+            if(wait > 0 && !flushRequested && size.get() < maxBatchSize) {
+                LockSupport.parkNanos(this, wait);
+                continue;
+            }
+            write(drain());
+        }
+        while(!queue.isEmpty()) {
+            write(drain());
+        }
+    }
+
+    private List<Entry> drain() {
+        int target = Math.min(maxBatchSize, size.get());
+        List<Entry> batch = new ArrayList<Entry>(target);
+        while(batch.size() < target) {
+            Entry entry = queue.poll();
+            if(entry == null) {
+                // 已经占位但还没有入队，等它入队，否则攒够的一批会被拆成两批
+                Thread.yield();
+                continue;
+            }
+            batch.add(entry);
+        }
+        size.addAndGet(-batch.size());
+        return batch;
+    }
+
+    /**
+     * 按集群分组，每组一个事务
+     */
+    private void write(List<Entry> batch) {
+        Map<Integer, List<Entry>> clusters = new LinkedHashMap<Integer, List<Entry>>();
+        for(Entry entry: batch) {
+            List<Entry> entries = clusters.get(entry.cluster);
+            if(entries == null) {
+                entries = new ArrayList<Entry>();
+                clusters.put(entry.cluster, entries);
+            }
+            entries.add(entry);
+        }
+        for(Map.Entry<Integer, List<Entry>> cluster: clusters.entrySet()) {
+            commit(cluster.getKey(), cluster.getValue());
+        }
+        completedCount.addAndGet(batch.size());
+    }
+
+    private void commit(int cluster, List<Entry> entries) {
+        try {
+            execute(cluster, entries);
+        } catch(Throwable e) {
+            if(entries.size() == 1) {
+                fail(entries.get(0), e);
+                return;
+            }
+            log.warn(String.format("write-behind batch of %d calls rolled back, retry one by one", entries.size()), e);
+            for(Entry entry: entries) {
+                try {
+                    execute(cluster, Collections.singletonList(entry));
+                } catch(Throwable ex) {
+                    fail(entry, ex);
+                    continue;
+                }
+                entry.future.complete(entry.result);
+            }
+            return;
+        }
+        for(Entry entry: entries) {
+            entry.future.complete(entry.result);
+        }
+    }
+
+    private void fail(Entry entry, Throwable e) {
+        failedCount.incrementAndGet();
+        log.error(String.format("write-behind %s failed", entry.pjp.getSignature()), e);
+        entry.future.fail(e);
+    }
+
+    /**
+     * 在写库的一个事务中执行，失败时抛出调用的原始异常
+     */
+    private void execute(int cluster, final List<Entry> entries) throws Throwable {
+        ReadWriteDataSourceChoice.push(DataSourceType.write, -1, cluster);
+        try {
+            transactionTemplate.execute(new TransactionCallback<Object>() {
+
+                @Override
+                public Object doInTransaction(TransactionStatus status) {
+                    try {
+                        invokeAll(entries);
+                    } catch(RuntimeException e) {
+                        throw e;
+                    } catch(Error e) {
+                        throw e;
+                    } catch(Throwable e) {
+                        // 受检异常也要回滚
+                        throw new InvocationFailure(e);
+                    }
+                    return null;
+                }
+            });
+            commitCount.incrementAndGet();
+        } catch(InvocationFailure e) {
+            throw e.getCause();
+        } finally {
+            ReadWriteDataSourceChoice.pop();
+        }
+    }
+
+    /**
+     * 有batchMethod的调用按(bean, 方法)合并为一次批量调用，其余按入队顺序逐个执行
+     */
+    private static void invokeAll(List<Entry> entries) throws Throwable {
+        Map<Object, List<Entry>> groups = new LinkedHashMap<Object, List<Entry>>();
+        for(Entry entry: entries) {
+            Object key = entry.plan.batchMethod == null ? entry : new BatchKey(entry);
+            List<Entry> group = groups.get(key);
+            if(group == null) {
+                group = new ArrayList<Entry>();
+                groups.put(key, group);
+            }
+            group.add(entry);
+        }
+        for(List<Entry> group: groups.values()) {
+            Entry first = group.get(0);
+            if(first.plan.batchMethod == null) {
+                first.result = first.pjp.proceed();
+                continue;
+            }
+            List<Object> args = new ArrayList<Object>(group.size());
+            for(Entry entry: group) {
+                args.add(entry.pjp.getArgs()[0]);
+            }
+            try {
+                first.plan.batchMethod.invoke(first.pjp.getThis(), args);
+            } catch(InvocationTargetException e) {
+                throw e.getTargetException();
+            }
+        }
+    }
+
+    private Plan getPlan(Method method, Object target) {
+        Plan plan = plans.get(method);
+        if(plan == null) {
+            Class<?> targetClass = target == null ? method.getDeclaringClass() : ClassUtils.getUserClass(target);
+            plan = resolvePlan(method, targetClass);
+            plans.put(method, plan);
+        }
+        return plan;
+    }
+
+    private static Plan resolvePlan(Method method, Class<?> targetClass) {
+        Method specificMethod = AopUtils.getMostSpecificMethod(method, targetClass);
+        WriteBehind writeBehind = AnnotationUtils.findAnnotation(specificMethod, WriteBehind.class);
+        if(writeBehind == null) {
+            return NONE;
+        }
+        Class<?> returnType = method.getReturnType();
+        if(returnType != void.class && !returnType.isAssignableFrom(WriteBehindFuture.class)) {
+            throw new IllegalArgumentException(String.format("@WriteBehind method %s must return void or Future",
+                specificMethod));
+        }
+        String batchMethodName = writeBehind.batchMethod();
+        if(batchMethodName.length() == 0) {
+            return new Plan(null, returnType != void.class);
+        }
+        if(method.getParameterTypes().length != 1) {
+            throw new IllegalArgumentException(String.format(
+                "@WriteBehind method %s must have exactly one parameter when batchMethod is set", specificMethod));
+        }
+        for(Method candidate: targetClass.getMethods()) {
+            Class<?>[] parameterTypes = candidate.getParameterTypes();
+            if(candidate.getName().equals(batchMethodName) && parameterTypes.length == 1
+                && parameterTypes[0].isAssignableFrom(List.class)) {
+                return new Plan(candidate, returnType != void.class);
+            }
+        }
+        throw new IllegalArgumentException(String.format("batchMethod '%s' of %s not found, it must take a single List",
+            batchMethodName, targetClass.getName()));
+    }
+
+    /**
+     * @return 队列中等待的调用数
+     */
+    public int getQueueSize() {
+        return size.get();
+    }
+
+    /**
+     * @return 入队的调用总数
+     */
+    public long getSubmittedCount() {
+        return submittedCount.get();
+    }
+
+    /**
+     * @return 提交的事务数
+     */
+    public long getCommitCount() {
+        return commitCount.get();
+    }
+
+    /**
+     * @return 以异常完成的调用数
+     */
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return 队列满时在调用线程中同步执行的调用数
+     */
+    public long getCallerRunsCount() {
+        return callerRunsCount.get();
+    }
+
+    private static class Plan {
+
+        private final Method batchMethod;
+        private final boolean returnsFuture;
+
+        Plan(Method batchMethod, boolean returnsFuture) {
+            this.batchMethod = batchMethod;
+            this.returnsFuture = returnsFuture;
+        }
+    }
+
+    private static class Entry {
+
+        private final ProceedingJoinPoint pjp;
+        private final Plan plan;
+        private final int cluster;
+        private final long enqueuedNanos = System.nanoTime();
+        private final WriteBehindFuture future = new WriteBehindFuture();
+        private Object result;
+
+        Entry(ProceedingJoinPoint pjp, Plan plan, int cluster) {
+            this.pjp = pjp;
+            this.plan = plan;
+            this.cluster = cluster;
+        }
+    }
+
+    /**
+     * 同一个bean（代理）的同一个批量方法
+     */
+    private static class BatchKey {
+
+        private final Object bean;
+        private final Method batchMethod;
+
+        BatchKey(Entry entry) {
+            this.bean = entry.pjp.getThis();
+            this.batchMethod = entry.plan.batchMethod;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if(!(obj instanceof BatchKey)) {
+                return false;
+            }
+            BatchKey other = (BatchKey)obj;
+            return bean == other.bean && batchMethod.equals(other.batchMethod);
+        }
+
+        @Override
+        public int hashCode() {
+            return System.identityHashCode(bean) * 31 + batchMethod.hashCode();
+        }
+    }
+
+    private static class InvocationFailure extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        InvocationFailure(Throwable cause) {
+            super(cause);
+        }
+    }
+}
@@ -12,10 +12,14 @@ import me.sunxc.model.Address;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.support.JdbcDaoSupport;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.JdbcUtils;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
 
@@ -28,6 +32,8 @@ public class AddressDao extends JdbcDaoSupport {
     }
     
     
+    private int batchSize = 500;
+    
     private RowMapper<Address> rowMapper = new RowMapper<Address>() {
         
         @Override
@@ -60,6 +66,60 @@ public class AddressDao extends JdbcDaoSupport {
         address.setId(generatedKeyHolder.getKey().intValue());
     }
     
+    /**
+     * 每批插入的行数，默认500
+     * 写库连接url加上rewriteBatchedStatements=true时，驱动把一批合并成一条多行INSERT
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        if(batchSize <= 0) {
+            throw new IllegalArgumentException("property 'batchSize' must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+    
+    /**
+     * 批量插入，每batchSize行执行一次批处理，并回填自增id；
+     * 在save*方法（写事务）中调用时所有批次在同一个事务中
+     * @param addressList
+     */
+    public void saveAll(final List<Address> addressList) {
+        final String sql = "insert into address(userId, city) values(?,?)";
+        getJdbcTemplate().execute(new ConnectionCallback<Object>() {
+            
+            @Override
+            public Object doInConnection(Connection con) throws SQLException, DataAccessException {
+                PreparedStatement psst = con.prepareStatement(sql, new String[]{"id"});
+                try {
+                    for(int from = 0; from < addressList.size(); from += batchSize) {
+                        List<Address> batch = addressList.subList(from, Math.min(addressList.size(), from + batchSize));
+                        for(Address address: batch) {
+                            psst.setInt(1, address.getUserId());
+                            psst.setString(2, address.getCity());
+                            psst.addBatch();
+                        }
+                        psst.executeBatch();
+                        
+                        ResultSet generatedKeys = psst.getGeneratedKeys();
+                        try {
+                            for(Address address: batch) {
+                                if(!generatedKeys.next()) {
+                                    throw new DataRetrievalFailureException("generated keys fewer than inserted rows");
+                                }
+                                address.setId(generatedKeys.getInt(1));
+                            }
+                        } finally {
+                            JdbcUtils.closeResultSet(generatedKeys);
+                        }
+                    }
+                } finally {
+                    JdbcUtils.closeStatement(psst);
+                }
+                return null;
+            }
+        });
+    }
+    
     public Address findById(int id) {
         String sql = "select id, userId, city from address where id=?";
         List<Address> addressList = getJdbcTemplate().query(sql, rowMapper, id);
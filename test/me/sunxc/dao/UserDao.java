@@ -12,10 +12,14 @@ import me.sunxc.model.User;
 
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.DataRetrievalFailureException;
+import org.springframework.jdbc.core.ConnectionCallback;
 import org.springframework.jdbc.core.PreparedStatementCreator;
 import org.springframework.jdbc.core.RowMapper;
 import org.springframework.jdbc.core.support.JdbcDaoSupport;
 import org.springframework.jdbc.support.GeneratedKeyHolder;
+import org.springframework.jdbc.support.JdbcUtils;
 import org.springframework.jdbc.support.KeyHolder;
 import org.springframework.stereotype.Repository;
 
@@ -28,6 +32,8 @@ public class UserDao extends JdbcDaoSupport {
     }
     
     
+    private int batchSize = 500;
+    
     private RowMapper<User> rowMapper = new RowMapper<User>() {
         
         @Override
@@ -58,6 +64,59 @@ public class UserDao extends JdbcDaoSupport {
         user.setId(generatedKeyHolder.getKey().intValue());
     }
     
+    /**
+     * 每批插入的行数，默认500
+     * 写库连接url加上rewriteBatchedStatements=true时，驱动把一批合并成一条多行INSERT
+     * @param batchSize
+     */
+    public void setBatchSize(int batchSize) {
+        if(batchSize <= 0) {
+            throw new IllegalArgumentException("property 'batchSize' must be positive");
+        }
+        this.batchSize = batchSize;
+    }
+    
+    /**
+     * 批量插入，每batchSize行执行一次批处理，并回填自增id；
+     * 在save*方法（写事务）中调用时所有批次在同一个事务中
+     * @param userList
+     */
+    public void saveAll(final List<User> userList) {
+        final String sql = "insert into user(name) values(?)";
+        getJdbcTemplate().execute(new ConnectionCallback<Object>() {
+            
+            @Override
+            public Object doInConnection(Connection con) throws SQLException, DataAccessException {
+                PreparedStatement psst = con.prepareStatement(sql, new String[]{"id"});
+                try {
+                    for(int from = 0; from < userList.size(); from += batchSize) {
+                        List<User> batch = userList.subList(from, Math.min(userList.size(), from + batchSize));
+                        for(User user: batch) {
+                            psst.setString(1, user.getName());
+                            psst.addBatch();
+                        }
+                        psst.executeBatch();
+                        
+                        ResultSet generatedKeys = psst.getGeneratedKeys();
+                        try {
+                            for(User user: batch) {
+                                if(!generatedKeys.next()) {
+                                    throw new DataRetrievalFailureException("generated keys fewer than inserted rows");
+                                }
+                                user.setId(generatedKeys.getInt(1));
+                            }
+                        } finally {
+                            JdbcUtils.closeResultSet(generatedKeys);
+                        }
+                    }
+                } finally {
+                    JdbcUtils.closeStatement(psst);
+                }
+                return null;
+            }
+        });
+    }
+    
     public void update(User user) {
         String sql = "update user set name=? where id=?";
         getJdbcTemplate().update(sql, user.getName(), user.getId());
@@ -0,0 +1,211 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.DynamicDataSourceProcessor;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+import me.sunxc.common.datasource.RouteTo;
+import me.sunxc.common.datasource.cluster.Cluster;
+import me.sunxc.common.datasource.cluster.ClusterRoutingDataSource;
+import me.sunxc.common.datasource.concurrent.RoutingContextSnapshot;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.support.StaticApplicationContext;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 多集群路由测试，不需要数据库
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ClusterRoutingTest {
+
+    private final List<DynamicDataSource> groups = new ArrayList<DynamicDataSource>();
+    private ClusterRoutingDataSource clusterDataSource;
+    private DynamicDataSourceProcessor processor;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, DataSource> clusters = new LinkedHashMap<String, DataSource>();
+        for(String name: new String[] {"user", "order"}) {
+            Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+            readDataSourceMap.put(name + "Read", new StubDataSource(name + "-read"));
+            DynamicDataSource group = new DynamicDataSource();
+            group.setWriteDataSource(new StubDataSource(name + "-write"));
+            group.setReadDataSourceMap(readDataSourceMap);
+            group.afterPropertiesSet();
+            groups.add(group);
+            clusters.put(name, group);
+        }
+        clusterDataSource = new ClusterRoutingDataSource();
+        clusterDataSource.setClusters(clusters);
+        clusterDataSource.setDefaultCluster("user");
+        clusterDataSource.afterPropertiesSet();
+
+        processor = new DynamicDataSourceProcessor();
+        processor.setClusterRoutingDataSource(clusterDataSource);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ReadWriteDataSourceChoice.reset();
+        for(DynamicDataSource group: groups) {
+            group.destroy();
+        }
+    }
+
+    @Test
+    public void testClassAndMethodCluster() throws Throwable {
+        OrderService orderService = register(new OrderService(clusterDataSource), "orderService");
+        assertEquals("order-read", processor.doChoiceReadOrWriteDB(StubJoinPoint.of(orderService, "findOrder")));
+        assertEquals("order-write", processor.doChoiceReadOrWriteDB(StubJoinPoint.of(orderService, "saveOrder")));
+        // 方法上的优先于类上的
+        assertEquals("user-read", processor.doChoiceReadOrWriteDB(StubJoinPoint.of(orderService, "findBuyer")));
+        assertEquals(-1, ReadWriteDataSourceChoice.getCluster());
+    }
+
+    @Test
+    public void testDefaultAndInheritedCluster() throws Throwable {
+        PlainService plainService = register(new PlainService(clusterDataSource), "plainService");
+        // 没有选择集群，使用默认集群
+        assertEquals("user-read", processor.doChoiceReadOrWriteDB(StubJoinPoint.of(plainService, "find")));
+
+        ReadWriteDataSourceChoice.push(DataSourceType.read, -1, clusterDataSource.indexOf("order"));
+        try {
+            // 沿用外层的集群
+            assertEquals("order-read", processor.doChoiceReadOrWriteDB(StubJoinPoint.of(plainService, "find")));
+        } finally {
+            ReadWriteDataSourceChoice.pop();
+        }
+    }
+
+    @Test
+    public void testCrossClusterInTransaction() throws Throwable {
+        OrderService orderService = register(new OrderService(clusterDataSource), "orderService");
+        PlainService plainService = register(new PlainService(clusterDataSource), "plainService");
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        try {
+            // 没有标注的方法沿用事务所在的集群
+            assertEquals("user-read", processor.doChoiceReadOrWriteDB(StubJoinPoint.of(plainService, "find")));
+            // 外层没有选择集群，事务在默认集群上
+            processor.doChoiceReadOrWriteDB(StubJoinPoint.of(orderService, "saveOrder"));
+            fail("cross-cluster call from the default cluster");
+        } catch(IllegalStateException e) {
+            // 事务中不能切换集群
+        }
+        ReadWriteDataSourceChoice.push(DataSourceType.write, -1, clusterDataSource.indexOf("order"));
+        try {
+            assertEquals("order-write", processor.doChoiceReadOrWriteDB(StubJoinPoint.of(orderService, "saveOrder")));
+            processor.doChoiceReadOrWriteDB(StubJoinPoint.of(orderService, "findBuyer"));
+            fail("cross-cluster call");
+        } catch(IllegalStateException e) {
+            // 事务中不能切换集群
+        } finally {
+            TransactionSynchronizationManager.setActualTransactionActive(false);
+            ReadWriteDataSourceChoice.pop();
+        }
+        // 不在事务中时可以切换
+        assertEquals("user-read", processor.doChoiceReadOrWriteDB(StubJoinPoint.of(orderService, "findBuyer")));
+    }
+
+    @Test
+    public void testSnapshotCarriesCluster() throws Exception {
+        final PlainService plainService = new PlainService(clusterDataSource);
+        ReadWriteDataSourceChoice.push(DataSourceType.write, -1, clusterDataSource.indexOf("order"));
+        Callable<String> task;
+        try {
+            task = RoutingContextSnapshot.wrap(new Callable<String>() {
+
+                @Override
+                public String call() throws Exception {
+                    return plainService.find();
+                }
+            });
+        } finally {
+            ReadWriteDataSourceChoice.pop();
+        }
+        assertEquals("order-write", task.call());
+    }
+
+    @Test
+    public void testUnknownCluster() throws Exception {
+        try {
+            clusterDataSource.indexOf("audit");
+            fail("unknown cluster");
+        } catch(IllegalArgumentException e) {
+            // 没有配置的集群
+        }
+    }
+
+    private <T> T register(T service, String beanName) {
+        processor.postProcessAfterInitialization(service, beanName);
+        processor.onApplicationEvent(new ContextRefreshedEvent(new StaticApplicationContext()));
+        return service;
+    }
+
+    private static String currentDataSource(DataSource dataSource) throws SQLException {
+        Connection con = dataSource.getConnection();
+        try {
+            String name = con.toString();
+            return name.substring(name.indexOf('[') + 1, name.length() - 1);
+        } finally {
+            con.close();
+        }
+    }
+
+    @Cluster("order")
+    public static class OrderService {
+
+        private final DataSource dataSource;
+
+        public OrderService(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        @RouteTo(DataSourceType.read)
+        public String findOrder() throws SQLException {
+            return currentDataSource(dataSource);
+        }
+
+        @RouteTo(DataSourceType.write)
+        public String saveOrder() throws SQLException {
+            return currentDataSource(dataSource);
+        }
+
+        @Cluster("user")
+        @RouteTo(DataSourceType.read)
+        public String findBuyer() throws SQLException {
+            return currentDataSource(dataSource);
+        }
+    }
+
+    public static class PlainService {
+
+        private final DataSource dataSource;
+
+        public PlainService(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        @RouteTo(DataSourceType.read)
+        public String find() throws SQLException {
+            return currentDataSource(dataSource);
+        }
+    }
+}
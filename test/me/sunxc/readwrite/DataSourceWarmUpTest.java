@@ -0,0 +1,161 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.pool.DataSourceWarmUp;
+import me.sunxc.common.datasource.pool.PooledDataSource;
+
+import org.junit.Test;
+
+/**
+ * 启动预热和连接池自动调整测试
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class DataSourceWarmUpTest {
+
+    @Test
+    public void testWarmUpOpensConnectionsConcurrently() throws Exception {
+        StubDataSource write = new StubDataSource("warm-write");
+        StubDataSource read = new StubDataSource("warm-read");
+        Map<String, DataSource> dataSources = new LinkedHashMap<String, DataSource>();
+        dataSources.put("write", write);
+        dataSources.put("read", read);
+
+        DataSourceWarmUp warmUp = new DataSourceWarmUp();
+        warmUp.setConnections(3);
+        warmUp.setHotStatements(Arrays.asList("select 1", "select * from user where id=?"));
+        warmUp.warmUp(dataSources);
+
+        // 每个数据源同时打开3个连接，预热完全部关闭
+        assertEquals(3, write.getBorrowed());
+        assertEquals(3, read.getBorrowed());
+        assertEquals(0, write.getActive());
+        assertEquals(0, read.getActive());
+    }
+
+    @Test
+    public void testWarmUpFillsPool() throws Exception {
+        StubDataSource db = new StubDataSource("warm-pool");
+        PooledDataSource pool = newPool(db);
+        pool.setInitialSize(0);
+        pool.afterPropertiesSet();
+        try {
+            Map<String, DataSource> dataSources = new LinkedHashMap<String, DataSource>();
+            dataSources.put("write", pool);
+            DataSourceWarmUp warmUp = new DataSourceWarmUp();
+            warmUp.setConnections(4);
+            warmUp.warmUp(dataSources);
+            // 连接归还到池中
+            assertEquals(4, pool.getNumIdle());
+            assertEquals(4, db.getActive());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testWarmUpWithFewerThreads() throws Exception {
+        StubDataSource db = new StubDataSource("warm-threads");
+        PooledDataSource pool = newPool(db);
+        pool.setInitialSize(0);
+        pool.afterPropertiesSet();
+        try {
+            Map<String, DataSource> dataSources = new LinkedHashMap<String, DataSource>();
+            dataSources.put("write", pool);
+            DataSourceWarmUp warmUp = new DataSourceWarmUp();
+            warmUp.setConnections(4);
+            warmUp.setMaxThreads(1);
+            warmUp.setTimeoutMillis(2000);
+            warmUp.setFailOnError(true);
+            warmUp.warmUp(dataSources);
+            // 一个线程也同时持有4个不同的连接
+            assertEquals(4, pool.getNumIdle());
+            assertEquals(4, db.getActive());
+        } finally {
+            pool.close();
+        }
+    }
+
+    @Test
+    public void testWarmUpFailure() throws Exception {
+        StubDataSource down = new StubDataSource("warm-down");
+        down.setDown(true);
+        Map<String, DataSource> dataSources = new LinkedHashMap<String, DataSource>();
+        dataSources.put("read", down);
+
+        DataSourceWarmUp warmUp = new DataSourceWarmUp();
+        warmUp.setConnections(2);
+        warmUp.warmUp(dataSources);
+
+        warmUp.setFailOnError(true);
+        try {
+            warmUp.warmUp(dataSources);
+            fail("datasource down");
+        } catch(SQLException e) {
+            // 预热失败
+        }
+    }
+
+    @Test
+    public void testAdaptiveSizing() throws Exception {
+        StubDataSource db = new StubDataSource("adaptive");
+        PooledDataSource pool = newPool(db);
+        pool.setMaxActive(10);
+        pool.setAdaptiveSizing(true);
+        pool.setAdaptiveIntervalMillis(20);
+        pool.afterPropertiesSet();
+        try {
+            List<Connection> held = new ArrayList<Connection>();
+            for(int i = 0; i < 4; i++) {
+                held.add(pool.getConnection());
+            }
+            // 峰值4，目标5
+            waitFor(pool, 5);
+            assertEquals(5, pool.getTargetSize());
+            // 总数在建立连接前就已占位，等新连接放入空闲队列
+            long deadline = System.currentTimeMillis() + 5000;
+            while(pool.getNumIdle() != 1 && System.currentTimeMillis() < deadline) {
+                Thread.sleep(10);
+            }
+            assertEquals(1, pool.getNumIdle());
+
+            for(Connection con: held) {
+                con.close();
+            }
+            waitFor(pool, 0);
+            assertEquals(0, db.getActive());
+        } finally {
+            pool.close();
+        }
+    }
+
+    private static PooledDataSource newPool(StubDataSource db) {
+        PooledDataSource pool = new PooledDataSource();
+        pool.setDriverClassName(StubDriver.class.getName());
+        pool.setUrl(StubDriver.register(db));
+        pool.setTimeBetweenEvictionRunsMillis(0);
+        return pool;
+    }
+
+    private static void waitFor(PooledDataSource pool, int total) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while(pool.getTotalConnections() != total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue("expected " + total + " connections but " + pool.getTotalConnections(),
+            pool.getTotalConnections() == total);
+    }
+}
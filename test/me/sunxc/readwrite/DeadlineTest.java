@@ -0,0 +1,194 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.DynamicDataSourceProcessor;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+import me.sunxc.common.datasource.RouteTo;
+import me.sunxc.common.datasource.deadline.Deadline;
+import me.sunxc.common.datasource.deadline.DeadlineExceededException;
+import me.sunxc.common.datasource.failover.ReadDataSourceHealthChecker;
+import me.sunxc.common.datasource.pool.PooledDataSource;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * 请求截止时间测试：限制连接池等待、设置查询超时，不需要数据库
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class DeadlineTest {
+
+    private StubDataSource write = new StubDataSource("deadline-write");
+    private StubDataSource read1 = new StubDataSource("deadline-read1");
+    private StubDataSource read2 = new StubDataSource("deadline-read2");
+
+    private DynamicDataSource dataSource;
+
+    @After
+    public void tearDown() throws Exception {
+        ReadWriteDataSourceChoice.reset();
+        if(dataSource != null) {
+            dataSource.destroy();
+        }
+    }
+
+    @Test
+    public void testRemainingTimeAppliedAsQueryTimeout() throws Exception {
+        dataSource = newDynamicDataSource(write, null, read1);
+        ReadWriteDataSourceChoice.markRead();
+        Connection con = dataSource.getConnection();
+        con.prepareStatement("select 1").close();
+        con.close();
+        assertEquals(0, read1.getLastQueryTimeout());
+
+        ReadWriteDataSourceChoice.setTimeout(2500);
+        con = dataSource.getConnection();
+        con.prepareStatement("select 1").close();
+        // 向上取整到秒
+        assertEquals(3, read1.getLastQueryTimeout());
+        con.createStatement().close();
+        assertTrue(read1.getLastQueryTimeout() <= 3);
+        con.close();
+        assertEquals(0, read1.getActive());
+    }
+
+    @Test
+    public void testFailFastWhenDeadlinePassed() throws Exception {
+        dataSource = newDynamicDataSource(write, null, read1);
+        ReadWriteDataSourceChoice.markRead();
+        ReadWriteDataSourceChoice.setDeadline(System.currentTimeMillis() - 1);
+        try {
+            dataSource.getConnection();
+            fail("deadline passed");
+        } catch(DeadlineExceededException e) {
+            // 不再获取连接
+        }
+        assertEquals(0, read1.getBorrowed());
+    }
+
+    @Test
+    public void testPoolWaitBoundedByDeadline() throws Exception {
+        PooledDataSource pool = new PooledDataSource();
+        pool.setDriverClassName(StubDriver.class.getName());
+        pool.setUrl(StubDriver.register(write));
+        pool.setMaxActive(1);
+        pool.setMaxWait(30000);
+        pool.setTimeBetweenEvictionRunsMillis(0);
+        pool.afterPropertiesSet();
+        dataSource = newDynamicDataSource(pool, null, read1);
+
+        ReadWriteDataSourceChoice.markWrite();
+        Connection held = dataSource.getConnection();
+        ReadWriteDataSourceChoice.setTimeout(300);
+        long start = System.currentTimeMillis();
+        try {
+            dataSource.getConnection();
+            fail("pool exhausted");
+        } catch(DeadlineExceededException e) {
+            // 只等到截止时间，不等满maxWait
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        held.close();
+        pool.close();
+    }
+
+    @Test
+    public void testExhaustedReplicaSpillsWithoutEjection() throws Exception {
+        ReadDataSourceHealthChecker healthChecker = new ReadDataSourceHealthChecker();
+        healthChecker.setCheckIntervalMillis(0);
+        ExhaustedDataSource busy = new ExhaustedDataSource("deadline-busy");
+        dataSource = newDynamicDataSource(write, healthChecker, busy, read2);
+
+        ReadWriteDataSourceChoice.markRead();
+        ReadWriteDataSourceChoice.setTimeout(1000);
+        // 轮询先选中busy，池满且maxWait超过剩余时间，换read2
+        dataSource.getConnection().close();
+        assertEquals(0, busy.getBorrowed());
+        assertEquals(1, read2.getBorrowed());
+        assertTrue(healthChecker.isAvailable(0));
+
+        // 没有截止时间时照常排队
+        ReadWriteDataSourceChoice.reset();
+        ReadWriteDataSourceChoice.markRead();
+        dataSource.getConnection().close();
+        assertEquals(1, busy.getBorrowed());
+    }
+
+    @Test
+    public void testAnnotatedDeadlineOnlyTightens() throws Throwable {
+        DynamicDataSourceProcessor processor = new DynamicDataSourceProcessor();
+        DeadlineService service = new DeadlineService();
+        processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "find"));
+        assertTrue(service.remaining > 0 && service.remaining <= 5000);
+        assertEquals(0, ReadWriteDataSourceChoice.getDeadline());
+
+        ReadWriteDataSourceChoice.setTimeout(100);
+        processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "find"));
+        assertTrue(service.remaining <= 100);
+        // 切面外设置的截止时间只对这一次调用有效
+        assertEquals(0, ReadWriteDataSourceChoice.getDeadline());
+    }
+
+    private static DynamicDataSource newDynamicDataSource(DataSource write, ReadDataSourceHealthChecker healthChecker,
+        DataSource... reads) throws Exception {
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        for(int i = 0; i < reads.length; i++) {
+            readDataSourceMap.put("read" + (i + 1), reads[i]);
+        }
+        DynamicDataSource dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(write);
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.setHealthChecker(healthChecker);
+        dataSource.afterPropertiesSet();
+        return dataSource;
+    }
+
+    /**
+     * 模拟已满的commons-dbcp连接池
+     */
+    public static class ExhaustedDataSource extends StubDataSource {
+
+        public ExhaustedDataSource(String name) {
+            super(name);
+        }
+
+        public int getNumActive() {
+            return 8;
+        }
+
+        public int getNumIdle() {
+            return 0;
+        }
+
+        public int getMaxActive() {
+            return 8;
+        }
+
+        public long getMaxWait() {
+            return 30000;
+        }
+    }
+
+    public static class DeadlineService {
+
+        long remaining;
+
+        @RouteTo(DataSourceType.read)
+        @Deadline(5000)
+        public void find() {
+            remaining = ReadWriteDataSourceChoice.getRemainingMillis();
+        }
+    }
+}
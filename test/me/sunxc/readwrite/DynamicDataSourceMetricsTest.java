@@ -0,0 +1,122 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.failover.ReadDataSourceHealthChecker;
+import me.sunxc.common.datasource.metrics.DynamicDataSourceMetrics;
+import me.sunxc.common.datasource.metrics.LatencyHistogram;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 路由统计测试
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class DynamicDataSourceMetricsTest {
+
+    private StubDataSource write = new StubDataSource("write");
+    private StubDataSource read1 = new StubDataSource("read1");
+    private StubDataSource read2 = new StubDataSource("read2");
+
+    private DynamicDataSource dataSource;
+    private DynamicDataSourceMetrics metrics;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        readDataSourceMap.put("read1", read1);
+        readDataSourceMap.put("read2", read2);
+        metrics = new DynamicDataSourceMetrics();
+        dataSource = new DynamicDataSource();
+        dataSource.setBeanName("metricsTestDataSource");
+        dataSource.setWriteDataSource(write);
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.setMetrics(metrics);
+        dataSource.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        dataSource.destroy();
+        ReadWriteDataSourceChoice.reset();
+    }
+
+    @Test
+    public void testRoutedCounts() throws Exception {
+        ReadWriteDataSourceChoice.markRead();
+        for(int i = 0; i < 4; i++) {
+            dataSource.getConnection().close();
+        }
+        ReadWriteDataSourceChoice.markWrite();
+        dataSource.getConnection().close();
+
+        assertArrayEquals(new String[] {"write", "read1", "read2"}, metrics.getDataSourceNames());
+        assertArrayEquals(new long[] {1, 2, 2}, metrics.getRoutedCounts());
+        assertEquals(0, metrics.getFallbackCount());
+        assertEquals(2, metrics.getAcquireLatency(1).getCount());
+    }
+
+    @Test
+    public void testFallbackAndFailureCounted() throws Exception {
+        ReadDataSourceHealthChecker healthChecker = new ReadDataSourceHealthChecker();
+        healthChecker.setCheckIntervalMillis(0);
+        dataSource.destroy();
+        dataSource.setHealthChecker(healthChecker);
+        dataSource.afterPropertiesSet();
+        read1.setDown(true);
+        read2.setDown(true);
+
+        ReadWriteDataSourceChoice.markRead();
+        dataSource.getConnection().close();
+        // 两个读库都失败后回退到写库
+        assertArrayEquals(new long[] {0, 1, 1}, metrics.getAcquireFailureCounts());
+        assertArrayEquals(new long[] {1, 1, 1}, metrics.getRoutedCounts());
+        assertEquals(1, metrics.getFallbackCount());
+    }
+
+    @Test
+    public void testMBeanRegistered() throws Exception {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("me.sunxc.common.datasource:type=DynamicDataSource,name="
+            + ObjectName.quote("metricsTestDataSource"));
+        assertTrue(server.isRegistered(name));
+        assertEquals(0L, server.getAttribute(name, "FallbackCount"));
+        dataSource.destroy();
+        assertFalse(server.isRegistered(name));
+    }
+
+    @Test
+    public void testHistogramPercentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for(int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000L);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertWithin(500000, histogram.getPercentile(50));
+        assertWithin(990000, histogram.getPercentile(99));
+        assertWithin(999000, histogram.getPercentile(99.9));
+        histogram.reset();
+        assertEquals(0, histogram.getPercentile(99));
+    }
+
+    private static void assertWithin(long expected, long actual) {
+        // 子桶相对误差不超过1/16
+        assertTrue(expected + " vs " + actual, Math.abs(expected - actual) <= expected / 16);
+    }
+}
@@ -0,0 +1,151 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Properties;
+
+import me.sunxc.common.datasource.DynamicDataSourceProcessor;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+import me.sunxc.common.datasource.RouteTo;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.support.StaticApplicationContext;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.interceptor.NameMatchTransactionAttributeSource;
+
+/**
+ * 读/写方法匹配测试，不需要数据库
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class DynamicDataSourceProcessorTest {
+
+    private DynamicDataSourceProcessor processor;
+
+    @Before
+    public void setUp() {
+        Properties attributes = new Properties();
+        attributes.setProperty("find*", "PROPAGATION_REQUIRED,readOnly");
+        attributes.setProperty("findAndLock*", "PROPAGATION_REQUIRED");
+        attributes.setProperty("count", "PROPAGATION_REQUIRED");
+        attributes.setProperty("count*", "PROPAGATION_REQUIRED,readOnly");
+        attributes.setProperty("*", "PROPAGATION_REQUIRED");
+        NameMatchTransactionAttributeSource attributeSource = new NameMatchTransactionAttributeSource();
+        attributeSource.setProperties(attributes);
+
+        processor = new DynamicDataSourceProcessor();
+        processor.postProcessAfterInitialization(attributeSource, "txAdvice");
+    }
+
+    @After
+    public void tearDown() {
+        ReadWriteDataSourceChoice.reset();
+    }
+
+    @Test
+    public void testMostSpecificPatternWins() throws Throwable {
+        RecordingService service = new RecordingService();
+        assertEquals(DataSourceType.read, processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "findById")));
+        // findAndLock* 比 find* 更具体
+        assertEquals(DataSourceType.write, processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "findAndLockById")));
+        // 精确匹配优先于 count*
+        assertEquals(DataSourceType.write, processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "count")));
+        assertEquals(DataSourceType.read, processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "countAll")));
+        assertEquals(DataSourceType.write, processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "save")));
+        // 调用结束后重置
+        assertEquals(true, ReadWriteDataSourceChoice.isChoiceNone());
+    }
+
+    @Test
+    public void testBaseLayerClearedAfterOutermostCall() throws Throwable {
+        RecordingService service = new RecordingService();
+        ReadWriteDataSourceChoice.markWrite();
+        ReadWriteDataSourceChoice.setTimeout(1000);
+        assertEquals(DataSourceType.write, processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "findById")));
+        // 切面外设置的状态不会留到线程的下一个请求
+        assertEquals(true, ReadWriteDataSourceChoice.isChoiceNone());
+        assertEquals(0, ReadWriteDataSourceChoice.getDeadline());
+
+        // 嵌套调用退出时保留外层的选择
+        ReadWriteDataSourceChoice.push(DataSourceType.write, -1);
+        try {
+            processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "findById"));
+            assertEquals(true, ReadWriteDataSourceChoice.isChoiceWrite());
+        } finally {
+            ReadWriteDataSourceChoice.pop();
+        }
+        assertEquals(true, ReadWriteDataSourceChoice.isChoiceNone());
+    }
+
+    @Test
+    public void testAnnotationOverridesMethodName() throws Throwable {
+        AnnotatedService service = new AnnotatedService();
+        processor.postProcessAfterInitialization(service, "annotatedService");
+        processor.onApplicationEvent(new ContextRefreshedEvent(new StaticApplicationContext()));
+
+        assertEquals(DataSourceType.read, processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "save")));
+        assertEquals(DataSourceType.write, processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "findById")));
+        assertEquals(DataSourceType.read, processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "countAll")));
+        // 类上的@Transactional(readOnly=true)
+        assertEquals(DataSourceType.read, processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "findAndLockById")));
+    }
+
+    /**
+     * 每个方法返回调用时选择的读/写库
+     */
+    public static class RecordingService {
+
+        public DataSourceType findById() {
+            return current();
+        }
+
+        public DataSourceType findAndLockById() {
+            return current();
+        }
+
+        public DataSourceType count() {
+            return current();
+        }
+
+        public DataSourceType countAll() {
+            return current();
+        }
+
+        public DataSourceType save() {
+            return current();
+        }
+
+        private DataSourceType current() {
+            if(ReadWriteDataSourceChoice.isChoiceRead()) {
+                return DataSourceType.read;
+            }
+            return ReadWriteDataSourceChoice.isChoiceWrite() ? DataSourceType.write : null;
+        }
+    }
+
+    @Transactional(readOnly = true)
+    public static class AnnotatedService extends RecordingService {
+
+        @Override
+        @RouteTo(DataSourceType.read)
+        public DataSourceType save() {
+            return super.save();
+        }
+
+        @Override
+        @Transactional
+        public DataSourceType findById() {
+            return super.findById();
+        }
+
+        @Override
+        @Transactional(readOnly = true)
+        public DataSourceType countAll() {
+            return super.countAll();
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.failover.CircuitBreaker;
+import me.sunxc.common.datasource.failover.ReadDataSourceHealthChecker;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 读库故障转移测试，使用StubDataSource模拟读库宕机
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class FailoverTest {
+
+    private StubDataSource write = new StubDataSource("write");
+    private StubDataSource read1 = new StubDataSource("read1");
+    private StubDataSource read2 = new StubDataSource("read2");
+
+    private ReadDataSourceHealthChecker healthChecker;
+    private DynamicDataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        healthChecker = new ReadDataSourceHealthChecker();
+        healthChecker.setCheckIntervalMillis(0);
+        healthChecker.setOpenMillis(60000);
+
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        readDataSourceMap.put("read1", read1);
+        readDataSourceMap.put("read2", read2);
+        dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(write);
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.setHealthChecker(healthChecker);
+        dataSource.afterPropertiesSet();
+
+        ReadWriteDataSourceChoice.markRead();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ReadWriteDataSourceChoice.reset();
+        dataSource.destroy();
+    }
+
+    @Test
+    public void testEjectAndRetry() throws Exception {
+        read1.setDown(true);
+        for(int i = 0; i < 10; i++) {
+            dataSource.getConnection().close();
+        }
+        // 第一次失败后重试到read2，read1被摘除，之后全部走read2
+        assertEquals(10, read2.getBorrowed());
+        assertEquals(0, write.getBorrowed());
+        assertEquals(false, healthChecker.isAvailable(0));
+    }
+
+    @Test
+    public void testBusyReplicaNotEjected() throws Exception {
+        read1.setBusy(true);
+        for(int i = 0; i < 4; i++) {
+            dataSource.getConnection().close();
+        }
+        // 连接池满只换读库重试，不熔断
+        assertEquals(4, read2.getBorrowed());
+        assertEquals(true, healthChecker.isAvailable(0));
+        healthChecker.checkAll();
+        assertEquals(true, healthChecker.isAvailable(0));
+
+        read1.setBusy(false);
+        dataSource.getConnection().close();
+        dataSource.getConnection().close();
+        assertEquals(1, read1.getBorrowed());
+    }
+
+    @Test
+    public void testFallbackToWrite() throws Exception {
+        read1.setDown(true);
+        read2.setDown(true);
+        for(int i = 0; i < 3; i++) {
+            dataSource.getConnection().close();
+        }
+        assertEquals(3, write.getBorrowed());
+    }
+
+    @Test
+    public void testHealthCheckRecover() throws Exception {
+        read1.setDown(true);
+        healthChecker.checkAll();
+        assertEquals(false, healthChecker.isAvailable(0));
+
+        read1.setDown(false);
+        healthChecker.checkAll();
+        assertEquals(true, healthChecker.isAvailable(0));
+    }
+
+    @Test
+    public void testHalfOpenLetsOneProbeThrough() throws Exception {
+        CircuitBreaker breaker = new CircuitBreaker(1, 50);
+        assertEquals(true, breaker.onFailure());
+        assertEquals(false, breaker.isAvailable());
+        Thread.sleep(80);
+        // 半开只放过一个试探
+        assertEquals(true, breaker.isAvailable());
+        assertEquals(false, breaker.isAvailable());
+        breaker.onSuccess();
+        assertEquals(true, breaker.isAvailable());
+        assertEquals(true, breaker.isAvailable());
+    }
+
+    @Test
+    public void testHungReplicaDoesNotDelayOthers() throws Exception {
+        final CountDownLatch hung = new CountDownLatch(1);
+        StubDataSource unreachable = new StubDataSource("unreachable") {
+
+            @Override
+            public Connection getConnection() throws SQLException {
+                try {
+                    // 网络不通，获取连接一直不返回
+                    hung.await();
+                } catch(InterruptedException e) {
+                    throw new SQLException("interrupted");
+                }
+                return super.getConnection();
+            }
+        };
+        read2.setDown(true);
+        ReadDataSourceHealthChecker checker = new ReadDataSourceHealthChecker();
+        checker.setCheckIntervalMillis(0);
+        checker.setValidationTimeoutSeconds(1);
+        checker.init(new String[] {"unreachable", "read2"}, new DataSource[] {unreachable, read2});
+        try {
+            long start = System.currentTimeMillis();
+            checker.checkAll();
+            assertTrue(System.currentTimeMillis() - start < 3000);
+            // 其他读库照常摘除
+            assertEquals(false, checker.isAvailable(1));
+            assertEquals(true, checker.isAvailable(0));
+            // 下一轮探测时上一次还没有返回，熔断
+            checker.checkAll();
+            assertEquals(false, checker.isAvailable(0));
+        } finally {
+            hung.countDown();
+            checker.close();
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.hedge.HedgedReadExecutor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.dao.DataAccessException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.jdbc.core.ResultSetExtractor;
+
+/**
+ * 对冲读测试，不需要数据库
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class HedgedReadTest {
+
+    private static final String SQL = "select id, name from user where id = ?";
+
+    private StubDataSource write = new StubDataSource("hedge-write");
+    private StubDataSource read1 = new StubDataSource("hedge-read1");
+    private StubDataSource read2 = new StubDataSource("hedge-read2");
+
+    private DynamicDataSource dataSource;
+    private HedgedReadExecutor executor;
+
+    private ResultSetExtractor<String> extractor = new ResultSetExtractor<String>() {
+
+        @Override
+        public String extractData(ResultSet rs) throws SQLException, DataAccessException {
+            return "done";
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        readDataSourceMap.put("read1", read1);
+        readDataSourceMap.put("read2", read2);
+        dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(write);
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.afterPropertiesSet();
+
+        executor = new HedgedReadExecutor();
+        executor.setDataSource(dataSource);
+        executor.setDefaultDelayMillis(20);
+        executor.setMinDelayMillis(0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        executor.destroy();
+        dataSource.destroy();
+        ReadWriteDataSourceChoice.reset();
+    }
+
+    @Test
+    public void testHedgeOnStalledReplica() throws Exception {
+        executor.setMaxHedgeRatio(1);
+        executor.afterPropertiesSet();
+        assertEquals(20, executor.getHedgeDelayMillis(0));
+        read1.setQueryDelayMillis(5000);
+
+        long start = System.currentTimeMillis();
+        // 轮询先选中read1
+        assertEquals("done", executor.query(SQL, extractor, 1));
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(1, executor.getHedgeCount());
+        assertEquals(1, executor.getHedgeWinCount());
+        assertEquals(1, read2.getBorrowed());
+        // 卡住的查询被取消，连接归还
+        assertEquals(1, read1.getCancelled());
+        long deadline = System.currentTimeMillis() + 2000;
+        while(read1.getActive() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, read1.getActive());
+    }
+
+    @Test
+    public void testBudgetCapsHedges() throws Exception {
+        executor.setMaxHedgeRatio(0.5);
+        executor.setMaxHedgeBurst(1);
+        executor.afterPropertiesSet();
+        read1.setQueryDelayMillis(50);
+        read2.setQueryDelayMillis(50);
+
+        for(int i = 0; i < 10; i++) {
+            assertEquals("done", executor.query(SQL, extractor, i));
+        }
+        // 每次查询积累半次额度，只有一半的查询对冲
+        assertEquals(10, executor.getQueryCount());
+        assertEquals(5, executor.getHedgeCount());
+        assertEquals(5, executor.getBudgetRejectionCount());
+    }
+
+    @Test
+    public void testRetryOnAnotherReplicaWhenFailed() throws Exception {
+        executor.afterPropertiesSet();
+        read1.setDown(true);
+        assertEquals("done", executor.query(SQL, extractor, 1));
+        assertEquals(1, read2.getBorrowed());
+        assertEquals(0, executor.getHedgeCount());
+    }
+
+    @Test
+    public void testNoHedgeWhenChoiceWrite() throws Exception {
+        executor.afterPropertiesSet();
+        ReadWriteDataSourceChoice.markWrite();
+        assertEquals("done", executor.query(SQL, extractor, 1));
+        assertEquals(1, write.getBorrowed());
+        assertEquals(0, read1.getBorrowed() + read2.getBorrowed());
+        assertEquals(0, executor.getQueryCount());
+    }
+
+    @Test
+    public void testDeadlineBoundsHedgedRead() throws Exception {
+        executor.setMaxHedgeRatio(1);
+        executor.afterPropertiesSet();
+        read1.setQueryDelayMillis(5000);
+        read2.setQueryDelayMillis(5000);
+
+        ReadWriteDataSourceChoice.setTimeout(300);
+        long start = System.currentTimeMillis();
+        try {
+            executor.query(SQL, extractor, 1);
+            fail("deadline exceeded");
+        } catch(QueryTimeoutException e) {
+            // 截止时间到，不再等待
+        }
+        assertTrue(System.currentTimeMillis() - start < 2000);
+        assertEquals(1, executor.getHedgeCount());
+        // 执行线程上带着请求的截止时间，查询设置了超时
+        assertTrue(read1.getLastQueryTimeout() > 0);
+        assertTrue(read2.getLastQueryTimeout() > 0);
+        // 两个查询都被取消
+        assertEquals(1, read1.getCancelled());
+        assertEquals(1, read2.getCancelled());
+    }
+}
@@ -0,0 +1,210 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.failover.ReadDataSourceHealthChecker;
+import me.sunxc.common.datasource.loadbalance.LoadBalance;
+import me.sunxc.common.datasource.loadbalance.WeightedRoundRobinLoadBalance;
+import me.sunxc.common.datasource.pool.PooledDataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 运行时增删读库、调整权重测试，不需要数据库
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class HotReconfigurationTest {
+
+    private StubDataSource read1;
+    private StubDataSource read2;
+    private DynamicDataSource dataSource;
+
+    @Before
+    public void setUp() {
+        read1 = new StubDataSource("hot-read1");
+        read2 = new StubDataSource("hot-read2");
+        ReadWriteDataSourceChoice.markRead();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ReadWriteDataSourceChoice.reset();
+        if(dataSource != null) {
+            dataSource.destroy();
+        }
+    }
+
+    @Test
+    public void testAddReadDataSource() throws Exception {
+        dataSource = newDynamicDataSource(3, null, read1, read2);
+        StubDataSource read3 = new StubDataSource("hot-read3");
+        dataSource.addReadDataSource("read3", read3);
+        assertArrayEquals(new String[] {"read1", "read2", "read3"}, dataSource.getReadDataSourceNames());
+
+        borrow(30);
+        assertEquals(10, read1.getBorrowed());
+        assertEquals(10, read2.getBorrowed());
+        assertEquals(10, read3.getBorrowed());
+
+        try {
+            dataSource.addReadDataSource("read4", new StubDataSource("hot-read4"));
+            fail("no free slot");
+        } catch(IllegalStateException e) {
+            // 超过容量
+        }
+        try {
+            dataSource.addReadDataSource("read3", read3);
+            fail("duplicate name");
+        } catch(IllegalArgumentException e) {
+            // 名称重复
+        }
+    }
+
+    @Test
+    public void testRemoveDrainsBeforeClose() throws Exception {
+        PooledDataSource pool = new PooledDataSource();
+        pool.setDriverClassName(StubDriver.class.getName());
+        pool.setUrl(StubDriver.register(read1));
+        pool.setTimeBetweenEvictionRunsMillis(0);
+        pool.afterPropertiesSet();
+
+        dataSource = newDynamicDataSource(0, null, pool, read2);
+        dataSource.setDrainTimeoutMillis(10000);
+        Connection held = dataSource.getConnection();
+        Connection other = dataSource.getConnection();
+        // 轮询，两个连接分别来自两个读库
+        assertEquals(1, read1.getBorrowed());
+
+        dataSource.removeReadDataSource("read1");
+        assertArrayEquals(new String[] {"read2"}, dataSource.getReadDataSourceNames());
+        borrow(10);
+        assertEquals(1, read1.getBorrowed());
+
+        // 借出的连接未归还，不关闭
+        Thread.sleep(300);
+        assertEquals(1, read1.getActive());
+        held.close();
+        other.close();
+        long deadline = System.currentTimeMillis() + 5000;
+        while(read1.getActive() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(20);
+        }
+        assertEquals(0, read1.getActive());
+        assertEquals(0, pool.getTotalConnections());
+
+        // 摘除后空出的位置可以再加入新的读库
+        StubDataSource read3 = new StubDataSource("hot-read3");
+        dataSource.addReadDataSource("read3", read3);
+        borrow(4);
+        assertEquals(2, read3.getBorrowed());
+    }
+
+    @Test
+    public void testCannotRemoveLast() throws Exception {
+        dataSource = newDynamicDataSource(0, null, read1);
+        try {
+            dataSource.removeReadDataSource("read1");
+            fail("last read datasource");
+        } catch(IllegalStateException e) {
+            // 至少保留一个读库
+        }
+    }
+
+    @Test
+    public void testReweight() throws Exception {
+        dataSource = newDynamicDataSource(0, new WeightedRoundRobinLoadBalance(), read1, read2);
+        dataSource.setReadDataSourceWeight("read1", 3);
+        borrow(40);
+        assertEquals(30, read1.getBorrowed());
+        assertEquals(10, read2.getBorrowed());
+
+        dataSource.setReadDataSourceWeight("read2", 0);
+        borrow(10);
+        assertEquals(40, read1.getBorrowed());
+        try {
+            dataSource.setReadDataSourceWeight("read1", 0);
+            fail("all weights zero");
+        } catch(IllegalArgumentException e) {
+            // 至少一个读库的权重大于0，调整失败时保持原来的权重
+        }
+        borrow(1);
+        assertEquals(41, read1.getBorrowed());
+
+        try {
+            dataSource.removeReadDataSource("read1");
+            fail("only read2 with weight 0 left");
+        } catch(IllegalArgumentException e) {
+            // 负载均衡拒绝，读库集合不变
+        }
+        assertArrayEquals(new String[] {"read1", "read2"}, dataSource.getReadDataSourceNames());
+        borrow(1);
+        assertEquals(42, read1.getBorrowed());
+        assertEquals(0, read1.getActive());
+    }
+
+    @Test
+    public void testHealthCheckerFollowsReplicaSet() throws Exception {
+        ReadDataSourceHealthChecker healthChecker = new ReadDataSourceHealthChecker();
+        healthChecker.setCheckIntervalMillis(0);
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        readDataSourceMap.put("read1", read1);
+        readDataSourceMap.put("read2", read2);
+        dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(new StubDataSource("hot-write"));
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.setHealthChecker(healthChecker);
+        dataSource.setMaxReadDataSources(3);
+        dataSource.afterPropertiesSet();
+
+        read2.setDown(true);
+        borrow(4);
+        assertEquals(4, read1.getBorrowed());
+
+        StubDataSource read3 = new StubDataSource("hot-read3");
+        dataSource.addReadDataSource("read3", read3);
+        // read2的熔断状态保留，新读库可用
+        borrow(4);
+        assertEquals(8, read1.getBorrowed() + read3.getBorrowed());
+        assertTrue(read3.getBorrowed() > 0);
+        assertEquals(0, read2.getBorrowed());
+        healthChecker.checkAll();
+    }
+
+    private void borrow(int times) throws Exception {
+        for(int i = 0; i < times; i++) {
+            dataSource.getConnection().close();
+        }
+    }
+
+    private static DynamicDataSource newDynamicDataSource(int maxReadDataSources, LoadBalance loadBalance,
+        DataSource... reads) throws Exception {
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        for(int i = 0; i < reads.length; i++) {
+            readDataSourceMap.put("read" + (i + 1), reads[i]);
+        }
+        DynamicDataSource dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(new StubDataSource("hot-write"));
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.setMaxReadDataSources(maxReadDataSources);
+        if(loadBalance != null) {
+            dataSource.setLoadBalance(loadBalance);
+        }
+        dataSource.afterPropertiesSet();
+        assertTrue(dataSource.getReadDataSourceCount() >= reads.length);
+        return dataSource;
+    }
+}
@@ -0,0 +1,71 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 延迟获取连接测试
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class LazyConnectionTest {
+
+    private StubDataSource write = new StubDataSource("write");
+    private StubDataSource read = new StubDataSource("read");
+
+    private DynamicDataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        readDataSourceMap.put("read", read);
+        dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(write);
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.setLazyConnection(true);
+        dataSource.setDefaultAutoCommit(true);
+        dataSource.setDefaultTransactionIsolation(Connection.TRANSACTION_READ_COMMITTED);
+        dataSource.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        ReadWriteDataSourceChoice.reset();
+    }
+
+    @Test
+    public void testNoStatementNoBorrow() throws Exception {
+        ReadWriteDataSourceChoice.markWrite();
+        Connection con = dataSource.getConnection();
+        con.setAutoCommit(false);
+        con.setReadOnly(true);
+        con.commit();
+        con.close();
+        assertEquals(0, write.getBorrowed());
+        assertEquals(0, read.getBorrowed());
+    }
+
+    @Test
+    public void testRouteOnFirstStatement() throws Exception {
+        Connection con = dataSource.getConnection();
+        // 获取连接之后才确定是读
+        ReadWriteDataSourceChoice.markRead();
+        con.createStatement();
+        con.close();
+        assertEquals(0, write.getBorrowed());
+        assertEquals(1, read.getBorrowed());
+        assertEquals(0, read.getActive());
+    }
+}
@@ -0,0 +1,100 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.Connection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.loadbalance.LeastActiveLoadBalance;
+import me.sunxc.common.datasource.loadbalance.LoadBalance;
+import me.sunxc.common.datasource.loadbalance.PowerOfTwoChoicesLoadBalance;
+import me.sunxc.common.datasource.loadbalance.ReadDataSourceFilter;
+import me.sunxc.common.datasource.loadbalance.WeightedRoundRobinLoadBalance;
+
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * 读库负载均衡策略测试，使用StubDataSource，不需要数据库
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class LoadBalanceTest {
+
+    @After
+    public void reset() {
+        ReadWriteDataSourceChoice.reset();
+    }
+
+    @Test
+    public void testWeightedRoundRobin() {
+        WeightedRoundRobinLoadBalance loadBalance = new WeightedRoundRobinLoadBalance();
+        Map<String, Integer> weights = new HashMap<String, Integer>();
+        weights.put("a", 3);
+        weights.put("c", 0);
+        loadBalance.setWeights(weights);
+        loadBalance.init(new String[] {"a", "b", "c"});
+
+        int[] hits = new int[3];
+        for(int i = 0; i < 400; i++) {
+            hits[loadBalance.select(ReadDataSourceFilter.ALL)]++;
+        }
+        assertEquals(300, hits[0]);
+        assertEquals(100, hits[1]);
+        assertEquals(0, hits[2]);
+    }
+
+    @Test
+    public void testLeastActive() throws Exception {
+        StubDataSource read1 = new StubDataSource("read1");
+        StubDataSource read2 = new StubDataSource("read2");
+        DynamicDataSource dataSource = newDynamicDataSource(new LeastActiveLoadBalance(), read1, read2);
+
+        ReadWriteDataSourceChoice.markRead();
+        Connection held = dataSource.getConnection();
+        // 一个连接未归还，后续的读都应该落到另一个读库
+        for(int i = 0; i < 10; i++) {
+            dataSource.getConnection().close();
+        }
+        held.close();
+
+        StubDataSource busy = read1.getBorrowed() == 1 ? read1 : read2;
+        StubDataSource idle = busy == read1 ? read2 : read1;
+        assertEquals(1, busy.getBorrowed());
+        assertEquals(10, idle.getBorrowed());
+        assertEquals(0, read1.getActive() + read2.getActive());
+    }
+
+    @Test
+    public void testPowerOfTwoChoicesPrefersLowLatency() throws Exception {
+        PowerOfTwoChoicesLoadBalance loadBalance = new PowerOfTwoChoicesLoadBalance();
+        loadBalance.init(new String[] {"slow", "fast"});
+        loadBalance.onAcquire(0);
+        loadBalance.onRelease(0, 50000000L);
+        loadBalance.onAcquire(1);
+        loadBalance.onRelease(1, 1000000L);
+
+        for(int i = 0; i < 20; i++) {
+            assertEquals(1, loadBalance.select(ReadDataSourceFilter.ALL));
+        }
+    }
+
+    private DynamicDataSource newDynamicDataSource(LoadBalance loadBalance, DataSource... reads) throws Exception {
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        for(DataSource read: reads) {
+            readDataSourceMap.put(read.toString(), read);
+        }
+        DynamicDataSource dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(new StubDataSource("write"));
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.setLoadBalance(loadBalance);
+        dataSource.afterPropertiesSet();
+        return dataSource;
+    }
+}
@@ -0,0 +1,112 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.failover.ReadDataSourceHealthChecker;
+import me.sunxc.common.datasource.scan.ParallelRangeScanner;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.jdbc.core.RowMapper;
+
+/**
+ * 并行范围扫描测试
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ParallelRangeScannerTest {
+
+    private static final String SQL = "select id, name from user where id >= ? and id < ? order by id";
+
+    private StubDataSource write = new StubDataSource("write");
+    private StubDataSource read1 = new StubDataSource("read1");
+    private StubDataSource read2 = new StubDataSource("read2");
+
+    private DynamicDataSource dataSource;
+    private ParallelRangeScanner scanner;
+
+    private RowMapper<Integer> rowMapper = new RowMapper<Integer>() {
+
+        @Override
+        public Integer mapRow(ResultSet rs, int rowNum) throws SQLException {
+            return rs.getInt("id");
+        }
+    };
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        readDataSourceMap.put("read1", read1);
+        readDataSourceMap.put("read2", read2);
+        ReadDataSourceHealthChecker healthChecker = new ReadDataSourceHealthChecker();
+        healthChecker.setCheckIntervalMillis(0);
+        dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(write);
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.setHealthChecker(healthChecker);
+        dataSource.afterPropertiesSet();
+
+        scanner = new ParallelRangeScanner();
+        scanner.setDataSource(dataSource);
+        scanner.setChunkSize(100);
+        scanner.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        scanner.destroy();
+        dataSource.destroy();
+        ReadWriteDataSourceChoice.reset();
+    }
+
+    @Test
+    public void testChunksSpreadOverReplicasInOrder() {
+        final List<Long> ranges = new ArrayList<Long>();
+        scanner.scan(SQL, rowMapper, 0, 950, new ParallelRangeScanner.ChunkHandler<Integer>() {
+
+            @Override
+            public void handle(long fromKey, long toKey, List<Integer> rows) {
+                ranges.add(fromKey);
+                ranges.add(toKey);
+            }
+        });
+        assertEquals(20, ranges.size());
+        for(int i = 0; i < 10; i++) {
+            assertEquals(i * 100L, ranges.get(i * 2).longValue());
+            assertEquals(Math.min(950L, (i + 1) * 100L), ranges.get(i * 2 + 1).longValue());
+        }
+        assertEquals(5, read1.getBorrowed());
+        assertEquals(5, read2.getBorrowed());
+        assertEquals(0, write.getBorrowed());
+        assertEquals(0, read1.getActive() + read2.getActive());
+    }
+
+    @Test
+    public void testFailedReplicaChunksRetried() {
+        read2.setDown(true);
+        scanner.scan(SQL, rowMapper, 0, 400);
+        // read2上的第一块失败后熔断，重试走read1；之后的块都在read1上
+        assertEquals(4, read1.getBorrowed());
+        assertEquals(0, write.getBorrowed());
+    }
+
+    @Test
+    public void testNoReplicaFallsBackToWrite() {
+        read1.setDown(true);
+        read2.setDown(true);
+        scanner.scan(SQL, rowMapper, 0, 300);
+        assertEquals(3, write.getBorrowed());
+    }
+}
@@ -0,0 +1,282 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.sunxc.common.datasource.pool.PooledDataSource;
+
+import org.apache.log4j.AppenderSkeleton;
+import org.apache.log4j.Logger;
+import org.apache.log4j.spi.LoggingEvent;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 连接池测试
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class PooledDataSourceTest {
+
+    private static final AtomicInteger sequence = new AtomicInteger();
+
+    private StubDataSource db;
+    private PooledDataSource pool;
+
+    @Before
+    public void setUp() {
+        db = new StubDataSource("pool" + sequence.incrementAndGet());
+        pool = new PooledDataSource();
+        pool.setDriverClassName(StubDriver.class.getName());
+        pool.setUrl(StubDriver.register(db));
+        pool.setTimeBetweenEvictionRunsMillis(0);
+    }
+
+    @After
+    public void tearDown() {
+        pool.close();
+    }
+
+    @Test
+    public void testConnectionReused() throws Exception {
+        pool.setInitialSize(2);
+        pool.afterPropertiesSet();
+        assertEquals(2, db.getBorrowed());
+        for(int i = 0; i < 10; i++) {
+            Connection con = pool.getConnection();
+            con.close();
+            assertTrue(con.isClosed());
+        }
+        assertEquals(2, db.getBorrowed());
+        assertEquals(2, pool.getNumIdle());
+    }
+
+    @Test
+    public void testMaxWait() throws Exception {
+        pool.setMaxActive(1);
+        pool.setMaxWait(50);
+        pool.afterPropertiesSet();
+        Connection con = pool.getConnection();
+        try {
+            pool.getConnection();
+            fail("pool exhausted");
+        } catch(SQLException e) {
+            // 等待超时
+        }
+        con.close();
+        pool.getConnection().close();
+        assertEquals(1, db.getBorrowed());
+    }
+
+    @Test
+    public void testHandoffToWaiter() throws Exception {
+        pool.setMaxActive(1);
+        pool.setMaxWait(5000);
+        pool.afterPropertiesSet();
+        Connection con = pool.getConnection();
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            Future<Connection> waiter = executor.submit(new java.util.concurrent.Callable<Connection>() {
+
+                @Override
+                public Connection call() throws Exception {
+                    return pool.getConnection();
+                }
+            });
+            Thread.sleep(50);
+            con.close();
+            waiter.get(5, TimeUnit.SECONDS).close();
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(1, db.getBorrowed());
+    }
+
+    @Test
+    public void testValidationSkippedForRecentlyUsed() throws Exception {
+        pool.setValidationIntervalMillis(60000);
+        pool.afterPropertiesSet();
+        pool.getConnection().close();
+        db.setDown(true);
+        // 刚用过，不校验
+        pool.getConnection().close();
+    }
+
+    @Test
+    public void testStaleConnectionValidated() throws Exception {
+        pool.setValidationIntervalMillis(0);
+        pool.afterPropertiesSet();
+        pool.getConnection().close();
+        Thread.sleep(5);
+        db.setDown(true);
+        try {
+            pool.getConnection();
+            fail("connection invalid and database down");
+        } catch(SQLException e) {
+            // 校验失败后关闭，重新创建失败
+        }
+        assertEquals(0, pool.getTotalConnections());
+        assertEquals(0, db.getActive());
+    }
+
+    @Test
+    public void testConnectionErrorOnStatementClosesConnection() throws Exception {
+        pool.setValidationIntervalMillis(60000);
+        pool.afterPropertiesSet();
+        Connection con = pool.getConnection();
+        db.setQueryFailureSqlState("08S01");
+        try {
+            con.prepareStatement("select 1").executeQuery();
+            fail("communications link failure");
+        } catch(SQLException e) {
+            assertEquals("08S01", e.getSQLState());
+        }
+        con.close();
+        // 刚用过也不会再借出，重新创建
+        db.setQueryFailureSqlState(null);
+        assertEquals(0, db.getActive());
+        pool.getConnection().close();
+        assertEquals(2, db.getBorrowed());
+    }
+
+    @Test
+    public void testStatementsClosedOnReturn() throws Exception {
+        pool.afterPropertiesSet();
+        Connection con = pool.getConnection();
+        Statement stmt = con.createStatement();
+        PreparedStatement psst = con.prepareStatement("select 1");
+        // 不暴露物理连接
+        assertSame(con, stmt.getConnection());
+        assertSame(con, psst.executeQuery().getStatement().getConnection());
+        stmt.close();
+        assertEquals(1, db.getOpenStatements());
+
+        con.close();
+        assertEquals(0, db.getOpenStatements());
+        assertTrue(psst.isClosed());
+        try {
+            psst.executeQuery();
+            fail("statement of a returned connection");
+        } catch(SQLException e) {
+            // 连接已归还
+        }
+        assertEquals(1, db.getActive());
+    }
+
+    @Test
+    public void testAbandonedConnectionRemoved() throws Exception {
+        pool.setRemoveAbandoned(true);
+        pool.setRemoveAbandonedTimeout(0);
+        pool.setTimeBetweenEvictionRunsMillis(10);
+        pool.afterPropertiesSet();
+        Connection con = pool.getConnection();
+        long deadline = System.currentTimeMillis() + 2000;
+        while(db.getActive() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, db.getActive());
+        try {
+            con.createStatement();
+            fail("abandoned connection");
+        } catch(SQLException e) {
+            // 已被回收
+        }
+        con.close();
+        assertEquals(0, pool.getTotalConnections());
+    }
+
+    @Test
+    public void testAbandonedReclaimRacesWithReturn() throws Exception {
+        pool.setRemoveAbandoned(true);
+        pool.setRemoveAbandonedTimeout(0);
+        pool.setTimeBetweenEvictionRunsMillis(10);
+        pool.afterPropertiesSet();
+        final Connection con = pool.getConnection();
+        final CountDownLatch returned = new CountDownLatch(1);
+        // 后台检查发现泄漏、准备回收时，借出方正好归还了连接
+        AppenderSkeleton returnOnLeakWarning = new AppenderSkeleton() {
+
+            @Override
+            protected void append(LoggingEvent event) {
+                if(String.valueOf(event.getMessage()).contains("has not been returned") && returned.getCount() > 0) {
+                    try {
+                        con.close();
+                    } catch(SQLException e) {
+                        throw new IllegalStateException(e);
+                    }
+                    returned.countDown();
+                }
+            }
+
+            @Override
+            public boolean requiresLayout() {
+                return false;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        Logger logger = Logger.getLogger(PooledDataSource.class);
+        logger.addAppender(returnOnLeakWarning);
+        try {
+            assertTrue(returned.await(2, TimeUnit.SECONDS));
+        } finally {
+            logger.removeAppender(returnOnLeakWarning);
+        }
+        pool.setRemoveAbandoned(false);
+
+        // 已归还的连接不再被回收：物理连接仍然打开，可以正常借出
+        assertEquals(1, db.getActive());
+        assertEquals(1, pool.getTotalConnections());
+        Connection next = pool.getConnection();
+        next.createStatement().close();
+        next.close();
+        assertEquals(1, pool.getNumIdle());
+    }
+
+    @Test
+    public void testConcurrentBorrow() throws Exception {
+        pool.setMaxActive(4);
+        pool.setMaxWait(10000);
+        pool.afterPropertiesSet();
+        final int threads = 16;
+        final CountDownLatch done = new CountDownLatch(threads);
+        final AtomicInteger errors = new AtomicInteger();
+        for(int i = 0; i < threads; i++) {
+            new Thread(new Runnable() {
+
+                @Override
+                public void run() {
+                    try {
+                        for(int j = 0; j < 500; j++) {
+                            pool.getConnection().close();
+                        }
+                    } catch(SQLException e) {
+                        errors.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, errors.get());
+        assertTrue(db.getBorrowed() <= 4);
+        assertEquals(0, pool.getNumActive());
+    }
+}
@@ -0,0 +1,228 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.bulkhead.BulkheadRejectedException;
+import me.sunxc.common.datasource.bulkhead.ReadBulkhead;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 读库舱壁测试：并发上限、溢出到其他读库/写库、排队和拒绝，不需要数据库
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ReadBulkheadTest {
+
+    private StubDataSource write;
+    private StubDataSource read1;
+    private StubDataSource read2;
+    private ReadBulkhead bulkhead;
+    private DynamicDataSource dataSource;
+
+    @Before
+    public void setUp() {
+        write = new StubDataSource("bulkhead-write");
+        read1 = new StubDataSource("bulkhead-read1");
+        read2 = new StubDataSource("bulkhead-read2");
+        bulkhead = new ReadBulkhead();
+        bulkhead.setMaxConcurrency(1);
+        ReadWriteDataSourceChoice.markRead();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ReadWriteDataSourceChoice.reset();
+        if(dataSource != null) {
+            dataSource.destroy();
+        }
+    }
+
+    @Test
+    public void testFullReplicaSpillsToOtherReplica() throws Exception {
+        dataSource = newDynamicDataSource(read1, read2);
+        Connection held = dataSource.getConnection();
+        assertEquals(1, read1.getBorrowed());
+        assertEquals(1, bulkhead.getInFlight(0));
+
+        borrow(4);
+        assertEquals(1, read1.getBorrowed());
+        assertEquals(4, read2.getBorrowed());
+        assertTrue(bulkhead.getRejectedCount(0) > 0);
+        assertEquals(0, write.getBorrowed());
+
+        held.close();
+        assertEquals(0, bulkhead.getInFlight(0));
+        borrow(2);
+        assertEquals(2, read1.getBorrowed());
+    }
+
+    @Test
+    public void testHasCapacityDoesNotCount() throws Exception {
+        dataSource = newDynamicDataSource(read1, read2);
+        Connection held = dataSource.getConnection();
+        for(int i = 0; i < 10; i++) {
+            assertFalse(bulkhead.hasCapacity(0));
+        }
+        assertEquals(0, bulkhead.getRejectedCount(0));
+        assertFalse(bulkhead.tryAcquire(0));
+        assertEquals(1, bulkhead.getRejectedCount(0));
+
+        // 一次路由只计一次，不随负载均衡策略扫描的次数增加
+        dataSource.getConnection().close();
+        assertEquals(2, bulkhead.getRejectedCount(0));
+        held.close();
+    }
+
+    @Test
+    public void testSpillToWriteOnlyWithinHeadroom() throws Exception {
+        bulkhead.setWriteHeadroom(1);
+        dataSource = newDynamicDataSource(read1);
+        Connection held = dataSource.getConnection();
+        Connection spilled = dataSource.getConnection();
+        assertEquals(1, write.getBorrowed());
+        assertEquals(1, bulkhead.getWriteInFlight());
+        try {
+            dataSource.getConnection();
+            fail("write headroom used up");
+        } catch(BulkheadRejectedException e) {
+            // 读库已满，写库余量已用完，不等待
+        }
+        assertEquals(1, bulkhead.getRejectedCount());
+        assertEquals(1, write.getBorrowed());
+
+        spilled.close();
+        dataSource.getConnection().close();
+        assertEquals(2, write.getBorrowed());
+        assertEquals(2, bulkhead.getSpilledToWriteCount());
+
+        held.close();
+        borrow(1);
+        assertEquals(2, read1.getBorrowed());
+        String[] status = dataSource.getBulkheadStatus();
+        // 读库已满时路由了3次，每次计1
+        assertEquals("read1 inFlight=0 limit=1 rejected=3", status[0]);
+        assertEquals("write inFlight=0 headroom=1 spilled=2", status[1]);
+        assertEquals("queue depth=0 queued=0 rejected=1", status[2]);
+    }
+
+    @Test
+    public void testQueuedReadGetsReleasedPermit() throws Exception {
+        bulkhead.setMaxQueueWaitMillis(5000);
+        dataSource = newDynamicDataSource(read1);
+        final Connection held = dataSource.getConnection();
+        Thread releaser = new Thread(new Runnable() {
+
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(100);
+                    held.close();
+                } catch(Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        });
+        releaser.start();
+        dataSource.getConnection().close();
+        releaser.join();
+        assertEquals(2, read1.getBorrowed());
+        assertEquals(1, bulkhead.getQueuedCount());
+        assertEquals(0, bulkhead.getQueueDepth());
+        assertEquals(0, bulkhead.getRejectedCount());
+    }
+
+    @Test
+    public void testQueueWaitBoundedByDeadline() throws Exception {
+        bulkhead.setMaxQueueWaitMillis(30000);
+        dataSource = newDynamicDataSource(read1);
+        Connection held = dataSource.getConnection();
+        ReadWriteDataSourceChoice.setTimeout(200);
+        long start = System.currentTimeMillis();
+        try {
+            dataSource.getConnection();
+            fail("no permit released");
+        } catch(BulkheadRejectedException e) {
+            // 只排队到截止时间
+        }
+        assertTrue(System.currentTimeMillis() - start < 5000);
+        held.close();
+    }
+
+    @Test
+    public void testAdaptiveLimitBacksOff() throws Exception {
+        bulkhead.setMaxConcurrency(10);
+        bulkhead.setMinConcurrency(2);
+        bulkhead.setAdaptive(true);
+        // 任何占用都视为拥塞
+        bulkhead.setLatencyThresholdMillis(-1);
+        dataSource = newDynamicDataSource(read1);
+        assertEquals(10, bulkhead.getLimit(0));
+        borrow(5);
+        assertTrue(bulkhead.getLimit(0) < 10);
+        borrow(100);
+        assertEquals(2, bulkhead.getLimit(0));
+    }
+
+    @Test
+    public void testOnlyPoolWaitTimeoutBacksOff() throws Exception {
+        bulkhead.setMaxConcurrency(10);
+        bulkhead.setAdaptive(true);
+        bulkhead.setLatencyThresholdMillis(60000);
+        dataSource = newDynamicDataSource(read1);
+        // 认证/网络等错误与负载无关
+        read1.setDown(true);
+        failToBorrow(5);
+        assertEquals(10, bulkhead.getLimit(0));
+
+        // 连接池等待超时是拥塞
+        read1.setDown(false);
+        read1.setBusy(true);
+        failToBorrow(5);
+        assertTrue(bulkhead.getLimit(0) < 10);
+    }
+
+    private void failToBorrow(int times) throws Exception {
+        for(int i = 0; i < times; i++) {
+            try {
+                dataSource.getConnection();
+                fail("read datasource failed");
+            } catch(SQLException e) {
+                // 没有其他读库
+            }
+        }
+    }
+
+    private void borrow(int times) throws Exception {
+        for(int i = 0; i < times; i++) {
+            dataSource.getConnection().close();
+        }
+    }
+
+    private DynamicDataSource newDynamicDataSource(DataSource... reads) throws Exception {
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        for(int i = 0; i < reads.length; i++) {
+            readDataSourceMap.put("read" + (i + 1), reads[i]);
+        }
+        DynamicDataSource dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(write);
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.setBulkhead(bulkhead);
+        dataSource.afterPropertiesSet();
+        return dataSource;
+    }
+}
@@ -0,0 +1,117 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.cache.ReadThroughCache;
+import me.sunxc.common.datasource.lag.ReplicationLagMonitor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 读缓存测试
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ReadThroughCacheTest {
+
+    private ReadThroughCache<Integer, String> cache;
+
+    private final AtomicInteger loads = new AtomicInteger();
+    private volatile String stored = "v1";
+
+    private final ReadThroughCache.Loader<Integer, String> loader = new ReadThroughCache.Loader<Integer, String>() {
+
+        @Override
+        public String load(Integer key) {
+            loads.incrementAndGet();
+            return stored;
+        }
+    };
+
+    @Before
+    public void setUp() {
+        cache = new ReadThroughCache<Integer, String>();
+        cache.setTtlMillis(60000);
+        cache.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        ReadWriteDataSourceChoice.reset();
+    }
+
+    @Test
+    public void testHitAndInvalidate() {
+        ReadWriteDataSourceChoice.markRead();
+        assertEquals("v1", cache.get(1, loader));
+        assertEquals("v1", cache.get(1, loader));
+        assertEquals(1, loads.get());
+
+        stored = "v2";
+        cache.invalidate(1);
+        // 失效标记期间不缓存，每次都从数据库加载
+        assertEquals("v2", cache.get(1, loader));
+        assertEquals("v2", cache.get(1, loader));
+        assertEquals(3, loads.get());
+    }
+
+    @Test
+    public void testInvalidationSurvivesEviction() {
+        cache.setMaxSize(16);
+        cache.afterPropertiesSet();
+        ReadWriteDataSourceChoice.markRead();
+        cache.invalidate(1);
+        // 填满同一分段，失效标记不能随LRU条目一起被淘汰
+        for(int i = 2; i < 1000; i++) {
+            cache.get(i, loader);
+        }
+        stored = "stale";
+        cache.get(1, loader);
+        stored = "v2";
+        assertEquals("v2", cache.get(1, loader));
+    }
+
+    @Test
+    public void testWriteChoiceBypassesCache() {
+        ReadWriteDataSourceChoice.markRead();
+        cache.get(1, loader);
+        stored = "v2";
+        ReadWriteDataSourceChoice.markWrite();
+        assertEquals("v2", cache.get(1, loader));
+        ReadWriteDataSourceChoice.markRead();
+        assertEquals("v1", cache.get(1, loader));
+    }
+
+    @Test
+    public void testNullNotCached() {
+        stored = null;
+        assertNull(cache.get(1, loader));
+        assertNull(cache.get(1, loader));
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testExpire() throws Exception {
+        cache.setTtlMillis(20);
+        cache.afterPropertiesSet();
+        cache.get(1, loader);
+        Thread.sleep(40);
+        cache.get(1, loader);
+        assertEquals(2, loads.get());
+    }
+
+    @Test
+    public void testTtlCappedByLagBound() {
+        ReplicationLagMonitor lagMonitor = new ReplicationLagMonitor();
+        lagMonitor.setMaxLagMillis(500);
+        cache.setLagMonitor(lagMonitor);
+        cache.afterPropertiesSet();
+        assertEquals(500, cache.getTtlMillis());
+    }
+}
@@ -1,9 +1,15 @@
 package me.sunxc.readwrite;
 
+import java.util.ArrayList;
+import java.util.List;
+
+import me.sunxc.dao.AddressDao;
+import me.sunxc.dao.UserDao;
 import me.sunxc.model.Address;
 import me.sunxc.model.User;
 import me.sunxc.service.UserService;
 
+import org.junit.Assert;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.slf4j.Logger;
@@ -30,6 +36,12 @@ public class ReadWriteDBTestWithNoForceChoiceReadOnWriteTrue {
     @Autowired
     private UserService userService;
     
+    @Autowired
+    private UserDao userDao;
+    
+    @Autowired
+    private AddressDao addressDao;
+    
     @Test
     public void testOnlyRead() {
         log.debug("test only read============begin");
@@ -53,6 +65,40 @@ public class ReadWriteDBTestWithNoForceChoiceReadOnWriteTrue {
         log.debug("test only write============end");
     }
     
+    @Test
+    public void testBatchWrite() {
+        log.debug("test batch write============begin");
+        List<User> users = new ArrayList<User>();
+        List<Address> addresses = new ArrayList<Address>();
+        for(int i = 0; i < 10; i++) {
+            users.add(genUser());
+            addresses.add(genAddress());
+        }
+        // 每批3行，10行分4批（3+3+3+1），验证跨批次回填id
+        userDao.setBatchSize(3);
+        addressDao.setBatchSize(3);
+        try {
+            userService.save(users, addresses); //1  choice write datasource  所有批次在同一个事务中
+        } finally {
+            userDao.setBatchSize(500);
+            addressDao.setBatchSize(500);
+        }
+        
+        for(int i = 0; i < users.size(); i++) {
+            Assert.assertTrue(users.get(i).getId() > 0);
+            Assert.assertTrue(addresses.get(i).getId() > 0);
+            if(i > 0) {
+                // 同一连接上按顺序插入，每批回填的id接在上一批之后，没有错位或重复
+                Assert.assertTrue(users.get(i).getId() > users.get(i - 1).getId());
+                Assert.assertTrue(addresses.get(i).getId() > addresses.get(i - 1).getId());
+            }
+            Assert.assertEquals(users.get(i).getId(), addresses.get(i).getUserId());
+        }
+        for(int i = 0; i < users.size(); i++) {
+            userService.delete(users.get(i).getId()); //2  choice write datasource
+        }
+        log.debug("test batch write============end");
+    }
 
     @Test
     public void testFirstReadNextWrite() {
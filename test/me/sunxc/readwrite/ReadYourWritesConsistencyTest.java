@@ -0,0 +1,140 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.DynamicDataSourceProcessor;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+import me.sunxc.common.datasource.RouteTo;
+import me.sunxc.common.datasource.consistency.LocalSessionTokenStore;
+import me.sunxc.common.datasource.consistency.ReadYourWritesConsistency;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.context.event.ContextRefreshedEvent;
+import org.springframework.context.support.StaticApplicationContext;
+
+/**
+ * 会话级别读己之写测试
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ReadYourWritesConsistencyTest {
+
+    @After
+    public void tearDown() {
+        ReadYourWritesConsistency.unbindSession();
+        ReadWriteDataSourceChoice.reset();
+    }
+
+    @Test
+    public void testWindow() throws Exception {
+        LocalSessionTokenStore tokenStore = new LocalSessionTokenStore();
+        ReadYourWritesConsistency consistency = new ReadYourWritesConsistency();
+        consistency.setTokenStore(tokenStore);
+        consistency.setWindowMillis(200);
+
+        ReadYourWritesConsistency.bindSession("user1");
+        assertEquals(-1, consistency.getSessionMaxStaleness());
+        consistency.recordWrite();
+        assertTrue(consistency.getSessionMaxStaleness() >= 0);
+
+        // 其他会话不受影响
+        ReadYourWritesConsistency.bindSession("user2");
+        assertEquals(-1, consistency.getSessionMaxStaleness());
+
+        // 超过窗口后恢复正常
+        tokenStore.recordWrite("user1", System.currentTimeMillis() - 250);
+        ReadYourWritesConsistency.bindSession("user1");
+        assertEquals(-1, consistency.getSessionMaxStaleness());
+    }
+
+    @Test
+    public void testSessionReadsItsWrites() throws Throwable {
+        ReadYourWritesConsistency consistency = new ReadYourWritesConsistency();
+        consistency.setWindowMillis(60000);
+        assertSessionReadsFromWrite(consistency);
+    }
+
+    @Test
+    public void testCatchUpAwareWithoutLagMonitor() throws Throwable {
+        // 没有lagMonitor时不知道读库是否已追上，不能随便选一个读库
+        ReadYourWritesConsistency consistency = new ReadYourWritesConsistency();
+        consistency.setWindowMillis(60000);
+        consistency.setCatchUpAware(true);
+        assertSessionReadsFromWrite(consistency);
+    }
+
+    private void assertSessionReadsFromWrite(ReadYourWritesConsistency consistency) throws Throwable {
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        readDataSourceMap.put("read1", new StubDataSource("ryw-read"));
+        DynamicDataSource dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(new StubDataSource("ryw-write"));
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.afterPropertiesSet();
+        try {
+            DynamicDataSourceProcessor processor = new DynamicDataSourceProcessor();
+            processor.setSessionConsistency(consistency);
+            UserService service = new UserService(dataSource);
+            processor.postProcessAfterInitialization(service, "userService");
+            processor.onApplicationEvent(new ContextRefreshedEvent(new StaticApplicationContext()));
+
+            ReadYourWritesConsistency.bindSession("user1");
+            assertEquals("ryw-read", processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "find")));
+            assertEquals("ryw-write", processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "save")));
+            // 同一会话写之后的读走写库
+            assertEquals("ryw-write", processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "find")));
+
+            // 其他会话不受影响
+            ReadYourWritesConsistency.bindSession("user2");
+            assertEquals("ryw-read", processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "find")));
+        } finally {
+            dataSource.destroy();
+        }
+    }
+
+    @Test
+    public void testNoSession() {
+        ReadYourWritesConsistency consistency = new ReadYourWritesConsistency();
+        consistency.recordWrite();
+        assertEquals(-1, consistency.getSessionMaxStaleness());
+    }
+
+    public static class UserService {
+
+        private final DataSource dataSource;
+
+        public UserService(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        @RouteTo(DataSourceType.read)
+        public String find() throws SQLException {
+            return currentDataSource();
+        }
+
+        @RouteTo(DataSourceType.write)
+        public String save() throws SQLException {
+            return currentDataSource();
+        }
+
+        private String currentDataSource() throws SQLException {
+            Connection con = dataSource.getConnection();
+            try {
+                String name = con.toString();
+                return name.substring(name.indexOf('[') + 1, name.length() - 1);
+            } finally {
+                con.close();
+            }
+        }
+    }
+}
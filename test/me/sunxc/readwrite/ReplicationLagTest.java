@@ -0,0 +1,131 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.lag.ReplicationLagMonitor;
+import me.sunxc.common.datasource.lag.ReplicationLagProbe;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 按复制延迟选择读库测试，延迟由本地probe指定
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ReplicationLagTest {
+
+    private StubDataSource write = new StubDataSource("write");
+    private StubDataSource read1 = new StubDataSource("read1");
+    private StubDataSource read2 = new StubDataSource("read2");
+
+    private Map<DataSource, Long> lags = new LinkedHashMap<DataSource, Long>();
+
+    private ReplicationLagMonitor lagMonitor;
+    private DynamicDataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        lags.put(read1, 100L);
+        lags.put(read2, 5000L);
+
+        lagMonitor = new ReplicationLagMonitor();
+        lagMonitor.setSampleIntervalMillis(0);
+        lagMonitor.setMaxLagMillis(1000);
+        lagMonitor.setProbe(new ReplicationLagProbe() {
+
+            @Override
+            public long probeLagMillis(DataSource dataSource) throws SQLException {
+                return lags.get(dataSource);
+            }
+        });
+
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        readDataSourceMap.put("read1", read1);
+        readDataSourceMap.put("read2", read2);
+        dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(write);
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.setLagMonitor(lagMonitor);
+        dataSource.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ReadWriteDataSourceChoice.reset();
+        dataSource.destroy();
+    }
+
+    @Test
+    public void testSkipLaggingReplica() throws Exception {
+        ReadWriteDataSourceChoice.markRead();
+        for(int i = 0; i < 10; i++) {
+            dataSource.getConnection().close();
+        }
+        assertEquals(10, read1.getBorrowed());
+        assertEquals(0, read2.getBorrowed());
+    }
+
+    @Test
+    public void testMaxStaleness() throws Exception {
+        // 能容忍10秒延迟，两个读库都可以
+        ReadWriteDataSourceChoice.markRead(10000);
+        for(int i = 0; i < 10; i++) {
+            dataSource.getConnection().close();
+        }
+        assertEquals(5, read1.getBorrowed());
+        assertEquals(5, read2.getBorrowed());
+
+        // 只能容忍10毫秒延迟，没有满足的读库，走写库
+        ReadWriteDataSourceChoice.markRead(10);
+        dataSource.getConnection().close();
+        assertEquals(1, write.getBorrowed());
+    }
+
+    @Test
+    public void testHungReplicaDoesNotStallOthers() throws Exception {
+        final CountDownLatch hung = new CountDownLatch(1);
+        ReplicationLagMonitor monitor = new ReplicationLagMonitor();
+        monitor.setSampleIntervalMillis(20);
+        monitor.setProbeTimeoutMillis(200);
+        monitor.setProbe(new ReplicationLagProbe() {
+
+            @Override
+            public long probeLagMillis(DataSource dataSource) throws SQLException {
+                if(dataSource == read1) {
+                    try {
+                        // 不可达的读库，探测一直不返回
+                        hung.await();
+                    } catch(InterruptedException e) {
+                        throw new SQLException("interrupted");
+                    }
+                }
+                return 100L;
+            }
+        });
+        long start = System.currentTimeMillis();
+        monitor.init(new String[] {"read1", "read2"}, new DataSource[] {read1, read2});
+        try {
+            // 启动不被卡住的读库阻塞
+            assertTrue(System.currentTimeMillis() - start < 5000);
+            Thread.sleep(200);
+            assertEquals(ReplicationLagMonitor.UNKNOWN, monitor.getLagMillis(0));
+            // 其他读库照常采样，不会因为超过3个采样周期而过期
+            assertTrue(monitor.isFresh(1, -1));
+        } finally {
+            hung.countDown();
+            monitor.close();
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+import me.sunxc.common.datasource.RoutingScope;
+import me.sunxc.common.datasource.concurrent.RoutingContextExecutorService;
+import me.sunxc.common.datasource.concurrent.RoutingContextSnapshot;
+import me.sunxc.common.datasource.consistency.ReadYourWritesConsistency;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 读/写选择传递到线程池测试
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class RoutingContextPropagationTest {
+
+    private ExecutorService worker;
+
+    @Before
+    public void setUp() {
+        worker = Executors.newSingleThreadExecutor();
+    }
+
+    @After
+    public void tearDown() {
+        worker.shutdownNow();
+        ReadWriteDataSourceChoice.reset();
+        ReadYourWritesConsistency.unbindSession();
+    }
+
+    @Test
+    public void testExecutorServicePropagates() throws Exception {
+        ExecutorService executor = new RoutingContextExecutorService(worker);
+        RoutingScope scope = RoutingScope.read(300);
+        ReadYourWritesConsistency.bindSession("u1");
+        RoutingContextSnapshot seen;
+        try {
+            seen = executor.submit(new CaptureTask()).get();
+        } finally {
+            scope.close();
+        }
+        assertEquals(DataSourceType.read, seen.getDataSourceType());
+        assertEquals(300, seen.getMaxStaleness());
+        assertEquals("u1", seen.getSessionId());
+
+        // 任务结束后工作线程恢复原来的状态
+        RoutingContextSnapshot after = worker.submit(new CaptureTask()).get();
+        assertNull(after.getDataSourceType());
+        assertNull(after.getSessionId());
+    }
+
+    @Test
+    public void testWrapOverridesWorkerState() throws Exception {
+        worker.submit(new Runnable() {
+
+            @Override
+            public void run() {
+                // 工作线程上遗留的选择
+                ReadWriteDataSourceChoice.markWrite();
+            }
+        }).get();
+
+        RoutingScope scope = RoutingScope.read();
+        Callable<RoutingContextSnapshot> task;
+        try {
+            task = RoutingContextSnapshot.wrap(new CaptureTask());
+        } finally {
+            scope.close();
+        }
+        assertEquals(DataSourceType.read, worker.submit(task).get().getDataSourceType());
+        // 任务结束时清空了工作线程上遗留的选择
+        assertNull(worker.submit(new CaptureTask()).get().getDataSourceType());
+    }
+
+    private static class CaptureTask implements Callable<RoutingContextSnapshot> {
+
+        @Override
+        public RoutingContextSnapshot call() {
+            return RoutingContextSnapshot.capture();
+        }
+    }
+}
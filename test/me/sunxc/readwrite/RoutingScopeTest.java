@@ -0,0 +1,123 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Properties;
+
+import me.sunxc.common.datasource.DynamicDataSourceProcessor;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+import me.sunxc.common.datasource.RoutingScope;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.transaction.interceptor.NameMatchTransactionAttributeSource;
+
+/**
+ * 嵌套读/写选择测试
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class RoutingScopeTest {
+
+    @After
+    public void tearDown() {
+        ReadWriteDataSourceChoice.reset();
+    }
+
+    @Test
+    public void testNestedScopeRestoresOuter() {
+        RoutingScope outer = RoutingScope.read(500);
+        try {
+            RoutingScope inner = RoutingScope.write();
+            try {
+                assertTrue(ReadWriteDataSourceChoice.isChoiceWrite());
+                assertEquals(-1, ReadWriteDataSourceChoice.getMaxStaleness());
+            } finally {
+                inner.close();
+            }
+            assertTrue(ReadWriteDataSourceChoice.isChoiceRead());
+            assertEquals(500, ReadWriteDataSourceChoice.getMaxStaleness());
+        } finally {
+            outer.close();
+        }
+        assertTrue(ReadWriteDataSourceChoice.isChoiceNone());
+    }
+
+    @Test
+    public void testScopeReusedAndCloseIdempotent() {
+        RoutingScope first = RoutingScope.read();
+        first.close();
+        RoutingScope second = RoutingScope.write();
+        // 同一层的scope对象重复使用，不分配
+        assertSame(first, second);
+        RoutingScope inner = RoutingScope.read();
+        second.close();
+        // 外层先close，内层一并退出
+        assertTrue(ReadWriteDataSourceChoice.isChoiceNone());
+        inner.close();
+        second.close();
+        assertTrue(ReadWriteDataSourceChoice.isChoiceNone());
+    }
+
+    @Test
+    public void testStaleCloseDoesNotPopNewerLayer() throws Throwable {
+        NameMatchTransactionAttributeSource attributeSource = new NameMatchTransactionAttributeSource();
+        attributeSource.setProperties(new Properties());
+        DynamicDataSourceProcessor processor = new DynamicDataSourceProcessor();
+        processor.postProcessAfterInitialization(attributeSource, "txAdvice");
+
+        StaleCloseService service = new StaleCloseService();
+        service.stale = RoutingScope.read();
+        service.stale.close();
+        // 切面在同一层压入写选择，之前的scope引用close不能弹出它
+        assertEquals(DataSourceType.write, processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "save")));
+        assertTrue(ReadWriteDataSourceChoice.isChoiceNone());
+    }
+
+    @Test
+    public void testDeepNesting() {
+        RoutingScope[] scopes = new RoutingScope[20];
+        for(int i = 0; i < scopes.length; i++) {
+            scopes[i] = i % 2 == 0 ? RoutingScope.read(i) : RoutingScope.write();
+        }
+        for(int i = scopes.length - 1; i >= 0; i--) {
+            assertEquals(i % 2 == 0, ReadWriteDataSourceChoice.isChoiceRead());
+            scopes[i].close();
+        }
+        assertTrue(ReadWriteDataSourceChoice.isChoiceNone());
+    }
+
+    @Test
+    public void testProcessorRestoresOuterChoice() throws Throwable {
+        Properties attributes = new Properties();
+        attributes.setProperty("find*", "PROPAGATION_REQUIRED,readOnly");
+        attributes.setProperty("*", "PROPAGATION_REQUIRED");
+        NameMatchTransactionAttributeSource attributeSource = new NameMatchTransactionAttributeSource();
+        attributeSource.setProperties(attributes);
+        DynamicDataSourceProcessor processor = new DynamicDataSourceProcessor();
+        processor.postProcessAfterInitialization(attributeSource, "txAdvice");
+
+        RoutingScope scope = RoutingScope.read();
+        try {
+            assertEquals(DataSourceType.write,
+                processor.doChoiceReadOrWriteDB(StubJoinPoint.of(new DynamicDataSourceProcessorTest.RecordingService(), "save")));
+            // 内层调用结束后恢复外层的读选择
+            assertTrue(ReadWriteDataSourceChoice.isChoiceRead());
+        } finally {
+            scope.close();
+        }
+    }
+
+    public static class StaleCloseService {
+
+        private RoutingScope stale;
+
+        public DataSourceType save() {
+            stale.close();
+            return ReadWriteDataSourceChoice.isChoiceWrite() ? DataSourceType.write : null;
+        }
+    }
+}
@@ -0,0 +1,117 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.DynamicDataSourceProcessor;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+import me.sunxc.common.datasource.RouteTo;
+import me.sunxc.common.datasource.trace.RoutingTrace;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 路由决策采样记录测试，不需要数据库
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class RoutingTraceTest {
+
+    private StubDataSource read;
+    private RoutingTrace trace;
+    private DynamicDataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        read = new StubDataSource("trace-read");
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        readDataSourceMap.put("read1", read);
+        trace = new RoutingTrace();
+        trace.setSampleRate(1);
+        dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(new StubDataSource("trace-write"));
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.setRoutingTrace(trace);
+        dataSource.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ReadWriteDataSourceChoice.reset();
+        dataSource.destroy();
+    }
+
+    @Test
+    public void testRecordsMethodAndDecision() throws Throwable {
+        DynamicDataSourceProcessor processor = new DynamicDataSourceProcessor();
+        TracedService service = new TracedService(dataSource);
+        processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "find"));
+        processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "save"));
+        dataSource.getConnection().close();
+
+        read.setDown(true);
+        processor.doChoiceReadOrWriteDB(StubJoinPoint.of(service, "find"));
+
+        List<String> lines = trace.dump();
+        assertEquals(5, lines.size());
+        assertTrue(lines.get(0), lines.get(0).endsWith("TracedService.find -> read1 (load_balance)"));
+        assertTrue(lines.get(1), lines.get(1).endsWith("TracedService.save -> write (write)"));
+        assertTrue(lines.get(2), lines.get(2).endsWith("- -> write (no_choice)"));
+        // 没有健康检查时读库失败不重试，由service自己改从写库读
+        assertTrue(lines.get(3), lines.get(3).endsWith("TracedService.find -> read1 (load_balance)"));
+        assertTrue(lines.get(4), lines.get(4).endsWith("TracedService.find -> write (write)"));
+        assertEquals(lines.size(), dataSource.dumpRoutingTrace().length);
+    }
+
+    @Test
+    public void testSamplingAndWrapAround() throws Exception {
+        trace.setSampleRate(10);
+        trace.setCapacity(4);
+        ReadWriteDataSourceChoice.markRead();
+        for(int i = 0; i < 100; i++) {
+            dataSource.getConnection().close();
+        }
+        // 采样10条，只保留最近的4条
+        assertEquals(4, trace.dump().size());
+        trace.clear();
+        assertEquals(0, trace.dump().size());
+    }
+
+    /**
+     * find读失败后自己改从写库读
+     */
+    public static class TracedService {
+
+        private final DataSource dataSource;
+
+        public TracedService(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        @RouteTo(DataSourceType.read)
+        public void find() throws SQLException {
+            try {
+                dataSource.getConnection().close();
+            } catch(SQLException e) {
+                ReadWriteDataSourceChoice.markWrite();
+                dataSource.getConnection().close();
+            }
+        }
+
+        @RouteTo(DataSourceType.write)
+        public void save() throws SQLException {
+            dataSource.getConnection().close();
+        }
+    }
+}
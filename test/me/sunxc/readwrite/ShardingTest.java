@@ -0,0 +1,279 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.RoutingScope;
+import me.sunxc.common.datasource.concurrent.RoutingContextSnapshot;
+import me.sunxc.common.datasource.shard.IdGenerator;
+import me.sunxc.common.datasource.shard.ModShardingFunction;
+import me.sunxc.common.datasource.shard.RangeShardingFunction;
+import me.sunxc.common.datasource.shard.ShardChoice;
+import me.sunxc.common.datasource.shard.ShardKey;
+import me.sunxc.common.datasource.shard.ShardingDataSource;
+import me.sunxc.common.datasource.shard.ShardingProcessor;
+import me.sunxc.model.User;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * 分片路由测试，不需要数据库
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class ShardingTest {
+
+    private final List<DynamicDataSource> groups = new ArrayList<DynamicDataSource>();
+    private ShardingDataSource shardingDataSource;
+    private ShardingProcessor processor;
+    private ShardedService service;
+
+    @Before
+    public void setUp() throws Exception {
+        List<DataSource> shards = new ArrayList<DataSource>();
+        for(int i = 0; i < 2; i++) {
+            Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+            readDataSourceMap.put("read" + i, new StubDataSource("shard" + i + "-read"));
+            DynamicDataSource group = new DynamicDataSource();
+            group.setWriteDataSource(new StubDataSource("shard" + i + "-write"));
+            group.setReadDataSourceMap(readDataSourceMap);
+            group.afterPropertiesSet();
+            groups.add(group);
+            shards.add(group);
+        }
+        shardingDataSource = new ShardingDataSource();
+        shardingDataSource.setShards(shards);
+        shardingDataSource.afterPropertiesSet();
+
+        // 模拟TableIdGenerator的全局序列
+        final AtomicLong sequence = new AtomicLong();
+        processor = new ShardingProcessor();
+        processor.setShardingDataSource(shardingDataSource);
+        processor.setIdGenerator(new IdGenerator() {
+
+            @Override
+            public long nextId() {
+                return sequence.incrementAndGet();
+            }
+        });
+        processor.afterPropertiesSet();
+
+        service = new ShardedService(shardingDataSource);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        ShardChoice.reset();
+        ReadWriteDataSourceChoice.reset();
+        for(DynamicDataSource group: groups) {
+            group.destroy();
+        }
+    }
+
+    @Test
+    public void testModSharding() {
+        ModShardingFunction function = new ModShardingFunction();
+        function.init(4);
+        assertEquals(1, function.shard(5));
+        assertEquals(3, function.shard(-7L));
+        assertEquals(function.shard("abc"), function.shard(new String("abc")));
+    }
+
+    @Test
+    public void testRangeSharding() {
+        RangeShardingFunction function = new RangeShardingFunction();
+        function.setUpperBounds(Arrays.asList(100L, 200L));
+        function.init(3);
+        assertEquals(0, function.shard(0));
+        assertEquals(0, function.shard(99));
+        assertEquals(1, function.shard(100));
+        assertEquals(2, function.shard(200));
+        assertEquals(2, function.shard(Long.MAX_VALUE));
+
+        function.setUpperBounds(Arrays.asList(100L, 200L));
+        function.init(2);
+        try {
+            function.shard(200);
+            fail("beyond the last range");
+        } catch(IllegalArgumentException e) {
+            // 超出最后一个分片的上界
+        }
+    }
+
+    @Test
+    public void testRouteByParameter() throws Throwable {
+        assertEquals("shard0-write", processor.doChoiceShard(StubJoinPoint.of(service, "findById", 4)));
+        assertEquals("shard1-write", processor.doChoiceShard(StubJoinPoint.of(service, "findById", 7)));
+        assertEquals(ShardChoice.NONE, ShardChoice.getShard());
+    }
+
+    @Test
+    public void testRouteByProperty() throws Throwable {
+        User user = new User();
+        user.setId(3);
+        assertEquals("shard1-write", processor.doChoiceShard(StubJoinPoint.of(service, "update", user)));
+    }
+
+    @Test
+    public void testInsertAllocatesShardKey() throws Throwable {
+        // 插入前没有id：分配全局id后按id选择分片，之后按id查询落在同一个分片
+        for(int i = 1; i <= 4; i++) {
+            User user = new User("user" + i);
+            String inserted = (String)processor.doChoiceShard(StubJoinPoint.of(service, "save", user));
+            assertEquals(i, user.getId());
+            assertEquals("shard" + (i % 2) + "-write", inserted);
+            assertEquals(inserted, processor.doChoiceShard(StubJoinPoint.of(service, "findById", user.getId())));
+        }
+
+        // 已分配的id不重新分配
+        User user = new User("user5");
+        user.setId(9);
+        assertEquals("shard1-write", processor.doChoiceShard(StubJoinPoint.of(service, "save", user)));
+        assertEquals(9, user.getId());
+    }
+
+    @Test
+    public void testGeneratedShardKeyRequiresIdGenerator() throws Throwable {
+        processor = new ShardingProcessor();
+        processor.setShardingDataSource(shardingDataSource);
+        processor.afterPropertiesSet();
+        try {
+            processor.doChoiceShard(StubJoinPoint.of(service, "save", new User("user")));
+            fail("no id generator");
+        } catch(IllegalStateException e) {
+            // 各分片的auto_increment不能作为分片键
+        }
+    }
+
+    @Test
+    public void testReadWriteSplitInsideShard() throws Throwable {
+        RoutingScope scope = RoutingScope.read();
+        try {
+            assertEquals("shard1-read", processor.doChoiceShard(StubJoinPoint.of(service, "findById", 9)));
+        } finally {
+            scope.close();
+        }
+    }
+
+    @Test
+    public void testNestedCallKeepsShard() throws Throwable {
+        ShardChoice.push(1);
+        try {
+            assertEquals("shard1-write", processor.doChoiceShard(StubJoinPoint.of(service, "currentDataSource")));
+        } finally {
+            ShardChoice.pop();
+        }
+        try {
+            processor.doChoiceShard(StubJoinPoint.of(service, "currentDataSource"));
+            fail("no shard chosen");
+        } catch(SQLException e) {
+            // 没有默认分片
+        }
+    }
+
+    @Test
+    public void testCrossShardInTransaction() throws Throwable {
+        ShardChoice.push(0);
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        try {
+            assertEquals("shard0-write", processor.doChoiceShard(StubJoinPoint.of(service, "findById", 2)));
+            processor.doChoiceShard(StubJoinPoint.of(service, "findById", 3));
+            fail("cross-shard call");
+        } catch(IllegalStateException e) {
+            // 事务中不能切换分片
+        } finally {
+            TransactionSynchronizationManager.setActualTransactionActive(false);
+            ShardChoice.pop();
+        }
+    }
+
+    @Test
+    public void testCrossShardFromDefaultShardInTransaction() throws Throwable {
+        shardingDataSource.setDefaultShard(0);
+        shardingDataSource.afterPropertiesSet();
+        // 外层事务方法没有@ShardKey，连接取自默认分片0
+        TransactionSynchronizationManager.setActualTransactionActive(true);
+        try {
+            assertEquals("shard0-write", processor.doChoiceShard(StubJoinPoint.of(service, "currentDataSource")));
+            assertEquals("shard0-write", processor.doChoiceShard(StubJoinPoint.of(service, "findById", 2)));
+            processor.doChoiceShard(StubJoinPoint.of(service, "findById", 3));
+            fail("cross-shard call from the default shard");
+        } catch(IllegalStateException e) {
+            // 事务中不能从默认分片切换到分片1
+        } finally {
+            TransactionSynchronizationManager.setActualTransactionActive(false);
+        }
+        // 不在事务中时可以切换
+        assertEquals("shard1-write", processor.doChoiceShard(StubJoinPoint.of(service, "findById", 3)));
+    }
+
+    @Test
+    public void testSnapshotCarriesShard() throws Exception {
+        ShardChoice.push(1);
+        Callable<String> task;
+        try {
+            task = RoutingContextSnapshot.wrap(new Callable<String>() {
+
+                @Override
+                public String call() throws Exception {
+                    return service.currentDataSource();
+                }
+            });
+        } finally {
+            ShardChoice.pop();
+        }
+        assertEquals("shard1-write", task.call());
+        assertEquals(ShardChoice.NONE, ShardChoice.getShard());
+    }
+
+    /**
+     * 每个方法返回实际使用的数据源名称
+     */
+    public static class ShardedService {
+
+        private final DataSource dataSource;
+
+        public ShardedService(DataSource dataSource) {
+            this.dataSource = dataSource;
+        }
+
+        public String findById(@ShardKey int id) throws SQLException {
+            return currentDataSource();
+        }
+
+        public String save(@ShardKey(value = "id", generated = true) User user) throws SQLException {
+            return currentDataSource();
+        }
+
+        public String update(@ShardKey("id") User user) throws SQLException {
+            return currentDataSource();
+        }
+
+        public String currentDataSource() throws SQLException {
+            Connection con = dataSource.getConnection();
+            try {
+                String name = con.toString();
+                return name.substring(name.indexOf('[') + 1, name.length() - 1);
+            } finally {
+                con.close();
+            }
+        }
+    }
+}
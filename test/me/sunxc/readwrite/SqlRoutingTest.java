@@ -0,0 +1,170 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import me.sunxc.common.datasource.DynamicDataSource;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice.DataSourceType;
+import me.sunxc.common.datasource.sql.SqlStatementClassifier;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * 按SQL语句选择读/写库测试
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class SqlRoutingTest {
+
+    private StubDataSource write = new StubDataSource("write");
+    private StubDataSource read = new StubDataSource("read");
+
+    private DynamicDataSource dataSource;
+
+    @Before
+    public void setUp() throws Exception {
+        Map<String, DataSource> readDataSourceMap = new LinkedHashMap<String, DataSource>();
+        readDataSourceMap.put("read", read);
+        dataSource = new DynamicDataSource();
+        dataSource.setWriteDataSource(write);
+        dataSource.setReadDataSourceMap(readDataSourceMap);
+        dataSource.setSqlRouting(true);
+        dataSource.setDefaultAutoCommit(true);
+        dataSource.setDefaultTransactionIsolation(Connection.TRANSACTION_REPEATABLE_READ);
+        dataSource.afterPropertiesSet();
+    }
+
+    @After
+    public void tearDown() {
+        ReadWriteDataSourceChoice.reset();
+    }
+
+    @Test
+    public void testClassify() {
+        SqlStatementClassifier classifier = new SqlStatementClassifier();
+        assertEquals(DataSourceType.read, classifier.classify("select id, name from user where id=?"));
+        assertEquals(DataSourceType.read, classifier.classify("  /* hint */ (SELECT 1)"));
+        assertEquals(DataSourceType.read, classifier.classify("show tables"));
+        assertEquals(DataSourceType.write, classifier.classify("select id from user where id=? for update"));
+        assertEquals(DataSourceType.write, classifier.classify("select * from user lock in share mode"));
+        assertEquals(DataSourceType.write, classifier.classify("select last_insert_id()"));
+        assertEquals(DataSourceType.write, classifier.classify("insert into user(name) values(?)"));
+        assertEquals(DataSourceType.write, classifier.classify("-- comment\nupdate user set name=?"));
+        assertEquals(DataSourceType.write, classifier.classify("create table t(id int)"));
+        assertEquals(DataSourceType.write, classifier.classify("select name into @name from user where id=?"));
+        assertEquals(DataSourceType.write, classifier.classify("select * from user into outfile '/tmp/user'"));
+    }
+
+    @Test
+    public void testClassifyWith() {
+        SqlStatementClassifier classifier = new SqlStatementClassifier();
+        assertEquals(DataSourceType.read, classifier.classify(
+            "with t as (select id from user where name=')') select * from t"));
+        assertEquals(DataSourceType.read, classifier.classify(
+            "WITH RECURSIVE t (n) AS (SELECT 1 UNION ALL SELECT n + 1 FROM t WHERE n < 5), u AS (SELECT 2) SELECT * FROM t"));
+        assertEquals(DataSourceType.write, classifier.classify(
+            "with t as (select id from user where name=?) update user set name='x' where id in (select id from t)"));
+        assertEquals(DataSourceType.write, classifier.classify(
+            "with t as (select id from user) delete from address where user_id in (select id from t)"));
+        assertEquals(DataSourceType.write, classifier.classify(
+            "with t as (select id from user) select * from t for update"));
+    }
+
+    @Test
+    public void testCacheBounded() {
+        SqlStatementClassifier classifier = new SqlStatementClassifier();
+        classifier.setCacheSize(100);
+        for(int i = 0; i < 1000; i++) {
+            assertEquals(DataSourceType.read, classifier.classify("select " + i));
+        }
+        assertTrue(classifier.getCachedCount() <= 100);
+        assertEquals(DataSourceType.read, classifier.classify("select 1"));
+    }
+
+    @Test
+    public void testCredentialedConnectionRoutedBySql() throws Exception {
+        Connection con = dataSource.getConnection("user", "password");
+        con.prepareStatement("select id from user");
+        con.prepareStatement("update user set name=? where id=?");
+        con.close();
+        assertEquals(1, read.getBorrowed());
+        assertEquals(1, write.getBorrowed());
+    }
+
+    @Test
+    public void testSelectGoesToRead() throws Exception {
+        // 没有经过service层（未标记读/写）的非事务SELECT也走读库
+        Connection con = dataSource.getConnection();
+        con.prepareStatement("select id, name from user where id=?");
+        con.close();
+        assertEquals(1, read.getBorrowed());
+        assertEquals(0, write.getBorrowed());
+    }
+
+    @Test
+    public void testWriteInReadMethod() throws Exception {
+        ReadWriteDataSourceChoice.markRead();
+        Connection con = dataSource.getConnection();
+        con.prepareStatement("select id from user");
+        // query*方法中的写操作，切换到写库
+        con.prepareStatement("update user set name=? where id=?");
+        con.close();
+        assertEquals(1, read.getBorrowed());
+        assertEquals(1, write.getBorrowed());
+        assertEquals(0, read.getActive() + write.getActive());
+    }
+
+    @Test
+    public void testWriteWhileReadingCursor() throws Exception {
+        Connection con = dataSource.getConnection();
+        ResultSet cursor = con.prepareStatement("select id from user").executeQuery();
+        // 遍历游标的同时更新，读库连接不能先归还
+        con.prepareStatement("update user set name=? where id=?").executeUpdate();
+        assertEquals(1, read.getActive());
+        assertEquals(1, write.getActive());
+        cursor.next();
+        con.close();
+        assertEquals(0, read.getActive() + write.getActive());
+        assertEquals(1, read.getBorrowed());
+        assertEquals(1, write.getBorrowed());
+    }
+
+    @Test
+    public void testWriteTransaction() throws Exception {
+        Connection con = dataSource.getConnection();
+        con.setAutoCommit(false);
+        con.prepareStatement("select id from user");
+        con.commit();
+        con.close();
+        assertEquals(0, read.getBorrowed());
+        assertEquals(1, write.getBorrowed());
+    }
+
+    @Test
+    public void testCreateStatement() throws Exception {
+        Connection con = dataSource.getConnection();
+        con.createStatement().executeQuery("select 1");
+        con.close();
+        assertEquals(1, read.getBorrowed());
+    }
+
+    @Test
+    public void testChoiceWrite() throws Exception {
+        ReadWriteDataSourceChoice.markWrite();
+        Connection con = dataSource.getConnection();
+        con.prepareStatement("select id from user");
+        con.close();
+        assertEquals(0, read.getBorrowed());
+        assertEquals(1, write.getBorrowed());
+    }
+}
@@ -0,0 +1,251 @@
+package me.sunxc.readwrite;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.jdbc.datasource.AbstractDataSource;
+
+/**
+ * 测试用的内存DataSource，不连接数据库，只记录获取/归还连接的次数
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class StubDataSource extends AbstractDataSource {
+
+    private final String name;
+
+    private final AtomicInteger borrowed = new AtomicInteger();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger cancelled = new AtomicInteger();
+    private final AtomicInteger lastQueryTimeout = new AtomicInteger();
+    private final AtomicInteger openStatements = new AtomicInteger();
+
+    private volatile boolean down;
+    private volatile boolean busy;
+    private volatile long queryDelayMillis;
+    private volatile String queryFailureSqlState;
+
+    public StubDataSource(String name) {
+        this.name = name;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 模拟数据库宕机，getConnection将抛出SQLException
+     * @param down
+     */
+    public void setDown(boolean down) {
+        this.down = down;
+    }
+
+    /**
+     * 模拟连接池已满，getConnection像commons-dbcp一样抛出等待超时
+     * @param busy
+     */
+    public void setBusy(boolean busy) {
+        this.busy = busy;
+    }
+
+    /**
+     * 模拟慢查询，executeQuery等待queryDelayMillis后返回，Statement.cancel()时立即抛出SQLException
+     * @param queryDelayMillis
+     */
+    public void setQueryDelayMillis(long queryDelayMillis) {
+        this.queryDelayMillis = queryDelayMillis;
+    }
+
+    /**
+     * 模拟查询失败，executeQuery抛出指定SQLState的SQLException，null表示不失败
+     * @param queryFailureSqlState
+     */
+    public void setQueryFailureSqlState(String queryFailureSqlState) {
+        this.queryFailureSqlState = queryFailureSqlState;
+    }
+
+    /**
+     * @return 创建后还没有关闭的Statement数
+     */
+    public int getOpenStatements() {
+        return openStatements.get();
+    }
+
+    /**
+     * @return 被取消的查询数
+     */
+    public int getCancelled() {
+        return cancelled.get();
+    }
+
+    /**
+     * @return 最近一次Statement.setQueryTimeout的秒数
+     */
+    public int getLastQueryTimeout() {
+        return lastQueryTimeout.get();
+    }
+
+    public int getBorrowed() {
+        return borrowed.get();
+    }
+
+    public int getActive() {
+        return active.get();
+    }
+
+    @Override
+    public Connection getConnection() throws SQLException {
+        if(down) {
+            throw new SQLException("datasource " + name + " is down");
+        }
+        if(busy) {
+            throw new SQLException("Cannot get a connection, pool error Timeout waiting for idle object",
+                new NoSuchElementException("Timeout waiting for idle object"));
+        }
+        borrowed.incrementAndGet();
+        active.incrementAndGet();
+        return (Connection)Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {Connection.class},
+            new InvocationHandler() {
+
+                private boolean closed;
+
+                @Override
+                public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                    String methodName = method.getName();
+                    if("close".equals(methodName)) {
+                        if(!closed) {
+                            closed = true;
+                            active.decrementAndGet();
+                        }
+                        return null;
+                    }
+                    if("isClosed".equals(methodName)) {
+                        return closed;
+                    }
+                    if("isValid".equals(methodName)) {
+                        return !closed && !down;
+                    }
+                    if("toString".equals(methodName)) {
+                        return "StubConnection[" + name + "]";
+                    }
+                    if("prepareStatement".equals(methodName) || "createStatement".equals(methodName)) {
+                        return newStatement(method.getReturnType());
+                    }
+                    if("equals".equals(methodName)) {
+                        return proxy == args[0];
+                    }
+                    if("hashCode".equals(methodName)) {
+                        return System.identityHashCode(proxy);
+                    }
+                    return defaultValue(method.getReturnType());
+                }
+            });
+    }
+
+    /**
+     * 按queryDelayMillis执行查询、可以取消、记录查询超时的Statement
+     */
+    private Object newStatement(Class<?> type) {
+        final CountDownLatch cancel = new CountDownLatch(1);
+        final AtomicInteger queryTimeout = new AtomicInteger();
+        openStatements.incrementAndGet();
+        return Proxy.newProxyInstance(getClass().getClassLoader(), new Class<?>[] {type}, new InvocationHandler() {
+
+            private boolean closed;
+
+            @Override
+            public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                String methodName = method.getName();
+                if("close".equals(methodName)) {
+                    if(!closed) {
+                        closed = true;
+                        openStatements.decrementAndGet();
+                    }
+                    return null;
+                }
+                if("cancel".equals(methodName)) {
+                    if(cancel.getCount() > 0) {
+                        cancel.countDown();
+                        cancelled.incrementAndGet();
+                    }
+                    return null;
+                }
+                if("setQueryTimeout".equals(methodName)) {
+                    queryTimeout.set((Integer)args[0]);
+                    lastQueryTimeout.set((Integer)args[0]);
+                    return null;
+                }
+                if("getQueryTimeout".equals(methodName)) {
+                    return queryTimeout.get();
+                }
+                if("executeQuery".equals(methodName)) {
+                    String sqlState = queryFailureSqlState;
+                    if(sqlState != null) {
+                        throw new SQLException("query on " + name + " failed", sqlState);
+                    }
+                    long delay = queryDelayMillis;
+                    if(delay > 0 && cancel.await(delay, TimeUnit.MILLISECONDS)) {
+                        throw new SQLException("query on " + name + " cancelled");
+                    }
+                }
+                if("equals".equals(methodName)) {
+                    return proxy == args[0];
+                }
+                if("hashCode".equals(methodName)) {
+                    return System.identityHashCode(proxy);
+                }
+                return defaultValue(method.getReturnType());
+            }
+        });
+    }
+
+    /**
+     * Statement、ResultSet等返回同样不做任何事的代理，基本类型返回默认值
+     */
+    private static Object defaultValue(Class<?> returnType) {
+        if(returnType == boolean.class) {
+            return Boolean.FALSE;
+        }
+        if(returnType == int.class) {
+            return 0;
+        }
+        if(returnType == long.class) {
+            return 0L;
+        }
+        if(returnType.isInterface() && returnType.getName().startsWith("java.sql.")) {
+            return Proxy.newProxyInstance(StubDataSource.class.getClassLoader(), new Class<?>[] {returnType},
+                new InvocationHandler() {
+
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if("equals".equals(method.getName())) {
+                            return proxy == args[0];
+                        }
+                        if("hashCode".equals(method.getName())) {
+                            return System.identityHashCode(proxy);
+                        }
+                        return defaultValue(method.getReturnType());
+                    }
+                });
+        }
+        return null;
+    }
+
+    @Override
+    public Connection getConnection(String username, String password) throws SQLException {
+        return getConnection();
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
@@ -0,0 +1,79 @@
+package me.sunxc.readwrite;
+
+import java.sql.Connection;
+import java.sql.Driver;
+import java.sql.DriverManager;
+import java.sql.DriverPropertyInfo;
+import java.sql.SQLException;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 测试用的JDBC驱动，jdbc:stub:<name> 从对应的StubDataSource获取连接
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class StubDriver implements Driver {
+
+    private static final String PREFIX = "jdbc:stub:";
+
+    private static final Map<String, StubDataSource> dataSources = new ConcurrentHashMap<String, StubDataSource>();
+
+    static {
+        try {
+            DriverManager.registerDriver(new StubDriver());
+        } catch(SQLException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return 连接url
+     */
+    public static String register(StubDataSource dataSource) {
+        dataSources.put(dataSource.getName(), dataSource);
+        return PREFIX + dataSource.getName();
+    }
+
+    @Override
+    public Connection connect(String url, Properties info) throws SQLException {
+        if(!acceptsURL(url)) {
+            return null;
+        }
+        StubDataSource dataSource = dataSources.get(url.substring(PREFIX.length()));
+        if(dataSource == null) {
+            throw new SQLException("no stub datasource for " + url);
+        }
+        return dataSource.getConnection();
+    }
+
+    @Override
+    public boolean acceptsURL(String url) {
+        return url != null && url.startsWith(PREFIX);
+    }
+
+    @Override
+    public DriverPropertyInfo[] getPropertyInfo(String url, Properties info) {
+        return new DriverPropertyInfo[0];
+    }
+
+    @Override
+    public int getMajorVersion() {
+        return 1;
+    }
+
+    @Override
+    public int getMinorVersion() {
+        return 0;
+    }
+
+    @Override
+    public boolean jdbcCompliant() {
+        return false;
+    }
+
+    public java.util.logging.Logger getParentLogger() {
+        return java.util.logging.Logger.getLogger(java.util.logging.Logger.GLOBAL_LOGGER_NAME);
+    }
+}
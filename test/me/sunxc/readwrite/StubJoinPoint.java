@@ -0,0 +1,76 @@
+package me.sunxc.readwrite;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.util.ReflectionUtils;
+
+/**
+ * 测试用的ProceedingJoinPoint，proceed时直接反射调用目标方法，用于不启动spring容器测试DynamicDataSourceProcessor
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class StubJoinPoint {
+
+    public static ProceedingJoinPoint of(final Object target, String methodName, final Object... args) {
+        final Method method = findMethod(target.getClass(), methodName);
+        final MethodSignature signature = (MethodSignature)Proxy.newProxyInstance(StubJoinPoint.class.getClassLoader(),
+            new Class<?>[] {MethodSignature.class}, new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method m, Object[] a) throws Throwable {
+                    if("getMethod".equals(m.getName())) {
+                        return method;
+                    }
+                    if("getName".equals(m.getName())) {
+                        return method.getName();
+                    }
+                    if("getDeclaringType".equals(m.getName())) {
+                        return method.getDeclaringClass();
+                    }
+                    return null;
+                }
+            });
+        return (ProceedingJoinPoint)Proxy.newProxyInstance(StubJoinPoint.class.getClassLoader(),
+            new Class<?>[] {ProceedingJoinPoint.class}, new InvocationHandler() {
+
+                @Override
+                public Object invoke(Object proxy, Method m, Object[] a) throws Throwable {
+                    String name = m.getName();
+                    if("getSignature".equals(name)) {
+                        return signature;
+                    }
+                    if("getTarget".equals(name) || "getThis".equals(name)) {
+                        return target;
+                    }
+                    if("getArgs".equals(name)) {
+                        return args;
+                    }
+                    if("proceed".equals(name)) {
+                        try {
+                            return method.invoke(target, a == null || a.length == 0 ? args : (Object[])a[0]);
+                        } catch(InvocationTargetException e) {
+                            throw e.getTargetException();
+                        }
+                    }
+                    if("toString".equals(name)) {
+                        return "StubJoinPoint[" + method + "]";
+                    }
+                    return null;
+                }
+            });
+    }
+
+    private static Method findMethod(Class<?> clazz, String methodName) {
+        for(Method method: ReflectionUtils.getAllDeclaredMethods(clazz)) {
+            if(method.getName().equals(methodName)) {
+                return method;
+            }
+        }
+        throw new IllegalArgumentException("no method " + methodName + " in " + clazz);
+    }
+}
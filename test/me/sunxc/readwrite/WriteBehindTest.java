@@ -0,0 +1,251 @@
+package me.sunxc.readwrite;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import me.sunxc.common.datasource.ReadWriteDataSourceChoice;
+import me.sunxc.common.datasource.writebehind.WriteBehind;
+import me.sunxc.common.datasource.writebehind.WriteBehindFuture;
+import me.sunxc.common.datasource.writebehind.WriteBehindProcessor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.AbstractPlatformTransactionManager;
+import org.springframework.transaction.support.DefaultTransactionStatus;
+
+/**
+ * 后写合并提交测试：按批量大小/等待时间合并、批量方法、失败重试、队列满时同步执行，不需要数据库
+ * @author xianchao.sun@yunyoyo.cn
+ *
+ */
+public class WriteBehindTest {
+
+    private CountingTransactionManager transactionManager;
+    private WriteBehindProcessor processor;
+    private EventService service;
+
+    @Before
+    public void setUp() {
+        transactionManager = new CountingTransactionManager();
+        processor = new WriteBehindProcessor();
+        processor.setTransactionManager(transactionManager);
+        service = new EventService();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        processor.destroy();
+        ReadWriteDataSourceChoice.reset();
+    }
+
+    @Test
+    public void testCallsCoalescedIntoOneTransaction() throws Throwable {
+        processor.setMaxDelayMillis(500);
+        processor.afterPropertiesSet();
+        for(int i = 0; i < 50; i++) {
+            assertNull(processor.doWriteBehind(StubJoinPoint.of(service, "save", "event" + i)));
+        }
+        WriteBehindFuture last = WriteBehindProcessor.lastFuture();
+        assertNotNull(last);
+        // 调用线程不执行写入
+        assertEquals(0, service.saved.size());
+        processor.flush();
+        assertTrue(last.isDone());
+        assertNull(last.get());
+
+        // 合并为一次saveAll，一个事务
+        assertEquals(1, service.batches.size());
+        assertEquals(50, service.batches.get(0).size());
+        assertEquals("event0", service.batches.get(0).get(0));
+        assertEquals(1, transactionManager.commits.get());
+        assertEquals(1, processor.getCommitCount());
+        assertEquals(0, processor.getQueueSize());
+        assertTrue(service.writeThread != Thread.currentThread());
+    }
+
+    @Test
+    public void testFlushWhenBatchFull() throws Throwable {
+        processor.setMaxBatchSize(10);
+        processor.setMaxDelayMillis(60000);
+        processor.afterPropertiesSet();
+        List<WriteBehindFuture> futures = new ArrayList<WriteBehindFuture>();
+        for(int i = 0; i < 25; i++) {
+            futures.add((WriteBehindFuture)processor.doWriteBehind(StubJoinPoint.of(service, "record", "event" + i)));
+        }
+        // 攒够一批即提交，不等maxDelayMillis
+        futures.get(19).get(5, TimeUnit.SECONDS);
+        assertTrue(!futures.get(24).isDone());
+        processor.flush();
+        assertTrue(futures.get(24).isDone());
+        assertEquals(3, transactionManager.commits.get());
+        assertEquals(25, service.saved.size());
+    }
+
+    @Test
+    public void testFailedCallRetriedAlone() throws Throwable {
+        processor.setMaxDelayMillis(500);
+        processor.afterPropertiesSet();
+        final AtomicReference<Throwable> callbackFailure = new AtomicReference<Throwable>();
+        WriteBehindFuture ok1 = (WriteBehindFuture)processor.doWriteBehind(StubJoinPoint.of(service, "record", "a"));
+        WriteBehindFuture bad = (WriteBehindFuture)processor.doWriteBehind(StubJoinPoint.of(service, "record", "bad"));
+        WriteBehindFuture ok2 = (WriteBehindFuture)processor.doWriteBehind(StubJoinPoint.of(service, "record", "c"));
+        bad.addCallback(new WriteBehindFuture.Callback() {
+
+            @Override
+            public void onCommit(Object result) {
+            }
+
+            @Override
+            public void onFailure(Throwable failure) {
+                callbackFailure.set(failure);
+            }
+        });
+        processor.flush();
+
+        assertNull(ok1.get());
+        assertNull(ok2.get());
+        try {
+            bad.get();
+            fail("bad event");
+        } catch(ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        assertSame(bad.getFailure(), callbackFailure.get());
+        // 整批回滚一次，逐个重试：两个提交，一个回滚
+        assertEquals(2, transactionManager.rollbacks.get());
+        assertEquals(2, transactionManager.commits.get());
+        assertEquals(1, processor.getFailedCount());
+    }
+
+    @Test
+    public void testCallerRunsWhenQueueFull() throws Throwable {
+        processor.setMaxBatchSize(1);
+        processor.setCapacity(1);
+        processor.setMaxDelayMillis(0);
+        processor.afterPropertiesSet();
+        service.blocked = new CountDownLatch(1);
+        service.blocking = new CountDownLatch(1);
+        // 第一个调用在后台线程中阻塞，第二个占满队列，第三个在调用线程中执行
+        WriteBehindFuture first = (WriteBehindFuture)processor.doWriteBehind(StubJoinPoint.of(service, "record", "1"));
+        assertTrue(service.blocking.await(5, TimeUnit.SECONDS));
+        processor.doWriteBehind(StubJoinPoint.of(service, "record", "2"));
+        WriteBehindFuture third = (WriteBehindFuture)processor.doWriteBehind(StubJoinPoint.of(service, "record", "3"));
+        assertTrue(third.isDone());
+        assertEquals(Collections.singletonList("3"), service.saved);
+        assertEquals(1, processor.getCallerRunsCount());
+        assertTrue(!first.isDone());
+
+        service.blocked.countDown();
+        processor.flush();
+        assertEquals(Arrays.asList("3", "1", "2"), service.saved);
+    }
+
+    @Test
+    public void testDestroyDrainsQueue() throws Throwable {
+        processor.setMaxDelayMillis(60000);
+        processor.afterPropertiesSet();
+        WriteBehindFuture future = (WriteBehindFuture)processor.doWriteBehind(StubJoinPoint.of(service, "record", "x"));
+        processor.destroy();
+        assertTrue(future.isDone());
+        assertEquals(Collections.singletonList("x"), service.saved);
+
+        // 关闭后同步执行
+        processor.doWriteBehind(StubJoinPoint.of(service, "record", "y"));
+        assertEquals(Arrays.asList("x", "y"), service.saved);
+    }
+
+    @Test
+    public void testBatchMethodMustTakeList() throws Throwable {
+        processor.afterPropertiesSet();
+        try {
+            processor.doWriteBehind(StubJoinPoint.of(service, "misconfigured", "x"));
+            fail("no batch method");
+        } catch(IllegalArgumentException e) {
+            assertTrue(e.getMessage().contains("batchMethod 'missing'"));
+        }
+    }
+
+    public static class EventService {
+
+        final List<String> saved = Collections.synchronizedList(new ArrayList<String>());
+        final List<List<String>> batches = new ArrayList<List<String>>();
+        volatile Thread writeThread;
+        volatile CountDownLatch blocking;
+        volatile CountDownLatch blocked;
+
+        @WriteBehind(batchMethod = "saveAll")
+        public void save(String event) {
+            saved.add(event);
+        }
+
+        public void saveAll(List<String> events) {
+            writeThread = Thread.currentThread();
+            batches.add(new ArrayList<String>(events));
+            saved.addAll(events);
+        }
+
+        @WriteBehind
+        public Future<?> record(String event) throws InterruptedException {
+            if("bad".equals(event)) {
+                throw new IllegalStateException("bad event");
+            }
+            if(blocked != null && "1".equals(event)) {
+                blocking.countDown();
+                blocked.await();
+            }
+            saved.add(event);
+            return null;
+        }
+
+        @WriteBehind(batchMethod = "missing")
+        public void misconfigured(String event) {
+        }
+    }
+
+    /**
+     * 只计数的事务管理器
+     */
+    private static class CountingTransactionManager extends AbstractPlatformTransactionManager {
+
+        private static final long serialVersionUID = 1L;
+
+        final AtomicInteger commits = new AtomicInteger();
+        final AtomicInteger rollbacks = new AtomicInteger();
+
+        @Override
+        protected Object doGetTransaction() {
+            return new Object();
+        }
+
+        @Override
+        protected void doBegin(Object transaction, TransactionDefinition definition) {
+        }
+
+        @Override
+        protected void doCommit(DefaultTransactionStatus status) {
+            commits.incrementAndGet();
+        }
+
+        @Override
+        protected void doRollback(DefaultTransactionStatus status) {
+            rollbacks.incrementAndGet();
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package me.sunxc.service;
 
+import java.util.List;
+
 import me.sunxc.dao.AddressDao;
 import me.sunxc.model.Address;
 
@@ -16,6 +18,10 @@ public class AddressService {
         addressDao.save(address);
     }
     
+    public void saveAll(List<Address> addresses) {
+        addressDao.saveAll(addresses);
+    }
+    
     public Address findById(int id) {
         return addressDao.findById(id);
     }
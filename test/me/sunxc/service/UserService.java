@@ -1,5 +1,8 @@
 package me.sunxc.service;
 
+import java.util.List;
+
+import me.sunxc.common.datasource.cache.ReadThroughCache;
 import me.sunxc.dao.UserDao;
 import me.sunxc.model.Address;
 import me.sunxc.model.User;
@@ -16,6 +19,20 @@ public class UserService {
     @Autowired
     private AddressService addressService;
     
+    private ReadThroughCache<Integer, User> userCache = new ReadThroughCache<Integer, User>();
+    
+    private final ReadThroughCache.Loader<Integer, User> userLoader = new ReadThroughCache.Loader<Integer, User>() {
+        
+        @Override
+        public User load(Integer id) {
+            return userDao.findById(id);
+        }
+    };
+    
+    public void setUserCache(ReadThroughCache<Integer, User> userCache) {
+        this.userCache = userCache;
+    }
+    
     public void save(User user) {
         userDao.save(user);
     }
@@ -26,17 +43,37 @@ public class UserService {
         addressService.save(address);
     }
     
+    public void saveAll(List<User> users) {
+        userDao.saveAll(users);
+    }
+    
+    /**
+     * 批量保存用户及其地址，addresses.get(i)属于users.get(i)，在同一个写事务中
+     */
+    public void save(List<User> users, List<Address> addresses) {
+        if(users.size() != addresses.size()) {
+            throw new IllegalArgumentException("users and addresses must have the same size");
+        }
+        userDao.saveAll(users);
+        for(int i = 0; i < users.size(); i++) {
+            addresses.get(i).setUserId(users.get(i).getId());
+        }
+        addressService.saveAll(addresses);
+    }
+    
     public void update(User user) {
         userDao.update(user);
+        userCache.invalidate(user.getId());
     }
     
     
     public void delete(int id) {
         userDao.delete(id);
+        userCache.invalidate(id);
     }
     
     public User findById(int id) {
-        return userDao.findById(id);
+        return userCache.get(id, userLoader);
     }
 
     public void testFirstWriteNextRead(User user) { //1 current determine write datasource  进入该方法开启事务